@@ -0,0 +1,344 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.LocalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches the attributes a global secondary index doesn't project, from the base table.
+ *
+ * A Query or Scan of a GSI only returns the attributes projected into the index (KEYS_ONLY or
+ * INCLUDE).  When the entity maps fields that aren't projected, every page read from the index
+ * is followed by BatchGetItem requests (up to 100 keys each) against the base table, and the
+ * base table attributes are merged into the index items.
+ *
+ * A local secondary index doesn't need this, dynamo fetches non-projected attributes from the
+ * table itself.
+ *
+ * Requests are paced by the tables DynamoReadRateLimiter (if any), and keys dynamo leaves
+ * unprocessed are requested again with backoff.
+ *
+ * @author ben.demott
+ */
+public class DynamoBatchGetter {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int MAX_BATCH_KEYS = 100; // BatchGetItem limit
+    public static final String KEY_NAME_PREFIX = "#dihkey";
+    public static final String PROJECTION_DELIMITER = ","; // between the paths of a projection
+
+    protected final AmazonDynamoDB dynamoClient;
+    protected final String tableName;
+    protected final List<String> keyAttributes;
+    protected final String projectionExpression;
+    protected final Map<String, String> nameMap;
+    protected final DynamoReadRateLimiter rateLimiter;
+    protected int maxRetries = DynamoPageReader.DEFAULT_RETRIES;
+    protected long retryBackoffMs = DynamoPageReader.DEFAULT_RETRY_BACKOFF_MS;
+
+    /**
+     * @param dynamoClient the low level client
+     * @param tableName the base table
+     * @param keyAttributes the primary key attributes of the base table
+     * @param projectionExpression attributes to fetch, null for all attributes, the key 
+     *         attributes are always fetched.
+     * @param nameMap ExpressionAttributeNames, only the names used by the projection are sent.
+     * @param rateLimiter paces requests, may be null.
+     */
+    public DynamoBatchGetter(AmazonDynamoDB dynamoClient, String tableName, List<String> keyAttributes,
+            String projectionExpression, Map<String, String> nameMap, DynamoReadRateLimiter rateLimiter) {
+        this.dynamoClient = dynamoClient;
+        this.tableName = tableName;
+        this.keyAttributes = keyAttributes;
+        this.rateLimiter = rateLimiter;
+        
+        if(projectionExpression == null) {
+            this.projectionExpression = null;
+            this.nameMap = null;
+        } else {
+            // the key is needed to match table items to index items, make sure it's projected.
+            // Dynamo rejects a projection with the same path twice, or a path inside another one,
+            // so a key attribute the projection already names (directly or through a #name) 
+            // isn't added again, and a nested path of a key attribute is replaced by the key.
+            Map<String, String> names = new HashMap<>();
+            if(nameMap != null) {
+                names.putAll(nameMap);
+            }
+            List<String> paths = new ArrayList<>();
+            Set<String> projectedKeys = new HashSet<>();
+            for(String path : projectionExpression.split(PROJECTION_DELIMITER)) {
+                path = path.trim();
+                String name = getTopLevelName(path);
+                if(name.isEmpty()) {
+                    continue;
+                }
+                String attribute = names.getOrDefault(name, name);
+                if(keyAttributes.contains(attribute)) {
+                    if(!projectedKeys.add(attribute)) {
+                        continue;
+                    }
+                    path = name;
+                }
+                paths.add(path);
+            }
+            for(int i = 0; i < keyAttributes.size(); i++) {
+                if(!projectedKeys.contains(keyAttributes.get(i))) {
+                    String keyName = KEY_NAME_PREFIX + i;
+                    names.put(keyName, keyAttributes.get(i));
+                    paths.add(keyName);
+                }
+            }
+            this.projectionExpression = String.join(PROJECTION_DELIMITER + " ", paths);
+            this.nameMap = DynamoPageReader.usedNames(names, this.projectionExpression);
+        }
+    }
+
+    /**
+     * @param path a projection path, e.g. #info.tags[0]
+     * @return the attribute (or #name placeholder) the path starts with, e.g. #info
+     */
+    protected static String getTopLevelName(String path) {
+        int end = path.length();
+        for(int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if(c == '.' || c == '[') {
+                end = i;
+                break;
+            }
+        }
+        return path.substring(0, end).trim();
+    }
+
+    /**
+     * Build a getter for the index of the query, if the index doesn't project every field the
+     * entity needs.
+     *
+     * @param dynamoClient
+     * @param tableInfo the table description, needed to find the index projection and table key
+     * @param queryParams the query of the index
+     * @param rateLimiter paces requests, may be null.
+     * @return the getter, or null if the items read from the index don't need to be filled in.
+     */
+    public static DynamoBatchGetter forIndex(AmazonDynamoDB dynamoClient, TableDescription tableInfo,
+            DynamoQueryParameters queryParams, DynamoReadRateLimiter rateLimiter) {
+        String indexName = queryParams.getIndexName();
+        if(indexName == null || !queryParams.isIndexBackfill()) {
+            return null;
+        }
+        if(tableInfo == null) {
+            LOG.warn(String.format("Table description is unavailable, attributes not projected into index [%s] can't be fetched", indexName));
+            return null;
+        }
+
+        Projection projection = null;
+        List<KeySchemaElement> indexKeys = null;
+        if(tableInfo.getGlobalSecondaryIndexes() != null) {
+            for(GlobalSecondaryIndexDescription index : tableInfo.getGlobalSecondaryIndexes()) {
+                if(indexName.equals(index.getIndexName())) {
+                    projection = index.getProjection();
+                    indexKeys = index.getKeySchema();
+                }
+            }
+        }
+        if(projection == null && tableInfo.getLocalSecondaryIndexes() != null) {
+            for(LocalSecondaryIndexDescription index : tableInfo.getLocalSecondaryIndexes()) {
+                if(indexName.equals(index.getIndexName())) {
+                    LOG.info(String.format("Index [%s] is a local secondary index, dynamo fetches attributes that aren't projected", indexName));
+                    return null;
+                }
+            }
+        }
+        if(projection == null) {
+            LOG.warn(String.format("Table [%s] has no global secondary index [%s]", tableInfo.getTableName(), indexName));
+            return null;
+        }
+        if(ProjectionType.ALL.toString().equals(projection.getProjectionType())) {
+            LOG.debug(String.format("Index [%s] projects all attributes", indexName));
+            return null;
+        }
+
+        List<String> tableKeys = new ArrayList<>();
+        for(KeySchemaElement key : tableInfo.getKeySchema()) {
+            tableKeys.add(key.getAttributeName());
+        }
+
+        // Keys and INCLUDE attributes are always in the index, if that covers every mapped
+        // field there is nothing to fetch.
+        Set<String> projected = new HashSet<>(tableKeys);
+        for(KeySchemaElement key : indexKeys) {
+            projected.add(key.getAttributeName());
+        }
+        if(projection.getNonKeyAttributes() != null) {
+            projected.addAll(projection.getNonKeyAttributes());
+        }
+        Collection<String> required = queryParams.getRequiredAttributes();
+        if(required != null && !required.isEmpty() && projected.containsAll(required)) {
+            LOG.debug(String.format("Index [%s] projects every mapped field: %s", indexName, required));
+            return null;
+        }
+
+        LOG.info(String.format("Index [%s] projection is %s, missing attributes will be fetched from table [%s]",
+                indexName, projection.getProjectionType(), tableInfo.getTableName()));
+        return new DynamoBatchGetter(dynamoClient, tableInfo.getTableName(), tableKeys,
+                queryParams.getProjectionExpression(), queryParams.getNameMap(), rateLimiter);
+    }
+
+    /**
+     * Set how unprocessed keys are retried.
+     *
+     * @param maxRetries the number of times to request unprocessed keys again
+     * @param retryBackoffMs the wait before the first retry, doubled for each retry after that.
+     * @return this getter
+     */
+    public DynamoBatchGetter withRetries(int maxRetries, long retryBackoffMs) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryBackoffMs = Math.max(1, retryBackoffMs);
+        return this;
+    }
+
+    /**
+     * Fill in a page of index items with the attributes of the base table items.
+     * Items are returned in the same order, an item that no longer exists in the table is
+     * returned as it was read from the index.
+     *
+     * @param items items read from the index
+     * @return the items with the base table attributes merged in
+     */
+    public List<Map<String, AttributeValue>> fill(List<Map<String, AttributeValue>> items) {
+        if(items == null || items.isEmpty()) {
+            return items;
+        }
+
+        // dynamo rejects a batch that requests the same key twice, each key is requested once
+        Set<Map<String, AttributeValue>> uniqueKeys = new LinkedHashSet<>();
+        for(Map<String, AttributeValue> item : items) {
+            uniqueKeys.add(getKey(item));
+        }
+        List<Map<String, AttributeValue>> keys = new ArrayList<>(uniqueKeys);
+
+        Map<Map<String, AttributeValue>, Map<String, AttributeValue>> tableItems = new HashMap<>();
+        for(int start = 0; start < keys.size(); start += MAX_BATCH_KEYS) {
+            for(Map<String, AttributeValue> tableItem : batchGet(keys.subList(start, Math.min(keys.size(), start + MAX_BATCH_KEYS)))) {
+                tableItems.put(getKey(tableItem), tableItem);
+            }
+        }
+
+        List<Map<String, AttributeValue>> filled = new ArrayList<>(items.size());
+        for(Map<String, AttributeValue> item : items) {
+            Map<String, AttributeValue> tableItem = tableItems.get(getKey(item));
+            if(tableItem == null) {
+                LOG.debug(String.format("[%s] item %s not found in table", tableName, getKey(item)));
+                filled.add(item);
+                continue;
+            }
+            Map<String, AttributeValue> merged = new HashMap<>(item);
+            merged.putAll(tableItem);
+            filled.add(merged);
+        }
+        return filled;
+    }
+
+    /**
+     * @return the primary key of the base table item
+     */
+    protected Map<String, AttributeValue> getKey(Map<String, AttributeValue> item) {
+        Map<String, AttributeValue> key = new LinkedHashMap<>();
+        for(String attr : keyAttributes) {
+            key.put(attr, item.get(attr));
+        }
+        return key;
+    }
+
+    /**
+     * Request up to MAX_BATCH_KEYS items, requesting unprocessed keys again until every key is
+     * processed.
+     */
+    protected List<Map<String, AttributeValue>> batchGet(List<Map<String, AttributeValue>> keys) {
+        List<Map<String, AttributeValue>> results = new ArrayList<>(keys.size());
+        KeysAndAttributes request = new KeysAndAttributes()
+                .withKeys(keys)
+                .withProjectionExpression(projectionExpression)
+                .withExpressionAttributeNames(nameMap);
+
+        int attempt = 0;
+        while(request != null && request.getKeys() != null && !request.getKeys().isEmpty()) {
+            if(attempt > 0) {
+                if(attempt > maxRetries) {
+                    throw new IllegalStateException(String.format("[%s] %d keys still unprocessed after %d retries",
+                            tableName, request.getKeys().size(), maxRetries));
+                }
+                if(rateLimiter != null) {
+                    rateLimiter.throttled();
+                }
+                sleep(getBackoff(attempt));
+            }
+            attempt++;
+
+            if(rateLimiter != null) {
+                try {
+                    rateLimiter.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(String.format("[%s] interrupted waiting for read capacity", tableName), e);
+                }
+            }
+            BatchGetItemResult result = dynamoClient.batchGetItem(new BatchGetItemRequest()
+                    .withRequestItems(Collections.singletonMap(tableName, request))
+                    .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+
+            if(rateLimiter != null && result.getConsumedCapacity() != null) {
+                for(ConsumedCapacity consumed : result.getConsumedCapacity()) {
+                    if(consumed.getCapacityUnits() != null) {
+                        rateLimiter.consumed(consumed.getCapacityUnits());
+                    }
+                }
+            }
+            if(result.getResponses() != null && result.getResponses().get(tableName) != null) {
+                results.addAll(result.getResponses().get(tableName));
+            }
+            request = result.getUnprocessedKeys() == null ? null : result.getUnprocessedKeys().get(tableName);
+        }
+        return results;
+    }
+
+    /**
+     * Exponential backoff with jitter, the same as a page retry.
+     */
+    protected long getBackoff(int attempt) {
+        long backoff = Math.min(DynamoPageReader.MAX_RETRY_BACKOFF_MS, retryBackoffMs << Math.min(attempt - 1, 16));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    protected void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(String.format("[%s] interrupted waiting to retry", tableName), e);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the progress of a long running import, so a failed import can be resumed instead of
+ * reading the whole table again.
+ *
+ * Progress is the ExclusiveStartKey of the page DIH is currently consuming, for each scan segment.
+ * A page is only recorded once DIH takes it (pages that were prefetched, but not yet handed to DIH
+ * don't count), and resuming re-reads that page, so documents may be indexed twice, but never
+ * skipped.
+ *
+ * A failed import is rolled back to the last commit, so a checkpoint must never be ahead of the
+ * committed index: the Committer commits the documents written so far before the checkpoint is
+ * saved, and a failed import doesn't save the positions it got to.  Resuming starts from the
+ * last checkpoint saved, the pages after it that were rolled back are read again.
+ *
+ * Checkpoints are saved every (savePages) pages to a properties file, by default in the data
+ * directory of the core.  Every entity has its own keys in the file:
+ *
+ *   [entity].signature=[table and query the checkpoint belongs to]
+ *   [entity].done=[segments read to the end, comma separated]
+ *   [entity].[segment].[key attribute]=[type]:[value]
+ *
+ * A segment without a key and not done hasn't been started (or DIH is consuming its first page),
+ * it's read from the beginning.  A done segment is skipped when resuming (see isDone()).
+ *
+ * When the import finishes the entity's keys are removed from the file.
+ *
+ * @author ben.demott
+ */
+public class DynamoCheckpoint {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String FILE_NAME = "dynamo-checkpoint.properties";
+    public static final String SIGNATURE = "signature";
+    public static final String DONE = "done";
+    public static final String DONE_DELIMITER = ",";
+    public static final String TYPE_DELIMITER = ":";
+
+    // every entity writes to the same file
+    private static final Object FILE_LOCK = new Object();
+
+    protected final File file;
+    protected final String entityName;
+    protected final String signature;
+    protected final int savePages;
+    protected final Map<Integer, Map<String, AttributeValue>> segmentKeys = new HashMap<>();
+    protected final Set<Integer> doneSegments = new TreeSet<>();
+    protected DynamoPage currentPage; // the page DIH is consuming
+    protected int pagesSinceSave = 0;
+    protected Committer committer;
+
+    /**
+     * Makes the documents written by the import durable, called before a checkpoint is saved.
+     */
+    public interface Committer {
+        void commit() throws IOException;
+    }
+
+    /**
+     * @param directory the directory of the checkpoint file
+     * @param entityName the DIH entity name, separates the keys of each entity in the file
+     * @param signature identifies the table and query, a saved checkpoint is only used when the
+     *         signature matches.
+     * @param savePages save every savePages pages, if 0 the checkpoint is never saved (it can
+     *         still be loaded to resume from).
+     */
+    public DynamoCheckpoint(File directory, String entityName, String signature, int savePages) {
+        this.file = new File(directory, FILE_NAME);
+        this.entityName = entityName;
+        this.signature = signature;
+        this.savePages = savePages;
+    }
+
+    /**
+     * @param committer commits the index before the checkpoint is saved, null if the documents
+     *         are already durable when a page is taken (e.g. in tests).
+     */
+    public void setCommitter(Committer committer) {
+        this.committer = committer;
+    }
+
+    /**
+     * Load the keys saved by a previous import, the keys loaded become the current progress.
+     *
+     * @return the start key of each segment, empty if there is no usable checkpoint.
+     */
+    public synchronized Map<Integer, Map<String, AttributeValue>> load() {
+        Properties props = readFile();
+        String prefix = entityName + ".";
+
+        String savedSignature = props.getProperty(prefix + SIGNATURE);
+        if(savedSignature == null) {
+            LOG.info(String.format("No checkpoint found for entity [%s] in %s, starting from the beginning", entityName, file));
+            return segmentKeys;
+        }
+        if(!savedSignature.equals(signature)) {
+            LOG.warn(String.format("Checkpoint for entity [%s] was saved for a different query, starting from the beginning. "
+                    + "%nSaved: %s %nCurrent: %s", entityName, savedSignature, signature));
+            return segmentKeys;
+        }
+
+        String done = props.getProperty(prefix + DONE, "");
+        for(String segment : done.split(DONE_DELIMITER)) {
+            try {
+                if(!segment.trim().isEmpty()) {
+                    doneSegments.add(Integer.parseInt(segment.trim()));
+                }
+            } catch (NumberFormatException e) {
+                LOG.warn(String.format("Ignoring malformed checkpoint segment [%s] of [%s] in %s", segment, prefix + DONE, file));
+            }
+        }
+
+        for(String name : props.stringPropertyNames()) {
+            if(!name.startsWith(prefix) || name.equals(prefix + SIGNATURE) || name.equals(prefix + DONE)) {
+                continue;
+            }
+            // [entity].[segment].[attribute]
+            String segmentAttr = name.substring(prefix.length());
+            int idxDelimiter = segmentAttr.indexOf('.');
+            try {
+                int segment = Integer.parseInt(segmentAttr.substring(0, idxDelimiter));
+                String attribute = segmentAttr.substring(idxDelimiter + 1);
+                segmentKeys.computeIfAbsent(segment, k -> new LinkedHashMap<>())
+                        .put(attribute, decodeValue(props.getProperty(name)));
+            } catch (RuntimeException e) {
+                LOG.warn(String.format("Ignoring malformed checkpoint property [%s] in %s", name, file));
+            }
+        }
+        // a segment that is done has no key
+        segmentKeys.keySet().removeAll(doneSegments);
+        LOG.info(String.format("Loaded checkpoint for entity [%s], %d segments in progress, %d done", 
+                entityName, segmentKeys.size(), doneSegments.size()));
+        return segmentKeys;
+    }
+
+    /**
+     * @param segment
+     * @return the key the segment should be read from, null to read from the beginning.
+     */
+    public synchronized Map<String, AttributeValue> getStartKey(int segment) {
+        return segmentKeys.get(segment);
+    }
+
+    /**
+     * @param segment
+     * @return true if every page of the segment was consumed by the import that saved the 
+     *         checkpoint, the segment is not read again.
+     */
+    public synchronized boolean isDone(int segment) {
+        return doneSegments.contains(segment);
+    }
+
+    /**
+     * DIH has started consuming a page, record where the page started.
+     * Called on the DIH thread.
+     *
+     * DIH only takes a page once it has consumed every row of the previous one, so when the
+     * previous page was the last page of its segment, that segment is done.
+     *
+     * @param page
+     */
+    public synchronized void pageStarted(DynamoPage page) {
+        if(currentPage != null && currentPage.isLast()) {
+            doneSegments.add(currentPage.getSegment());
+            segmentKeys.remove(currentPage.getSegment());
+        }
+        currentPage = page;
+
+        if(page.getStartKey() == null || page.getStartKey().isEmpty()) {
+            segmentKeys.remove(page.getSegment());
+        } else {
+            segmentKeys.put(page.getSegment(), page.getStartKey());
+        }
+
+        if(savePages > 0 && ++pagesSinceSave >= savePages) {
+            save();
+        }
+    }
+
+    /**
+     * Commit the index, then write the current progress to the checkpoint file.  If the commit
+     * fails the previous checkpoint is kept.
+     */
+    public synchronized void save() {
+        pagesSinceSave = 0;
+        if(committer != null) {
+            try {
+                committer.commit();
+            } catch (IOException | RuntimeException e) {
+                LOG.warn(String.format("Unable to commit the index, checkpoint of entity [%s] not saved", entityName), e);
+                return;
+            }
+        }
+        Properties props = new Properties();
+        props.setProperty(SIGNATURE, signature);
+        if(!doneSegments.isEmpty()) {
+            StringJoiner done = new StringJoiner(DONE_DELIMITER);
+            for(Integer segment : doneSegments) {
+                done.add(String.valueOf(segment));
+            }
+            props.setProperty(DONE, done.toString());
+        }
+        for(Map.Entry<Integer, Map<String, AttributeValue>> segment : segmentKeys.entrySet()) {
+            for(Map.Entry<String, AttributeValue> attr : segment.getValue().entrySet()) {
+                props.setProperty(segment.getKey() + "." + attr.getKey(), encodeValue(attr.getValue()));
+            }
+        }
+        writeEntity(props);
+        LOG.debug(String.format("Saved checkpoint for entity [%s], %d segments in progress, %d done", 
+                entityName, segmentKeys.size(), doneSegments.size()));
+    }
+
+    /**
+     * The import finished, remove the checkpoint.
+     */
+    public synchronized void clear() {
+        segmentKeys.clear();
+        doneSegments.clear();
+        currentPage = null;
+        writeEntity(null);
+        LOG.debug(String.format("Cleared checkpoint for entity [%s]", entityName));
+    }
+
+    /**
+     * Replace all the properties of this entity in the checkpoint file.
+     *
+     * @param entityProps properties to save without the entity prefix, null to remove the entity
+     */
+    protected void writeEntity(Properties entityProps) {
+        synchronized (FILE_LOCK) {
+            Properties props = readFile();
+            String prefix = entityName + ".";
+            props.stringPropertyNames().stream()
+                    .filter(name -> name.startsWith(prefix))
+                    .forEach(props::remove);
+
+            if(entityProps != null) {
+                for(String name : entityProps.stringPropertyNames()) {
+                    props.setProperty(prefix + name, entityProps.getProperty(name));
+                }
+            }
+
+            // write to a temporary file first, so a crash never leaves a half written checkpoint
+            File tmpFile = new File(file.getParentFile(), FILE_NAME + ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tmpFile.toPath())) {
+                    props.store(out, "DynamoDB DataImportHandler checkpoints");
+                }
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                LOG.warn(String.format("Unable to write checkpoint file %s", file), e);
+            }
+        }
+    }
+
+    protected Properties readFile() {
+        Properties props = new Properties();
+        synchronized (FILE_LOCK) {
+            if(!file.exists()) {
+                return props;
+            }
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                props.load(in);
+            } catch (IOException e) {
+                LOG.warn(String.format("Unable to read checkpoint file %s", file), e);
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Key attributes can only be strings, numbers or binary.
+     * Encodes as: S:value, N:value, B:base64-value
+     */
+    protected static String encodeValue(AttributeValue value) {
+        if(value.getS() != null) {
+            return "S" + TYPE_DELIMITER + value.getS();
+        } else if(value.getN() != null) {
+            return "N" + TYPE_DELIMITER + value.getN();
+        } else if(value.getB() != null) {
+            ByteBuffer buffer = value.getB().duplicate();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return "B" + TYPE_DELIMITER + Base64.getEncoder().encodeToString(bytes);
+        }
+        throw new IllegalArgumentException("Unsupported key attribute type: " + value);
+    }
+
+    protected static AttributeValue decodeValue(String encoded) {
+        int idxDelimiter = encoded.indexOf(TYPE_DELIMITER);
+        String type = encoded.substring(0, idxDelimiter);
+        String value = encoded.substring(idxDelimiter + 1);
+        switch (type) {
+            case "S":
+                return new AttributeValue().withS(value);
+            case "N":
+                return new AttributeValue().withN(value);
+            case "B":
+                return new AttributeValue().withB(ByteBuffer.wrap(Base64.getDecoder().decode(value)));
+            default:
+                throw new IllegalArgumentException("Unsupported key attribute type: " + type);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JVM wide registry of dynamo clients, shared by every core and every import, so each data
+ * source doesn't build its own client (and connection pool, and TLS handshakes, and STS
+ * session) on every import.
+ *
+ * Clients are kept by a key describing everything that configures them: the endpoints, the
+ * region, the credentials and the client configuration, see DynamoDataSource.getDynamoClient().
+ * Data sources with the same configuration share a client, the AWS clients are thread safe.
+ * Clients live as long as the JVM, a data source never shuts them down.
+ *
+ * Building clients may call the network (assuming an STS role, probing the EC2 metadata), so
+ * it's done outside the lock of the registry: each key holds a future, the first data source
+ * of a configuration builds its clients, and only the data sources of that configuration wait
+ * for them.
+ *
+ * Table descriptions are cached with the clients too, see DynamoTableCache.
+ *
+ * The registry also resolves the region of the EC2 instance once, not on every import (off EC2
+ * each probe of the instance metadata waits for a timeout).
+ *
+ * @author ben.demott
+ */
+public class DynamoClientRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    protected static final DynamoClientRegistry INSTANCE = new DynamoClientRegistry();
+
+    protected final Map<String, FutureTask<Clients>> clients = new HashMap<>();
+    protected Regions currentRegion;
+    protected boolean currentRegionResolved = false;
+    protected long hits = 0;
+
+    /**
+     * The clients of one configuration.
+     */
+    public static class Clients {
+        protected final AmazonDynamoDB dynamo;
+        protected final AWSCredentialsProvider credentials;
+        protected final ClientConfiguration config;
+        protected final DynamoTableCache tables = new DynamoTableCache();
+        protected AmazonDynamoDBStreams streams;
+        protected AmazonDynamoDB pacedDynamo;
+
+        public Clients(AmazonDynamoDB dynamo, AWSCredentialsProvider credentials, ClientConfiguration config) {
+            this.dynamo = dynamo;
+            this.credentials = credentials;
+            this.config = config;
+        }
+
+        public AmazonDynamoDB getDynamo() {
+            return dynamo;
+        }
+
+        public AWSCredentialsProvider getCredentials() {
+            return credentials;
+        }
+
+        public ClientConfiguration getConfig() {
+            return config;
+        }
+
+        /**
+         * @return the descriptions of the tables read with these clients
+         */
+        public DynamoTableCache getTables() {
+            return tables;
+        }
+
+        /**
+         * @param factory builds the streams client, the first time it's needed
+         * @return the streams client
+         */
+        public synchronized AmazonDynamoDBStreams getStreams(Supplier<AmazonDynamoDBStreams> factory) {
+            if(streams == null) {
+                streams = factory.get();
+            }
+            return streams;
+        }
+
+        /**
+         * @param factory builds the client for rate limited reads, the first time it's needed
+         * @return the client for rate limited reads (see DynamoDataSource.getPacedClient())
+         */
+        public synchronized AmazonDynamoDB getPacedDynamo(Supplier<AmazonDynamoDB> factory) {
+            if(pacedDynamo == null) {
+                pacedDynamo = factory.get();
+            }
+            return pacedDynamo;
+        }
+
+        protected synchronized void shutdown() {
+            dynamo.shutdown();
+            if(streams != null) {
+                streams.shutdown();
+            }
+            if(pacedDynamo != null) {
+                pacedDynamo.shutdown();
+            }
+            if(credentials instanceof Closeable) {
+                try {
+                    ((Closeable) credentials).close();
+                } catch (IOException e) {
+                    LOG.warn("Error closing credentials provider", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the registry of this JVM
+     */
+    public static DynamoClientRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the clients of a configuration, built with the factory the first time.  A factory that
+     * fails is called again by the next data source.
+     *
+     * @param key identifies the configuration, see the class comment.  It may hold secrets, it's
+     *         never logged.
+     * @param description the configuration without secrets, for logs
+     * @param factory builds the clients
+     * @return the clients
+     * @throws Exception if the factory fails
+     */
+    public Clients get(String key, String description, Callable<Clients> factory) throws Exception {
+        FutureTask<Clients> task;
+        boolean create = false;
+        int count;
+        synchronized(clients) {
+            task = clients.get(key);
+            if(task == null) {
+                task = new FutureTask<>(factory);
+                clients.put(key, task);
+                create = true;
+            } else {
+                hits++;
+            }
+            count = clients.size();
+        }
+        if(create) {
+            // outside the lock, data sources of other configurations aren't held up
+            task.run();
+        }
+        try {
+            Clients result = task.get();
+            if(create) {
+                LOG.info(String.format("Created dynamo client: %s (%d clients in this JVM)", description, count));
+            } else {
+                LOG.info(String.format("Reusing dynamo client: %s", description));
+            }
+            return result;
+        } catch (ExecutionException e) {
+            synchronized(clients) {
+                clients.remove(key, task);
+            }
+            Throwable cause = e.getCause();
+            if(cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the clients built by the task, null if they're still being built or failed
+     */
+    protected static Clients getBuilt(FutureTask<Clients> task) {
+        if(!task.isDone()) {
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException | InterruptedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the region of the EC2 instance, null when not running on EC2.  Resolved once.
+     */
+    public synchronized Regions getCurrentRegion() {
+        if(!currentRegionResolved) {
+            Region region = Regions.getCurrentRegion();
+            currentRegion = region == null ? null : Regions.fromName(region.getName());
+            currentRegionResolved = true;
+            LOG.info(String.format("Resolved EC2 region: %s", currentRegion == null ? "none (not on EC2)" : currentRegion.getName()));
+        }
+        return currentRegion;
+    }
+
+    /**
+     * Shut down and drop every client.  Data sources still using them will fail, only call this
+     * when no import is running.
+     */
+    public void clear() {
+        synchronized(clients) {
+            for(FutureTask<Clients> task : clients.values()) {
+                Clients client = getBuilt(task);
+                if(client != null) {
+                    client.shutdown();
+                }
+            }
+            clients.clear();
+        }
+    }
+
+    /**
+     * @return the number of clients and hits, for logs.
+     */
+    @Override
+    public String toString() {
+        synchronized(clients) {
+            return String.format("%d clients, %d hits", clients.size(), hits);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.math.BigDecimal;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The type a column is converted to when the data source has convertType="true", set by the
+ * 'type' attribute of the entity's <field> element:
+ *
+ *   <field column="price" name="price" type="double" />
+ *
+ * Values are converted to the java type solr indexes natively, so solr doesn't parse the value
+ * again, and transformers (DateFormatTransformer, etc.) aren't needed for the common cases.
+ * A multi-valued attribute (SS, NS, L) is converted to a List of the type, for a multi-valued
+ * solr field.
+ *
+ * Dynamo type names are accepted for the types they hold (S, N, BOOL, SS, NS, L).  Maps and
+ * binary values are never converted, the other dynamo type names (B, BS, M, NULL) were accepted
+ * before values were converted, they're kept as names of VALUE.
+ *
+ * @author ben.demott
+ */
+public enum DynamoColumnType {
+    /** String, numbers keep their dynamo (decimal) representation */
+    STRING("string", "s", "ss") {
+        @Override
+        Object fromString(String value) {
+            return value;
+        }
+    },
+    /** Long, fractional numbers are an error */
+    LONG("long", "int", "integer", "i") {
+        @Override
+        Object fromString(String value) {
+            String trimmed = value.trim();
+            try {
+                return Long.parseLong(trimmed);
+            } catch (NumberFormatException e) {
+                return new BigDecimal(trimmed).longValueExact(); // 1.0E+3
+            }
+        }
+    },
+    /** Double */
+    DOUBLE("double", "float") {
+        @Override
+        Object fromString(String value) {
+            return Double.parseDouble(value.trim());
+        }
+    },
+    /** Long when the number is integral, otherwise Double */
+    NUMBER("number", "n", "ns") {
+        @Override
+        Object fromString(String value) {
+            String trimmed = value.trim();
+            if(trimmed.indexOf('.') < 0 && trimmed.indexOf('e') < 0 && trimmed.indexOf('E') < 0) {
+                try {
+                    return Long.parseLong(trimmed);
+                } catch (NumberFormatException e) {
+                    // more digits than a long, fall through
+                }
+            }
+            return Double.parseDouble(trimmed);
+        }
+    },
+    /** Boolean from true or false (any case), numbers are true when not 0, anything else is an error */
+    BOOLEAN("boolean", "bool") {
+        @Override
+        Object fromString(String value) {
+            String trimmed = value.trim();
+            if("true".equalsIgnoreCase(trimmed)) {
+                return Boolean.TRUE;
+            }
+            if("false".equalsIgnoreCase(trimmed)) {
+                return Boolean.FALSE;
+            }
+            try {
+                return fromNumber(trimmed);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("[%s] is not a boolean", value));
+            }
+        }
+
+        @Override
+        Object fromNumber(String value) {
+            return new BigDecimal(value.trim()).signum() != 0;
+        }
+    },
+    /** Date from a number of seconds since the epoch */
+    EPOCH_SECONDS("epochseconds") {
+        @Override
+        Object fromString(String value) {
+            return new Date(new BigDecimal(value.trim()).movePointRight(3).longValue());
+        }
+    },
+    /** Date from a number of milliseconds since the epoch */
+    EPOCH_MILLIS("epochmillis") {
+        @Override
+        Object fromString(String value) {
+            return new Date(new BigDecimal(value.trim()).longValue());
+        }
+    },
+    /** Date from an ISO-8601 date time with an offset (2017-05-01T12:00:00Z, 2017-05-01T07:00:00-05:00), numbers are epoch milliseconds */
+    DATE("date") {
+        @Override
+        Object fromString(String value) {
+            return Date.from(OffsetDateTime.parse(value.trim()).toInstant());
+        }
+
+        @Override
+        Object fromNumber(String value) {
+            return EPOCH_MILLIS.fromString(value);
+        }
+    },
+    /** List of the elements, each element converted as if it wasn't typed */
+    LIST("list", "l") {
+        @Override
+        Object fromString(String value) {
+            return value;
+        }
+
+        @Override
+        Object fromNumber(String value) {
+            return NUMBER.fromString(value);
+        }
+
+        @Override
+        Object convert(AttributeValue value) {
+            Object converted = convertValue(value);
+            if(converted == null || converted instanceof List) {
+                return converted;
+            }
+            List<Object> list = new ArrayList<>(1);
+            list.add(converted);
+            return list;
+        }
+    },
+    /** The value as it is without a type (numbers are Strings), the old B, BS, M and NULL type names */
+    VALUE("value", "b", "bs", "m", "null") {
+        @Override
+        Object fromString(String value) {
+            return value;
+        }
+
+        @Override
+        Object convert(AttributeValue value) {
+            return value.getN() != null ? value.getN() : DynamoItemConverter.toValue(value);
+        }
+    };
+
+    protected static final Map<String, DynamoColumnType> NAMES = new HashMap<>();
+    static {
+        for(DynamoColumnType type : values()) {
+            for(String name : type.names) {
+                NAMES.put(name, type);
+            }
+        }
+    }
+
+    protected final String[] names;
+
+    DynamoColumnType(String... names) {
+        this.names = names;
+    }
+
+    /**
+     * @param name a type name, case insensitive
+     * @return the type, or null if the name isn't a type
+     */
+    public static DynamoColumnType forName(String name) {
+        if(name == null) {
+            return null;
+        }
+        return NAMES.get(name.trim().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return every type name, for error messages
+     */
+    public static Collection<String> getNames() {
+        return NAMES.keySet();
+    }
+
+    /**
+     * Convert the value of a S attribute (or an element of a SS).
+     */
+    abstract Object fromString(String value);
+
+    /**
+     * Convert the value of a N attribute (or an element of a NS).
+     */
+    Object fromNumber(String value) {
+        return fromString(value);
+    }
+
+    Object fromBoolean(Boolean value) {
+        return this == BOOLEAN || this == LIST ? value : fromString(value.toString());
+    }
+
+    /**
+     * Convert an attribute value to this type.
+     *
+     * @param value
+     * @return the converted value, null for a NULL attribute
+     * @throws RuntimeException if the value can't be converted (NumberFormatException, etc.)
+     */
+    Object convert(AttributeValue value) {
+        return convertValue(value);
+    }
+
+    /**
+     * Convert an attribute value, or an element of a list.
+     */
+    final Object convertValue(AttributeValue value) {
+        if(value.getS() != null) {
+            return fromString(value.getS());
+        }
+        if(value.getN() != null) {
+            return fromNumber(value.getN());
+        }
+        if(value.getBOOL() != null) {
+            return fromBoolean(value.getBOOL());
+        }
+        if(value.getSS() != null) {
+            List<Object> list = new ArrayList<>(value.getSS().size());
+            for(String element : value.getSS()) {
+                list.add(fromString(element));
+            }
+            return list;
+        }
+        if(value.getNS() != null) {
+            List<Object> list = new ArrayList<>(value.getNS().size());
+            for(String element : value.getNS()) {
+                list.add(fromNumber(element));
+            }
+            return list;
+        }
+        if(value.getL() != null) {
+            List<Object> list = new ArrayList<>(value.getL().size());
+            for(AttributeValue element : value.getL()) {
+                Object converted = element == null ? null : convertValue(element);
+                if(converted != null) {
+                    list.add(converted);
+                }
+            }
+            return list;
+        }
+        // M, B, BS and NULL are not converted
+        return DynamoItemConverter.toValue(value);
+    }
+}
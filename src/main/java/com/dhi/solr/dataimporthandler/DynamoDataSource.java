@@ -1,7 +1,9 @@
 package com.dhi.solr.dataimporthandler;
 
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import static org.apache.solr.handler.dataimport.DataImportHandlerException.wrapAndThrow;
@@ -12,15 +14,22 @@ import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.dynamodbv2.*;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.auth.BasicSessionCredentials;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
 import com.amazonaws.auth.SystemPropertiesCredentialsProvider;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClient; // aws-java-sdk-sts
-import com.amazonaws.services.securitytoken.model.*;
-import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperFieldModel.DynamoDBAttributeType; // Dynamo types
 import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
+import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.LocalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.StreamViewType;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
 
 import org.apache.solr.handler.dataimport.DataImporter;
@@ -28,6 +37,8 @@ import org.apache.solr.handler.dataimport.DataSource;
 import org.apache.solr.handler.dataimport.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.io.File;
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.util.*;
 import org.apache.solr.handler.dataimport.DataImportHandlerException;
@@ -55,7 +66,11 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
     
     
     protected AmazonDynamoDB dynamoClient;
+    protected DynamoClientRegistry.Clients clients; // shared with every data source of the same configuration
+    protected String clientDescription; // the configuration of the client without secrets, identifies its credentials
+    protected Properties initProps;
     protected boolean explicitTypeMapping = false;
+    protected final Map<String, DynamoReadRateLimiter> rateLimiters = new HashMap<>();
     
     // --------------------------------------------
     // init properties (data source parameter keys)
@@ -72,6 +87,9 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
     public static final String USE_DEFAULT_PROFILES = "credentialUseProfileDefaults";
     public static final String USE_JAVA_PROPERTIES = "credentialUseJavaProperties";
     public static final String MAX_ERROR_RETRIES = "maxErrorRetries";
+    public static final String STREAMS_ENDPOINT = "streamsEndpoint";
+    public static final String TABLE_CACHE_SECONDS = "tableCacheSeconds"; // table descriptions older than this are described again
+    public static final String MAX_CONNECTIONS = "maxConnections"; // HTTP connections of the client, shared by every core and thread
     
     public static final String CONVERT_FIELD_TYPES = CONVERT_TYPE;
     
@@ -85,9 +103,11 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
     
     public static final Regions DEFAULT_REGION = Regions.US_EAST_1;
     public static final int CONNECTION_TIMEOUT = 30000;
+    public static final int CONNECTIONS_PER_PROCESSOR = 16; // default maxConnections, per processor of the JVM
     
     
     public static final String ERROR_ACCESS_DENIED = "AccessDeniedException";
+    public static final String INDEX_DELIMITER = "/"; // rate limiter name of a global secondary index, table/index
 
     /**
      * Called to setup the data import handler before use.  Any setup logic or validation logic 
@@ -110,6 +130,7 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
             wrapAndThrow(SEVERE, e, "Configuration error");
         }
         
+        this.initProps = initProps;
         try {
             dynamoClient = getDynamoClient(context, initProps);
         } catch (Exception e) {
@@ -134,6 +155,8 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
         final String profilesFile = initProps.getProperty(CREDENTIALS_PROFILES_FILE, "");
         final String regionName = initProps.getProperty(REGION, "");
         final String stsDuration = initProps.getProperty(STS_DURATION, "");
+        final String tableCacheSeconds = initProps.getProperty(TABLE_CACHE_SECONDS, "");
+        final String maxConnections = initProps.getProperty(MAX_CONNECTIONS, "");
         
         // Ensure integer inputs are parseable
         if(!stsDuration.isEmpty()) {
@@ -144,6 +167,26 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
             }
         }
         
+        if(!tableCacheSeconds.isEmpty()) {
+            try {
+                Integer.parseInt(tableCacheSeconds);
+            } catch(NumberFormatException e) {
+                throw new Exception(String.format("attribute [%s] must be an integer value, not '%s'... %s", TABLE_CACHE_SECONDS, tableCacheSeconds, e.toString()));
+            }
+        }
+        
+        if(!maxConnections.isEmpty()) {
+            int connections;
+            try {
+                connections = Integer.parseInt(maxConnections);
+            } catch(NumberFormatException e) {
+                throw new Exception(String.format("attribute [%s] must be an integer value, not '%s'... %s", MAX_CONNECTIONS, maxConnections, e.toString()));
+            }
+            if(connections <= 0) {
+                throw new Exception(String.format("attribute [%s] must be greater than 0, not %d", MAX_CONNECTIONS, connections));
+            }
+        }
+        
         // If access key is given, so too must secret key.
         final String secretKey = initProps.getProperty(SECRET_KEY, "");
         if(!initProps.getProperty(ACCESS_KEY, "").isEmpty() && initProps.getProperty(SECRET_KEY, "").isEmpty()) {
@@ -201,9 +244,9 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
         if(!regionName.isEmpty()) {
             awsRegion = Regions.fromName(regionName);
         } 
-        else if (Regions.getCurrentRegion() != null) {
-            String currentRegionName = Regions.getCurrentRegion().getName();
-            awsRegion = Regions.fromName(currentRegionName);
+        else if (DynamoClientRegistry.getInstance().getCurrentRegion() != null) {
+            // probed once per JVM, off EC2 every probe waits for a timeout
+            awsRegion = DynamoClientRegistry.getInstance().getCurrentRegion();
         } 
         else {
             awsRegion = DEFAULT_REGION;
@@ -221,14 +264,42 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
      * 
      * @return 
      */
-    protected ClientConfiguration getAwsClientConfig(int maxErrorRetries) {
+    protected ClientConfiguration getAwsClientConfig(int maxErrorRetries, int maxConnections) {
         ClientConfiguration clientConfig = new ClientConfiguration();
         clientConfig.setConnectionTimeout(CONNECTION_TIMEOUT);
         LOG.debug("Configured maxErrorRetries for dynamo client:" + maxErrorRetries);
         clientConfig.setMaxErrorRetry(maxErrorRetries);
+        LOG.debug("Configured maxConnections for dynamo client:" + maxConnections);
+        clientConfig.setMaxConnections(maxConnections);
         return clientConfig;
     }
     
+    /**
+     * The client is shared by every core and every thread of an import (scan segments, prefetch,
+     * lookups, backfill), the SDK default of 50 connections is quickly exhausted.
+     * 
+     * @return the default maxConnections, CONNECTIONS_PER_PROCESSOR per processor, and at least
+     *         the SDK default.
+     */
+    public static int getDefaultMaxConnections() {
+        return Math.max(ClientConfiguration.DEFAULT_MAX_CONNECTIONS, CONNECTIONS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Warn when an import runs more threads against the client than it has connections, the
+     * threads then queue for a connection and may time out.
+     * 
+     * @param tableName
+     * @param threads the threads reading the table at once
+     */
+    protected void checkConnections(String tableName, int threads) {
+        int maxConnections = clients.getConfig().getMaxConnections();
+        if(threads > maxConnections) {
+            LOG.warn(String.format("Table [%s] is read by %d threads, but the dynamo client only has %d connections, "
+                    + "shared by every core.  Raise [%s] on the data source.", tableName, threads, maxConnections, MAX_CONNECTIONS));
+        }
+    }
+    
     /**
      * Retrieves credentials in the fashion desired based on the arguments provided.
      * Supports defining an explicit profiles.credentials file, and an explicit profile-name.
@@ -289,13 +360,22 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
     }
     
     
+    /**
+     * Get the dynamo client of this configuration from the JVM wide registry (see 
+     * DynamoClientRegistry), so every core and import with the same endpoint, region and 
+     * credentials shares one client and its warm connection pool.
+     * 
+     * @param context
+     * @param initProps
+     * @return the shared client
+     * @throws Exception if the client can't be built
+     */
     protected AmazonDynamoDB getDynamoClient(final Context context, final Properties initProps) throws Exception {
         
         final String dynamoEndpoint = initProps.getProperty(ENDPOINT, "");
         final Regions dynamoRegion = getAwsRegion(initProps.getProperty(REGION, ""));
         final String dynamoRegionName = dynamoRegion.getName();
         final String stsRoleArn = initProps.getProperty(STS_ROLE, "");
-        final boolean credentialsUseSts = !stsRoleArn.isEmpty();
         final String stsEndpoint = initProps.getProperty(STS_ENDPOINT, "");
         final int stsDuration = Integer.parseInt(initProps.getProperty(STS_DURATION, "0"));
         final boolean useJavaPropertyCreds = initProps.getProperty(USE_JAVA_PROPERTIES, "").toLowerCase().equals(PROPERTY_TRUE);
@@ -305,66 +385,79 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
         final String accessKey = initProps.getProperty(ACCESS_KEY, "");
         final String secretKey = initProps.getProperty(SECRET_KEY, "");
         final int maxErrorRetries = Integer.parseInt(initProps.getProperty(MAX_ERROR_RETRIES, "10"));
-
-        // Get aws credentials based upon the options provided.
-        AWSCredentialsProvider credProvider = getAWSCredentials(
-                useJavaPropertyCreds, 
-                useDefaultProfilesFile, 
-                profilesFile, 
-                profileName, 
-                accessKey, 
-                secretKey);
-        // we'll use credProvider to connect to dynamo by default, unless STS overrides it
-        AWSCredentialsProvider dynamoCredentials = credProvider;
+        final String maxConnectionsValue = initProps.getProperty(MAX_CONNECTIONS, "");
+        final int maxConnections = maxConnectionsValue.isEmpty() ? getDefaultMaxConnections() : Integer.parseInt(maxConnectionsValue);
+        final String streamsEndpoint = initProps.getProperty(STREAMS_ENDPOINT, dynamoEndpoint);
+        
+        // everything that configures the client, the secret key is only held in memory
+        String description = String.format("endpoint: [%s] region: [%s] streams endpoint: [%s] role: [%s] sts endpoint: [%s] "
+                + "sts duration: [%d] java properties: [%s] default profiles: [%s] profiles file: [%s] profile: [%s] "
+                + "access key: [%s] max error retries: [%d] max connections: [%d]",
+                dynamoEndpoint, dynamoRegionName, streamsEndpoint, stsRoleArn, stsEndpoint, 
+                stsDuration, useJavaPropertyCreds, useDefaultProfilesFile, profilesFile, profileName, 
+                accessKey, maxErrorRetries, maxConnections);
+        String key = description + " secret key: [" + secretKey + "]";
+        clientDescription = description;
         
-        if(credentialsUseSts) {
-            LOG.info(String.format("Property [%s] is set, assuming role: [%s]", STS_ROLE, stsRoleArn));
-            // If we are being asked to assume a role using STS assume credentials provided should
-            // be used to acquire STS role.
+        clients = DynamoClientRegistry.getInstance().get(key, description, () -> {
+            // Get aws credentials based upon the options provided.
+            AWSCredentialsProvider credProvider = getAWSCredentials(
+                    useJavaPropertyCreds, 
+                    useDefaultProfilesFile, 
+                    profilesFile, 
+                    profileName, 
+                    accessKey, 
+                    secretKey);
+            // we'll use credProvider to connect to dynamo by default, unless STS overrides it
+            AWSCredentialsProvider dynamoCredentials = credProvider;
             
-            AWSSecurityTokenServiceClient stsClient = new AWSSecurityTokenServiceClient(credProvider);
-
-            AssumeRoleRequest stsAssumeRequest = new AssumeRoleRequest().withRoleArn(stsRoleArn);
-                    
-            // optional - set endpoint
-            if(!stsEndpoint.isEmpty()) {
-                stsClient.setEndpoint(stsEndpoint);
-            }
-            // optional - set token valid duration
-            if(stsDuration != 0) {
-                stsAssumeRequest.setDurationSeconds(stsDuration);
+            if(!stsRoleArn.isEmpty()) {
+                LOG.info(String.format("Property [%s] is set, assuming role: [%s]", STS_ROLE, stsRoleArn));
+                // If we are being asked to assume a role using STS assume credentials provided should
+                // be used to acquire STS role.
+                AWSSecurityTokenServiceClient stsClient = new AWSSecurityTokenServiceClient(credProvider);
+                
+                // optional - set endpoint
+                if(!stsEndpoint.isEmpty()) {
+                    stsClient.setEndpoint(stsEndpoint);
+                }
+                
+                // The role's session is renewed before it expires, so the shared client (and an
+                // import running longer than stsDuration) keeps working.
+                STSAssumeRoleSessionCredentialsProvider.Builder stsBuilder = 
+                        new STSAssumeRoleSessionCredentialsProvider.Builder(stsRoleArn, STS_ROLE_SESSION_NAME)
+                        .withStsClient(stsClient);
+                // optional - set token valid duration
+                if(stsDuration != 0) {
+                    stsBuilder.withRoleSessionDurationSeconds(stsDuration);
+                }
+                STSAssumeRoleSessionCredentialsProvider stsCredentials = stsBuilder.build();
+                
+                // assume the role now, so a configuration error fails the import right away
+                stsCredentials.getCredentials();
+                
+                // override dynamoCredentials with the credentials provided by the now assumed role.
+                dynamoCredentials = stsCredentials;
             }
-            // set the session name
-            stsAssumeRequest.setRoleSessionName(STS_ROLE_SESSION_NAME);
             
-            AssumeRoleResult stsAssumeResult = stsClient.assumeRole(stsAssumeRequest);
+            AmazonDynamoDBClientBuilder clientBuilder = AmazonDynamoDBClientBuilder.standard();
             
-            BasicSessionCredentials stsCredentials = new BasicSessionCredentials(
-                        stsAssumeResult.getCredentials().getAccessKeyId(),
-                        stsAssumeResult.getCredentials().getSecretAccessKey(),
-                        stsAssumeResult.getCredentials().getSessionToken()
-            );
+            ClientConfiguration clientConfig = getAwsClientConfig(maxErrorRetries, maxConnections);
+            clientBuilder.setClientConfiguration(clientConfig);
             
-            // override dynamoCredentials with the credentials provided by the now assumed role.
-            dynamoCredentials = new AWSStaticCredentialsProvider(stsCredentials);
-        }
-        
-        AmazonDynamoDBClientBuilder clientBuilder = AmazonDynamoDBClientBuilder.standard();
-        
-        ClientConfiguration clientConfig = getAwsClientConfig(maxErrorRetries);
-        clientBuilder.setClientConfiguration(clientConfig);
-        
-        if(!dynamoEndpoint.isEmpty()) {
-            clientBuilder.setEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(dynamoEndpoint, dynamoRegionName));
-        }
-        else if(dynamoRegionName != null) {
-            clientBuilder.setRegion(dynamoRegionName);
-        }
-        
-        clientBuilder.setCredentials(dynamoCredentials);
-        AmazonDynamoDB dynamo = clientBuilder.build();
-     
-        return dynamo;
+            if(!dynamoEndpoint.isEmpty()) {
+                clientBuilder.setEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(dynamoEndpoint, dynamoRegionName));
+            }
+            else if(dynamoRegionName != null) {
+                clientBuilder.setRegion(dynamoRegionName);
+            }
+            
+            clientBuilder.setCredentials(dynamoCredentials);
+            
+            // credentials and config are kept for the streams client, which is only created if a stream is read
+            return new DynamoClientRegistry.Clients(clientBuilder.build(), dynamoCredentials, clientConfig);
+        });
+        return clients.getDynamo();
     }
     
 
@@ -395,8 +488,9 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
     
     public Iterator<Map<String, Object>> getData(Context context, String tableName, DynamoQueryParameters query) {
         // Check for the table, so a valuable error gets raised before we start iterating
+        TableDescription tableInfo = null;
         try {
-            TableDescription tableInfo = dynamoClient.describeTable(tableName).getTable();
+            tableInfo = describeTable(tableName);
             if(tableInfo == null) {
                     wrapAndThrow(SEVERE, new Exception(String.format("The dynamo table [%s] does not exist.", tableName)));
                     return new EmptyIterator<>();
@@ -408,33 +502,483 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
                 LOG.warn("Unexpectd error, trying to get table info... " + e.getMessage());
             }
         }
+        boolean fanOut = query.getKeyConditionExpression() != null && query.getPartitionKeyValues() != null;
+        checkConnections(tableName, fanOut ? query.getQueryThreads() : query.getScanThreads());
 
-        Map<String, DynamoDBAttributeType> typeMap;
-        if(explicitTypeMapping) {
-            typeMap = getFieldTypeMapping(context);
-            LOG.debug(String.format("Attribute [%s] is set, type map will be used, with %d map elements", CONVERT_FIELD_TYPES, typeMap.size()));
-        } else {
-            typeMap = new HashMap<>();
+        // a scan reads every item of the table (or index), so the import knows how far it got
+        if(query.getMetrics() != null && query.getKeyConditionExpression() == null) {
+            Long itemCount = getItemCount(tableInfo, query.getIndexName());
+            if(itemCount != null) {
+                query.getMetrics().setExpectedItems(itemCount);
+            }
+        }
+
+        DynamoItemConverter converter = getItemConverter(context);
+        if(query.getNumberColumn() != null) {
+            converter = converter.withNumberColumn(query.getNumberColumn());
+        }
+        final DynamoItemConverter rowConverter = converter;
+        
+        // a reference table is read once per JVM, every core and import shares the rows
+        if(query.isReferenceCache()) {
+            if(query.getCheckpoint() != null) {
+                LOG.warn(String.format("Table [%s] is read from the reference cache, the checkpoint is not used", tableName));
+            }
+            final TableDescription table = tableInfo;
+            return DynamoReferenceCache.getInstance().get(getReferenceCacheKey(tableName, query, rowConverter), getTableVersion(tableInfo), 
+                    query.getReferenceCacheTtlSeconds() * 1000L, query.getReferenceCacheMaxItems(), 
+                    () -> readTable(tableName, table, query, rowConverter));
+        }
+        
+        return readTable(tableName, tableInfo, query, converter);
+    }
+    
+    /**
+     * Read the items of the query.
+     * 
+     * @param tableName
+     * @param tableInfo the table description, null if it couldn't be read
+     * @param query
+     * @param converter converts the items to rows
+     * @return the rows, read as they are iterated
+     */
+    protected Iterator<Map<String, Object>> readTable(String tableName, TableDescription tableInfo, DynamoQueryParameters query, DynamoItemConverter converter) {
+        DynamoReadRateLimiter rateLimiter = getRateLimiter(tableName, query.getIndexName(), tableInfo, query);
+        
+        // a global secondary index may not project every field the entity maps, the missing
+        // attributes are read from the table, which has its own read capacity.
+        DynamoReadRateLimiter tableRateLimiter = rateLimiter;
+        if(query.getIndexName() != null) {
+            tableRateLimiter = getRateLimiter(tableName, null, tableInfo, query);
+        }
+        DynamoBatchGetter backfill = DynamoBatchGetter.forIndex(dynamoClient, tableInfo, query, tableRateLimiter);
+        if(backfill != null) {
+            backfill.withRetries(query.getPageRetries(), query.getPageRetryBackoffMs());
+        }
+        
+        // pages paced by a rate limiter are read with a client that leaves throttles to the limiter
+        AmazonDynamoDB readClient = rateLimiter == null ? dynamoClient : getPacedClient();
+        DynamoResultIterator<Map<String, Object>> rows = new DynamoResultIterator<>(readClient, tableName, tableInfo, query, converter, rateLimiter, backfill);
+        rows.setTableInvalidation(() -> invalidateTable(tableName));
+        return rows;
+    }
+    
+    /**
+     * Describe a table, from the table cache of the client (see DynamoTableCache), so child 
+     * entities and repeated imports don't call DescribeTable (which has a low rate limit) again
+     * and again.  Descriptions are kept for tableCacheSeconds of the data source (0 to always 
+     * describe the table).
+     * 
+     * @param tableName
+     * @return the key schema, attribute definitions, indexes, throughput, item count and size
+     *         of the table
+     * @throws AmazonDynamoDBException if the table can't be described, failures aren't cached
+     */
+    public TableDescription describeTable(String tableName) {
+        long ttlMs = Integer.parseInt(initProps.getProperty(TABLE_CACHE_SECONDS, String.valueOf(DynamoTableCache.DEFAULT_TTL_SECONDS))) * 1000L;
+        return clients.getTables().get(tableName, ttlMs, name -> dynamoClient.describeTable(name).getTable());
+    }
+    
+    /**
+     * Forget the description of a table, when reading it shows the description is wrong (the
+     * table or an index was deleted or re-created).
+     * 
+     * @param tableName
+     */
+    public void invalidateTable(String tableName) {
+        clients.getTables().invalidate(tableName);
+    }
+    
+    /**
+     * Get the items of a table from an export of the table on local disk ("Export to S3" in 
+     * DYNAMODB_JSON format, copied from S3), instead of scanning the table.  No read capacity 
+     * is used, the data files are decompressed and parsed by 'threads' workers.
+     * 
+     * The rows are converted the same way as the rows of a Scan, the expressions of the query
+     * are not applied to an export.
+     * 
+     * @param context
+     * @param tableName the table the export must be of
+     * @param query
+     * @param directory the export, or a directory of exports (the latest is read)
+     * @param threads data files read at once
+     * @return the rows of every item of the export
+     */
+    public Iterator<Map<String, Object>> getExportData(Context context, String tableName, DynamoQueryParameters query, File directory, int threads) {
+        DynamoExportReader export = null;
+        try {
+            export = new DynamoExportReader(directory, tableName);
+        } catch (IOException e) {
+            wrapAndThrow(SEVERE, e, String.format("Unable to read the export of table [%s] in [%s]", tableName, directory));
+        }
+        if(query.getKeyConditionExpression() != null || query.getFilterExpression() != null) {
+            LOG.warn(String.format("Table [%s] is read from export [%s], the key condition and filter expressions are not applied", 
+                    tableName, export.getExportDirectory()));
+        }
+        return new DynamoResultIterator<>(export.read(getItemConverter(context), threads), query);
+    }
+    
+    /**
+     * The key of a table in the reference cache: everything that changes the rows read from 
+     * it, and the client configuration, whose credentials decide whether the rows may be read at
+     * all.  Read limits, segments and threads only change how the rows are read.
+     * 
+     * @param tableName
+     * @param query
+     * @param converter
+     * @return the key
+     */
+    protected String getReferenceCacheKey(String tableName, DynamoQueryParameters query, DynamoItemConverter converter) {
+        return String.format("[%s] table [%s] index [%s] key condition [%s] filter [%s] projection [%s] names %s values %s partitions %s converter %s",
+                clientDescription, tableName,
+                query.getIndexName(), query.getKeyConditionExpression(), query.getFilterExpression(), query.getProjectionExpression(),
+                query.getNameMap(), query.getValueMap(), query.getPartitionKeyValues(), converter);
+    }
+    
+    /**
+     * The version of a table, which changes when items are added or removed (or the table is
+     * re-created).  Dynamo updates the item count and size about every 6 hours.
+     * 
+     * @param tableInfo
+     * @return the version, null if the table couldn't be described
+     */
+    protected String getTableVersion(TableDescription tableInfo) {
+        if(tableInfo == null) {
+            return null;
+        }
+        return String.format("%s/%s/%s", tableInfo.getItemCount(), tableInfo.getTableSizeBytes(), 
+                tableInfo.getCreationDateTime() == null ? null : tableInfo.getCreationDateTime().getTime());
+    }
+    
+    /**
+     * The items of a table or index, as of the last time dynamo updated the description (about
+     * every 6 hours).
+     * 
+     * @param tableInfo the table description, may be null
+     * @param indexName the secondary index being read, null for the table
+     * @return the item count, null if unknown
+     */
+    protected Long getItemCount(TableDescription tableInfo, String indexName) {
+        if(tableInfo == null) {
+            return null;
+        }
+        if(indexName == null) {
+            return tableInfo.getItemCount();
+        }
+        if(tableInfo.getGlobalSecondaryIndexes() != null) {
+            for(GlobalSecondaryIndexDescription index : tableInfo.getGlobalSecondaryIndexes()) {
+                if(indexName.equals(index.getIndexName())) {
+                    return index.getItemCount();
+                }
+            }
+        }
+        if(tableInfo.getLocalSecondaryIndexes() != null) {
+            for(LocalSecondaryIndexDescription index : tableInfo.getLocalSecondaryIndexes()) {
+                if(indexName.equals(index.getIndexName())) {
+                    return index.getItemCount();
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * The key attributes an item read from the table, or from one of its indexes, must have.
+     * 
+     * @param tableInfo the table description, may be null
+     * @param indexName the secondary index being read, null for the table
+     * @return the hash and range attribute names of the table, and of the index, empty if the
+     *         table description is unknown.
+     */
+    public static Set<String> getKeyAttributeNames(TableDescription tableInfo, String indexName) {
+        Set<String> names = new LinkedHashSet<>();
+        if(tableInfo == null) {
+            return names;
+        }
+        addKeyAttributeNames(names, tableInfo.getKeySchema());
+        if(indexName == null) {
+            return names;
+        }
+        if(tableInfo.getGlobalSecondaryIndexes() != null) {
+            for(GlobalSecondaryIndexDescription index : tableInfo.getGlobalSecondaryIndexes()) {
+                if(indexName.equals(index.getIndexName())) {
+                    addKeyAttributeNames(names, index.getKeySchema());
+                }
+            }
+        }
+        if(tableInfo.getLocalSecondaryIndexes() != null) {
+            for(LocalSecondaryIndexDescription index : tableInfo.getLocalSecondaryIndexes()) {
+                if(indexName.equals(index.getIndexName())) {
+                    addKeyAttributeNames(names, index.getKeySchema());
+                }
+            }
+        }
+        return names;
+    }
+    
+    private static void addKeyAttributeNames(Set<String> names, List<KeySchemaElement> keySchema) {
+        if(keySchema != null) {
+            for(KeySchemaElement key : keySchema) {
+                names.add(key.getAttributeName());
+            }
+        }
+    }
+    
+    /**
+     * Get a lookup of the table's items by key, for a child entity that reads one item per 
+     * parent row (see DynamoLookup).
+     * 
+     * The table is described once here, instead of for every parent row.  Items are fetched 
+     * with the projection and read limits of the query.
+     * 
+     * @param context
+     * @param tableName
+     * @param query the projection, name map, read limit and retry settings of the entity
+     * @param keyAttribute the partition key of the table, the table must not have a sort key
+     * @param threads batches requested at once
+     * @param maxKeys keys fetched at once
+     * @return the lookup
+     */
+    public DynamoLookup getLookup(Context context, String tableName, DynamoQueryParameters query, String keyAttribute, int threads, int maxKeys) {
+        TableDescription tableInfo = describeTable(tableName);
+        List<KeySchemaElement> keySchema = tableInfo.getKeySchema();
+        if(keySchema.size() != 1 || !keySchema.get(0).getAttributeName().equals(keyAttribute)) {
+            wrapAndThrow(SEVERE, new Exception(String.format("The key of dynamo table [%s] is %s, a lookup needs a table whose only key is [%s]", 
+                    tableName, keySchema, keyAttribute)));
+        }
+        String keyType = ScalarAttributeType.S.toString();
+        for(AttributeDefinition attribute : tableInfo.getAttributeDefinitions()) {
+            if(attribute.getAttributeName().equals(keyAttribute)) {
+                keyType = attribute.getAttributeType();
+            }
         }
         
+        checkConnections(tableName, threads);
+        DynamoReadRateLimiter rateLimiter = getRateLimiter(tableName, null, tableInfo, query);
+        DynamoBatchGetter getter = new DynamoBatchGetter(dynamoClient, tableName, Collections.singletonList(keyAttribute), 
+                query.getProjectionExpression(), query.getNameMap(), rateLimiter)
+                .withRetries(query.getPageRetries(), query.getPageRetryBackoffMs());
+        LOG.info(String.format("Looking up items of table [%s] by [%s], %d keys at a time with %d threads", tableName, keyAttribute, maxKeys, threads));
+        return new DynamoLookup(tableName, getter, keyAttribute, keyType, getItemConverter(context), threads, maxKeys);
+    }
+    
+    /**
+     * Get a reader of the table's DynamoDB stream.
+     * 
+     * To index changed items the stream must include new images (NEW_IMAGE or 
+     * NEW_AND_OLD_IMAGES), the new image is the row that is indexed.  Deletes only need keys.
+     * 
+     * @param tableName
+     * @param needsNewImages true if the new images of changed items are read.
+     * @return the reader, not yet read.
+     */
+    public DynamoStreamReader getStreamReader(String tableName, boolean needsNewImages) {
+        TableDescription tableInfo = describeTable(tableName);
+        String streamArn = tableInfo.getLatestStreamArn();
+        String viewType = tableInfo.getStreamSpecification() == null ? null : tableInfo.getStreamSpecification().getStreamViewType();
+        if(streamArn == null || tableInfo.getStreamSpecification() == null || !Boolean.TRUE.equals(tableInfo.getStreamSpecification().getStreamEnabled())) {
+            wrapAndThrow(SEVERE, new Exception(String.format("The dynamo table [%s] does not have a stream enabled.", tableName)));
+        }
+        if(needsNewImages && !StreamViewType.NEW_IMAGE.toString().equals(viewType) && !StreamViewType.NEW_AND_OLD_IMAGES.toString().equals(viewType)) {
+            wrapAndThrow(SEVERE, new Exception(String.format("The stream of dynamo table [%s] is %s, it must be %s or %s", 
+                    tableName, viewType, StreamViewType.NEW_IMAGE, StreamViewType.NEW_AND_OLD_IMAGES)));
+        }
+        return new DynamoStreamReader(getStreamsClient(), streamArn, viewType, tableName);
+    }
+    
+    /**
+     * The streams client uses the same credentials and configuration as the dynamo client, 
+     * and the dynamo endpoint unless streamsEndpoint is set (DynamoDB Local serves streams
+     * on the same endpoint).
+     * 
+     * @return the streams client, created the first time it's needed.
+     */
+    protected AmazonDynamoDBStreams getStreamsClient() {
+        return clients.getStreams(() -> {
+            final String dynamoEndpoint = initProps.getProperty(ENDPOINT, "");
+            final String streamsEndpoint = initProps.getProperty(STREAMS_ENDPOINT, dynamoEndpoint);
+            final String regionName = getAwsRegion(initProps.getProperty(REGION, "")).getName();
+            
+            AmazonDynamoDBStreamsClientBuilder clientBuilder = AmazonDynamoDBStreamsClientBuilder.standard();
+            clientBuilder.setClientConfiguration(clients.getConfig());
+            if(!streamsEndpoint.isEmpty()) {
+                clientBuilder.setEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(streamsEndpoint, regionName));
+            } else {
+                clientBuilder.setRegion(regionName);
+            }
+            clientBuilder.setCredentials(clients.getCredentials());
+            LOG.debug(String.format("Created streams client, endpoint: [%s] region: [%s]", streamsEndpoint, regionName));
+            return clientBuilder.build();
+        });
+    }
+    
+    /**
+     * The client for Query and Scan pages paced by a DynamoReadRateLimiter.
+     * 
+     * The shared client retries a throttled request itself (up to maxErrorRetries times), so
+     * DynamoPageReader, and the limiter, would only hear of a throttle once every one of those 
+     * retries had been throttled too, and the read rate would hardly ever be cut.  This client
+     * doesn't retry throttles (see NoThrottleRetryCondition), every throttle reaches the page
+     * reader, which cuts the rate and retries the page (pageRetries).  Other errors are retried
+     * by the client as usual.
+     * 
+     * Uses the same credentials, configuration and endpoint as the shared client.
+     * 
+     * @return the client, created the first time it's needed.
+     */
+    protected AmazonDynamoDB getPacedClient() {
+        return clients.getPacedDynamo(() -> {
+            final String dynamoEndpoint = initProps.getProperty(ENDPOINT, "");
+            final String regionName = getAwsRegion(initProps.getProperty(REGION, "")).getName();
+            
+            ClientConfiguration clientConfig = new ClientConfiguration(clients.getConfig());
+            clientConfig.setRetryPolicy(new RetryPolicy(new NoThrottleRetryCondition(), 
+                    PredefinedRetryPolicies.DYNAMODB_DEFAULT_BACKOFF_STRATEGY, 
+                    PredefinedRetryPolicies.DYNAMODB_DEFAULT_MAX_ERROR_RETRY, true));
+            
+            AmazonDynamoDBClientBuilder clientBuilder = AmazonDynamoDBClientBuilder.standard();
+            clientBuilder.setClientConfiguration(clientConfig);
+            if(!dynamoEndpoint.isEmpty()) {
+                clientBuilder.setEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(dynamoEndpoint, regionName));
+            } else {
+                clientBuilder.setRegion(regionName);
+            }
+            clientBuilder.setCredentials(clients.getCredentials());
+            LOG.debug(String.format("Created client for rate limited reads, endpoint: [%s] region: [%s]", dynamoEndpoint, regionName));
+            return clientBuilder.build();
+        });
+    }
+    
+    /**
+     * Retries what the SDK retries by default, except throttling errors.
+     */
+    public static class NoThrottleRetryCondition implements RetryPolicy.RetryCondition {
+        @Override
+        public boolean shouldRetry(AmazonWebServiceRequest originalRequest, AmazonClientException exception, int retriesAttempted) {
+            if(DynamoPageReader.isThrottle(exception)) {
+                return false;
+            }
+            return PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(originalRequest, exception, retriesAttempted);
+        }
+    }
+    
+    /**
+     * Get the read rate limiter for a table, if the entity asked for one.
+     * 
+     * The limiter is kept for the life of the data source, so a child entity that is
+     * re-initialized for every parent row keeps the rate it has learned so far.
+     * 
+     * The rate is the lower of maxRcuPerSecond, and targetReadCapacityPercent of the tables 
+     * provisioned read capacity.  A global secondary index has its own provisioned capacity,
+     * and its own limiter.
+     * 
+     * @param tableName
+     * @param indexName the secondary index being read, null for the table.
+     * @param tableInfo the table description, null if it couldn't be read.
+     * @param query 
+     * @return the limiter, or null if reads should not be limited.
+     */
+    protected synchronized DynamoReadRateLimiter getRateLimiter(String tableName, String indexName, TableDescription tableInfo, DynamoQueryParameters query) {
+        double maxRate = query.getMaxRcuPerSecond();
+        double percent = query.getTargetReadCapacityPercent();
         
-        return new DynamoResultIterator<>(dynamoClient, tableName, query, typeMap);
+        // a local secondary index shares the capacity of the table
+        String limiterName = tableName;
+        ProvisionedThroughputDescription throughput = tableInfo == null ? null : tableInfo.getProvisionedThroughput();
+        if(indexName != null && tableInfo != null && tableInfo.getGlobalSecondaryIndexes() != null) {
+            for(GlobalSecondaryIndexDescription index : tableInfo.getGlobalSecondaryIndexes()) {
+                if(indexName.equals(index.getIndexName())) {
+                    limiterName = tableName + INDEX_DELIMITER + indexName;
+                    throughput = index.getProvisionedThroughput();
+                }
+            }
+        }
+        
+        if(percent > 0) {
+            Long provisioned = null;
+            if(throughput != null) {
+                provisioned = throughput.getReadCapacityUnits();
+            }
+            if(provisioned == null || provisioned <= 0) {
+                LOG.warn(String.format("Read capacity of table [%s] is unknown, [%s] is ignored", limiterName, DynamoEntityProcessor.TARGET_READ_CAPACITY_PERCENT));
+            } else {
+                double target = provisioned * percent / 100.0;
+                maxRate = maxRate > 0 ? Math.min(maxRate, target) : target;
+            }
+        }
+        
+        if(maxRate <= 0) {
+            return null;
+        }
+        
+        DynamoReadRateLimiter limiter = rateLimiters.get(limiterName);
+        if(limiter == null || limiter.getMaxRate() != maxRate) {
+            LOG.info(String.format("Limiting reads from table [%s] to %.1f RCU/sec", limiterName, maxRate));
+            limiter = new DynamoReadRateLimiter(limiterName, maxRate);
+            rateLimiters.put(limiterName, limiter);
+        }
+        return limiter;
     }
 
     
     /**
-     * This sets up a mapping for the field, based on its name.
+     * Get the converter of items to rows for the entity, with the types of its fields when
+     * convertType is set, and an extractor for every field whose column is a document path.
      * 
      * @param context the Entity context
      * @return 
      */
-    protected Map<String, DynamoDBAttributeType> getFieldTypeMapping(Context context) {
+    public DynamoItemConverter getItemConverter(Context context) {
+        Map<String, DynamoColumnType> typeMap = null;
+        if(explicitTypeMapping) {
+            typeMap = getFieldTypeMapping(context);
+            LOG.debug(String.format("Attribute [%s] is set, type map will be used, with %d map elements", CONVERT_FIELD_TYPES, typeMap.size()));
+        }
+        List<DynamoPathExtractor> extractors = getPathExtractors(context, typeMap);
+        if(typeMap == null && extractors.isEmpty()) {
+            return DynamoItemConverter.DEFAULT;
+        }
+        return new DynamoItemConverter(typeMap, extractors);
+    }
+    
+    /**
+     * Compile the fields whose column is a document path (address.city, skills[*].name).
+     * 
+     * @param context the Entity context
+     * @param typeMap the type of each column, null if types aren't converted
+     * @return the extractors, empty if there are no path columns
+     */
+    protected List<DynamoPathExtractor> getPathExtractors(Context context, Map<String, DynamoColumnType> typeMap) {
+        List<DynamoPathExtractor> extractors = new ArrayList<>();
+        Set<String> compiled = new HashSet<>();
+        for (Map<String, String> map : context.getAllEntityFields()) {
+            String col = map.get(DataImporter.COLUMN);
+            if(!DynamoPathExtractor.isPath(col) || !compiled.add(col)) {
+                continue;
+            }
+            try {
+                extractors.add(DynamoPathExtractor.compile(col, typeMap == null ? null : typeMap.get(col)));
+            } catch (IllegalArgumentException e) {
+                LOG.warn(e.getMessage());
+                wrapAndThrow(SEVERE, e, String.format("entity field with name:[%s] %s", map.get(DataImporter.NAME), e.getMessage()));
+            }
+        }
+        return extractors;
+    }
+    
+    /**
+     * This sets up a mapping for the field, based on its name.
+     * 
+     * @param context the Entity context
+     * @return the type of each column that has one
+     */
+    protected Map<String, DynamoColumnType> getFieldTypeMapping(Context context) {
     // This sets up a mapping for the field, based on its name.
         // Iterate through all enities that describe a column:
         //    
 
         // Create a mapping 
-        Map<String, DynamoDBAttributeType> colNameToType = new HashMap<>();
+        Map<String, DynamoColumnType> colNameToType = new HashMap<>();
         
         for (Map<String, String> map : context.getAllEntityFields()) {
             // name - the name (destination) of the Solr field
@@ -443,17 +987,16 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
             String col = map.get(DataImporter.COLUMN);
             // type - "type" the string type of the data to convert to
             String colTypeStr = map.get(DataImporter.TYPE);
+            if(col == null || colTypeStr == null || colTypeStr.trim().isEmpty()) {
+                continue; // not converted
+            }
 
-            //DynamoTypes: B, BOOL, BS, L, M, N, NS, NULL, S, SS
-            DynamoDBAttributeType dynamoType = DynamoDBAttributeType.valueOf(colTypeStr);
-            if(dynamoType != null) {
-                colNameToType.put(col, dynamoType);
+            DynamoColumnType columnType = DynamoColumnType.forName(colTypeStr);
+            if(columnType != null) {
+                colNameToType.put(col, columnType);
             } else {
-                List<String> validTypesDesc = new LinkedList<String>();
-                for (DynamoDBAttributeType theType : DynamoDBAttributeType.values()) {
-                    validTypesDesc.add(theType.toString());
-                }
-                LOG.warn(String.format("entity field with name:[%s] invalid dynamo type: [%s], valid types are: %s", solrName, colTypeStr, validTypesDesc.toString()));
+                LOG.warn(String.format("entity field with name:[%s] invalid type: [%s], valid types are: %s", solrName, colTypeStr, 
+                        new TreeSet<>(DynamoColumnType.getNames())));
             }
         }
         
@@ -465,6 +1008,7 @@ public class DynamoDataSource extends DataSource<Iterator<Map<String, Object>>>
    */
     @Override
     public void close() {
+        // the clients are shared with other cores and later imports, see DynamoClientRegistry
         LOG.debug("closing data handler");
     }
     
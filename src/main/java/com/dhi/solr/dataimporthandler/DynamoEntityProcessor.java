@@ -1,20 +1,40 @@
 package com.dhi.solr.dataimporthandler;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.TimeZone;
 import java.util.TreeMap;
-import java.util.stream.Collectors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.solr.handler.dataimport.DataSource;
 import org.apache.solr.handler.dataimport.EntityProcessorBase;
@@ -22,11 +42,23 @@ import org.apache.solr.handler.dataimport.Context;
 import org.apache.solr.handler.dataimport.DataImportHandlerException;
 import static org.apache.solr.handler.dataimport.DataImportHandlerException.wrapAndThrow;
 import static org.apache.solr.handler.dataimport.config.ConfigNameConstants.IMPORTER_NS;
+import static org.apache.solr.handler.dataimport.config.ConfigNameConstants.IMPORTER_NS_SHORT;
 import org.apache.solr.handler.dataimport.DataImporter;
 import org.apache.solr.handler.dataimport.EntityProcessorWrapper;
 import org.apache.solr.handler.dataimport.SolrWriter;
 import org.apache.solr.handler.dataimport.VariableResolver;
 import org.apache.solr.handler.dataimport.config.Entity;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.util.RefCounted;
 
 
 /**
@@ -50,6 +82,15 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
     protected DynamoQueryParameters queryParams;
     protected String primaryKeySolr;
     protected String primaryKeyDynamo;
+    protected Date lastImportTime; // parsed from last_index_time, null if unknown
+    protected DynamoStreamReader streamReader; // the stream read by this delta import, null if not read
+    protected Iterator<Map<String, Object>> deletedRowIterator;
+    protected DynamoLookup lookup; // child lookups by key, kept across parent rows
+    protected boolean lookaheadUnavailableLogged = false; // logged once per entity, see getUpcomingLookupValues()
+    protected DynamoJoinIndex joinIndex; // child rows by join value, kept across parent rows
+    protected DynamoTableMirror mirror; // local copy of the table, kept until the import is closed
+    protected DynamoQueryPlan queryPlan; // the parsed query attributes, kept across parent rows
+    protected DynamoImportMetrics metrics; // reads and timings of this import, kept across parent rows
     
     public static final String TABLE_NAME = "tableName";
     public static final String VALUE_MAP = "valueMap";
@@ -57,15 +98,90 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
     public static final String CONDITIONAL_EXPRESSION = "keyConditionExpression";
     public static final String FILTER_EXPRESSION = "filterExpression";
     public static final String PROJECTION_EXPRESSION = "projectionExpression";
+    public static final String AUTO_PROJECTION = "autoProjection"; // project only the pk and the <field> columns of the entity
+    public static final String AUTO_PROJECTION_ATTRIBUTES = "autoProjectionAttributes"; // more attributes to project, comma separated
+    public static final String AUTO_PROJECTION_ATTRIBUTES_DELIMITER = ","; // between the attributes of autoProjectionAttributes
+    public static final String AUTO_PROJECTION_NAME = "#dihp"; // name map placeholder prefix of projected attributes
+    public static final String LOOKUP_KEY = "lookupKey"; // child lookup, the key attribute of the table
+    public static final String LOOKUP_VALUE = "lookupValue"; // child lookup, the key value, e.g. ${parent.user_id}
+    public static final String LOOKUP_AHEAD = "lookupAhead"; // child lookup, keys of upcoming parent rows fetched at once
+    public static final String LOOKUP_THREADS = "lookupThreads"; // child lookup, BatchGetItem requests at once
+    public static final String JOIN_KEY = "joinKey"; // child join, the (non key) attribute of the table joined on
+    public static final String JOIN_VALUE = "joinValue"; // child join, the value of the parent row, e.g. ${parent.company_id}
+    public static final String JOIN_MEMORY_MB = "joinMemoryMb"; // child join, rows held in memory before they are spilled
+    public static final String JOIN_DIRECTORY = "joinDirectory"; // child join, where rows are spilled (default java.io.tmpdir)
+    public static final int DEFAULT_JOIN_MEMORY_MB = 64;
+    public static final String REFERENCE_CACHE = "referenceCache"; // (true/false) read the rows from the JVM wide cache of reference tables
+    public static final String REFERENCE_CACHE_TTL_SECONDS = "referenceCacheTtlSeconds"; // cached rows older than this are read again
+    public static final String REFERENCE_CACHE_MAX_ITEMS = "referenceCacheMaxItems"; // tables with more rows aren't cached
+    public static final String EXPORT_DIRECTORY = "exportDirectory"; // full import from a table export (DYNAMODB_JSON) on local disk
+    public static final String EXPORT_THREADS = "exportThreads"; // export data files read at once
+    public static final int DEFAULT_EXPORT_THREADS = 4;
+    public static final String MIRROR_DIRECTORY = "mirrorDirectory"; // keep a local mirror of the table, full imports read it
+    public static final String MIRROR_REFRESH = "mirrorRefresh"; // (true/false) scan the table and rewrite the mirror
+    public static final String SPOOL_DIRECTORY = "spoolDirectory"; // read the table into a local spool, DIH indexes from the spool
+    public static final String SPOOL_MAX_MB = "spoolMaxMb"; // spooled rows waiting to be indexed before reading waits
+    public static final int DEFAULT_SPOOL_MAX_MB = 1024;
+    public static final String SESSION_UPCOMING_ROWS = "dynamo.upcomingRows."; // session attribute, the rows of a parent entity
+    public static final String SESSION_METRICS = "dynamo.metrics."; // session attribute, the DynamoImportMetrics of an entity
+    public static final String INDEX_NAME = "indexName"; // secondary index to query/scan instead of the table
+    public static final String INDEX_BACKFILL = "indexBackfill"; // fetch attributes the index doesn't project from the table
+    public static final String TOTAL_SEGMENTS = "totalSegments"; // parallel scan, number of segments to split the table into
+    public static final String SCAN_THREADS = "scanThreads"; // parallel scan, number of segments to read at once
+    public static final String PREFETCH_PAGES = "prefetchPages"; // pages to read ahead of DIH on a background thread
+    public static final String TARGET_READ_CAPACITY_PERCENT = "targetReadCapacityPercent"; // limit reads to % of provisioned RCU
+    public static final String MAX_RCU_PER_SECOND = "maxRcuPerSecond"; // limit reads to RCU per second
+    public static final String PARTITION_KEY_VALUES = "partitionKeyValues"; // fan-out query, one query per value
+    public static final String PARTITION_KEY_VALUES_FILE = "partitionKeyValuesFile"; // fan-out query, values one per line
+    public static final String PARTITION_KEY_VALUE_NAME = "partitionKeyValueName"; // fan-out query, ValueMap placeholder
+    public static final String PARTITION_KEY_VALUE_TYPE = "partitionKeyValueType"; // fan-out query, ValueMap type
+    public static final String QUERY_THREADS = "queryThreads"; // fan-out query, number of queries to run at once
+    public static final String PARTITION_KEY_VALUES_DELIMITER = ",";
+    public static final String TIME_BUCKET_FORMAT = "timeBucketFormat"; // delta fan-out query, one value per time bucket since the last import
+    public static final String TIME_BUCKET_UNIT = "timeBucketUnit"; // delta fan-out query, minute, hour or day
+    public static final String TIME_BUCKET_TIME_ZONE = "timeBucketTimeZone"; // delta fan-out query, time zone of the buckets
+    public static final String SHARD_COUNT = "shardCount"; // delta fan-out query, write shards per time bucket
+    public static final String SHARD_FORMAT = "shardFormat"; // delta fan-out query, format of bucket + shard
+    public static final String DEFAULT_SHARD_FORMAT = "%s#%d";
+    public static final String DEFAULT_TIME_BUCKET_TIME_ZONE = "UTC";
+    public static final int MAX_TIME_BUCKETS = 10000;
+    public static final String DELTA_SOURCE = "deltaSource"; // how a delta import finds changes: query or stream
+    public static final String DELTA_SOURCE_QUERY = "query"; // run the DELTA query
+    public static final String DELTA_SOURCE_STREAM = "stream"; // read the table's DynamoDB stream
+    public static final String DELETION_SOURCE = "deletionSource"; // how a delta import finds deleted items
+    public static final String DELETION_SOURCE_NONE = "none"; // deletes are not detected
+    public static final String DELETION_SOURCE_STREAM = "stream"; // REMOVE records of the table's DynamoDB stream
+    public static final String DELETION_SOURCE_KEY_DIFF = "keydiff"; // solr keys missing from a key-only scan of the table
+    public static final String KEY_DIFF_MEMORY_MB = "keyDiffMemoryMb"; // keys held in memory before a sorted run is spilled
+    public static final String KEY_DIFF_DIRECTORY = "keyDiffDirectory"; // where sorted runs are spilled (default java.io.tmpdir)
+    public static final int DEFAULT_KEY_DIFF_MEMORY_MB = 64;
+    public static final String KEY_DIFF_NAME = DynamoBatchGetter.KEY_NAME_PREFIX; // name map placeholder of the projected primary key
+    public static final String STREAM_THREADS = "streamThreads"; // stream shards to read at once
+    public static final int DEFAULT_STREAM_THREADS = 4;
+    public static final String STREAM_EMPTY_READS = "streamEmptyReads"; // empty responses in a row before an open shard is caught up
+    public static final int DEFAULT_STREAM_EMPTY_READS = 5;
+    public static final String PAGE_RETRIES = "pageRetries"; // retries of a failed page, after the client gives up
+    public static final String PAGE_RETRY_BACKOFF_MS = "pageRetryBackoffMs"; // wait before the first page retry
+    public static final String CHECKPOINT_PAGES = "checkpointPages"; // save import progress every N pages
+    public static final String CHECKPOINT_DIRECTORY = "checkpointDirectory"; // where to save progress (default conf dir)
+    public static final String REQUEST_RESUME = "resume"; // request parameter, resume full-import from the checkpoint
+    public static final String REQUEST_CLEAN = "clean"; // request parameter, DIH deletes all documents first
     public static final String DELTA_NAME_ATTRIBUTE = "DELTA"; // fields starting with this value will be used for DELTA queries.
+    // the attributes (and their DELTA attributes) that change the rows of a mirror, see getMirror()
+    protected static final List<String> MIRROR_SIGNATURE_ATTRIBUTES = Arrays.asList(INDEX_NAME, CONDITIONAL_EXPRESSION, FILTER_EXPRESSION, 
+            PROJECTION_EXPRESSION, NAME_MAP, VALUE_MAP, AUTO_PROJECTION, AUTO_PROJECTION_ATTRIBUTES);
     public static final String NAME_ATTR_DELIMITER = ",";
     public static final String VALUE_TYPE_DELIMITER = ":";
     public static final String VALUE_ATTR_DELIMITER = ",";
     
     public static final String VARIABLE_LAST_IMPORT = IMPORTER_NS + "." + SolrWriter.LAST_INDEX_KEY;
+    public static final String VARIABLE_DELTA_ROW = IMPORTER_NS_SHORT + ".delta"; // the modified row a delta document is built for
+    public static final String VARIABLE_INDEX_START = IMPORTER_NS + ".index_start_time";
     public static final String DEFAULT_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss"; // no constant elsewhere for this unfortunately
     
     public static final String VARIABLE_CUSTOM_NAMESPACE = IMPORTER_NS + ".dynamo";
+    public static final Pattern LOOKUP_VARIABLE = Pattern.compile("\\$\\{([^.}]+)\\.([^}]+)\\}"); // ${entity.column}
+    public static final int DEFAULT_QUERY_THREADS = 4;
     
 
     @Override
@@ -80,29 +196,516 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
         // entityName   is set to the 'name' of this entity processor
         super.init(context);
         
-        LOG.info(String.format("Initializing DIH entity: [%s]", entityName));
+        // a child entity is initialized for every parent row
+        if(context.isRootEntity()) {
+            LOG.info(String.format("Initializing DIH entity: [%s]", entityName));
+        } else {
+            LOG.debug(String.format("Initializing DIH entity: [%s]", entityName));
+        }
         
         DataSource dataSourceGeneric = context.getDataSource();
         dataSource = (DynamoDataSource) dataSourceGeneric;
         
         String tableName = context.getResolvedEntityAttribute(TABLE_NAME);
         
+        // Get the primary key
+        EntityProcessorWrapper epc = (EntityProcessorWrapper) context.getEntityProcessor();
+        primaryKeySolr = epc.getEntity().getPk();
+        primaryKeyDynamo = getSolrDynamoFieldMapping().getOrDefault(primaryKeySolr, primaryKeySolr);
+        
+        // child entities are re-initialized for each parent row, release the previous iterator
+        closeRowIterator();
+        closeDeletedRowIterator();
+        streamReader = null;
+        
+        // A delta import finds the modified rows with the DELTA query (FIND_DELTA), then builds
+        // a document for each of them (DELTA_DUMP).  The modified row is already the whole item,
+        // so there is no need to read it from dynamo again.
+        Map<String, Object> deltaRow = getDeltaRow();
+        if(deltaRow != null) {
+            rowIterator = Collections.singletonList(deltaRow).iterator();
+            return;
+        }
+        
+        // A child entity that looks up one item by key for each parent row
+        if(isLookup()) {
+            rowIterator = lookup(tableName);
+            return;
+        }
+        
+        // A child entity joined on an attribute that isn't the key, the table is scanned once
+        if(isJoin()) {
+            rowIterator = join(tableName);
+            return;
+        }
+        
         // Build custom variables (used by the query expression)
         buildCustomVariables();
+        
+        if(Context.FIND_DELTA.equals(context.currentProcess()) && isStreamDelta()) {
+            rowIterator = readStreamChanges(tableName);
+            return;
+        }
 
         queryParams = getQueryExpression();
+        queryParams.setMetrics(getMetrics());
         
-        // Get the primary key
-        EntityProcessorWrapper epc = (EntityProcessorWrapper) context.getEntityProcessor();
-        primaryKeySolr = epc.getEntity().getPk();
-        primaryKeyDynamo = getSolrDynamoFieldMapping().getOrDefault(primaryKeySolr, primaryKeySolr);
+        boolean fullDump = Context.FULL_DUMP.equals(context.currentProcess());
+        DynamoTableMirror fullMirror = fullDump ? getMirror(tableName) : null;
+        String exportDirectory = context.getResolvedEntityAttribute(EXPORT_DIRECTORY);
+        if(fullMirror != null && fullMirror.isComplete() && !Boolean.parseBoolean(context.getResolvedEntityAttribute(MIRROR_REFRESH))) {
+            // A full import from the local mirror, dynamo was only read for the changes
+            LOG.info(String.format("Entity [%s] reading the mirror of table [%s], last updated %s", entityName, tableName, fullMirror.getUpdated()));
+            try {
+                rowIterator = fullMirror.read();
+            } catch (IOException e) {
+                String errMsg = String.format("Entity [%s] unable to read the mirror of table [%s]", entityName, tableName);
+                LOG.warn(errMsg);
+                wrapAndThrow(DataImportHandlerException.SEVERE, e, errMsg);
+            }
+        } else if(fullDump && exportDirectory != null && !exportDirectory.trim().isEmpty()) {
+            // A full import from a table export on local disk, uses no read capacity
+            rowIterator = dataSource.getExportData(context, tableName, queryParams, new File(exportDirectory.trim()), 
+                    getIntEntityAttribute(EXPORT_THREADS, DEFAULT_EXPORT_THREADS));
+            rowIterator = writeMirror(fullMirror, rowIterator);
+        } else {
+            File spoolDirectory = getSpoolDirectory();
+            if(spoolDirectory == null) {
+                queryParams.setCheckpoint(getCheckpoint(tableName, queryParams));
+            } else if(getIntEntityAttribute(CHECKPOINT_PAGES, 0) > 0) {
+                // the scan runs ahead of indexing, a checkpoint would skip the spooled rows on resume
+                LOG.warn(String.format("Entity [%s] is spooled, checkpoints are not saved", entityName));
+            }
+            
+            // When prefetching, the first page is requested right here, so dynamo is already
+            // working while DIH finishes setting up the import.
+            rowIterator = dataSource.getData(context, tableName, queryParams);
+            if(spoolDirectory != null) {
+                rowIterator = spool(rowIterator, spoolDirectory);
+            }
+            rowIterator = writeMirror(fullMirror, rowIterator);
+        }
         
-        rowIterator = dataSource.getData(context, tableName, queryParams);
+        // child entities may look ahead at the rows of this entity, see getUpcomingLookupValues()
+        context.setSessionAttribute(SESSION_UPCOMING_ROWS + entityName, rowIterator, Context.SCOPE_GLOBAL);
         
         // VALIDATION
         validateEntityAttributes();
     }
     
+    /**
+     * Get the local mirror of the table (see DynamoTableMirror), opened the first time it's
+     * needed and kept until the import is closed.
+     * 
+     * Only the root entity of a full or delta import has a mirror, when mirrorDirectory is set.
+     * The mirror is only read for the same table, query and field conversion it was written for:
+     * the full query, the DELTA query (the delta rows applied to it must have the same 
+     * attributes as the rows of the scan) and the projection attributes of both.
+     * 
+     * @param tableName
+     * @return the mirror, null if the entity isn't mirrored
+     */
+    protected DynamoTableMirror getMirror(String tableName) {
+        if(mirror != null) {
+            return mirror;
+        }
+        String directory = context.getResolvedEntityAttribute(MIRROR_DIRECTORY);
+        if(directory == null || directory.trim().isEmpty() || !context.isRootEntity()) {
+            return null;
+        }
+        // raw attributes, the mirror is written by a full import and updated by delta imports
+        StringBuilder signature = new StringBuilder(tableName);
+        for(String attribute : MIRROR_SIGNATURE_ATTRIBUTES) {
+            signature.append('|').append(context.getEntityAttribute(attribute));
+            signature.append('|').append(context.getEntityAttribute(DELTA_NAME_ATTRIBUTE + attribute));
+        }
+        signature.append('|').append(dataSource.getItemConverter(context));
+        try {
+            mirror = new DynamoTableMirror(new File(directory.trim(), entityName), primaryKeyDynamo, signature.toString());
+        } catch (IOException e) {
+            String errMsg = String.format("Entity [%s] unable to open the mirror in [%s]", entityName, directory);
+            LOG.warn(errMsg);
+            wrapAndThrow(DataImportHandlerException.SEVERE, e, errMsg);
+        }
+        return mirror;
+    }
+    
+    /**
+     * @return the directory to spool the rows of the table to, null if the entity isn't spooled.
+     *         Only the root entity is spooled, a child entity reads a few rows per parent row.
+     */
+    protected File getSpoolDirectory() {
+        String directory = context.getResolvedEntityAttribute(SPOOL_DIRECTORY);
+        if(directory == null || directory.trim().isEmpty()) {
+            return null;
+        }
+        if(!context.isRootEntity()) {
+            LOG.debug(String.format("Entity [%s] only the root entity is spooled", entityName));
+            return null;
+        }
+        return new File(directory.trim());
+    }
+    
+    /**
+     * Drain the rows of the table into a local spool (see DynamoSpool) on a background thread,
+     * so reading the table finishes as fast as read capacity allows, however slow indexing is.
+     * 
+     * @param rows the rows of the table
+     * @param directory where the spool is created
+     * @return the rows, read back from the spool
+     */
+    protected Iterator<Map<String, Object>> spool(Iterator<Map<String, Object>> rows, File directory) {
+        try {
+            return new DynamoSpool(entityName, rows, directory, getIntEntityAttribute(SPOOL_MAX_MB, DEFAULT_SPOOL_MAX_MB) * 1024L * 1024);
+        } catch (IOException e) {
+            if(rows instanceof Closeable) {
+                try {
+                    ((Closeable) rows).close();
+                } catch (IOException closeError) {
+                    LOG.warn("Error closing dynamo result iterator", closeError);
+                }
+            }
+            String errMsg = String.format("Entity [%s] unable to create a spool in [%s]", entityName, directory);
+            LOG.warn(errMsg);
+            wrapAndThrow(DataImportHandlerException.SEVERE, e, errMsg);
+        }
+        return rows;
+    }
+    
+    /**
+     * Write the rows of a full scan to the mirror (if any), replacing its rows.
+     * 
+     * @param fullMirror the mirror, may be null
+     * @param rows the rows of the scan
+     * @return the rows to import
+     */
+    protected Iterator<Map<String, Object>> writeMirror(DynamoTableMirror fullMirror, Iterator<Map<String, Object>> rows) {
+        if(fullMirror == null) {
+            return rows;
+        }
+        if(Boolean.parseBoolean(getRequestParameter(REQUEST_RESUME))) {
+            LOG.info(String.format("Entity [%s] a resumed import doesn't read every row, the mirror is not written", entityName));
+            return rows;
+        }
+        try {
+            fullMirror.reset();
+        } catch (IOException e) {
+            String errMsg = String.format("Entity [%s] unable to reset the mirror", entityName);
+            LOG.warn(errMsg);
+            wrapAndThrow(DataImportHandlerException.SEVERE, e, errMsg);
+        }
+        LOG.info(String.format("Entity [%s] writing the rows of the scan to the mirror", entityName));
+        return fullMirror.writing(rows);
+    }
+    
+    /**
+     * Apply a change of a delta import to the mirror, if the entity has a complete mirror.
+     * 
+     * @param row the row of the delta document (DELTA_DUMP), or null
+     * @param deletedKey the key of a deleted row (FIND_DELTA), or null
+     */
+    protected void updateMirror(Map<String, Object> row, Object deletedKey) {
+        DynamoTableMirror deltaMirror = getMirror(context.getResolvedEntityAttribute(TABLE_NAME));
+        if(deltaMirror == null || !deltaMirror.isComplete()) {
+            return;
+        }
+        try {
+            if(row != null) {
+                deltaMirror.put(row);
+            } else {
+                deltaMirror.delete(deletedKey);
+            }
+        } catch (IOException e) {
+            String errMsg = String.format("Entity [%s] unable to write to the mirror", entityName);
+            LOG.warn(errMsg);
+            wrapAndThrow(DataImportHandlerException.SEVERE, e, errMsg);
+        }
+    }
+    
+    /**
+     * @return true if this is a child entity that looks up an item by key for each parent row.
+     */
+    protected boolean isLookup() {
+        String lookupKey = context.getEntityAttribute(LOOKUP_KEY);
+        return lookupKey != null && !lookupKey.trim().isEmpty() && context.getParentContext() != null;
+    }
+    
+    /**
+     * Look up the item of the current parent row, by the lookupValue resolved for the row.
+     * 
+     * Instead of a Query for each parent row, the keys of the parent rows that come next are 
+     * fetched at the same time, with concurrent BatchGetItem requests, see DynamoLookup.
+     * 
+     * @param tableName
+     * @return the row of the item, or no rows if the table has no item with the key.
+     */
+    protected Iterator<Map<String, Object>> lookup(String tableName) {
+        Object value = getParentValue(LOOKUP_VALUE);
+        if(value == null || value.toString().trim().isEmpty()) {
+            LOG.debug(String.format("Entity [%s] no %s for this row", entityName, LOOKUP_VALUE));
+            return Collections.emptyIterator();
+        }
+        if(lookup == null) {
+            buildCustomVariables();
+            queryParams = getQueryExpression();
+            lookup = dataSource.getLookup(context, tableName, queryParams, context.getEntityAttribute(LOOKUP_KEY).trim(),
+                    getIntEntityAttribute(LOOKUP_THREADS, DynamoLookup.DEFAULT_THREADS), 
+                    getIntEntityAttribute(LOOKUP_AHEAD, DynamoLookup.DEFAULT_MAX_KEYS));
+        }
+        
+        Map<String, Object> row = lookup.get(value, getUpcomingLookupValues());
+        if(row == null) {
+            return Collections.emptyIterator();
+        }
+        return Collections.singletonList(row).iterator();
+    }
+    
+    /**
+     * Get the value of lookupValue or joinValue for the current parent row.
+     * 
+     * When the attribute is a single column of the parent entity (${parent.column}) the value of
+     * the column is used as is, so a binary key (a byte[] column) isn't turned into a String and
+     * a number is still a Number.  Otherwise the attribute is resolved like any other.
+     * 
+     * @param attribute LOOKUP_VALUE or JOIN_VALUE
+     * @return the value, null if the parent row has none
+     */
+    protected Object getParentValue(String attribute) {
+        Matcher matcher = LOOKUP_VARIABLE.matcher(context.getEntityAttribute(attribute).trim());
+        if(matcher.matches()) {
+            Object value = context.getVariableResolver().resolve(matcher.group(1) + "." + matcher.group(2));
+            if(value != null) {
+                return value;
+            }
+        }
+        return context.getResolvedEntityAttribute(attribute);
+    }
+    
+    /**
+     * @return true if this is a child entity joined with its parent on a (non key) attribute.
+     */
+    protected boolean isJoin() {
+        String joinKey = context.getEntityAttribute(JOIN_KEY);
+        return joinKey != null && !joinKey.trim().isEmpty() && context.getParentContext() != null;
+    }
+    
+    /**
+     * Get the rows of the table whose joinKey is the joinValue resolved for the current parent
+     * row.
+     * 
+     * The first parent row scans the whole table once (a parallel scan with the entity's scan
+     * attributes) into a DynamoJoinIndex, every parent row is then answered from the index.
+     * 
+     * @param tableName
+     * @return the joined rows, possibly none.
+     */
+    protected Iterator<Map<String, Object>> join(String tableName) {
+        Object value = getParentValue(JOIN_VALUE);
+        if(value == null || value.toString().trim().isEmpty()) {
+            LOG.debug(String.format("Entity [%s] no %s for this row", entityName, JOIN_VALUE));
+            return Collections.emptyIterator();
+        }
+        if(joinIndex == null) {
+            joinIndex = buildJoinIndex(tableName);
+        }
+        return joinIndex.get(value).iterator();
+    }
+    
+    /**
+     * Scan the table and index its rows by joinKey.  The query expressions are resolved once,
+     * with the first parent row, so they must not use the parent's variables.
+     * 
+     * @param tableName
+     * @return the index, ready to be read
+     */
+    protected DynamoJoinIndex buildJoinIndex(String tableName) {
+        buildCustomVariables();
+        queryParams = getQueryExpression();
+        queryParams.setMetrics(getMetrics());
+        
+        String joinKey = context.getEntityAttribute(JOIN_KEY).trim();
+        // N join values are compared by value, S values as they are (see DynamoJoinIndex)
+        queryParams.setNumberColumn(joinKey);
+        String directory = context.getResolvedEntityAttribute(JOIN_DIRECTORY);
+        DynamoJoinIndex index = new DynamoJoinIndex(entityName, joinKey,
+                directory == null || directory.trim().isEmpty() ? null : new File(directory.trim()),
+                getIntEntityAttribute(JOIN_MEMORY_MB, DEFAULT_JOIN_MEMORY_MB) * 1024L * 1024L);
+        
+        LOG.info(String.format("Entity [%s] scanning table [%s] to join on [%s]", entityName, tableName, joinKey));
+        Iterator<Map<String, Object>> rows = dataSource.getData(context, tableName, queryParams);
+        try {
+            while(rows.hasNext()) {
+                index.add(rows.next());
+            }
+            index.finish();
+        } catch (RuntimeException e) {
+            index.close();
+            throw e;
+        } finally {
+            if(rows instanceof Closeable) {
+                try {
+                    ((Closeable) rows).close();
+                } catch (IOException e) {
+                    LOG.warn("Error closing dynamo result iterator", e);
+                }
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Get the lookup values of the parent rows after the current one, so they can be fetched
+     * with the current one.
+     * 
+     * This works when lookupValue is a single column of the parent entity (${parent.column}),
+     * and the rows of the parent can be looked ahead (see DynamoRowLookahead).  Otherwise 
+     * each parent row is looked up on its own.
+     * 
+     * @return the values, possibly empty
+     */
+    protected List<Object> getUpcomingLookupValues() {
+        Context parent = context.getParentContext();
+        String parentName = parent.getEntityAttribute("name");
+        Matcher matcher = LOOKUP_VARIABLE.matcher(context.getEntityAttribute(LOOKUP_VALUE).trim());
+        if(parentName == null || !matcher.matches() || !matcher.group(1).equals(parentName)) {
+            return Collections.emptyList();
+        }
+        Object parentRows = context.getSessionAttribute(SESSION_UPCOMING_ROWS + parentName, Context.SCOPE_GLOBAL);
+        int lookupAhead = getIntEntityAttribute(LOOKUP_AHEAD, DynamoLookup.DEFAULT_MAX_KEYS);
+        if(!(parentRows instanceof DynamoRowLookahead)) {
+            if(!lookaheadUnavailableLogged) {
+                lookaheadUnavailableLogged = true;
+                LOG.info(String.format("Entity [%s] the rows of parent entity [%s] can't be looked ahead, each parent row is looked up on its own", 
+                        entityName, parentName));
+            }
+            return Collections.emptyList();
+        }
+        List<Map<String, Object>> upcomingRows = ((DynamoRowLookahead) parentRows).peek(lookupAhead);
+        String column = matcher.group(2);
+        List<Object> values = new ArrayList<>();
+        for(Map<String, Object> row : upcomingRows) {
+            Object value = row.get(column);
+            if(value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+    
+    /**
+     * @return true when the DELTA query attributes should be used: while finding modified rows, 
+     *         and while building delta documents.
+     */
+    protected boolean isDeltaQuery() {
+        String process = context.currentProcess();
+        return Context.FIND_DELTA.equals(process) || Context.DELTA_DUMP.equals(process);
+    }
+    
+    /**
+     * @return true if the delta import reads changes from the table's stream instead of 
+     *         running the DELTA query.
+     */
+    protected boolean isStreamDelta() {
+        String deltaSource = context.getResolvedEntityAttribute(DELTA_SOURCE);
+        if(deltaSource == null || deltaSource.trim().isEmpty() || deltaSource.trim().equalsIgnoreCase(DELTA_SOURCE_QUERY)) {
+            return false;
+        }
+        if(deltaSource.trim().equalsIgnoreCase(DELTA_SOURCE_STREAM)) {
+            return true;
+        }
+        String errMsg = String.format("Attribute [%s] must be '%s' or '%s', not '%s'", DELTA_SOURCE, DELTA_SOURCE_QUERY, DELTA_SOURCE_STREAM, deltaSource);
+        LOG.warn(errMsg);
+        throw new DataImportHandlerException(DataImportHandlerException.SEVERE, errMsg);
+    }
+    
+    /**
+     * Find the modified rows of a delta import by reading the table's stream, from where the last
+     * successful import stopped reading.
+     * 
+     * The stream is read in full here (shards in parallel), so only the latest image of each 
+     * item is returned.  Items whose latest change removed them are not returned.
+     * 
+     * @param tableName
+     * @return the new image of each changed item
+     */
+    protected Iterator<Map<String, Object>> readStreamChanges(String tableName) {
+        if(!context.isRootEntity()) {
+            LOG.warn(String.format("Entity [%s] %s=%s is only supported for the root entity", entityName, DELTA_SOURCE, DELTA_SOURCE_STREAM));
+            return Collections.emptyIterator();
+        }
+        
+        List<Map<String, Object>> rows = dataSource.getItemConverter(context).convertAll(readStream(tableName).getNewImages());
+        LOG.info(String.format("Entity [%s] found %d changed items in the stream of table [%s]", entityName, rows.size(), tableName));
+        return rows.iterator();
+    }
+    
+    /**
+     * Read the table's stream, from where the last successful import stopped.  The stream is 
+     * read once per import, modified and deleted rows both come from the same read.
+     * 
+     * @param tableName
+     * @return the reader, after reading the stream.
+     */
+    protected DynamoStreamReader readStream(String tableName) {
+        if(streamReader != null) {
+            return streamReader;
+        }
+        File directory = getCheckpointDirectory();
+        if(directory == null) {
+            String errMsg = String.format("Entity [%s] needs a directory to save stream positions, set attribute [%s]", 
+                    entityName, CHECKPOINT_DIRECTORY);
+            LOG.warn(errMsg);
+            throw new DataImportHandlerException(DataImportHandlerException.SEVERE, errMsg);
+        }
+        
+        DynamoStreamReader reader = dataSource.getStreamReader(tableName, isStreamDelta());
+        DynamoStreamCheckpoint checkpoint = new DynamoStreamCheckpoint(directory, entityName, reader.getStreamArn());
+        Map<String, String> committed = checkpoint.loadPositions(lastImportTime);
+        
+        reader.read(committed, getIntEntityAttribute(STREAM_THREADS, DEFAULT_STREAM_THREADS),
+                getIntEntityAttribute(STREAM_EMPTY_READS, DEFAULT_STREAM_EMPTY_READS));
+        checkpoint.savePending(committed, reader.getPositions(), getImportStartTime());
+        streamReader = reader;
+        return reader;
+    }
+    
+    /**
+     * @return the time the current import started, as DIH will save it to last_index_time.
+     */
+    protected Date getImportStartTime() {
+        Object startTime = context.getVariableResolver().resolve(VARIABLE_INDEX_START);
+        if(startTime instanceof Date) {
+            return (Date) startTime;
+        }
+        if(startTime != null) {
+            try {
+                return new SimpleDateFormat(DEFAULT_DATE_FORMAT, Locale.ROOT).parse(startTime.toString());
+            } catch (ParseException e) {
+                LOG.warn(String.format("Unable to parse %s: %s", VARIABLE_INDEX_START, startTime));
+            }
+        }
+        return new Date();
+    }
+    
+    /**
+     * Get the modified row DIH is building a delta document for (a row returned by 
+     * nextModifiedRowKey).
+     * 
+     * @return a copy of the row, or null if this isn't the root entity of a delta document, or 
+     *         the row only holds the primary key (then the DELTA query is run as before).
+     */
+    @SuppressWarnings("unchecked")
+    protected Map<String, Object> getDeltaRow() {
+        if(!Context.DELTA_DUMP.equals(context.currentProcess()) || !context.isRootEntity()) {
+            return null;
+        }
+        Object deltaRow = context.getVariableResolver().resolve(VARIABLE_DELTA_ROW);
+        if(!(deltaRow instanceof Map) || ((Map<String, Object>) deltaRow).size() <= 1) {
+            return null;
+        }
+        return new HashMap<>((Map<String, Object>) deltaRow);
+    }
+    
     /**
      * Know the list of allowable entity attributes and validate them
      * There are certain entity attributes that are required
@@ -112,27 +715,38 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
         
         boolean hasConditionExpression = queryParams.getKeyConditionExpression() != null;
         boolean hasValueMap = queryParams.getValueMap() != null && !queryParams.getValueMap().isEmpty();
+        boolean hasPartitionKeyValues = queryParams.getPartitionKeyValues() != null;
 
-        if(hasConditionExpression && !hasValueMap) {
+        if(hasConditionExpression && !hasValueMap && !hasPartitionKeyValues) {
             errMsg = String.format("Dynamo DIH Error: %s is specified, a ValueMap must also be specified", CONDITIONAL_EXPRESSION);
         }
         
+        if(hasPartitionKeyValues && !hasConditionExpression) {
+            errMsg = String.format("Dynamo DIH Error: %s is specified, a %s must also be specified (one query is run per value)", 
+                    PARTITION_KEY_VALUES, CONDITIONAL_EXPRESSION);
+        }
+        
+        if(hasPartitionKeyValues && queryParams.getPartitionKeyValueName() == null) {
+            errMsg = String.format("Dynamo DIH Error: %s is specified, %s must also be specified, for example ':pk'", 
+                    PARTITION_KEY_VALUES, PARTITION_KEY_VALUE_NAME);
+        }
+        
         if(context.getEntityAttribute(TABLE_NAME) == null || context.getEntityAttribute(TABLE_NAME).isEmpty()) {
             errMsg = String.format("Entity Attribute [%s] is required, and cannot be empty", TABLE_NAME);
         }
         
-        if(context.currentProcess().equals(Context.DELTA_DUMP)) {
-            String conditionalExprField = CONDITIONAL_EXPRESSION + DELTA_NAME_ATTRIBUTE;
-            String filterExprField = FILTER_EXPRESSION + DELTA_NAME_ATTRIBUTE;
+        if(isDeltaQuery()) {
+            String conditionalExprField = DELTA_NAME_ATTRIBUTE + CONDITIONAL_EXPRESSION;
+            String filterExprField = DELTA_NAME_ATTRIBUTE + FILTER_EXPRESSION;
             Boolean hasConditionExpr = context.getEntityAttribute(conditionalExprField) != null && !context.getEntityAttribute(conditionalExprField).isEmpty();
-            Boolean hasFilterExpr = context.getEntityAttribute(conditionalExprField) != null && !context.getEntityAttribute(conditionalExprField).isEmpty();
+            Boolean hasFilterExpr = context.getEntityAttribute(filterExprField) != null && !context.getEntityAttribute(filterExprField).isEmpty();
             if(!hasConditionExpr && hasFilterExpr) {
                 LOG.warn(String.format("Dynamo DIH Delta Import is using [%s] only. "
                         + "A FULL TABLE SCAN will be performed; which will be more expensive. "
                         + "Consider using [%s] to use less capacity from DynamoDB!",
                         filterExprField, conditionalExprField));
                 
-            } else if (!hasConditionExpr && hasFilterExpr) {
+            } else if (!hasConditionExpr && !hasFilterExpr) {
                 errMsg = String.format("Dynamo DIH Delta Import needs a query to retrieve a subset "
                         + "of documents. Please add [%s] and/or [%s] to the entity configuration "
                         + "to retrieve a subset of documents. Note that the Solr Variable: "
@@ -157,6 +771,7 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
         Date lastImportDate = new Date(System.currentTimeMillis() - 3600 * 5);
         try {
             lastImportDate = dateFormat.parse(lastImportStr);
+            lastImportTime = lastImportDate;
         } catch (ParseException e) {
             // TODO, when this happens if the import is a DELTA IMPORT, we really can't continue
             // without knowing the LAST DATE.  We could support a url argument such as "deltaImportDate"
@@ -190,44 +805,499 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
     }
     
     /**
-     * Full Import, Gets next data row from DataSource using DataSource.getData()
+     * Full Import, Gets next data row from DataSource using DataSource.getData()
+     * 
+     * This method helps streaming the data for each row . The implementation
+     * would fetch as many rows as needed and gives one 'row' at a time. Only this
+     * method is used during a full import
+     *
+     * @return A 'row'.  The 'key' for the map is the column name and the 'value'
+     *         is the value of that column. If there are no more rows to be
+     *         returned, return 'null'
+     */
+    @Override
+    public Map<String, Object> nextRow() {
+        Map<String, Object> row = nextSourceRow();
+        if(row == null) {
+            closeRowIterator();
+            return null;
+        }
+        
+        if(Context.DELTA_DUMP.equals(context.currentProcess()) && context.isRootEntity()) {
+            // the row of a delta document, before any transformer, is the new row of the mirror
+            updateMirror(row, null);
+        }
+        return row;
+    }
+
+    
+    @Override
+    public Map<String, Object> nextModifiedRowKey() {
+        Map<String, Object> row = nextSourceRow();
+        if(row == null) {
+            closeRowIterator();
+        }
+        return row;
+    }
+    
+    /**
+     * Read the next row of the row iterator, the time spent waiting for it (and the time DIH 
+     * spent on the previous row) is recorded in the metrics of the import.
+     * 
+     * @return the row, null if there are no more rows
+     */
+    protected Map<String, Object> nextSourceRow() {
+        long started = metrics == null ? 0 : metrics.rowStarted();
+        Map<String, Object> row = null;
+        if(rowIterator != null && rowIterator.hasNext()) {
+            row = rowIterator.next();
+        }
+        if(metrics != null) {
+            metrics.rowFinished(started, row != null);
+        }
+        return row;
+    }
+    
+    /**
+     * Return the deleted rows of a delta import, from the source set by deletionSource.
+     * Each row only holds the solr primary key.
+     * 
+     * @return the next deleted row, or null when there are no more.
+     */
+    @Override
+    public Map<String, Object> nextDeletedRowKey() {
+        if(deletedRowIterator == null) {
+            deletedRowIterator = getDeletedRows();
+        }
+        if(!deletedRowIterator.hasNext()) {
+            return null;
+        }
+        Map<String, Object> deleted = deletedRowIterator.next();
+        updateMirror(null, deleted.get(primaryKeySolr));
+        return deleted;
+    }
+    
+    /**
+     * @return the deleted rows of the source set by deletionSource, by default deletes are read
+     *         from the stream if the delta import reads the stream, otherwise there are none.
+     */
+    protected Iterator<Map<String, Object>> getDeletedRows() {
+        String deletionSource = context.getResolvedEntityAttribute(DELETION_SOURCE);
+        if(deletionSource == null || deletionSource.trim().isEmpty()) {
+            deletionSource = isStreamDelta() ? DELETION_SOURCE_STREAM : DELETION_SOURCE_NONE;
+        }
+        if(!Context.FIND_DELTA.equals(context.currentProcess()) || !context.isRootEntity()) {
+            return Collections.emptyIterator();
+        }
+        
+        switch (deletionSource.trim().toLowerCase(Locale.ROOT)) {
+            case DELETION_SOURCE_NONE:
+                return Collections.emptyIterator();
+            case DELETION_SOURCE_STREAM:
+                return toDeletedRows(readStream(context.getResolvedEntityAttribute(TABLE_NAME)).getRemovedItems());
+            case DELETION_SOURCE_KEY_DIFF:
+                return diffKeys(context.getResolvedEntityAttribute(TABLE_NAME));
+            default:
+                String errMsg = String.format("Attribute [%s] must be '%s', '%s' or '%s', not '%s'", 
+                        DELETION_SOURCE, DELETION_SOURCE_NONE, DELETION_SOURCE_STREAM, DELETION_SOURCE_KEY_DIFF, deletionSource);
+                LOG.warn(errMsg);
+                throw new DataImportHandlerException(DataImportHandlerException.SEVERE, errMsg);
+        }
+    }
+    
+    /**
+     * Map the dynamo primary key of removed items to solr rows, {primaryKeySolr: value}, which
+     * is what DIH deletes documents by.
+     * 
+     * @param items the removed items, keys or old images
+     * @return the deleted rows
+     */
+    protected Iterator<Map<String, Object>> toDeletedRows(List<Map<String, AttributeValue>> items) {
+        List<Map<String, Object>> rows = new ArrayList<>(items.size());
+        int missingKey = 0;
+        for(Map<String, AttributeValue> item : items) {
+            Object key = DynamoItemConverter.toRow(item).get(primaryKeyDynamo);
+            if(key == null) {
+                missingKey++;
+                continue;
+            }
+            Map<String, Object> row = new HashMap<>();
+            row.put(primaryKeySolr, key);
+            rows.add(row);
+        }
+        if(missingKey > 0) {
+            LOG.warn(String.format("Entity [%s] %d removed items don't have attribute [%s], they can't be deleted from solr. "
+                    + "If [%s] isn't part of the table key the stream must include old images (NEW_AND_OLD_IMAGES)", 
+                    entityName, missingKey, primaryKeyDynamo, primaryKeyDynamo));
+        }
+        LOG.info(String.format("Entity [%s] %d items deleted", entityName, rows.size()));
+        return rows.iterator();
+    }
+    
+    /**
+     * Find the solr documents whose key is no longer in the table: every key of the table is 
+     * read with a key-only scan (using the parallel scan and read limit attributes of the 
+     * entity), and diffed with the uniqueKey terms of the core, see DynamoKeySetDiff.
+     * 
+     * The pk of the entity must be the uniqueKey of the core, and every document of the core 
+     * must come from this table, any other document would be deleted.
+     * 
+     * @param tableName
+     * @return the deleted rows, read lazily from the index.
+     */
+    protected Iterator<Map<String, Object>> diffKeys(String tableName) {
+        SolrCore core = context.getSolrCore();
+        SchemaField uniqueKey = core == null ? null : core.getLatestSchema().getUniqueKeyField();
+        if(uniqueKey == null || !uniqueKey.getName().equals(primaryKeySolr)) {
+            String errMsg = String.format("Entity [%s] %s=%s needs the pk of the entity [%s] to be the uniqueKey of the core", 
+                    entityName, DELETION_SOURCE, DELETION_SOURCE_KEY_DIFF, primaryKeySolr);
+            LOG.warn(errMsg);
+            throw new DataImportHandlerException(DataImportHandlerException.SEVERE, errMsg);
+        }
+        
+        String directory = context.getResolvedEntityAttribute(KEY_DIFF_DIRECTORY);
+        DynamoKeySetDiff diff = new DynamoKeySetDiff(entityName, primaryKeySolr, uniqueKey.getType(),
+                directory == null || directory.trim().isEmpty() ? null : new File(directory.trim()),
+                getIntEntityAttribute(KEY_DIFF_MEMORY_MB, DEFAULT_KEY_DIFF_MEMORY_MB) * 1024L * 1024L);
+        
+        DynamoQueryParameters keyParams = new DynamoQueryParameters();
+        keyParams.setNameMap(new NameMap().with(KEY_DIFF_NAME, primaryKeyDynamo));
+        keyParams.setProjectionExpression(KEY_DIFF_NAME);
+        keyParams.setTotalSegments(getIntEntityAttribute(TOTAL_SEGMENTS, 1));
+        keyParams.setScanThreads(getIntEntityAttribute(SCAN_THREADS, 0));
+        keyParams.setPrefetchPages(getIntEntityAttribute(PREFETCH_PAGES, 0));
+        keyParams.setTargetReadCapacityPercent(getDoubleEntityAttribute(TARGET_READ_CAPACITY_PERCENT, 0));
+        keyParams.setMaxRcuPerSecond(getDoubleEntityAttribute(MAX_RCU_PER_SECOND, 0));
+        keyParams.setPageRetries(getIntEntityAttribute(PAGE_RETRIES, DynamoPageReader.DEFAULT_RETRIES));
+        keyParams.setPageRetryBackoffMs(getIntEntityAttribute(PAGE_RETRY_BACKOFF_MS, (int) DynamoPageReader.DEFAULT_RETRY_BACKOFF_MS));
+        keyParams.setMetrics(getMetrics());
+        
+        LOG.info(String.format("Entity [%s] scanning the keys of table [%s] to find deleted items", entityName, tableName));
+        Iterator<Map<String, Object>> keyRows = dataSource.getData(context, tableName, keyParams);
+        try {
+            while(keyRows.hasNext()) {
+                diff.addKey(keyRows.next().get(primaryKeyDynamo));
+            }
+        } catch (RuntimeException e) {
+            diff.close();
+            throw e;
+        } finally {
+            if(keyRows instanceof Closeable) {
+                try {
+                    ((Closeable) keyRows).close();
+                } catch (IOException e) {
+                    LOG.warn("Error closing dynamo result iterator", e);
+                }
+            }
+        }
+        
+        RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        int solrDocs = searcher.get().getIndexReader().numDocs();
+        if(diff.getDynamoKeyCount() == 0 && solrDocs > 0) {
+            // more likely a wrong table or endpoint than an empty table
+            searcher.decref();
+            diff.close();
+            String errMsg = String.format("Entity [%s] the scan of table [%s] returned no keys, refusing to delete all %d documents", 
+                    entityName, tableName, solrDocs);
+            LOG.warn(errMsg);
+            throw new DataImportHandlerException(DataImportHandlerException.SEVERE, errMsg);
+        }
+        
+        LOG.info(String.format("Entity [%s] diffing %d dynamo keys with %d solr documents", entityName, diff.getDynamoKeyCount(), solrDocs));
+        try {
+            // the diff releases the searcher when it's closed
+            diff.diff(searcher.get().getIndexReader(), searcher::decref);
+        } catch (IOException e) {
+            diff.close();
+            String errMsg = String.format("Entity [%s] unable to read the keys of solr field [%s]", entityName, primaryKeySolr);
+            LOG.warn(errMsg);
+            wrapAndThrow(DataImportHandlerException.SEVERE, e, errMsg);
+        }
+        return diff;
+    }
+
+
+    @Override
+    public void destroy() {
+        closeRowIterator();
+        closeDeletedRowIterator();
+        super.destroy();
+    }
+    
+    /**
+     * The import is finished, release the lookup, join index or mirror (if any) and log the
+     * metrics of the import.  Unlike destroy() this isn't called for every parent row.
+     */
+    @Override
+    public void close() {
+        if(metrics != null) {
+            metrics.finish();
+            LOG.info(String.format("Import metrics %s", metrics));
+            metrics = null;
+        }
+        if(lookup != null) {
+            lookup.close();
+            lookup = null;
+        }
+        if(joinIndex != null) {
+            joinIndex.close();
+            joinIndex = null;
+        }
+        if(mirror != null) {
+            mirror.close();
+            mirror = null;
+        }
+        super.close();
+    }
+    
+    /**
+     * Release the current row iterator, the iterator may hold worker threads that are reading
+     * ahead (parallel scan), if it hasn't been read to the end they need to be stopped.
+     */
+    protected void closeRowIterator() {
+        if(rowIterator instanceof Closeable) {
+            try {
+                ((Closeable) rowIterator).close();
+            } catch (IOException e) {
+                LOG.warn("Error closing dynamo result iterator", e);
+            }
+        }
+        rowIterator = null;
+    }
+    
+    /**
+     * Release the deleted row iterator, a key diff holds a searcher and temporary files until
+     * it's read to the end.
+     */
+    protected void closeDeletedRowIterator() {
+        if(deletedRowIterator instanceof Closeable) {
+            try {
+                ((Closeable) deletedRowIterator).close();
+            } catch (IOException e) {
+                LOG.warn("Error closing deleted row iterator", e);
+            }
+        }
+        deletedRowIterator = null;
+    }
+    
+    /**
+     * Get the metrics of this import (see DynamoImportMetrics), created the first time the
+     * entity reads dynamo and kept until the import is closed.
+     * 
+     * The metrics are registered with the metrics of the core, as
+     * DATAIMPORT.dynamo.<entity>.<metric>, and set as the global session attribute
+     * dynamo.metrics.<entity> so an onImportEnd EventListener can read them.
+     * 
+     * The progress of the import is only estimated for the root entity of a full import.
+     * 
+     * @return the metrics
+     */
+    protected DynamoImportMetrics getMetrics() {
+        if(metrics == null) {
+            boolean progress = context.isRootEntity() && Context.FULL_DUMP.equals(context.currentProcess());
+            metrics = new DynamoImportMetrics(entityName, progress);
+            metrics.register(context.getSolrCore(), entityName);
+            context.setSessionAttribute(SESSION_METRICS + entityName, metrics, Context.SCOPE_GLOBAL);
+        }
+        return metrics;
+    }
+    
+    /**
+     * Setup checkpoints for a full-import, if the entity saves checkpoints, or the request asks
+     * to resume from the last checkpoint.  When resuming the saved checkpoint is loaded.
+     * 
+     * Checkpoints are only supported for the root entity of a full-import.
+     * 
+     * @param tableName
+     * @param queryParams
+     * @return the checkpoint, or null if not checkpointing
+     */
+    protected DynamoCheckpoint getCheckpoint(String tableName, DynamoQueryParameters queryParams) {
+        int checkpointPages = getIntEntityAttribute(CHECKPOINT_PAGES, 0);
+        boolean resume = Boolean.parseBoolean(getRequestParameter(REQUEST_RESUME));
+        if(checkpointPages <= 0 && !resume) {
+            return null;
+        }
+        
+        if(!Context.FULL_DUMP.equals(context.currentProcess()) || !context.isRootEntity()) {
+            LOG.debug(String.format("Entity [%s] checkpoints are only used for the root entity of a full-import", entityName));
+            return null;
+        }
+        
+        File directory = getCheckpointDirectory();
+        if(directory == null) {
+            LOG.warn(String.format("Entity [%s] has no checkpoint directory, set attribute [%s]", entityName, CHECKPOINT_DIRECTORY));
+            return null;
+        }
+        
+        // a checkpoint is only valid for the same table and query, for a fan-out query the 
+        // segment is the index of the partition key value, so the values must be the same too.
+        List<Object> partitionKeyValues = queryParams.getPartitionKeyValues();
+        String signature = String.format("%s|%s|%s|%s|%s|%d|%s", 
+                tableName,
+                queryParams.getIndexName(),
+                queryParams.getKeyConditionExpression(),
+                queryParams.getFilterExpression(),
+                queryParams.getValueMap(),
+                queryParams.getTotalSegments(),
+                partitionKeyValues == null ? "" : partitionKeyValues.size() + ":" + Integer.toHexString(partitionKeyValues.hashCode()));
+        
+        DynamoCheckpoint checkpoint = new DynamoCheckpoint(directory, entityName, signature, checkpointPages);
+        if(resume) {
+            String clean = getRequestParameter(REQUEST_CLEAN);
+            if(clean == null || Boolean.parseBoolean(clean)) {
+                // DIH has already deleted every document (uncommitted), failing the import rolls 
+                // the delete back, resuming would leave only the documents after the checkpoint.
+                String errMsg = String.format("Entity [%s] %s=true needs %s=false, %s (the default) deletes the documents "
+                        + "imported before the checkpoint", entityName, REQUEST_RESUME, REQUEST_CLEAN, REQUEST_CLEAN);
+                LOG.warn(errMsg);
+                throw new DataImportHandlerException(DataImportHandlerException.SEVERE, errMsg);
+            }
+            checkpoint.load();
+        }
+        if(context.getSolrCore() != null) {
+            checkpoint.setCommitter(this::commitIndex);
+        }
+        return checkpoint;
+    }
+    
+    /**
+     * Hard commit the documents DIH has written so far, called before a checkpoint is saved.
+     * DIH rolls a failed import back to the last commit, so without it a resumed import would
+     * skip the documents after the commit.  The searcher isn't opened, the documents become
+     * visible when the import commits at the end.
+     * 
+     * The commit goes through the update chain of the request (update.chain), like the 
+     * documents DIH writes.
+     * 
+     * @throws IOException
+     */
+    protected void commitIndex() throws IOException {
+        SolrCore core = context.getSolrCore();
+        try (SolrQueryRequest req = new LocalSolrQueryRequest(core, new ModifiableSolrParams())) {
+            UpdateRequestProcessor processor = core.getUpdateProcessingChain(getRequestParameter(UpdateParams.UPDATE_CHAIN))
+                    .createProcessor(req, new SolrQueryResponse());
+            try {
+                CommitUpdateCommand commit = new CommitUpdateCommand(req, false);
+                commit.openSearcher = false;
+                processor.processCommit(commit);
+                processor.finish();
+            } finally {
+                processor.close();
+            }
+        }
+        LOG.info(String.format("Entity [%s] committed the index for a checkpoint", entityName));
+    }
+    
+    /**
+     * @return the directory to save checkpoints in, by default the data directory of the core.
+     *         Not the configuration directory, with SolrCloud the configuration is in zookeeper.
+     */
+    protected File getCheckpointDirectory() {
+        String directory = context.getResolvedEntityAttribute(CHECKPOINT_DIRECTORY);
+        if(directory != null && !directory.isEmpty()) {
+            return new File(directory);
+        }
+        if(context.getSolrCore() != null && context.getSolrCore().getDataDir() != null) {
+            return new File(context.getSolrCore().getDataDir());
+        }
+        return null;
+    }
+    
+    /**
+     * Get a parameter of the DIH request (the url arguments), for example 'command' or 'clean'
      * 
-     * This method helps streaming the data for each row . The implementation
-     * would fetch as many rows as needed and gives one 'row' at a time. Only this
-     * method is used during a full import
-     *
-     * @return A 'row'.  The 'key' for the map is the column name and the 'value'
-     *         is the value of that column. If there are no more rows to be
-     *         returned, return 'null'
+     * @param name
+     * @return the value, null if the request doesn't have the parameter.
      */
-    @Override
-    public Map<String, Object> nextRow() {
-        if(rowIterator == null || !rowIterator.hasNext()) {
-            rowIterator = null;
-            return null;
+    protected String getRequestParameter(String name) {
+        Object value = context.getRequestParameters().get(name);
+        if(value instanceof Collection) {
+            Iterator<?> values = ((Collection<?>) value).iterator();
+            value = values.hasNext() ? values.next() : null;
         }
-        
-        return rowIterator.next();
+        return value == null ? null : value.toString();
     }
-
     
-    @Override
-    public Map<String, Object> nextModifiedRowKey() {
-        if(rowIterator == null || !rowIterator.hasNext()) {
-            rowIterator = null;
-            return null;
-        }
-        
-        return rowIterator.next();
+    /**
+     * Parse an integer entity attribute (variables are resolved), if the attribute isn't set
+     * the default value is returned.
+     * 
+     * @param attributeName the entity attribute name
+     * @param defaultValue value to use when the attribute isn't set
+     * @return 
+     */
+    protected int getIntEntityAttribute(String attributeName, int defaultValue) {
+        return toInt(attributeName, context.getResolvedEntityAttribute(attributeName), defaultValue);
     }
     
-    @Override
-    public Map<String, Object> nextDeletedRowKey() {
-        // TODO, you must perform a set comparison in order to know what keys have been deleted.
-        // this may simply not be worthwhile to support as you will need to do a full-table-scan
-        return null;
+    /**
+     * Parse an integer attribute of the query, read from the plan (see getQueryOption()).
+     * 
+     * @param attributeName the entity attribute name
+     * @param defaultValue value to use when the attribute isn't set
+     * @return 
+     */
+    protected int getIntQueryOption(String attributeName, int defaultValue) {
+        return toInt(attributeName, getQueryOption(attributeName), defaultValue);
+    }
+    
+    /**
+     * @return the integer value of an attribute, the default value if it isn't set
+     */
+    protected int toInt(String attributeName, String value, int defaultValue) {
+        if(value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            String errMsg = String.format("attribute [%s] must be an integer value, not '%s'", attributeName, value);
+            LOG.warn(errMsg);
+            wrapAndThrow(DataImportHandlerException.SEVERE, e, errMsg);
+        }
+        return defaultValue;
     }
 
+    /**
+     * Parse a decimal entity attribute (variables are resolved), if the attribute isn't set
+     * the default value is returned.
+     * 
+     * @param attributeName the entity attribute name
+     * @param defaultValue value to use when the attribute isn't set
+     * @return 
+     */
+    protected double getDoubleEntityAttribute(String attributeName, double defaultValue) {
+        return toDouble(attributeName, context.getResolvedEntityAttribute(attributeName), defaultValue);
+    }
+    
+    /**
+     * Parse a decimal attribute of the query, read from the plan (see getQueryOption()).
+     * 
+     * @param attributeName the entity attribute name
+     * @param defaultValue value to use when the attribute isn't set
+     * @return 
+     */
+    protected double getDoubleQueryOption(String attributeName, double defaultValue) {
+        return toDouble(attributeName, getQueryOption(attributeName), defaultValue);
+    }
+    
+    /**
+     * @return the decimal value of an attribute, the default value if it isn't set
+     */
+    protected double toDouble(String attributeName, String value, double defaultValue) {
+        if(value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            String errMsg = String.format("attribute [%s] must be a number, not '%s'", attributeName, value);
+            LOG.warn(errMsg);
+            wrapAndThrow(DataImportHandlerException.SEVERE, e, errMsg);
+        }
+        return defaultValue;
+    }
 
     /**
      * Construct a dynamo query.
@@ -236,8 +1306,7 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
      * @return A dynamo QuerySpec
      */
     protected DynamoQueryParameters getQueryExpression() {
-        // TODO ... optionally if no projection expression is set, generate our own projection
-        // expression to filter out uneeded (unmapped fields)
+        // if no projection expression is set, autoProjection generates one from the mapped fields
         
         DynamoQueryParameters queryParams = new DynamoQueryParameters();
         String currentProcessType = context.currentProcess();
@@ -253,7 +1322,7 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
         
         if (currentProcessType.equals(Context.FULL_DUMP)) {
             // any specifics for FULL_DUMP
-        } else if (currentProcessType.equals(Context.DELTA_DUMP)) {
+        } else if (isDeltaQuery()) {
             // '${dataimporter.last_index_time}'
             // also you need to read "pk" attribute
             // This can be used to automatically determine the set difference between Dynamo and Solr
@@ -269,12 +1338,12 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
         /**
          * Get string filter, projection, and key expression from attributes specified in the 
          * <entity> element in the DataImportHandler configuration.
-         * getResolvedEntityAttribute, automatically resolves variables specified within the 
-         * attribute string for us.
+         * getQueryOption() resolves the variables of an attribute that has any, others were 
+         * read once with the query plan.
          */
-        String conditionalExpr = context.getResolvedEntityAttribute(conditionalExprField);
-        String filterExpr = context.getResolvedEntityAttribute(filterExprField);
-        String projectionExpr = context.getResolvedEntityAttribute(projectionExprField);
+        String conditionalExpr = getQueryOption(conditionalExprField);
+        String filterExpr = getQueryOption(filterExprField);
+        String projectionExpr = getQueryOption(projectionExprField);
         
         
         if(conditionalExpr != null && !conditionalExpr.isEmpty()) {
@@ -286,7 +1355,7 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
         
         if(filterExpr != null && !filterExpr.isEmpty()) {
             LOG.debug(String.format("Using %s: %s", filterExprField, filterExpr));
-            queryParams.setKeyConditionExpression(filterExpr);
+            queryParams.setFilterExpression(filterExpr);
         } else {
             LOG.debug(String.format("No filter expression specified in entity attribute: [%s]", filterExprField));
         }
@@ -301,9 +1370,374 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
         queryParams.setNameMap(getQueryNameMap(nameMapField));
         queryParams.setValueMap(getQueryValueMap(valueMapField));
         
+        String prefix = isDeltaQuery() ? DELTA_NAME_ATTRIBUTE : "";
+        
+        // Secondary index
+        String indexName = getQueryOption(prefix + INDEX_NAME);
+        if(indexName != null && !indexName.trim().isEmpty()) {
+            LOG.debug(String.format("Using %s: %s", prefix + INDEX_NAME, indexName));
+            queryParams.setIndexName(indexName.trim());
+            queryParams.setIndexBackfill(Boolean.parseBoolean(getQueryOption(INDEX_BACKFILL)));
+            queryParams.setRequiredAttributes(getMappedAttributeNames());
+        }
+        
+        // after the index, the projection includes the key attributes of the index
+        if(queryParams.getProjectionExpression() == null && Boolean.parseBoolean(getQueryOption(AUTO_PROJECTION))) {
+            setAutoProjection(queryParams);
+        }
+        
+        // Fan-out query, one query per partition key value
+        List<Object> partitionKeyValues = getPartitionKeyValues(prefix);
+        if(partitionKeyValues != null) {
+            queryParams.setPartitionKeyValues(partitionKeyValues);
+            queryParams.setPartitionKeyValueName(getQueryOption(prefix + PARTITION_KEY_VALUE_NAME));
+            queryParams.setQueryThreads(getIntQueryOption(QUERY_THREADS, DEFAULT_QUERY_THREADS));
+        }
+        
+        // Parallel scan options are shared by FULL and DELTA imports (only used by a Scan)
+        queryParams.setTotalSegments(getIntQueryOption(TOTAL_SEGMENTS, 1));
+        queryParams.setScanThreads(getIntQueryOption(SCAN_THREADS, 0));
+        queryParams.setPrefetchPages(getIntQueryOption(PREFETCH_PAGES, 0));
+        queryParams.setTargetReadCapacityPercent(getDoubleQueryOption(TARGET_READ_CAPACITY_PERCENT, 0));
+        queryParams.setMaxRcuPerSecond(getDoubleQueryOption(MAX_RCU_PER_SECOND, 0));
+        queryParams.setPageRetries(getIntQueryOption(PAGE_RETRIES, DynamoPageReader.DEFAULT_RETRIES));
+        queryParams.setPageRetryBackoffMs(getIntQueryOption(PAGE_RETRY_BACKOFF_MS, (int) DynamoPageReader.DEFAULT_RETRY_BACKOFF_MS));
+        
+        // Small tables shared by many cores / imports, read once per JVM
+        queryParams.setReferenceCache(Boolean.parseBoolean(getQueryOption(REFERENCE_CACHE)));
+        queryParams.setReferenceCacheTtlSeconds(getIntQueryOption(REFERENCE_CACHE_TTL_SECONDS, DynamoReferenceCache.DEFAULT_TTL_SECONDS));
+        queryParams.setReferenceCacheMaxItems(getIntQueryOption(REFERENCE_CACHE_MAX_ITEMS, DynamoReferenceCache.DEFAULT_MAX_ITEMS));
+        
         return queryParams;
     }
     
+    /**
+     * Project only the attributes the entity uses: the pk, the column of every <field>, and any
+     * attributes listed in autoProjectionAttributes (for example those only used by a 
+     * transformer or a child entity).  Items often carry many more attributes than the schema
+     * maps, without a projection they are all read, sent and converted to be thrown away.
+     * 
+     * The hash and range key of the table, and of the index being read, are always projected:
+     * index backfill and the keys of a lookahead are built from the items (see 
+     * DynamoBatchGetter.getKey()), and a composite key whose range attribute isn't mapped would 
+     * otherwise be missing from them.
+     * 
+     * @param queryParams the query, its name map is extended with the placeholders.
+     */
+    protected void setAutoProjection(DynamoQueryParameters queryParams) {
+        List<String> columns = new ArrayList<>();
+        columns.add(primaryKeyDynamo);
+        columns.addAll(getKeyAttributeNames(queryParams.getIndexName()));
+        columns.addAll(getDynamoSolrFieldMapping().keySet());
+        if(isJoin()) {
+            columns.add(context.getEntityAttribute(JOIN_KEY).trim());
+        }
+        String extraAttributes = getQueryOption(AUTO_PROJECTION_ATTRIBUTES);
+        if(extraAttributes != null) {
+            columns.addAll(Arrays.asList(extraAttributes.split(AUTO_PROJECTION_ATTRIBUTES_DELIMITER)));
+        }
+        
+        NameMap nameMap = new NameMap();
+        if(queryParams.getNameMap() != null) {
+            nameMap.putAll(queryParams.getNameMap());
+        }
+        try {
+            queryParams.setProjectionExpression(getProjectionExpression(columns, nameMap));
+        } catch (IllegalArgumentException e) {
+            // a malformed path, as in DynamoDataSource.getPathExtractors()
+            LOG.warn(e.getMessage());
+            wrapAndThrow(DataImportHandlerException.SEVERE, e, String.format("Entity [%s] %s", entityName, e.getMessage()));
+        }
+        queryParams.setNameMap(nameMap);
+        LOG.debug(String.format("Entity [%s] %s: %s", entityName, AUTO_PROJECTION, queryParams.getProjectionExpression()));
+    }
+    
+    /**
+     * @param indexName the secondary index being read, null for the table
+     * @return the key attributes of the table and index, empty if the table can't be described.
+     */
+    protected Set<String> getKeyAttributeNames(String indexName) {
+        String tableName = context.getResolvedEntityAttribute(TABLE_NAME);
+        try {
+            return DynamoDataSource.getKeyAttributeNames(dataSource.describeTable(tableName), indexName);
+        } catch (AmazonDynamoDBException e) {
+            LOG.warn(String.format("Entity [%s] unable to describe table [%s], its key attributes are only projected when mapped: %s", 
+                    entityName, tableName, e.getMessage()));
+            return Collections.emptySet();
+        }
+    }
+    
+    /**
+     * Build a projection expression of the columns.
+     * 
+     * A column that is a document path (address.city) only projects that part of the map, 
+     * lists are projected whole (see DynamoPathExtractor.getProjectionPath()).  Paths inside 
+     * another projected path, and repeated columns, are left out, dynamo rejects overlapping 
+     * paths.
+     * 
+     * Every name gets a name map placeholder, so reserved words and names with special 
+     * characters need no escaping.
+     * 
+     * @param columns the attributes and paths to project
+     * @param nameMap the name map of the query, the placeholders are added to it.
+     * @return the projection expression
+     * @throws IllegalArgumentException if a column is a malformed path
+     */
+    protected static String getProjectionExpression(Collection<String> columns, NameMap nameMap) {
+        // shortest first, so a path is only kept when no shorter path contains it
+        List<List<String>> paths = new ArrayList<>();
+        for(String column : columns) {
+            if(column != null && !column.trim().isEmpty()) {
+                paths.addAll(getProjectionPaths(column.trim()));
+            }
+        }
+        paths.sort(Comparator.comparingInt(List::size));
+        List<List<String>> projected = new ArrayList<>();
+        for(List<String> path : paths) {
+            boolean contained = false;
+            for(List<String> other : projected) {
+                if(other.size() <= path.size() && path.subList(0, other.size()).equals(other)) {
+                    contained = true;
+                    break;
+                }
+            }
+            if(!contained) {
+                projected.add(path);
+            }
+        }
+        
+        Map<String, String> placeHolders = new HashMap<>();
+        StringBuilder projection = new StringBuilder();
+        for(List<String> path : projected) {
+            if(projection.length() > 0) {
+                projection.append(", ");
+            }
+            for(int i = 0; i < path.size(); i++) {
+                String placeHolder = placeHolders.get(path.get(i));
+                if(placeHolder == null) {
+                    placeHolder = AUTO_PROJECTION_NAME + placeHolders.size();
+                    placeHolders.put(path.get(i), placeHolder);
+                    nameMap.with(placeHolder, path.get(i));
+                }
+                projection.append(i == 0 ? "" : ".").append(placeHolder);
+            }
+        }
+        return projection.toString();
+    }
+    
+    /**
+     * @return the projected part of a column, the attribute name then map keys for a path.
+     * @throws IllegalArgumentException if the column is a malformed path
+     */
+    protected static List<String> getProjectionPath(String column) {
+        if(DynamoPathExtractor.isPath(column)) {
+            return DynamoPathExtractor.compile(column, null).getProjectionPath();
+        }
+        return Collections.singletonList(column);
+    }
+    
+    /**
+     * An unquoted path (address.city) may also be the name of a top level attribute, dynamo 
+     * allows dots in names, and DynamoItemConverter uses such an attribute when the item has it.
+     * Both are projected, so the attribute isn't lost by projecting the path.
+     * 
+     * @return the projected paths of a column, the attribute name then map keys for a path.
+     * @throws IllegalArgumentException if the column is a malformed path
+     */
+    protected static List<List<String>> getProjectionPaths(String column) {
+        if(!DynamoPathExtractor.isPath(column)) {
+            return Collections.singletonList(Collections.singletonList(column));
+        }
+        DynamoPathExtractor path = DynamoPathExtractor.compile(column, null);
+        if(path.isQuoted()) {
+            return Collections.singletonList(path.getProjectionPath());
+        }
+        return Arrays.asList(path.getProjectionPath(), Collections.singletonList(column));
+    }
+    
+    /**
+     * @return the top level attributes the <field> columns of the entity are read from.
+     */
+    protected Set<String> getMappedAttributeNames() {
+        return getQueryPlan().getMappedAttributeNames();
+    }
+    
+    /**
+     * Get the list of partition key values for a fan-out query, a Query is run for each value 
+     * with the value bound to the partitionKeyValueName placeholder of the ValueMap.
+     * 
+     * Values are given inline in partitionKeyValues (comma separated, so request variables 
+     * can be used: ${dataimporter.request.tenants}) and/or in a file, one value per line, named
+     * by partitionKeyValuesFile.  Lines starting with # are ignored.
+     * 
+     * For a delta import values can also be generated from the time since the last import, see
+     * getTimeBucketValues().
+     * 
+     * Values are converted to partitionKeyValueType, using the same types as a ValueMap 
+     * (default is String).
+     * 
+     * @param prefix attribute prefix, DELTA for a delta import.
+     * @return the values, or null if this isn't a fan-out query.
+     */
+    protected List<Object> getPartitionKeyValues(String prefix) {
+        String inlineValues = getQueryOption(prefix + PARTITION_KEY_VALUES);
+        String valuesFile = getQueryOption(prefix + PARTITION_KEY_VALUES_FILE);
+        String typeName = getQueryOption(prefix + PARTITION_KEY_VALUE_TYPE);
+        if(typeName == null || typeName.trim().isEmpty()) {
+            typeName = "string";
+        }
+        
+        String bucketFormat = isDeltaQuery() ? getQueryOption(prefix + TIME_BUCKET_FORMAT) : null;
+        
+        List<String> rawValues = new ArrayList<>();
+        if(bucketFormat != null && !bucketFormat.trim().isEmpty()) {
+            rawValues.addAll(getTimeBucketValues(prefix, bucketFormat.trim()));
+        }
+        if(inlineValues != null && !inlineValues.trim().isEmpty()) {
+            for(String value : inlineValues.split(PARTITION_KEY_VALUES_DELIMITER)) {
+                if(!value.trim().isEmpty()) {
+                    rawValues.add(value.trim());
+                }
+            }
+        }
+        if(valuesFile != null && !valuesFile.trim().isEmpty()) {
+            try {
+                for(String line : Files.readAllLines(Paths.get(valuesFile.trim()), StandardCharsets.UTF_8)) {
+                    line = line.trim();
+                    if(!line.isEmpty() && !line.startsWith("#")) {
+                        rawValues.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                String errMsg = String.format("Unable to read attribute [%s] file: %s", prefix + PARTITION_KEY_VALUES_FILE, valuesFile);
+                LOG.warn(errMsg, e);
+                wrapAndThrow(DataImportHandlerException.SEVERE, e, errMsg);
+            }
+        }
+        
+        if(inlineValues == null && valuesFile == null && bucketFormat == null) {
+            return null;
+        }
+        
+        List<Object> values = new ArrayList<>(rawValues.size());
+        for(String rawValue : rawValues) {
+            Object typedValue = null;
+            try {
+                typedValue = parseTypedValue(typeName, rawValue);
+            } catch (NumberFormatException e) {
+                String errMsg = String.format("Partition key value [%s] cannot be converted to type '%s': %s", rawValue, typeName, e.getMessage());
+                LOG.warn(errMsg);
+                wrapAndThrow(DataImportHandlerException.SEVERE, e, errMsg);
+            }
+            if(typedValue == null) {
+                String errMsg = String.format("Attribute [%s] contains invalid type string: '%s'", prefix + PARTITION_KEY_VALUE_TYPE, typeName);
+                LOG.warn(errMsg);
+                throw new DataImportHandlerException(DataImportHandlerException.SEVERE, errMsg);
+            }
+            values.add(typedValue);
+        }
+        LOG.info(String.format("Entity [%s] fan-out query over %d partition key values", entityName, values.size()));
+        return values;
+    }
+    
+    /**
+     * Generate the partition key values of a write-sharded, time bucketed index, for every time
+     * bucket from the last import until now.
+     * 
+     * Change tracking indexes often use a partition key such as 'updated_day#shard', so writes
+     * of the same day are spread over several partitions.  Finding everything updated since the 
+     * last import means a Query for every (bucket, shard) pair:
+     * 
+     *   DELTAtimeBucketFormat="yyyy-MM-dd" DELTAtimeBucketUnit="day" DELTAshardCount="4"
+     *   last import 2017-05-01 22:00, now 2017-05-02 09:00 gives: 
+     *   2017-05-01#0 .. 2017-05-01#3, 2017-05-02#0 .. 2017-05-02#3
+     * 
+     * The bucket the last import was in is always included, use a range condition on the sort
+     * key (with ${dataimport.dynamo.last_index_time_epoch_ms}) to skip what was already imported.
+     * 
+     * @param prefix attribute prefix
+     * @param bucketFormat SimpleDateFormat pattern of a bucket
+     * @return a value for every bucket and shard
+     */
+    protected List<String> getTimeBucketValues(String prefix, String bucketFormat) {
+        if(lastImportTime == null) {
+            String errMsg = String.format("Attribute [%s] needs the time of the last import, which is unknown (%s), run a full-import first", 
+                    prefix + TIME_BUCKET_FORMAT, VARIABLE_LAST_IMPORT);
+            LOG.warn(errMsg);
+            throw new DataImportHandlerException(DataImportHandlerException.SEVERE, errMsg);
+        }
+        
+        String unitName = context.getResolvedEntityAttribute(prefix + TIME_BUCKET_UNIT);
+        int unit;
+        switch (unitName == null ? "day" : unitName.trim().toLowerCase(Locale.ROOT)) {
+            case "minute":
+                unit = Calendar.MINUTE;
+                break;
+            case "hour":
+                unit = Calendar.HOUR_OF_DAY;
+                break;
+            case "day":
+                unit = Calendar.DAY_OF_MONTH;
+                break;
+            default:
+                String errMsg = String.format("Attribute [%s] must be minute, hour or day: '%s'", prefix + TIME_BUCKET_UNIT, unitName);
+                LOG.warn(errMsg);
+                throw new DataImportHandlerException(DataImportHandlerException.SEVERE, errMsg);
+        }
+        
+        String zoneName = context.getResolvedEntityAttribute(prefix + TIME_BUCKET_TIME_ZONE);
+        TimeZone zone = TimeZone.getTimeZone(zoneName == null ? DEFAULT_TIME_BUCKET_TIME_ZONE : zoneName.trim());
+        int shardCount = getIntEntityAttribute(prefix + SHARD_COUNT, 0);
+        String shardFormat = context.getResolvedEntityAttribute(prefix + SHARD_FORMAT);
+        if(shardFormat == null || shardFormat.isEmpty()) {
+            shardFormat = DEFAULT_SHARD_FORMAT;
+        }
+        
+        SimpleDateFormat dateFormat = new SimpleDateFormat(bucketFormat, Locale.ROOT);
+        dateFormat.setTimeZone(zone);
+        
+        // start at the beginning of the bucket the last import ran in
+        Calendar bucket = Calendar.getInstance(zone, Locale.ROOT);
+        bucket.setTime(lastImportTime);
+        bucket.set(Calendar.MILLISECOND, 0);
+        bucket.set(Calendar.SECOND, 0);
+        if(unit != Calendar.MINUTE) {
+            bucket.set(Calendar.MINUTE, 0);
+        }
+        if(unit == Calendar.DAY_OF_MONTH) {
+            bucket.set(Calendar.HOUR_OF_DAY, 0);
+        }
+        
+        List<String> values = new ArrayList<>();
+        long now = currentTimeMillis();
+        int buckets = 0;
+        for(; bucket.getTimeInMillis() <= now; bucket.add(unit, 1)) {
+            if(++buckets > MAX_TIME_BUCKETS) {
+                String errMsg = String.format("More than %d time buckets since the last import (%s), run a full-import instead", 
+                        MAX_TIME_BUCKETS, lastImportTime);
+                LOG.warn(errMsg);
+                throw new DataImportHandlerException(DataImportHandlerException.SEVERE, errMsg);
+            }
+            String bucketValue = dateFormat.format(bucket.getTime());
+            if(shardCount <= 0) {
+                values.add(bucketValue);
+                continue;
+            }
+            for(int shard = 0; shard < shardCount; shard++) {
+                values.add(String.format(Locale.ROOT, shardFormat, bucketValue, shard));
+            }
+        }
+        LOG.info(String.format("Entity [%s] %d time buckets since %s, %d shards each", entityName, buckets, lastImportTime, shardCount));
+        return values;
+    }
+    
+    /**
+     * @return the current time, the end of the time buckets of a delta fan-out query.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+    
     /**
      * Retrieve all entity attributes that are specified, we need all possible entity attributes
      * to iterate through them to search for string prefixes matching different patterns.
@@ -346,16 +1780,7 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
      * @return 
      */
     protected Map<String,String> getDynamoSolrFieldMapping() {
-
-        Map<String, String> nameMap = new HashMap<>();        
-
-        for (Map<String, String> map : context.getAllEntityFields()) {
-            String dynamoField = map.get(DataImporter.COLUMN);
-            String solrField = map.get(DataImporter.NAME);
-            nameMap.put(dynamoField, solrField);
-        }
-        
-        return nameMap;
+        return getQueryPlan().getDynamoSolrFields();
     }
     
     /**
@@ -365,16 +1790,86 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
      * @return 
      */
     protected Map<String, String> getSolrDynamoFieldMapping() {
-        Map<String, String> map = getDynamoSolrFieldMapping();
-
-        // Reverse the mapping
-        Map<String, String> mapInversed = map.entrySet()
-                    .stream()
-                    .collect(Collectors.toMap(Map.Entry::getValue, Map.Entry::getKey));
+        return getQueryPlan().getSolrDynamoFields();
+    }
+    
+    /**
+     * Get the query plan of the entity (see DynamoQueryPlan), compiled the first time it's 
+     * needed.  The processor lives for one import, so does the plan, a child entity only 
+     * resolves the variables of its query for each parent row.
+     * 
+     * @return the plan
+     */
+    protected DynamoQueryPlan getQueryPlan() {
+        if(queryPlan == null) {
+            queryPlan = compileQueryPlan();
+            LOG.info(String.format("Entity [%s] query plan: %s", entityName, queryPlan));
+        }
+        return queryPlan;
+    }
+    
+    /**
+     * Parse the nameMap / valueMap attributes (full and DELTA) and the <field> mappings, and
+     * keep the other attributes of the entity as options.
+     * 
+     * @return the plan
+     */
+    protected DynamoQueryPlan compileQueryPlan() {
+        Map<String, String> attributes = getAllEntityAttributes();
+        
+        Map<String, List<DynamoQueryPlan.NameSlot>> nameSlots = new HashMap<>();
+        for(String prefix : Arrays.asList(NAME_MAP, DELTA_NAME_ATTRIBUTE + NAME_MAP)) {
+            nameSlots.put(prefix, DynamoQueryPlan.compileNameSlots(getPrefixedMapKeys(attributes, prefix), NAME_ATTR_DELIMITER));
+        }
+        Map<String, List<DynamoQueryPlan.ValueSlot>> valueSlots = new HashMap<>();
+        for(String prefix : Arrays.asList(VALUE_MAP, DELTA_NAME_ATTRIBUTE + VALUE_MAP)) {
+            valueSlots.put(prefix, DynamoQueryPlan.compileValueSlots(getPrefixedMapKeys(attributes, prefix), VALUE_TYPE_DELIMITER, VALUE_ATTR_DELIMITER));
+        }
+        
+        // The Solr field name is referenced in the "name" attribute. and the dynamo field is referenced
+        // in the "column" attribute of each <field> element within the entity configuration.
+        Map<String, String> fields = new HashMap<>();
+        Set<String> mappedAttributes = new HashSet<>();
+        for (Map<String, String> map : context.getAllEntityFields()) {
+            String dynamoField = map.get(DataImporter.COLUMN);
+            String solrField = map.get(DataImporter.NAME);
+            fields.put(dynamoField, solrField);
+            if(dynamoField != null) {
+                try {
+                    mappedAttributes.add(getProjectionPath(dynamoField.trim()).get(0));
+                } catch (IllegalArgumentException e) {
+                    // a malformed path, as in DynamoDataSource.getPathExtractors()
+                    LOG.warn(e.getMessage());
+                    wrapAndThrow(DataImportHandlerException.SEVERE, e, String.format("entity field with name:[%s] %s", solrField, e.getMessage()));
+                }
+            }
+        }
         
-        return mapInversed;
+        return new DynamoQueryPlan(nameSlots, valueSlots, fields, mappedAttributes, attributes);
     }
     
+    /**
+     * Read an attribute of the query from the plan, only an attribute with variables is 
+     * resolved, DIH resolves every attribute read from the context again for each parent row.
+     * 
+     * @param attributeName the entity attribute name
+     * @return the resolved attribute, null if it isn't set
+     */
+    protected String getQueryOption(String attributeName) {
+        String value = getQueryPlan().getOption(attributeName);
+        return DynamoQueryPlan.isTemplate(value) ? context.replaceTokens(value) : value;
+    }
+    
+    /**
+     * Resolve the variables of a part of a query attribute, parts without variables were 
+     * already trimmed when the plan was compiled.
+     * 
+     * @param part
+     * @return the resolved part
+     */
+    protected String resolvePlanPart(String part) {
+        return DynamoQueryPlan.isTemplate(part) ? context.replaceTokens(part).trim() : part;
+    }
     
     /**
      * Returns a NameMap that can be used to populate the nameMap of a dynamo query expression
@@ -399,36 +1894,10 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
     protected NameMap getQueryNameMap(String fieldPrefix) {
         NameMap nameMap = new NameMap();
         
-        // We want to get all parameters of the <entity> configuration that begin with `fieldPrefix`
-        // So the first step is to get every single field=value pair from the entity configuration
-        Map<String, String> attributes = getAllEntityAttributes();
-        Map<String, String> nameAttributes = getPrefixedMapKeys(attributes, fieldPrefix);
-        
-
-        
-        for (Map.Entry<String, String> entry : nameAttributes.entrySet()) {
-            LOG.info("NameMap  Key = " + entry.getKey() + ", Value = " + entry.getValue()); // XXX
-            
-            String entryVal = entry.getValue().trim();
-            int idxDelimiter = entryVal.indexOf(NAME_ATTR_DELIMITER);
-            
-            if(idxDelimiter == -1 || entryVal.length() -1 == idxDelimiter) {
-                LOG.warn(String.format("NameMap attribute [%s] value [%s] is malformed, must contain 2 values delimited by: %s",
-                        entry.getKey(), 
-                        entry.getValue(), 
-                        NAME_ATTR_DELIMITER));
-                continue;
-            }
-            
-            String placeHolder = entryVal.substring(0, idxDelimiter);
-            String fieldName = entryVal.substring(idxDelimiter+1, entryVal.length());
-            
-            // Key the string components to pass into NameMap, and insert 'replaceTokens' 
-            // which inserts any solr variables referenced in the string.
-            placeHolder = context.replaceTokens(placeHolder).trim();
-            fieldName = context.replaceTokens(fieldName).trim();
-
-            nameMap.with(placeHolder, fieldName);
+        // The attributes were parsed once, see getQueryPlan(), only the 'replaceTokens' part is 
+        // left, which inserts any solr variables referenced in the string.
+        for (DynamoQueryPlan.NameSlot slot : getQueryPlan().getNameSlots(fieldPrefix)) {
+            nameMap.with(resolvePlanPart(slot.placeHolder), resolvePlanPart(slot.fieldName));
         }
         
         if(nameMap.isEmpty()) {
@@ -476,122 +1945,61 @@ public class DynamoEntityProcessor extends EntityProcessorBase {
     protected ValueMap getQueryValueMap(String fieldPrefix) {
         
         ValueMap valueMap = new ValueMap();
-        Map<String, String> attributes = getAllEntityAttributes();
-        Map<String, String> nameAttributes = getPrefixedMapKeys(attributes, fieldPrefix);
-        
-        for (Map.Entry<String, String> entry : nameAttributes.entrySet()) {
-            LOG.info("ValueMap  Key = " + entry.getKey() + ", Value = " + entry.getValue()); // XXX
-            
-            // Given the string "Int:field,value" return position of ':'
-            String entryVal = entry.getValue();
-            int typeDelimIdx = entryVal.indexOf(VALUE_TYPE_DELIMITER);
-            
-            if(typeDelimIdx == -1 || entryVal.length() -1 == typeDelimIdx) {
-                LOG.error(String.format("ValueMap attribute [%s] value [%s] is malformed, must contain delimitor between type and field/value: '%s'", 
-                        entry.getKey(), 
-                        entry.getValue(), 
-                        VALUE_TYPE_DELIMITER));
-                continue;
-            }
-            
-            // Given the string "Int:field,value" return 'Int'
-            String typeName = entryVal.substring(0, typeDelimIdx);
-            // Given the string "Int:field,value" return 'field,value'
-            String fields = entryVal.substring(typeDelimIdx, entryVal.length());
-            
-            // replaceTokens, insert any solr variables if the string is templated.
-            typeName = context.replaceTokens(typeName).trim().toLowerCase();
-            
-            fields = fields.trim();
-            
-            
-            // Ensure the typeName isn't empty or invalid
-            if(typeName == null || typeName.isEmpty()) {
-                LOG.error(String.format("ValueMap attribute [%s] value [%s] does not contain a type, before '%s'", 
-                        entry.getKey(), 
-                        entry.getValue(), 
-                        VALUE_TYPE_DELIMITER));
-                continue;
-            }
-            
-            // Given the string "field,value" return return index of ','
-            int fieldValueIdx = fields.indexOf(VALUE_ATTR_DELIMITER);
-            
-            if(fieldValueIdx == -1 || fields.length() -1 == fieldValueIdx) {
-                LOG.error(String.format("ValueMap attribute [%s] value [%s] is malformed, must contain delimiter: '%s' between field and value",
-                        entry.getKey(), 
-                        entry.getValue(), 
-                        VALUE_ATTR_DELIMITER));
+        for (DynamoQueryPlan.ValueSlot slot : getQueryPlan().getValueSlots(fieldPrefix)) {
+            if(slot.typedValue != null) {
+                // no variables, converted when the plan was compiled
+                valueMap.put(slot.fieldName, slot.typedValue);
                 continue;
             }
             
-            // Given the string "field,value" return 'field'
-            String fieldNameRaw = fields.substring(0, fieldValueIdx);
-            // Given the string "field,value" return 'value'
-            String fieldValueRaw = fields.substring(fieldValueIdx+1, fields.length());
-            
-            // Fill field and Value with solr variables if they are template strings
-            String fieldName = context.replaceTokens(fieldNameRaw).trim();
-            String fieldValue = context.replaceTokens(fieldValueRaw).trim();
+            // Fill type, field and Value with solr variables if they are template strings
+            String typeName = resolvePlanPart(slot.typeName).trim().toLowerCase();
+            String fieldName = resolvePlanPart(slot.fieldName).trim();
+            String fieldValue = resolvePlanPart(slot.value).trim();
             
-            if(fieldValue == null || fieldValue.isEmpty()) {
-                LOG.error(String.format("ValueMap attribute [%s] value [%s] is empty, Value before replaceTokens: [%s]",
-                        entry.getKey(),
-                        entry.getValue(),
-                        fieldValueRaw));
-                continue;
-            }
-            
-            try {
-                // ValueMap expects strongly formed types to be added, based on what type-string the user
-                // specified we will parse the value and add it to the ValueMap
-                switch (typeName) {
-                    case "int":
-                    case "integer":
-                        int intVal = Integer.parseInt(fieldValue);
-                        valueMap.withInt(fieldName, intVal);
-                        break;
-                    case "l":
-                    case "long":
-                        long longVal = Long.parseLong(fieldValue);
-                        valueMap.withLong(fieldName, longVal);
-                        break;
-                    case "bool":
-                    case "boolean":
-                        boolean boolVal = Boolean.parseBoolean(fieldValue);
-                        valueMap.withBoolean(fieldName, boolVal);
-                        break;
-                    case "n":
-                    case "float":
-                    case "decimal":
-                    case "number":
-                    case "double":
-                        double doubleVal = Double.parseDouble(fieldValue);
-                        valueMap.withNumber(fieldName, doubleVal);
-                        break;
-                    case "s":
-                    case "string":
-                        valueMap.withString(fieldName, fieldValue);
-                        break;
-                    default:
-                        LOG.error(String.format("ValueMap attribute [%s] with value [%s] contains invalid type string: '%s'",
-                                entry.getKey(),
-                                entry.getValue(),
-                                typeName));
-                        continue;
-                }
-            } catch (Exception e) {
-                LOG.error(String.format("ValueMap attribute [%s] with value [%s], parsing value [%s] exception: %s",
-                        entry.getKey(),
-                        entry.getValue(),
-                        fieldValue,
-                        e.getMessage()));
+            Object typedValue = DynamoQueryPlan.toTypedValue(slot.attribute, slot.rawValue, typeName, fieldValue);
+            if(typedValue == null) {
                 continue;
             }
-
+            valueMap.put(fieldName, typedValue);
             
             LOG.debug(String.format("ValueMap type:%s field:%s value:%s added", typeName, fieldName, fieldValue));
         }
         return valueMap;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Convert a string value to the type named by typeName, the type names are the same for
+     * every typed value in the entity configuration (ValueMap, partition key values):
+     *     int/integer, l/long, bool/boolean, n/float/decimal/number/double, s/string
+     * 
+     * @param typeName the (case insensitive) type name
+     * @param value the string value to convert
+     * @return the typed value, null if the type name is unknown
+     * @throws NumberFormatException if the value isn't a valid number
+     */
+    protected static Object parseTypedValue(String typeName, String value) {
+        switch (typeName.trim().toLowerCase(Locale.ROOT)) {
+            case "int":
+            case "integer":
+                return Integer.parseInt(value);
+            case "l":
+            case "long":
+                return Long.parseLong(value);
+            case "bool":
+            case "boolean":
+                return Boolean.parseBoolean(value);
+            case "n":
+            case "float":
+            case "decimal":
+            case "number":
+            case "double":
+                return Double.parseDouble(value);
+            case "s":
+            case "string":
+                return value;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandles;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.ion.IonException;
+import software.amazon.ion.IonReader;
+import software.amazon.ion.IonSystem;
+import software.amazon.ion.IonType;
+import software.amazon.ion.system.IonSystemBuilder;
+
+/**
+ * Reads the items of a DynamoDB "Export to S3" snapshot that has been copied to local disk, so
+ * a full import consumes no read capacity and runs at disk speed.
+ *
+ * An export directory holds:
+ *   manifest-summary.json  the table, the output format and the item count
+ *   manifest-files.json    one line per data file: {"itemCount":..,"dataFileS3Key":"AWSDynamoDB/<id>/data/<file>.json.gz"}
+ *   data/                  the gzip compressed data files
+ *
+ * The directory may be the export itself, or a directory holding AWSDynamoDB/<export id>/
+ * exports, the most recent export is used.  Without a manifest every .json(.gz) and .ion(.gz)
+ * file of the data directory is read.
+ *
+ * Both export formats are read:
+ *  - DYNAMODB_JSON, one item per line: {"Item":{"id":{"S":"1"},...}}, parsed with Jackson.
+ *  - ION, one item per top level value: {Item:{id:"1",price:2d1,tags:$dynamodb_SS::["a"]}},
+ *    read with an IonReader.  Numbers are decimals (or ints), binaries are blobs, and sets are
+ *    lists annotated $dynamodb_SS, $dynamodb_NS or $dynamodb_BS.
+ * The format of a data file is taken from its name (.json.gz or .ion.gz).  Each item is parsed
+ * into the same low level item a Scan returns, and converted to rows by the entity's
+ * DynamoItemConverter, so the rows are exactly the rows a Scan would produce.
+ *
+ * Every data file is a source of a DynamoParallelIterator: files are decompressed, parsed and
+ * converted by 'threads' workers, in pages of PAGE_ROWS rows.
+ *
+ * @author ben.demott
+ */
+public class DynamoExportReader {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String MANIFEST_SUMMARY = "manifest-summary.json";
+    public static final String MANIFEST_FILES = "manifest-files.json";
+    public static final String EXPORTS_DIRECTORY = "AWSDynamoDB";
+    public static final String DATA_DIRECTORY = "data";
+    public static final String FORMAT_DYNAMODB_JSON = "DYNAMODB_JSON";
+    public static final String FORMAT_ION = "ION";
+    public static final String ION_STRING_SET = "$dynamodb_SS"; // annotation of a list that is a string set
+    public static final String ION_NUMBER_SET = "$dynamodb_NS";
+    public static final String ION_BINARY_SET = "$dynamodb_BS";
+    public static final int PAGE_ROWS = 1000;
+    public static final int QUEUE_PAGES_PER_THREAD = 2;
+    public static final int READ_BUFFER_BYTES = 256 * 1024;
+
+    protected static final ObjectMapper JSON = new ObjectMapper();
+    protected static final IonSystem ION = IonSystemBuilder.standard().build(); // thread safe, readers are not
+
+    protected final File exportDirectory;
+    protected final List<File> dataFiles = new ArrayList<>();
+    protected long manifestItemCount = -1;
+
+    /**
+     * Find the export and its data files.
+     *
+     * @param directory the export, or a directory of exports
+     * @param tableName the table the export must be of
+     * @throws IOException if the directory holds no export, or an export of another table or
+     *         format.
+     */
+    public DynamoExportReader(File directory, String tableName) throws IOException {
+        exportDirectory = findExport(directory);
+        File summaryFile = new File(exportDirectory, MANIFEST_SUMMARY);
+        if(summaryFile.isFile()) {
+            JsonNode summary = JSON.readTree(new String(Files.readAllBytes(summaryFile.toPath()), StandardCharsets.UTF_8));
+            String format = summary.path("outputFormat").asText(FORMAT_DYNAMODB_JSON);
+            if(!FORMAT_DYNAMODB_JSON.equals(format) && !FORMAT_ION.equals(format)) {
+                throw new IOException(String.format("Export [%s] is %s, only %s and %s exports can be read", 
+                        exportDirectory, format, FORMAT_DYNAMODB_JSON, FORMAT_ION));
+            }
+            String tableArn = summary.path("tableArn").asText("");
+            if(!tableArn.isEmpty() && !tableArn.endsWith("/" + tableName)) {
+                throw new IOException(String.format("Export [%s] is of table %s, not [%s]", exportDirectory, tableArn, tableName));
+            }
+            if(summary.has("itemCount")) {
+                manifestItemCount = summary.get("itemCount").asLong();
+            }
+        }
+
+        File filesManifest = new File(exportDirectory, MANIFEST_FILES);
+        if(filesManifest.isFile()) {
+            for(String line : Files.readAllLines(filesManifest.toPath(), StandardCharsets.UTF_8)) {
+                if(line.trim().isEmpty()) {
+                    continue;
+                }
+                String key = JSON.readTree(line).path("dataFileS3Key").asText("");
+                File dataFile = new File(new File(exportDirectory, DATA_DIRECTORY), new File(key).getName());
+                if(!dataFile.isFile()) {
+                    throw new IOException(String.format("Export [%s] data file %s is missing", exportDirectory, dataFile));
+                }
+                dataFiles.add(dataFile);
+            }
+        } else {
+            File dataDirectory = new File(exportDirectory, DATA_DIRECTORY);
+            File[] files = (dataDirectory.isDirectory() ? dataDirectory : exportDirectory).listFiles(
+                    (dir, name) -> (name.endsWith(".json.gz") || name.endsWith(".json") || isIon(name)) && !name.startsWith("manifest-"));
+            if(files != null) {
+                Arrays.sort(files);
+                dataFiles.addAll(Arrays.asList(files));
+            }
+        }
+        if(dataFiles.isEmpty()) {
+            throw new IOException(String.format("No export data files found in [%s]", exportDirectory));
+        }
+    }
+
+    /**
+     * @return true if the data file is in the ION format
+     */
+    public static boolean isIon(String fileName) {
+        return fileName.endsWith(".ion.gz") || fileName.endsWith(".ion");
+    }
+
+    /**
+     * @return the export directory itself, the most recent export of a directory of exports
+     */
+    protected static File findExport(File directory) throws IOException {
+        if(!directory.isDirectory()) {
+            throw new IOException(String.format("Export directory [%s] does not exist", directory));
+        }
+        File exports = new File(directory, EXPORTS_DIRECTORY);
+        if(new File(directory, MANIFEST_SUMMARY).isFile() || !exports.isDirectory()) {
+            return directory;
+        }
+        File latest = null;
+        File[] candidates = exports.listFiles(file -> new File(file, MANIFEST_SUMMARY).isFile());
+        if(candidates != null) {
+            for(File candidate : candidates) {
+                if(latest == null || new File(candidate, MANIFEST_SUMMARY).lastModified() > new File(latest, MANIFEST_SUMMARY).lastModified()) {
+                    latest = candidate;
+                }
+            }
+        }
+        if(latest == null) {
+            throw new IOException(String.format("No export found in [%s]", exports));
+        }
+        return latest;
+    }
+
+    public File getExportDirectory() {
+        return exportDirectory;
+    }
+
+    public List<File> getDataFiles() {
+        return dataFiles;
+    }
+
+    /**
+     * @return the item count of the manifest, -1 if unknown
+     */
+    public long getManifestItemCount() {
+        return manifestItemCount;
+    }
+
+    /**
+     * Start reading every data file.
+     *
+     * @param converter converts the items to rows
+     * @param threads the number of files read at once
+     * @return the pages of rows, close() it if it isn't read to the end
+     */
+    public Iterator<DynamoPage> read(DynamoItemConverter converter, int threads) {
+        List<DataFile> sources = new ArrayList<>(dataFiles.size());
+        for(int i = 0; i < dataFiles.size(); i++) {
+            sources.add(new DataFile(dataFiles.get(i), i, converter));
+        }
+        LOG.info(String.format("Reading export [%s], %d data files (%s items) with %d threads",
+                exportDirectory, dataFiles.size(), manifestItemCount < 0 ? "unknown" : manifestItemCount, threads));
+        return new DynamoParallelIterator<>(exportDirectory.getName(), sources, threads, Math.max(1, threads) * QUEUE_PAGES_PER_THREAD);
+    }
+
+    /**
+     * Parse a line of a DYNAMODB_JSON data file.
+     *
+     * @param line {"Item":{"name":{"S":"value"},...}}
+     * @return the item
+     * @throws IOException if the line isn't an item
+     */
+    public static Map<String, AttributeValue> parseItem(String line) throws IOException {
+        JsonNode item = JSON.readTree(line).get("Item");
+        if(item == null || !item.isObject()) {
+            throw new IOException("Not an export item, no \"Item\" object");
+        }
+        Map<String, AttributeValue> attributes = new HashMap<>(DynamoItemConverter.capacity(item.size()));
+        for(Iterator<Map.Entry<String, JsonNode>> fields = item.fields(); fields.hasNext(); ) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            attributes.put(field.getKey(), toAttributeValue(field.getValue()));
+        }
+        return attributes;
+    }
+
+    /**
+     * @param node a typed value, {"S":"value"}, {"N":"1"}, {"M":{...}} etc.
+     */
+    protected static AttributeValue toAttributeValue(JsonNode node) throws IOException {
+        Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+        if(!fields.hasNext()) {
+            throw new IOException(String.format("Not a typed attribute value: %s", node));
+        }
+        Map.Entry<String, JsonNode> typed = fields.next();
+        JsonNode value = typed.getValue();
+        switch(typed.getKey()) {
+            case "S":
+                return new AttributeValue().withS(value.asText());
+            case "N":
+                return new AttributeValue().withN(value.asText());
+            case "BOOL":
+                return new AttributeValue().withBOOL(value.asBoolean());
+            case "NULL":
+                return new AttributeValue().withNULL(true);
+            case "B":
+                return new AttributeValue().withB(ByteBuffer.wrap(Base64.getDecoder().decode(value.asText())));
+            case "SS": {
+                List<String> strings = new ArrayList<>(value.size());
+                for(JsonNode element : value) {
+                    strings.add(element.asText());
+                }
+                return new AttributeValue().withSS(strings);
+            }
+            case "NS": {
+                List<String> numbers = new ArrayList<>(value.size());
+                for(JsonNode element : value) {
+                    numbers.add(element.asText());
+                }
+                return new AttributeValue().withNS(numbers);
+            }
+            case "BS": {
+                List<ByteBuffer> binaries = new ArrayList<>(value.size());
+                for(JsonNode element : value) {
+                    binaries.add(ByteBuffer.wrap(Base64.getDecoder().decode(element.asText())));
+                }
+                return new AttributeValue().withBS(binaries);
+            }
+            case "L": {
+                List<AttributeValue> list = new ArrayList<>(value.size());
+                for(JsonNode element : value) {
+                    list.add(toAttributeValue(element));
+                }
+                return new AttributeValue().withL(list);
+            }
+            case "M": {
+                Map<String, AttributeValue> map = new LinkedHashMap<>(DynamoItemConverter.capacity(value.size()));
+                for(Iterator<Map.Entry<String, JsonNode>> entries = value.fields(); entries.hasNext(); ) {
+                    Map.Entry<String, JsonNode> entry = entries.next();
+                    map.put(entry.getKey(), toAttributeValue(entry.getValue()));
+                }
+                return new AttributeValue().withM(map);
+            }
+            default:
+                throw new IOException(String.format("Unknown attribute type [%s]", typed.getKey()));
+        }
+    }
+
+    /**
+     * Parse an item of an ION data file.
+     *
+     * @param reader positioned on a top level value: {Item:{name:value,...}}
+     * @return the item
+     * @throws IOException if the value isn't an item
+     */
+    public static Map<String, AttributeValue> parseItem(IonReader reader) throws IOException {
+        if(reader.getType() != IonType.STRUCT) {
+            throw new IOException(String.format("Not an export item, %s instead of a struct", reader.getType()));
+        }
+        Map<String, AttributeValue> attributes = null;
+        reader.stepIn();
+        for(IonType type = reader.next(); type != null; type = reader.next()) {
+            if("Item".equals(reader.getFieldName()) && type == IonType.STRUCT && !reader.isNullValue()) {
+                attributes = toMap(reader);
+            }
+        }
+        reader.stepOut();
+        if(attributes == null) {
+            throw new IOException("Not an export item, no Item struct");
+        }
+        return attributes;
+    }
+
+    /**
+     * @param reader positioned on a struct
+     * @return the attributes of the struct
+     */
+    protected static Map<String, AttributeValue> toMap(IonReader reader) throws IOException {
+        Map<String, AttributeValue> map = new LinkedHashMap<>();
+        reader.stepIn();
+        for(IonType type = reader.next(); type != null; type = reader.next()) {
+            map.put(reader.getFieldName(), toAttributeValue(reader, type));
+        }
+        reader.stepOut();
+        return map;
+    }
+
+    /**
+     * @param reader positioned on an Ion value
+     * @param type the type of the value
+     */
+    protected static AttributeValue toAttributeValue(IonReader reader, IonType type) throws IOException {
+        if(reader.isNullValue()) {
+            return new AttributeValue().withNULL(true);
+        }
+        switch(type) {
+            case STRING:
+            case SYMBOL:
+                return new AttributeValue().withS(reader.stringValue());
+            case INT:
+            case DECIMAL:
+            case FLOAT:
+                return new AttributeValue().withN(toNumber(reader, type));
+            case BOOL:
+                return new AttributeValue().withBOOL(reader.booleanValue());
+            case BLOB:
+            case CLOB:
+                return new AttributeValue().withB(ByteBuffer.wrap(reader.newBytes()));
+            case STRUCT:
+                return new AttributeValue().withM(toMap(reader));
+            case LIST:
+                break;
+            default:
+                throw new IOException(String.format("Unsupported Ion type [%s]", type));
+        }
+
+        String[] annotations = reader.getTypeAnnotations();
+        String set = annotations.length > 0 ? annotations[0] : "";
+        List<String> strings = new ArrayList<>();
+        List<ByteBuffer> binaries = new ArrayList<>();
+        List<AttributeValue> list = new ArrayList<>();
+        reader.stepIn();
+        for(IonType elementType = reader.next(); elementType != null; elementType = reader.next()) {
+            switch(set) {
+                case ION_STRING_SET:
+                    strings.add(reader.stringValue());
+                    break;
+                case ION_NUMBER_SET:
+                    strings.add(toNumber(reader, elementType));
+                    break;
+                case ION_BINARY_SET:
+                    binaries.add(ByteBuffer.wrap(reader.newBytes()));
+                    break;
+                default:
+                    list.add(toAttributeValue(reader, elementType));
+            }
+        }
+        reader.stepOut();
+        switch(set) {
+            case ION_STRING_SET:
+                return new AttributeValue().withSS(strings);
+            case ION_NUMBER_SET:
+                return new AttributeValue().withNS(strings);
+            case ION_BINARY_SET:
+                return new AttributeValue().withBS(binaries);
+            default:
+                return new AttributeValue().withL(list);
+        }
+    }
+
+    /**
+     * @return the number as dynamo writes it, 2d1 is "20", 103. is "103"
+     */
+    protected static String toNumber(IonReader reader, IonType type) throws IOException {
+        switch(type) {
+            case INT:
+                return reader.bigIntegerValue().toString();
+            case DECIMAL:
+                return reader.bigDecimalValue().stripTrailingZeros().toPlainString();
+            case FLOAT:
+                return BigDecimal.valueOf(reader.doubleValue()).stripTrailingZeros().toPlainString();
+            default:
+                throw new IOException(String.format("Not a number, Ion type [%s]", type));
+        }
+    }
+
+    /**
+     * A data file, read as pages of converted rows.  The file is opened when it's iterated, and
+     * closed at its end, on an error, or when its reader is closed.
+     */
+    protected static class DataFile implements Iterable<DynamoPage> {
+        protected final File file;
+        protected final int segment;
+        protected final DynamoItemConverter converter;
+        protected final boolean ion;
+
+        DataFile(File file, int segment, DynamoItemConverter converter) {
+            this.file = file;
+            this.segment = segment;
+            this.converter = converter;
+            this.ion = isIon(file.getName());
+        }
+
+        @Override
+        public Iterator<DynamoPage> iterator() {
+            try {
+                return new PageIterator();
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format("Unable to open export data file %s", file), e);
+            }
+        }
+
+        protected class PageIterator implements Iterator<DynamoPage>, Closeable {
+            protected final InputStream in;
+            protected final BufferedReader reader; // DYNAMODB_JSON, null for ION
+            protected final IonReader ionReader; // ION, null for DYNAMODB_JSON
+            protected DynamoPage next;
+            protected long lineNumber = 0; // lines of a DYNAMODB_JSON file, items of an ION file
+            protected boolean closed = false;
+
+            PageIterator() throws IOException {
+                InputStream stream = new FileInputStream(file);
+                if(file.getName().endsWith(".gz")) {
+                    stream = new GZIPInputStream(stream, READ_BUFFER_BYTES);
+                }
+                in = stream;
+                if(ion) {
+                    reader = null;
+                    ionReader = ION.newReader(new BufferedInputStream(in, READ_BUFFER_BYTES));
+                } else {
+                    reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), READ_BUFFER_BYTES);
+                    ionReader = null;
+                }
+            }
+
+            /**
+             * @return the next item of the file, null at its end
+             */
+            protected Map<String, AttributeValue> readItem() throws IOException {
+                if(ion) {
+                    if(ionReader.next() == null) {
+                        return null;
+                    }
+                    lineNumber++;
+                    return parseItem(ionReader);
+                }
+                String line;
+                while((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if(!line.trim().isEmpty()) {
+                        return parseItem(line);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if(next != null) {
+                    return true;
+                }
+                if(closed) {
+                    return false;
+                }
+                List<Map<String, AttributeValue>> items = new ArrayList<>(PAGE_ROWS);
+                try {
+                    Map<String, AttributeValue> item;
+                    while(items.size() < PAGE_ROWS && (item = readItem()) != null) {
+                        items.add(item);
+                    }
+                } catch (IOException | IonException e) {
+                    close();
+                    throw new IllegalStateException(String.format("Error reading export data file %s at %s %d", 
+                            file, ion ? "item" : "line", lineNumber), e);
+                }
+                if(items.size() < PAGE_ROWS) {
+                    close();
+                }
+                if(items.isEmpty()) {
+                    return false;
+                }
+                next = new DynamoPage(segment, null, null, converter.convertAll(items));
+                return true;
+            }
+
+            @Override
+            public DynamoPage next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                DynamoPage page = next;
+                next = null;
+                return page;
+            }
+
+            @Override
+            public void close() {
+                if(closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    if(ionReader != null) {
+                        ionReader.close();
+                    }
+                    in.close();
+                } catch (IOException e) {
+                    LOG.warn(String.format("Error closing export data file %s", file), e);
+                }
+                LOG.debug(String.format("Read %d %s of export data file %s", lineNumber, ion ? "items" : "lines", file));
+            }
+        }
+    }
+}
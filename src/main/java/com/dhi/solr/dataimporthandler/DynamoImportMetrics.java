@@ -0,0 +1,399 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.codahale.metrics.Gauge;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The metrics of one entity for one import: what was read from dynamo (pages, items, bytes,
+ * consumed read capacity, throttles, retries, page latency) and where the time of the import
+ * went, waiting for dynamo or indexing in solr.
+ *
+ * Pages are recorded by the DynamoPageReader that read them, on any thread (parallel scan and
+ * prefetch workers).  Only scans and queries read pages, rows looked up (BatchGetItem) or read
+ * from a stream, an export or a mirror are counted in rows and dynamo wait only.  Rows are
+ * recorded by DynamoEntityProcessor on the DIH thread:
+ *  - dynamo wait, the time nextRow() waits for the next row (for the next page, or for the
+ *    spool / mirror / export the entity reads)
+ *  - solr, the time between returning a row and DIH asking for the next one, transformers,
+ *    child entities and writing the document.
+ * A slow import with most of its time in dynamo wait needs more read capacity or segments, with
+ * most of its time in solr it needs a faster analysis chain (or a spool, see DynamoSpool).
+ *
+ * When the import of a root entity is a full scan, with the item count of the table (from the
+ * table description, which dynamo updates about every 6 hours) the metrics estimate the
+ * progress of the import and the time left, from the items scanned so far.  Progress is only
+ * tracked for root entities of a full import: a child entity scans once per parent row, and a
+ * delta import reads a fraction of the table, their scanned items can't be compared to the
+ * item count.
+ *
+ * The metrics are registered with the solr metrics of the core (see register()) so they can be
+ * watched during the import at /admin/metrics, and are logged when the import closes.  Each
+ * metric is its own gauge, reading one doesn't compute the others.
+ *
+ * @author ben.demott
+ */
+public class DynamoImportMetrics {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String METRICS_CATEGORY = "DATAIMPORT"; // solr.core.<core>:DATAIMPORT.dynamo.<entity>.<metric>
+    public static final String METRICS_SCOPE = "dynamo";
+    public static final long[] LATENCY_BUCKETS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    protected final String name;
+    protected final boolean progress; // expectedItems are used, see the class comment
+    protected final Map<String, Gauge<Object>> gauges = new LinkedHashMap<>();
+    protected final long startedMs = System.currentTimeMillis();
+    protected volatile long finishedMs = 0;
+    protected volatile long expectedItems = -1; // items the import will scan, -1 if unknown
+
+    // page readers, any thread
+    protected final LongAdder pages = new LongAdder();
+    protected final LongAdder items = new LongAdder();
+    protected final LongAdder scannedItems = new LongAdder();
+    protected final LongAdder bytes = new LongAdder();
+    protected final DoubleAdder consumedRcu = new DoubleAdder();
+    protected final LongAdder throttles = new LongAdder();
+    protected final LongAdder retries = new LongAdder();
+    protected final LongAdder rateLimitNanos = new LongAdder();
+    protected final LongAdder pageNanos = new LongAdder();
+    protected final AtomicLongArray pageLatency = new AtomicLongArray(LATENCY_BUCKETS_MS.length + 1);
+
+    // DIH thread, volatile so the gauges read current values
+    protected volatile long rows = 0;
+    protected volatile long dynamoWaitNanos = 0;
+    protected volatile long solrNanos = 0;
+    protected long rowReturnedNanos = 0; // when the last row was returned, 0 after the last row
+
+    /**
+     * @param name the entity, for logs
+     * @param progress true to estimate the progress of the import from the expected items,
+     *         for the root entity of a full import
+     */
+    public DynamoImportMetrics(String name, boolean progress) {
+        this.name = name;
+        this.progress = progress;
+        createGauges();
+    }
+
+    /**
+     * One gauge per metric, always the same names in the same order.
+     */
+    protected void createGauges() {
+        gauges.put("rows", () -> rows);
+        gauges.put("pages", () -> pages.sum());
+        gauges.put("items", () -> items.sum());
+        gauges.put("scannedItems", () -> scannedItems.sum());
+        gauges.put("bytes", () -> bytes.sum());
+        gauges.put("consumedRcu", () -> consumedRcu.sum());
+        gauges.put("throttles", () -> throttles.sum());
+        gauges.put("retries", () -> retries.sum());
+        gauges.put("rateLimitWaitMs", () -> rateLimitNanos.sum() / 1000000);
+        gauges.put("pageLatencyMeanMs", () -> {
+            long pageCount = pages.sum();
+            return pageCount == 0 ? 0.0 : pageNanos.sum() / 1000000.0 / pageCount;
+        });
+        for(int bucket = 0; bucket <= LATENCY_BUCKETS_MS.length; bucket++) {
+            int index = bucket;
+            gauges.put(getLatencyBucketName(bucket), () -> pageLatency.get(index));
+        }
+        gauges.put("elapsedMs", () -> getElapsedMs());
+        gauges.put("dynamoWaitMs", () -> dynamoWaitNanos / 1000000);
+        gauges.put("solrMs", () -> solrNanos / 1000000);
+        gauges.put("itemsPerSecond", () -> {
+            long elapsedMs = getElapsedMs();
+            return elapsedMs == 0 ? 0.0 : scannedItems.sum() * 1000.0 / elapsedMs;
+        });
+        gauges.put("expectedItems", () -> expectedItems);
+        gauges.put("percentComplete", () -> getPercentComplete(scannedItems.sum(), expectedItems));
+        gauges.put("etaSeconds", () -> getEtaSeconds(scannedItems.sum(), expectedItems, getElapsedMs()));
+    }
+
+    /**
+     * A page was read.
+     *
+     * @param pageItems the items of the page
+     * @param pageScanned the items dynamo read for the page, before the filter expression
+     * @param pageBytes the (approximate) size of the items, see itemBytes()
+     * @param rcu the capacity the page consumed, null if unknown
+     * @param nanos the latency of the request
+     */
+    public void pageRead(int pageItems, int pageScanned, long pageBytes, Double rcu, long nanos) {
+        pages.increment();
+        items.add(pageItems);
+        scannedItems.add(pageScanned);
+        bytes.add(pageBytes);
+        if(rcu != null) {
+            consumedRcu.add(rcu);
+        }
+        pageNanos.add(nanos);
+        long ms = nanos / 1000000;
+        int bucket = 0;
+        while(bucket < LATENCY_BUCKETS_MS.length && ms >= LATENCY_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        pageLatency.incrementAndGet(bucket);
+    }
+
+    /**
+     * A page request was throttled by dynamo (after the client's own retries).
+     */
+    public void throttled() {
+        throttles.increment();
+    }
+
+    /**
+     * A failed page request is retried.
+     */
+    public void retried() {
+        retries.increment();
+    }
+
+    /**
+     * @param nanos time a page request waited for the rate limiter
+     */
+    public void rateLimited(long nanos) {
+        rateLimitNanos.add(nanos);
+    }
+
+    /**
+     * @param expectedItems the items the import will scan (the item count of the table or
+     *         index), for the progress and time left.  Ignored unless the metrics track progress.
+     */
+    public void setExpectedItems(long expectedItems) {
+        if(progress) {
+            this.expectedItems = expectedItems;
+        }
+    }
+
+    /**
+     * DIH asks for the next row, the time since the last row was returned was spent in solr.
+     *
+     * @return the time the row was asked for, for rowFinished()
+     */
+    public long rowStarted() {
+        long now = System.nanoTime();
+        if(rowReturnedNanos != 0) {
+            solrNanos += now - rowReturnedNanos;
+        }
+        return now;
+    }
+
+    /**
+     * The next row is returned, the time since rowStarted() was spent waiting for dynamo.
+     *
+     * @param started returned by rowStarted()
+     * @param found false when there are no more rows
+     */
+    public void rowFinished(long started, boolean found) {
+        long now = System.nanoTime();
+        dynamoWaitNanos += now - started;
+        if(found) {
+            rows++;
+            rowReturnedNanos = now;
+        } else {
+            // a child entity waits for the next parent row, that isn't time spent on this entity
+            rowReturnedNanos = 0;
+        }
+    }
+
+    /**
+     * The import is finished, the elapsed time stops.
+     */
+    public void finish() {
+        if(finishedMs == 0) {
+            finishedMs = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return every metric by name, always the same names in the same order
+     */
+    public Map<String, Object> getSnapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        for(Map.Entry<String, Gauge<Object>> gauge : gauges.entrySet()) {
+            snapshot.put(gauge.getKey(), gauge.getValue().getValue());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the time since the import started, until it finished
+     */
+    protected long getElapsedMs() {
+        return (finishedMs == 0 ? System.currentTimeMillis() : finishedMs) - startedMs;
+    }
+
+    /**
+     * @param bucket index of the bucket, LATENCY_BUCKETS_MS.length for the last bucket
+     * @return e.g. pageLatency.lt_100ms, pageLatency.ge_5000ms
+     */
+    protected static String getLatencyBucketName(int bucket) {
+        if(bucket < LATENCY_BUCKETS_MS.length) {
+            return String.format("pageLatency.lt_%dms", LATENCY_BUCKETS_MS[bucket]);
+        }
+        return String.format("pageLatency.ge_%dms", LATENCY_BUCKETS_MS[LATENCY_BUCKETS_MS.length - 1]);
+    }
+
+    /**
+     * @return the percent of the expected items scanned, -1 if the expected items are unknown
+     */
+    protected double getPercentComplete(long scanned, long expected) {
+        if(!progress) {
+            return -1;
+        }
+        if(expected <= 0) {
+            return finishedMs == 0 ? -1 : 100;
+        }
+        if(finishedMs != 0) {
+            return 100;
+        }
+        // the item count is only updated every few hours, it may already be behind
+        return Math.min(99.9, scanned * 100.0 / expected);
+    }
+
+    /**
+     * @return the seconds left at the current rate, -1 if unknown
+     */
+    protected long getEtaSeconds(long scanned, long expected, long elapsedMs) {
+        if(!progress) {
+            return -1;
+        }
+        if(finishedMs != 0) {
+            return 0;
+        }
+        if(expected <= 0 || scanned == 0 || elapsedMs == 0) {
+            return -1;
+        }
+        double itemsPerMs = (double) scanned / elapsedMs;
+        return (long) (Math.max(0, expected - scanned) / itemsPerMs / 1000);
+    }
+
+    /**
+     * Register a gauge for every metric with the metrics of the core, replacing the gauges of the
+     * previous import of the entity.  The gauges of the last import stay registered, so its
+     * metrics can still be read after it's finished.
+     *
+     * Registering never fails the import, solr without a core (or without metrics) is logged.
+     *
+     * @param core the core of the import, may be null
+     * @param entityName
+     */
+    public void register(SolrCore core, String entityName) {
+        if(core == null || core.getCoreMetricManager() == null || core.getCoreContainer() == null) {
+            LOG.debug(String.format("Entity [%s] no core metrics to register with", entityName));
+            return;
+        }
+        try {
+            SolrMetricManager manager = core.getCoreContainer().getMetricManager();
+            String registry = core.getCoreMetricManager().getRegistryName();
+            for(Map.Entry<String, Gauge<Object>> gauge : gauges.entrySet()) {
+                manager.register(registry, gauge.getValue(), true, gauge.getKey(), METRICS_CATEGORY, METRICS_SCOPE, entityName);
+            }
+            LOG.debug(String.format("Entity [%s] import metrics registered with %s", entityName, registry));
+        } catch (RuntimeException e) {
+            LOG.warn(String.format("Entity [%s] unable to register import metrics: %s", entityName, e.getMessage()));
+        }
+    }
+
+    /**
+     * The approximate size of an item, the way dynamo sizes items: the length of every attribute
+     * name and value, strings counted in characters and numbers in digits.
+     *
+     * @param item a low level item
+     * @return the size in bytes
+     */
+    public static long itemBytes(Map<String, AttributeValue> item) {
+        long size = 0;
+        if(item == null) {
+            return size;
+        }
+        for(Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            size += attribute.getKey().length() + valueBytes(attribute.getValue());
+        }
+        return size;
+    }
+
+    protected static long valueBytes(AttributeValue value) {
+        if(value == null) {
+            return 0;
+        }
+        if(value.getS() != null) {
+            return value.getS().length();
+        }
+        if(value.getN() != null) {
+            return value.getN().length();
+        }
+        if(value.getB() != null) {
+            return value.getB().remaining();
+        }
+        if(value.getSS() != null) {
+            return stringsBytes(value.getSS());
+        }
+        if(value.getNS() != null) {
+            return stringsBytes(value.getNS());
+        }
+        if(value.getBS() != null) {
+            long size = 0;
+            for(ByteBuffer binary : value.getBS()) {
+                size += binary.remaining();
+            }
+            return size;
+        }
+        if(value.getM() != null) {
+            return 3 + itemBytes(value.getM());
+        }
+        if(value.getL() != null) {
+            long size = 3;
+            for(AttributeValue element : value.getL()) {
+                size += 1 + valueBytes(element);
+            }
+            return size;
+        }
+        // BOOL or NULL
+        return 1;
+    }
+
+    protected static long stringsBytes(List<String> values) {
+        long size = 0;
+        for(String value : values) {
+            size += value.length();
+        }
+        return size;
+    }
+
+    /**
+     * @return a summary of the metrics, for logs.
+     */
+    @Override
+    public String toString() {
+        Map<String, Object> snapshot = getSnapshot();
+        return String.format("[%s] %d rows in %d s (dynamo wait %d s, solr %d s), %d pages, %d of %d items scanned, %d MB, "
+                + "%.1f RCU, %d throttles, %d retries, %d s rate limited, %.1f ms mean page latency",
+                name,
+                snapshot.get("rows"),
+                (Long) snapshot.get("elapsedMs") / 1000,
+                (Long) snapshot.get("dynamoWaitMs") / 1000,
+                (Long) snapshot.get("solrMs") / 1000,
+                snapshot.get("pages"),
+                snapshot.get("scannedItems"),
+                snapshot.get("expectedItems"),
+                (Long) snapshot.get("bytes") / (1024 * 1024),
+                snapshot.get("consumedRcu"),
+                snapshot.get("throttles"),
+                snapshot.get("retries"),
+                (Long) snapshot.get("rateLimitWaitMs") / 1000,
+                snapshot.get("pageLatencyMeanMs"));
+    }
+}
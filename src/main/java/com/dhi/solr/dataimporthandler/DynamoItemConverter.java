@@ -0,0 +1,309 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.lang.invoke.MethodHandles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts low level items (Map of AttributeValue, as returned by Query, Scan, BatchGetItem and
+ * streams) directly to DIH rows.
+ *
+ * Going through the Document API (ItemUtils.toItem, then Item.asMap() and Item.get() for every
+ * attribute) converts every attribute more than once, and copies the item twice.  Here each
+ * attribute is converted exactly once, straight into a row map that is sized for the item.
+ *
+ * The values are the same as the Document API's, except for top level numbers:
+ *  - N is kept as its String value (a BigDecimal causes serialization issues in the
+ *    transaction log), nested numbers are BigDecimal
+ *  - S is a String, BOOL a Boolean, B a byte[]
+ *  - SS, NS and BS are Sets, L a List, M a Map
+ *  - NULL attributes are left out of the row
+ *
+ * Columns with a DynamoColumnType (convertType="true") are converted to that type instead.  The
+ * typed columns are compiled into an array once, each row looks up its typed columns by name
+ * and converts the rest of the item (attributes without a <field>) as above.
+ *
+ * Columns that are document paths (address.city, skills[*].name) are extracted from the item by
+ * a DynamoPathExtractor, compiled once per entity, and added to the row under the path.
+ *
+ * A converter holds no state per row, one is shared by every thread of a parallel scan.
+ *
+ * @author ben.demott
+ */
+public class DynamoItemConverter {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    /** converts every attribute as described above, no typed columns */
+    public static final DynamoItemConverter DEFAULT = new DynamoItemConverter(null);
+
+    protected final String[] columns;
+    protected final DynamoColumnType[] types;
+    protected final boolean[] warned;
+    protected final DynamoPathExtractor[] extractors;
+    protected final boolean[] extractorWarned;
+    protected String numberColumn; // untyped N values of this column are BigDecimal, see withNumberColumn()
+
+    /**
+     * @param columnTypes the type of each column (dynamo attribute name), may be null or empty
+     */
+    public DynamoItemConverter(Map<String, DynamoColumnType> columnTypes) {
+        this(columnTypes, null);
+    }
+
+    /**
+     * @param columnTypes the type of each column (dynamo attribute name), may be null or empty
+     * @param extractors the path columns, may be null or empty
+     */
+    public DynamoItemConverter(Map<String, DynamoColumnType> columnTypes, List<DynamoPathExtractor> extractors) {
+        this.extractors = extractors == null ? new DynamoPathExtractor[0] : extractors.toArray(new DynamoPathExtractor[extractors.size()]);
+        this.extractorWarned = new boolean[this.extractors.length];
+        int size = columnTypes == null ? 0 : columnTypes.size();
+        columns = new String[size];
+        types = new DynamoColumnType[size];
+        warned = new boolean[size];
+        if(columnTypes != null) {
+            int i = 0;
+            for(Map.Entry<String, DynamoColumnType> column : columnTypes.entrySet()) {
+                columns[i] = column.getKey();
+                types[i] = column.getValue();
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Read the N values of a column as BigDecimal instead of String, when the column isn't
+     * typed, so a number can be told apart from a string that looks like one (see 
+     * DynamoJoinIndex).
+     *
+     * @param column the column
+     * @return a new converter, with the types and paths of this one
+     */
+    public DynamoItemConverter withNumberColumn(String column) {
+        Map<String, DynamoColumnType> columnTypes = new LinkedHashMap<>();
+        for(int i = 0; i < columns.length; i++) {
+            columnTypes.put(columns[i], types[i]);
+        }
+        DynamoItemConverter converter = new DynamoItemConverter(columnTypes, Arrays.asList(extractors));
+        converter.numberColumn = column;
+        return converter;
+    }
+
+    /**
+     * Convert a dynamo item to a DIH row, without typed columns.
+     *
+     * @param item
+     * @return the row, attribute name to value
+     */
+    public static Map<String, Object> toRow(Map<String, AttributeValue> item) {
+        return DEFAULT.convert(item);
+    }
+
+    /**
+     * Convert a page of dynamo items to DIH rows, without typed columns.
+     */
+    public static List<Map<String, Object>> toRows(List<Map<String, AttributeValue>> items) {
+        return DEFAULT.convertAll(items);
+    }
+
+    /**
+     * Convert a dynamo item to a DIH row.
+     *
+     * @param item
+     * @return the row, attribute name to value
+     */
+    public Map<String, Object> convert(Map<String, AttributeValue> item) {
+        if(item == null) {
+            return new HashMap<>();
+        }
+        Map<String, Object> row = new HashMap<>(capacity(item.size()));
+        int typed = 0;
+        for(int i = 0; i < columns.length; i++) {
+            AttributeValue value = item.get(columns[i]);
+            if(value == null) {
+                continue;
+            }
+            typed++;
+            Object converted;
+            try {
+                converted = types[i].convert(value);
+            } catch (RuntimeException e) {
+                converted = toValue(value);
+                if(!warned[i]) {
+                    // once per column, a bad type would otherwise log every row
+                    warned[i] = true;
+                    LOG.warn(String.format("Attribute [%s] value %s can't be converted to %s, the value is not converted: %s", 
+                            columns[i], value, types[i], e));
+                }
+            }
+            if(converted != null) {
+                row.put(columns[i], converted);
+            }
+        }
+        if(typed < item.size()) {
+            convertUntyped(item, row, typed);
+        }
+        for(int i = 0; i < extractors.length; i++) {
+            if(!extractors[i].isQuoted() && row.containsKey(extractors[i].getColumn())) {
+                continue; // a top level attribute with a . in its name
+            }
+            try {
+                Object extracted = extractors[i].extract(item);
+                if(extracted != null) {
+                    row.put(extractors[i].getColumn(), extracted);
+                }
+            } catch (RuntimeException e) {
+                if(!extractorWarned[i]) {
+                    extractorWarned[i] = true;
+                    LOG.warn(String.format("Path [%s] value can't be converted to %s, the field is left out: %s", 
+                            extractors[i], extractors[i].type, e));
+                }
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Convert every attribute that isn't a typed column.
+     */
+    protected void convertUntyped(Map<String, AttributeValue> item, Map<String, Object> row, int typed) {
+        for(Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            if(typed > 0 && isTyped(attribute.getKey())) {
+                continue;
+            }
+            AttributeValue value = attribute.getValue();
+            if(value == null) {
+                continue;
+            }
+            if(value.getN() != null) {
+                row.put(attribute.getKey(), attribute.getKey().equals(numberColumn) ? new BigDecimal(value.getN()) : value.getN());
+                continue;
+            }
+            Object converted = toValue(value);
+            if(converted != null) {
+                row.put(attribute.getKey(), converted);
+            }
+        }
+    }
+
+    protected boolean isTyped(String attributeName) {
+        for(String column : columns) {
+            if(column.equals(attributeName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Convert a page of dynamo items to DIH rows.
+     */
+    public List<Map<String, Object>> convertAll(List<Map<String, AttributeValue>> items) {
+        if(items == null || items.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Map<String, Object>> rows = new ArrayList<>(items.size());
+        for(Map<String, AttributeValue> item : items) {
+            rows.add(convert(item));
+        }
+        return rows;
+    }
+
+    /**
+     * Convert a single attribute value, the same way ItemUtils.toSimpleValue() does.
+     *
+     * @param value
+     * @return the value, null for a NULL (or empty) attribute value
+     */
+    public static Object toValue(AttributeValue value) {
+        if(value.getS() != null) {
+            return value.getS();
+        }
+        if(value.getN() != null) {
+            return new BigDecimal(value.getN());
+        }
+        if(value.getBOOL() != null) {
+            return value.getBOOL();
+        }
+        if(value.getM() != null) {
+            Map<String, Object> map = new LinkedHashMap<>(capacity(value.getM().size()));
+            for(Map.Entry<String, AttributeValue> entry : value.getM().entrySet()) {
+                map.put(entry.getKey(), entry.getValue() == null ? null : toValue(entry.getValue()));
+            }
+            return map;
+        }
+        if(value.getL() != null) {
+            List<Object> list = new ArrayList<>(value.getL().size());
+            for(AttributeValue element : value.getL()) {
+                list.add(element == null ? null : toValue(element));
+            }
+            return list;
+        }
+        if(value.getSS() != null) {
+            return new LinkedHashSet<>(value.getSS());
+        }
+        if(value.getNS() != null) {
+            Set<BigDecimal> set = new LinkedHashSet<>(capacity(value.getNS().size()));
+            for(String number : value.getNS()) {
+                set.add(new BigDecimal(number));
+            }
+            return set;
+        }
+        if(value.getB() != null) {
+            return toBytes(value.getB());
+        }
+        if(value.getBS() != null) {
+            Set<byte[]> set = new LinkedHashSet<>(capacity(value.getBS().size()));
+            for(ByteBuffer bytes : value.getBS()) {
+                set.add(toBytes(bytes));
+            }
+            return set;
+        }
+        return null; // NULL
+    }
+
+    protected static byte[] toBytes(ByteBuffer buffer) {
+        ByteBuffer copy = buffer.duplicate();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the typed and path columns, identifies the conversion (see DynamoReferenceCache)
+     */
+    @Override
+    public String toString() {
+        Map<String, Object> conversion = new TreeMap<>();
+        for(int i = 0; i < columns.length; i++) {
+            conversion.put(columns[i], types[i]);
+        }
+        for(DynamoPathExtractor extractor : extractors) {
+            conversion.put(extractor.getColumn(), extractor.type == null ? "path" : extractor.type);
+        }
+        if(numberColumn != null) {
+            conversion.putIfAbsent(numberColumn, "number");
+        }
+        return conversion.toString();
+    }
+
+    /**
+     * @return the initial capacity of a hash map that holds size entries without rehashing
+     */
+    protected static int capacity(int size) {
+        return size < 3 ? size + 1 : (int) (size / 0.75f + 1.0f);
+    }
+}
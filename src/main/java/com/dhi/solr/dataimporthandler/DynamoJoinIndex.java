@@ -0,0 +1,282 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the rows of a child table by a join attribute that isn't the table's key, built
+ * from a single (parallel) scan of the table, so each parent row is answered from the index
+ * instead of a filtered scan of the table.  Similar to DIH's SortedMapBackedCache, but compact
+ * and bounded:
+ *  - rows are held encoded (a byte[] per row, see DynamoRowCodec), not as maps of objects.  A row is
+ *    decoded for each lookup, so every parent row gets its own copy.
+ *  - when the encoded rows reach 'memoryBytes' they are spilled to a temporary file, and only
+ *    the file offsets are kept in memory.  The index then costs the join values and 8 bytes per
+ *    row, the rows are read back from the file as they are looked up.
+ *
+ * A join attribute that is a set or list indexes the row under every element.
+ *
+ * DynamoDB numbers are compared by value: the join attribute of the rows is read as a number
+ * when it's an N (see DynamoItemConverter.withNumberColumn(), the row keeps the N as a String),
+ * so a parent join value that is a Number (10, 10.0 or 1E+1) matches it, and so does a parent
+ * N column (a String, as dynamo writes the number).  Strings are compared exactly, the S code
+ * 007 doesn't match the N 7, or the S 7.
+ *
+ * Usage: add() every row of the scan, then finish() once, then get() for every parent row.
+ * close() deletes the temporary file.
+ *
+ * @author ben.demott
+ */
+public class DynamoJoinIndex implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final long DEFAULT_MEMORY_BYTES = 64L * 1024 * 1024;
+    public static final String TEMP_FILE_PREFIX = "dynamo-join-";
+    public static final int SPILL_BUFFER_BYTES = 64 * 1024;
+    public static final long MIN_SPILL_BYTES = 1024 * 1024; // don't spill a few rows at a time
+    protected static final int KEY_OVERHEAD_BYTES = 80; // hash map entry, String and Entry of a join value
+    protected static final int ROW_OVERHEAD_BYTES = 24; // array header and list slot of an encoded row
+    protected static final int MAX_NUMBER_SCALE = 200; // dynamo numbers are within 1E-130 and 1E+126
+
+    protected final String name;
+    protected final String joinAttribute;
+    protected final File tempDirectory;
+    protected final long memoryBytes;
+
+    protected final Map<String, Entry> entries = new HashMap<>();
+    protected long keyBytes = 0;
+    protected long rowBytes = 0;
+    protected long rowCount = 0;
+    protected long skippedCount = 0;
+    protected long lookupCount = 0;
+    protected boolean warnedKeyMemory = false;
+
+    protected File spillFile;
+    protected DataOutputStream spillOut;
+    protected long spillLength = 0;
+    protected RandomAccessFile spillIn;
+
+    /**
+     * The rows of one join value, encoded in memory and/or offsets in the spill file.
+     */
+    protected static class Entry {
+        List<byte[]> rows;
+        long[] offsets;
+        int offsetCount;
+    }
+
+    /**
+     * @param name used in logs (typically the entity name)
+     * @param joinAttribute the column of the rows to index
+     * @param tempDirectory where rows are spilled, null for java.io.tmpdir
+     * @param memoryBytes encoded rows held in memory before they are spilled
+     */
+    public DynamoJoinIndex(String name, String joinAttribute, File tempDirectory, long memoryBytes) {
+        this.name = name;
+        this.joinAttribute = joinAttribute;
+        this.tempDirectory = tempDirectory;
+        this.memoryBytes = memoryBytes > 0 ? memoryBytes : DEFAULT_MEMORY_BYTES;
+    }
+
+    /**
+     * Add a row of the scan.
+     *
+     * @param row
+     */
+    public void add(Map<String, Object> row) {
+        Object value = row.get(joinAttribute);
+        if(value == null) {
+            skippedCount++;
+            return;
+        }
+        if(value instanceof BigDecimal) {
+            // an N read as a number for its key, the row keeps it as a String like other N columns
+            row.put(joinAttribute, ((BigDecimal) value).toPlainString());
+        }
+        byte[] encoded = DynamoRowCodec.encode(row);
+        if(value instanceof Collection) {
+            for(Object element : new LinkedHashSet<>((Collection<?>) value)) {
+                if(element != null) {
+                    add(toKey(element), encoded);
+                }
+            }
+        } else {
+            add(toKey(value), encoded);
+        }
+        rowCount++;
+
+        if(keyBytes + rowBytes >= memoryBytes && rowBytes >= MIN_SPILL_BYTES) {
+            spill();
+        }
+        if(keyBytes >= memoryBytes && !warnedKeyMemory) {
+            warnedKeyMemory = true;
+            LOG.warn(String.format("[%s] the join values alone use more than %d MB, rows are spilled as they are read",
+                    name, memoryBytes / (1024 * 1024)));
+        }
+    }
+
+    protected void add(String key, byte[] encoded) {
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+            keyBytes += KEY_OVERHEAD_BYTES + 2L * key.length();
+        }
+        if(entry.rows == null) {
+            entry.rows = new ArrayList<>(1);
+        }
+        entry.rows.add(encoded);
+        rowBytes += encoded.length + ROW_OVERHEAD_BYTES;
+    }
+
+    /**
+     * Write the rows held in memory to the spill file, keep their offsets.
+     */
+    protected void spill() {
+        try {
+            if(spillOut == null) {
+                spillFile = File.createTempFile(TEMP_FILE_PREFIX, ".rows", tempDirectory);
+                spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), SPILL_BUFFER_BYTES));
+            }
+            int spilled = 0;
+            for(Entry entry : entries.values()) {
+                if(entry.rows == null) {
+                    continue;
+                }
+                for(byte[] encoded : entry.rows) {
+                    if(entry.offsets == null || entry.offsetCount == entry.offsets.length) {
+                        int previous = entry.offsets == null ? 0 : entry.offsets.length;
+                        long[] grown = new long[Math.max(previous * 2, entry.offsetCount + entry.rows.size())];
+                        if(entry.offsets != null) {
+                            System.arraycopy(entry.offsets, 0, grown, 0, entry.offsetCount);
+                        }
+                        keyBytes += 8L * (grown.length - previous);
+                        entry.offsets = grown;
+                    }
+                    entry.offsets[entry.offsetCount++] = spillLength;
+                    spillOut.writeInt(encoded.length);
+                    spillOut.write(encoded);
+                    spillLength += 4 + encoded.length;
+                    spilled++;
+                }
+                entry.rows = null;
+            }
+            LOG.debug(String.format("[%s] spilled %d rows (%d bytes) to %s", name, spilled, rowBytes, spillFile));
+            rowBytes = 0;
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("[%s] unable to write rows to %s", name, spillFile), e);
+        }
+    }
+
+    /**
+     * Done adding rows, the index can be read.
+     */
+    public void finish() {
+        if(spillOut == null) {
+            LOG.info(String.format("[%s] indexed %d rows by %d values of [%s] in memory (%d KB)",
+                    name, rowCount, entries.size(), joinAttribute, (keyBytes + rowBytes) / 1024));
+        } else {
+            try {
+                spillOut.close();
+                spillOut = null;
+                spillIn = new RandomAccessFile(spillFile, "r");
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format("[%s] unable to read rows from %s", name, spillFile), e);
+            }
+            LOG.info(String.format("[%s] indexed %d rows by %d values of [%s], %d KB in memory, %d KB spilled to %s",
+                    name, rowCount, entries.size(), joinAttribute, (keyBytes + rowBytes) / 1024, spillLength / 1024, spillFile));
+        }
+        if(skippedCount > 0) {
+            LOG.info(String.format("[%s] %d rows have no [%s], they can't be joined", name, skippedCount, joinAttribute));
+        }
+    }
+
+    /**
+     * Get the rows whose join attribute is the value.
+     *
+     * @param value the join value of the parent row
+     * @return the rows, a new copy each time, empty if no row has the value.
+     */
+    public List<Map<String, Object>> get(Object value) {
+        lookupCount++;
+        Entry entry = entries.get(toKey(value));
+        if(entry == null) {
+            return Collections.emptyList();
+        }
+        List<Map<String, Object>> rows = new ArrayList<>(entry.offsetCount + (entry.rows == null ? 0 : entry.rows.size()));
+        try {
+            for(int i = 0; i < entry.offsetCount; i++) {
+                spillIn.seek(entry.offsets[i]);
+                byte[] encoded = new byte[spillIn.readInt()];
+                spillIn.readFully(encoded);
+                rows.add(DynamoRowCodec.decode(encoded));
+            }
+            if(entry.rows != null) {
+                for(byte[] encoded : entry.rows) {
+                    rows.add(DynamoRowCodec.decode(encoded));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("[%s] unable to read rows of [%s] from %s", name, value, spillFile), e);
+        }
+        return rows;
+    }
+
+    /**
+     * Numbers (the N values of the rows, and Number join values of the parent) are compared by
+     * value, 10, 10.0 and 1E+1 are the key "10".  Anything else is compared as it is.
+     */
+    protected static String toKey(Object value) {
+        if(value instanceof Number) {
+            try {
+                BigDecimal number = new BigDecimal(value.toString()).stripTrailingZeros();
+                if(Math.abs(number.scale()) <= MAX_NUMBER_SCALE) {
+                    return number.toPlainString();
+                }
+            } catch (NumberFormatException e) {
+                // NaN, Infinity
+            }
+        }
+        return value.toString();
+    }
+
+    @Override
+    public void close() {
+        if(lookupCount > 0) {
+            LOG.info(String.format("[%s] joined %d parent rows with %d rows", name, lookupCount, rowCount));
+        }
+        entries.clear();
+        try {
+            if(spillOut != null) {
+                spillOut.close();
+            }
+            if(spillIn != null) {
+                spillIn.close();
+            }
+        } catch (IOException e) {
+            LOG.warn(String.format("[%s] error closing %s", name, spillFile), e);
+        }
+        spillOut = null;
+        spillIn = null;
+        if(spillFile != null && !spillFile.delete()) {
+            LOG.warn(String.format("[%s] unable to delete %s", name, spillFile));
+        }
+        spillFile = null;
+    }
+}
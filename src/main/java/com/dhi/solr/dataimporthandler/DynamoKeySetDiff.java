@@ -0,0 +1,424 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefArray;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefIterator;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.Counter;
+import org.apache.solr.schema.FieldType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the documents of a solr core whose key is no longer in the dynamo table, by diffing
+ * the keys of a key-only scan of the table with the terms of the solr uniqueKey field.
+ *
+ * Neither side is held as a set of Strings, a table of tens of millions of items would need
+ * gigabytes of heap:
+ *  - dynamo keys are converted to their indexed (term) bytes and appended to a BytesRefArray,
+ *    one shared byte block with no object per key.  When the array reaches 'memoryBytes' it is
+ *    sorted and spilled to a temporary file, the runs are merged when the scan is done.
+ *  - solr keys are never loaded, the terms of the uniqueKey field are already sorted in the
+ *    same (unsigned byte) order, so the two sorted streams are merge-joined a term at a time.
+ *
+ * Every live solr key without a matching dynamo key is returned as a deleted row,
+ * {primaryKeySolr: key}, which is what DIH deletes documents by.
+ *
+ * Usage: addKey() for every key of the scan, then diff() once, then iterate.  close() releases
+ * the searcher and deletes the temporary files, it's also done when the iterator is exhausted.
+ *
+ * @author ben.demott
+ */
+public class DynamoKeySetDiff implements Iterator<Map<String, Object>>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final long DEFAULT_MEMORY_BYTES = 64L * 1024 * 1024;
+    public static final String TEMP_FILE_PREFIX = "dynamo-keys-";
+    public static final int SPILL_BUFFER_BYTES = 64 * 1024;
+
+    protected final String name;
+    protected final String solrField;
+    protected final FieldType keyType;
+    protected final File tempDirectory;
+    protected final long memoryBytes;
+
+    protected final Counter bytesUsed = Counter.newCounter();
+    protected final BytesRefArray keys = new BytesRefArray(bytesUsed);
+    protected final List<File> runs = new ArrayList<>();
+    protected final BytesRefBuilder indexed = new BytesRefBuilder();
+    protected long dynamoKeyCount = 0;
+    protected long invalidKeyCount = 0;
+
+    // merge-join state, after diff()
+    protected Closeable searcher;
+    protected BytesRefIterator dynamoKeys;
+    protected BytesRef dynamoKey;
+    protected TermsEnum solrKeys;
+    protected Bits liveDocs;
+    protected PostingsEnum postings;
+    protected final CharsRefBuilder readable = new CharsRefBuilder();
+    protected final BytesRefBuilder roundTrip = new BytesRefBuilder();
+    protected Map<String, Object> next;
+    protected long deletedCount = 0;
+
+    /**
+     * @param name used in logs (typically the entity name)
+     * @param solrField the uniqueKey field of the core
+     * @param keyType the type of the uniqueKey field, converts dynamo values to terms
+     * @param tempDirectory where sorted runs are spilled, null for java.io.tmpdir
+     * @param memoryBytes keys held in memory before a run is spilled
+     */
+    public DynamoKeySetDiff(String name, String solrField, FieldType keyType, File tempDirectory, long memoryBytes) {
+        this.name = name;
+        this.solrField = solrField;
+        this.keyType = keyType;
+        this.tempDirectory = tempDirectory;
+        this.memoryBytes = memoryBytes > 0 ? memoryBytes : DEFAULT_MEMORY_BYTES;
+    }
+
+    /**
+     * Add the key of an item of the table.
+     *
+     * @param value the key, in its readable (string) form.
+     */
+    public void addKey(Object value) {
+        if(value == null) {
+            return;
+        }
+        try {
+            indexed.clear();
+            keyType.readableToIndexed(value.toString(), indexed);
+        } catch (RuntimeException e) {
+            // can't be the key of a solr document, e.g. not a number for a numeric uniqueKey
+            invalidKeyCount++;
+            return;
+        }
+        keys.append(indexed.get());
+        dynamoKeyCount++;
+        if(bytesUsed.get() >= memoryBytes) {
+            spill();
+        }
+    }
+
+    public long getDynamoKeyCount() {
+        return dynamoKeyCount;
+    }
+
+    public long getDeletedCount() {
+        return deletedCount;
+    }
+
+    /**
+     * Start the diff, once every key has been added.
+     *
+     * @param reader the index reader of the searcher
+     * @param searcher released (decref) when the diff is closed, may be null
+     * @throws IOException
+     */
+    public void diff(IndexReader reader, Closeable searcher) throws IOException {
+        this.searcher = searcher;
+        if(invalidKeyCount > 0) {
+            LOG.warn(String.format("[%s] %d dynamo keys aren't valid values of solr field [%s], ignored", name, invalidKeyCount, solrField));
+        }
+
+        if(runs.isEmpty()) {
+            dynamoKeys = new DedupIterator(keys.iterator(Comparator.<BytesRef>naturalOrder()));
+        } else {
+            spill();
+            List<RunReader> readers = new ArrayList<>(runs.size());
+            for(File run : runs) {
+                readers.add(new RunReader(run));
+            }
+            dynamoKeys = new DedupIterator(new MergeIterator(readers));
+            LOG.info(String.format("[%s] merging %d sorted runs of %d dynamo keys", name, runs.size(), dynamoKeyCount));
+        }
+        dynamoKey = dynamoKeys.next();
+
+        Terms terms = MultiFields.getTerms(reader, solrField);
+        solrKeys = terms == null ? null : terms.iterator();
+        liveDocs = MultiFields.getLiveDocs(reader);
+    }
+
+    /**
+     * Sort the keys in memory and write them to a run file, length prefixed.
+     */
+    protected void spill() {
+        if(keys.size() == 0) {
+            return;
+        }
+        File run = null;
+        try {
+            run = File.createTempFile(TEMP_FILE_PREFIX, ".run", tempDirectory);
+            runs.add(run);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), SPILL_BUFFER_BYTES))) {
+                BytesRefIterator sorted = keys.iterator(Comparator.<BytesRef>naturalOrder());
+                for(BytesRef key = sorted.next(); key != null; key = sorted.next()) {
+                    out.writeInt(key.length);
+                    out.write(key.bytes, key.offset, key.length);
+                }
+            }
+            LOG.debug(String.format("[%s] spilled %d keys to %s", name, keys.size(), run));
+            keys.clear();
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("[%s] unable to write sorted keys to %s", name, run), e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(next != null) {
+            return true;
+        }
+        if(solrKeys == null) {
+            // no solr documents, or already closed
+            close();
+            return false;
+        }
+        try {
+            for(BytesRef term = solrKeys.next(); term != null; term = solrKeys.next()) {
+                if(!isKeyTerm(term)) {
+                    continue;
+                }
+                while(dynamoKey != null && dynamoKey.compareTo(term) < 0) {
+                    dynamoKey = dynamoKeys.next();
+                }
+                if(dynamoKey != null && dynamoKey.compareTo(term) == 0) {
+                    continue;
+                }
+                if(!isLive()) {
+                    continue;
+                }
+                next = new HashMap<>();
+                next.put(solrField, readable.toString());
+                deletedCount++;
+                return true;
+            }
+        } catch (IOException e) {
+            close();
+            throw new IllegalStateException(String.format("[%s] error reading the terms of solr field [%s]", name, solrField), e);
+        }
+        LOG.info(String.format("[%s] %d solr documents aren't in the %d dynamo keys", name, deletedCount, dynamoKeyCount));
+        close();
+        return false;
+    }
+
+    /**
+     * Numeric (trie) fields index extra lower precision terms for range queries, only the full
+     * precision term of a value converts back to the same term.
+     */
+    protected boolean isKeyTerm(BytesRef term) {
+        readable.clear();
+        keyType.indexedToReadable(term, readable);
+        roundTrip.clear();
+        keyType.readableToIndexed(readable.get(), roundTrip);
+        return roundTrip.get().equals(term);
+    }
+
+    /**
+     * A deleted document's term stays in the index until its segment is merged.
+     */
+    protected boolean isLive() throws IOException {
+        if(liveDocs == null) {
+            return true;
+        }
+        postings = solrKeys.postings(postings, PostingsEnum.NONE);
+        for(int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+            if(liveDocs.get(doc)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Map<String, Object> next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map<String, Object> row = next;
+        next = null;
+        return row;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        solrKeys = null;
+        if(dynamoKeys instanceof Closeable) {
+            try {
+                ((Closeable) dynamoKeys).close();
+            } catch (IOException e) {
+                LOG.warn(String.format("[%s] error closing sorted key runs", name), e);
+            }
+        }
+        dynamoKeys = null;
+        for(File run : runs) {
+            if(!run.delete() && run.exists()) {
+                LOG.warn(String.format("[%s] unable to delete %s", name, run));
+            }
+        }
+        runs.clear();
+        keys.clear();
+        if(searcher != null) {
+            try {
+                searcher.close();
+            } catch (IOException e) {
+                LOG.warn(String.format("[%s] error releasing the searcher", name), e);
+            }
+            searcher = null;
+        }
+    }
+
+
+    /**
+     * Skips repeated keys of a sorted iterator, a scan can return an item twice if it's
+     * written while the scan runs.
+     */
+    protected static class DedupIterator implements BytesRefIterator, Closeable {
+        final BytesRefIterator sorted;
+        final BytesRefBuilder previous = new BytesRefBuilder();
+        boolean first = true;
+
+        DedupIterator(BytesRefIterator sorted) {
+            this.sorted = sorted;
+        }
+
+        @Override
+        public BytesRef next() throws IOException {
+            for(BytesRef key = sorted.next(); key != null; key = sorted.next()) {
+                if(first || !previous.get().equals(key)) {
+                    first = false;
+                    previous.copyBytes(key);
+                    return previous.get();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(sorted instanceof Closeable) {
+                ((Closeable) sorted).close();
+            }
+        }
+    }
+
+    /**
+     * Reads the keys of one run file, in order.
+     */
+    protected static class RunReader implements BytesRefIterator, Closeable {
+        final DataInputStream in;
+        final BytesRefBuilder current = new BytesRefBuilder();
+
+        RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), SPILL_BUFFER_BYTES));
+        }
+
+        @Override
+        public BytesRef next() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            current.grow(length);
+            in.readFully(current.bytes(), 0, length);
+            current.setLength(length);
+            return current.get();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * K-way merge of the sorted runs.
+     */
+    protected static class MergeIterator implements BytesRefIterator, Closeable {
+        final List<RunReader> readers;
+        final PriorityQueue<Head> queue;
+        Head last;
+
+        MergeIterator(List<RunReader> readers) throws IOException {
+            this.readers = readers;
+            this.queue = new PriorityQueue<>(Math.max(1, readers.size()));
+            for(RunReader reader : readers) {
+                BytesRef key = reader.next();
+                if(key != null) {
+                    queue.add(new Head(reader, key));
+                }
+            }
+        }
+
+        @Override
+        public BytesRef next() throws IOException {
+            // advance the run returned last time, its key is only valid until then
+            if(last != null) {
+                BytesRef key = last.reader.next();
+                if(key != null) {
+                    last.key = key;
+                    queue.add(last);
+                }
+                last = null;
+            }
+            last = queue.poll();
+            return last == null ? null : last.key;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for(RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    protected static class Head implements Comparable<Head> {
+        final RunReader reader;
+        BytesRef key;
+
+        Head(RunReader reader, BytesRef key) {
+            this.reader = reader;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            return key.compareTo(other.key);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import java.io.Closeable;
+import java.lang.invoke.MethodHandles;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks up the item of a child entity by key, for each row of the parent entity.
+ *
+ * DIH initializes a child entity once per parent row, a Query per parent row means one round
+ * trip per row, one after the other.  Instead, when the key of the current parent row hasn't
+ * been fetched, the keys of the parent rows that come next (the rest of the parent's page, when
+ * the parent is also a dynamo entity) are fetched along with it: BatchGetItem requests of up to
+ * 100 keys, up to 'threads' requests at once.  The following parent rows are then served from
+ * the fetched items, until a key is missing again.
+ *
+ * Keys dynamo leaves unprocessed are requested again with backoff (see DynamoBatchGetter).
+ *
+ * Only the items of the latest fetch are held, so memory is bounded by the look ahead.
+ *
+ * The key may be a string (S), a number (N), or binary (B).  Binary key values are byte[] or
+ * ByteBuffer (the value of a B column of a dynamo parent), or a base64 String.
+ *
+ * @author ben.demott
+ */
+public class DynamoLookup implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_MAX_KEYS = 1000; // keys fetched at once, including the look ahead
+    public static final long IDLE_THREAD_SECONDS = 30;
+
+    protected static final Map<String, Object> NOT_FOUND = Collections.emptyMap();
+
+    protected final String name;
+    protected final DynamoBatchGetter getter;
+    protected final String keyAttribute;
+    protected final boolean numericKey;
+    protected final boolean binaryKey;
+    protected final DynamoItemConverter converter;
+    protected final int threads;
+    protected final int maxKeys;
+    protected ThreadPoolExecutor pool;
+
+    // key -> row of the latest fetch, NOT_FOUND if the table has no item
+    protected final Map<String, Map<String, Object>> fetched = new HashMap<>();
+    protected long fetchCount = 0;
+    protected long keyCount = 0;
+
+    /**
+     * @param name used in logs and to name threads (typically the entity name)
+     * @param getter fetches items of the table, by key
+     * @param keyAttribute the key attribute of the table (a table without a sort key)
+     * @param keyType S, N or B
+     * @param converter converts the items to rows
+     * @param threads batches requested at once
+     * @param maxKeys keys fetched at once
+     */
+    public DynamoLookup(String name, DynamoBatchGetter getter, String keyAttribute, String keyType,
+            DynamoItemConverter converter, int threads, int maxKeys) {
+        this.name = name;
+        this.getter = getter;
+        this.keyAttribute = keyAttribute;
+        this.numericKey = ScalarAttributeType.N.toString().equals(keyType);
+        this.binaryKey = ScalarAttributeType.B.toString().equals(keyType);
+        this.converter = converter;
+        this.threads = Math.max(1, threads);
+        this.maxKeys = Math.max(1, maxKeys);
+    }
+
+    /**
+     * Get the row of the item with the key value.
+     *
+     * @param value the key value of the current parent row
+     * @param upcoming the key values of the parent rows that follow, fetched along with value
+     *         if value hasn't been fetched yet.  May be empty.
+     * @return the row, null if the table has no item with the key
+     */
+    public Map<String, Object> get(Object value, Collection<?> upcoming) {
+        String key = toKey(value);
+        if(!fetched.containsKey(key)) {
+            Set<String> keys = new LinkedHashSet<>();
+            keys.add(key);
+            for(Object next : upcoming) {
+                if(keys.size() >= maxKeys) {
+                    break;
+                }
+                if(next != null && !next.toString().trim().isEmpty()) {
+                    keys.add(toKey(next));
+                }
+            }
+            fetch(new ArrayList<>(keys));
+        }
+        Map<String, Object> row = fetched.get(key);
+        return row == NOT_FOUND ? null : new HashMap<>(row);
+    }
+
+    /**
+     * Replace the fetched items with the items of these keys.
+     */
+    protected void fetch(List<String> keys) {
+        fetched.clear();
+        fetchCount++;
+        keyCount += keys.size();
+
+        List<List<Map<String, AttributeValue>>> batches = new ArrayList<>();
+        for(int start = 0; start < keys.size(); start += DynamoBatchGetter.MAX_BATCH_KEYS) {
+            List<Map<String, AttributeValue>> batch = new ArrayList<>();
+            for(String key : keys.subList(start, Math.min(keys.size(), start + DynamoBatchGetter.MAX_BATCH_KEYS))) {
+                batch.add(Collections.singletonMap(keyAttribute, toAttributeValue(key)));
+            }
+            batches.add(batch);
+        }
+
+        List<Map<String, AttributeValue>> items = new ArrayList<>(keys.size());
+        if(batches.size() == 1 || threads == 1) {
+            for(List<Map<String, AttributeValue>> batch : batches) {
+                items.addAll(getter.batchGet(batch));
+            }
+        } else {
+            List<Future<List<Map<String, AttributeValue>>>> results = new ArrayList<>(batches.size());
+            for(List<Map<String, AttributeValue>> batch : batches) {
+                results.add(getPool().submit(() -> getter.batchGet(batch)));
+            }
+            try {
+                for(Future<List<Map<String, AttributeValue>>> result : results) {
+                    items.addAll(result.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(String.format("[%s] interrupted fetching %d keys", name, keys.size()), e);
+            } catch (ExecutionException e) {
+                for(Future<?> result : results) {
+                    result.cancel(true);
+                }
+                if(e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(String.format("[%s] error fetching %d keys", name, keys.size()), e.getCause());
+            }
+        }
+
+        for(String key : keys) {
+            fetched.put(key, NOT_FOUND);
+        }
+        for(Map<String, AttributeValue> item : items) {
+            AttributeValue key = item.get(keyAttribute);
+            if(key != null) {
+                fetched.put(toKey(key), converter.convert(item));
+            }
+        }
+        LOG.debug(String.format("[%s] fetched %d of %d keys in %d batches", name, items.size(), keys.size(), batches.size()));
+    }
+
+    protected AttributeValue toAttributeValue(String key) {
+        if(binaryKey) {
+            return new AttributeValue().withB(ByteBuffer.wrap(Base64.getDecoder().decode(key)));
+        }
+        return numericKey ? new AttributeValue().withN(key) : new AttributeValue().withS(key);
+    }
+
+    /**
+     * The key of a value in 'fetched': binary values are base64 encoded, numbers normalized.
+     *
+     * @param value a lookup value, or the key attribute of a fetched item
+     * @return the key, null for an item whose key isn't of the key type
+     */
+    protected String toKey(Object value) {
+        if(value instanceof AttributeValue) {
+            AttributeValue attribute = (AttributeValue) value;
+            value = binaryKey ? attribute.getB() : numericKey ? attribute.getN() : attribute.getS();
+        }
+        if(value == null) {
+            return null;
+        }
+        if(binaryKey) {
+            if(value instanceof ByteBuffer) {
+                ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                value = bytes;
+            }
+            if(value instanceof byte[]) {
+                return Base64.getEncoder().encodeToString((byte[]) value);
+            }
+            try {
+                // validated now, toAttributeValue() decodes it again
+                return Base64.getEncoder().encodeToString(Base64.getDecoder().decode(value.toString().trim()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("[%s] key [%s] is binary, '%s' isn't base64", name, keyAttribute, value), e);
+            }
+        }
+        return normalize(value.toString().trim());
+    }
+
+    /**
+     * Numbers are compared by value, 1.50 is the same key as 1.5
+     */
+    protected String normalize(String key) {
+        if(!numericKey || key == null) {
+            return key;
+        }
+        try {
+            return new BigDecimal(key.trim()).stripTrailingZeros().toPlainString();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("[%s] key [%s] must be a number, not '%s'", name, keyAttribute, key), e);
+        }
+    }
+
+    protected synchronized ThreadPoolExecutor getPool() {
+        if(pool == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            pool = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, String.format("DynamoDIH-%s-lookup-%d", name, threadCount.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            });
+            pool.allowCoreThreadTimeOut(true);
+        }
+        return pool;
+    }
+
+    @Override
+    public synchronized void close() {
+        if(fetchCount > 0) {
+            LOG.info(String.format("[%s] looked up %d keys in %d fetches", name, keyCount, fetchCount));
+        }
+        if(pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+        fetched.clear();
+    }
+}
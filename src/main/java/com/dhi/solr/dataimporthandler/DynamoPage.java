@@ -0,0 +1,59 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of Query/Scan results, along with where the page was read from.
+ *
+ * startKey is the ExclusiveStartKey the page was requested with (null for the first page), so
+ * requesting the same startKey again returns this page again.  lastEvaluatedKey is the key the
+ * next page starts after, null when this is the last page of the source.
+ *
+ * The items are already converted to DIH rows, by the thread that read the page.
+ *
+ * @author ben.demott
+ */
+public class DynamoPage implements Iterable<Map<String, Object>> {
+    protected final int segment;
+    protected final Map<String, AttributeValue> startKey;
+    protected final Map<String, AttributeValue> lastEvaluatedKey;
+    protected final List<Map<String, Object>> rows;
+
+    public DynamoPage(int segment, Map<String, AttributeValue> startKey, Map<String, AttributeValue> lastEvaluatedKey, List<Map<String, Object>> rows) {
+        this.segment = segment;
+        this.startKey = startKey;
+        this.lastEvaluatedKey = lastEvaluatedKey;
+        this.rows = rows;
+    }
+
+    /**
+     * @return the scan segment this page belongs to (0 when not a parallel scan)
+     */
+    public int getSegment() {
+        return segment;
+    }
+
+    public Map<String, AttributeValue> getStartKey() {
+        return startKey;
+    }
+
+    public Map<String, AttributeValue> getLastEvaluatedKey() {
+        return lastEvaluatedKey;
+    }
+
+    public boolean isLast() {
+        return lastEvaluatedKey == null || lastEvaluatedKey.isEmpty();
+    }
+
+    public List<Map<String, Object>> getRows() {
+        return rows;
+    }
+
+    @Override
+    public Iterator<Map<String, Object>> iterator() {
+        return rows.iterator();
+    }
+}
@@ -0,0 +1,438 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the pages of a single Query, or of a single Scan segment, one request at a time.
+ *
+ * The Document API (ItemCollection) hides each page request, here every page is requested
+ * explicitly with the low level client so each request can be paced by a DynamoReadRateLimiter,
+ * and the capacity consumed by each page (ReturnConsumedCapacity) is known.
+ *
+ * A reader is an Iterable of pages so it can be handed to DynamoParallelIterator, or read on the
+ * calling thread with items().  A reader can only be iterated once.
+ * 
+ * Pages that fail with a transient error are retried from the last page that was read, see
+ * fetchPage().
+ * 
+ * A reader may be started part way through a Query/Scan with startFrom(), using a 
+ * LastEvaluatedKey saved from a previous run (see DynamoCheckpoint).
+ * 
+ * Every page, throttle and retry is recorded in the metrics of the import, if there are any
+ * (see DynamoImportMetrics).
+ *
+ * @author ben.demott
+ */
+public class DynamoPageReader implements Iterable<DynamoPage> {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int DEFAULT_RETRIES = 5; // times a failed page is retried after the client gives up (or is throttled, if rate limited)
+    public static final long DEFAULT_RETRY_BACKOFF_MS = 1000;
+    public static final long MAX_RETRY_BACKOFF_MS = 60000;
+    public static final String ERROR_THROTTLING = "ThrottlingException";
+    public static final String ERROR_REQUEST_LIMIT = "RequestLimitExceeded";
+
+    protected final AmazonDynamoDB dynamoClient;
+    protected final QueryRequest queryRequest;
+    protected final ScanRequest scanRequest;
+    protected final DynamoReadRateLimiter rateLimiter;
+    protected final String name;
+    protected int segment = 0;
+    protected int maxRetries = DEFAULT_RETRIES;
+    protected long retryBackoffMs = DEFAULT_RETRY_BACKOFF_MS;
+    protected DynamoBatchGetter backfill;
+    protected DynamoItemConverter converter = DynamoItemConverter.DEFAULT;
+    protected DynamoImportMetrics metrics;
+
+    protected Map<String, AttributeValue> lastEvaluatedKey;
+    protected boolean finished = false;
+    protected long pageCount = 0;
+
+    /**
+     * @param dynamoClient the low level client
+     * @param queryRequest the Query to page through, or null to Scan.
+     * @param scanRequest the Scan (segment) to page through, or null to Query.
+     * @param rateLimiter paces requests, may be null.
+     */
+    protected DynamoPageReader(AmazonDynamoDB dynamoClient, QueryRequest queryRequest, ScanRequest scanRequest, DynamoReadRateLimiter rateLimiter) {
+        this.dynamoClient = dynamoClient;
+        this.queryRequest = queryRequest;
+        this.scanRequest = scanRequest;
+        this.rateLimiter = rateLimiter;
+        this.name = queryRequest != null ? queryRequest.getTableName() : scanRequest.getTableName();
+    }
+
+    public static DynamoPageReader forQuery(AmazonDynamoDB dynamoClient, QueryRequest request, DynamoReadRateLimiter rateLimiter) {
+        request.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        return new DynamoPageReader(dynamoClient, request, null, rateLimiter);
+    }
+
+    public static DynamoPageReader forScan(AmazonDynamoDB dynamoClient, ScanRequest request, DynamoReadRateLimiter rateLimiter) {
+        request.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        return new DynamoPageReader(dynamoClient, null, request, rateLimiter);
+    }
+
+    /**
+     * Identify the pages of this reader as belonging to a scan segment.
+     * 
+     * @param segment
+     * @return this reader
+     */
+    public DynamoPageReader withSegment(int segment) {
+        this.segment = segment;
+        return this;
+    }
+    
+    /**
+     * Set how failed pages are retried.
+     * 
+     * @param maxRetries the number of times to retry a page, 0 to fail straight away.
+     * @param retryBackoffMs the wait before the first retry, doubled for each retry after that.
+     * @return this reader
+     */
+    public DynamoPageReader withRetries(int maxRetries, long retryBackoffMs) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryBackoffMs = Math.max(1, retryBackoffMs);
+        return this;
+    }
+    
+    /**
+     * Set how the items of a page are converted to rows, on the thread reading the page.
+     * 
+     * @param converter null for the default conversion
+     * @return this reader
+     */
+    public DynamoPageReader withConverter(DynamoItemConverter converter) {
+        this.converter = converter == null ? DynamoItemConverter.DEFAULT : converter;
+        return this;
+    }
+    
+    /**
+     * Record the pages of this reader in the metrics of the import.
+     * 
+     * @param metrics null to not record the pages
+     * @return this reader
+     */
+    public DynamoPageReader withMetrics(DynamoImportMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+    
+    /**
+     * Start reading after the given key instead of at the beginning.
+     * 
+     * @param exclusiveStartKey a LastEvaluatedKey returned by an earlier request, null to start 
+     *         at the beginning.
+     * @return this reader
+     */
+    public DynamoPageReader startFrom(Map<String, AttributeValue> exclusiveStartKey) {
+        if(exclusiveStartKey != null && !exclusiveStartKey.isEmpty()) {
+            LOG.info(String.format("[%s] segment %d resuming from key: %s", name, segment, exclusiveStartKey));
+            this.lastEvaluatedKey = exclusiveStartKey;
+        }
+        return this;
+    }
+
+    /**
+     * Fill in the items of every page with attributes the index doesn't project, before the 
+     * page is returned.
+     * 
+     * A global secondary index can only return projected attributes, so the projection 
+     * expression is removed from the index request, and applied to the base table instead.
+     * 
+     * @param backfill fetches the missing attributes, null to return index items as they are.
+     * @return this reader
+     */
+    public DynamoPageReader withBackfill(DynamoBatchGetter backfill) {
+        this.backfill = backfill;
+        if(backfill != null) {
+            if(queryRequest != null) {
+                queryRequest.withProjectionExpression(null)
+                        .withExpressionAttributeNames(usedNames(queryRequest.getExpressionAttributeNames(), 
+                                queryRequest.getKeyConditionExpression(), queryRequest.getFilterExpression()));
+            } else {
+                scanRequest.withProjectionExpression(null)
+                        .withExpressionAttributeNames(usedNames(scanRequest.getExpressionAttributeNames(), 
+                                scanRequest.getFilterExpression()));
+            }
+        }
+        return this;
+    }
+    
+    /**
+     * Dynamo rejects a request with ExpressionAttributeNames that none of its expressions use.
+     * 
+     * A placeholder is used when it appears as a whole token, #a is not used by "#ab = :v".
+     * 
+     * @param names ExpressionAttributeNames, may be null
+     * @param expressions the expressions of the request, nulls are ignored
+     * @return the names that appear in one of the expressions, null if there are none.
+     */
+    public static Map<String, String> usedNames(Map<String, String> names, String... expressions) {
+        if(names == null) {
+            return null;
+        }
+        Map<String, String> used = new HashMap<>();
+        for(Map.Entry<String, String> name : names.entrySet()) {
+            for(String expression : expressions) {
+                if(usesPlaceholder(expression, name.getKey())) {
+                    used.put(name.getKey(), name.getValue());
+                    break;
+                }
+            }
+        }
+        return used.isEmpty() ? null : used;
+    }
+    
+    /**
+     * @param expression an expression, may be null
+     * @param placeholder e.g. #name or :value
+     * @return true if the placeholder appears in the expression, not followed by another 
+     *         character of a placeholder name.
+     */
+    public static boolean usesPlaceholder(String expression, String placeholder) {
+        if(expression == null || placeholder == null || placeholder.isEmpty()) {
+            return false;
+        }
+        int idx = expression.indexOf(placeholder);
+        while(idx != -1) {
+            int end = idx + placeholder.length();
+            if(end >= expression.length() || !isPlaceholderChar(expression.charAt(end))) {
+                return true;
+            }
+            idx = expression.indexOf(placeholder, idx + 1);
+        }
+        return false;
+    }
+    
+    protected static boolean isPlaceholderChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * Build a QueryRequest from the query parameters.
+     *
+     * @param tableName
+     * @param queryParams
+     * @return
+     */
+    public static QueryRequest newQueryRequest(String tableName, DynamoQueryParameters queryParams) {
+        QueryRequest request = new QueryRequest()
+                .withTableName(tableName)
+                .withIndexName(queryParams.getIndexName())
+                .withKeyConditionExpression(queryParams.getKeyConditionExpression())
+                .withFilterExpression(queryParams.getFilterExpression())
+                .withProjectionExpression(queryParams.getProjectionExpression());
+
+        if(queryParams.getNameMap() != null) {
+            request.withExpressionAttributeNames(queryParams.getNameMap());
+        }
+        if(queryParams.getValueMap() != null) {
+            request.withExpressionAttributeValues(ItemUtils.fromSimpleMap(queryParams.getValueMap()));
+        }
+        return request;
+    }
+
+    /**
+     * Build a ScanRequest from the query parameters, a new request is needed for each segment.
+     *
+     * @param tableName
+     * @param queryParams
+     * @return
+     */
+    public static ScanRequest newScanRequest(String tableName, DynamoQueryParameters queryParams) {
+        ScanRequest request = new ScanRequest()
+                .withTableName(tableName)
+                .withIndexName(queryParams.getIndexName())
+                .withFilterExpression(queryParams.getFilterExpression())
+                .withProjectionExpression(queryParams.getProjectionExpression());
+
+        if(queryParams.getNameMap() != null) {
+            request.withExpressionAttributeNames(queryParams.getNameMap());
+        }
+        if(queryParams.getValueMap() != null) {
+            request.withExpressionAttributeValues(ItemUtils.fromSimpleMap(queryParams.getValueMap()));
+        }
+        return request;
+    }
+
+    /**
+     * Request the next page, waiting on the rate limiter first (if there is one).
+     * 
+     * If the request fails with a transient error (throttling, a 5xx response, or a network 
+     * error) after the client has used up its own retries, the reader backs off and requests the
+     * same page again.  The exclusive start key only moves forward when a page is read, so a 
+     * retry always starts from the last page that was read successfully.
+     * After maxRetries consecutive failures of the same page the error is thrown.
+     *
+     * @return the page, pages may be empty when a filter expression is used.
+     */
+    protected DynamoPage fetchPage() {
+        int attempt = 0;
+        while(true) {
+            long backoffMs;
+            try {
+                if(rateLimiter != null) {
+                    long waitStarted = System.nanoTime();
+                    rateLimiter.acquire();
+                    if(metrics != null) {
+                        metrics.rateLimited(System.nanoTime() - waitStarted);
+                    }
+                }
+                return request();
+            } catch (AmazonClientException e) {
+                if(!isTransient(e) || attempt >= maxRetries) {
+                    throw e;
+                }
+                attempt++;
+                boolean throttle = isThrottle(e);
+                if(rateLimiter != null && throttle) {
+                    rateLimiter.throttled();
+                }
+                if(metrics != null) {
+                    metrics.retried();
+                    if(throttle) {
+                        metrics.throttled();
+                    }
+                }
+                backoffMs = getBackoff(attempt);
+                LOG.warn(String.format("[%s] segment %d page %d failed: %s, retry %d of %d in %d ms", 
+                        name, segment, pageCount + 1, e.getMessage(), attempt, maxRetries, backoffMs));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(String.format("[%s] interrupted waiting for read capacity", name), e);
+            }
+            
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(String.format("[%s] interrupted waiting to retry", name), e);
+            }
+        }
+    }
+    
+    /**
+     * Exponential backoff with jitter, between half and all of retryBackoffMs * 2^(attempt-1),
+     * never more than MAX_RETRY_BACKOFF_MS.
+     */
+    protected long getBackoff(int attempt) {
+        long backoff = Math.min(MAX_RETRY_BACKOFF_MS, retryBackoffMs << Math.min(attempt - 1, 16));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+    
+    /**
+     * @return true if the request may succeed when it's sent again.
+     */
+    protected static boolean isTransient(AmazonClientException e) {
+        if(e instanceof AmazonServiceException) {
+            AmazonServiceException serviceError = (AmazonServiceException) e;
+            return serviceError.getStatusCode() >= 500 || isThrottle(serviceError);
+        }
+        // no response from dynamo (connection / timeout)
+        return e.isRetryable();
+    }
+    
+    protected static boolean isThrottle(AmazonClientException e) {
+        if(e instanceof ProvisionedThroughputExceededException) {
+            return true;
+        }
+        if(e instanceof AmazonServiceException) {
+            String errorCode = ((AmazonServiceException) e).getErrorCode();
+            return ERROR_THROTTLING.equals(errorCode) || ERROR_REQUEST_LIMIT.equals(errorCode);
+        }
+        return false;
+    }
+
+    /**
+     * Send one Query/Scan request starting from the last evaluated key.
+     */
+    protected DynamoPage request() {
+        Map<String, AttributeValue> startKey = lastEvaluatedKey;
+        List<Map<String, AttributeValue>> items;
+        Map<String, AttributeValue> nextKey;
+        ConsumedCapacity consumed;
+        Integer scanned;
+        long requestStarted = System.nanoTime();
+        if(queryRequest != null) {
+            queryRequest.setExclusiveStartKey(lastEvaluatedKey);
+            QueryResult result = dynamoClient.query(queryRequest);
+            items = result.getItems();
+            nextKey = result.getLastEvaluatedKey();
+            consumed = result.getConsumedCapacity();
+            scanned = result.getScannedCount();
+        } else {
+            scanRequest.setExclusiveStartKey(lastEvaluatedKey);
+            ScanResult result = dynamoClient.scan(scanRequest);
+            items = result.getItems();
+            nextKey = result.getLastEvaluatedKey();
+            consumed = result.getConsumedCapacity();
+            scanned = result.getScannedCount();
+        }
+        long requestNanos = System.nanoTime() - requestStarted;
+
+        if(rateLimiter != null && consumed != null && consumed.getCapacityUnits() != null) {
+            rateLimiter.consumed(consumed.getCapacityUnits());
+        }
+        
+        if(backfill != null) {
+            // before moving on, so if this fails the page is retried
+            items = backfill.fill(items);
+        }
+        lastEvaluatedKey = nextKey;
+        
+        if(metrics != null) {
+            long pageBytes = 0;
+            for(Map<String, AttributeValue> item : items) {
+                pageBytes += DynamoImportMetrics.itemBytes(item);
+            }
+            metrics.pageRead(items.size(), scanned == null ? items.size() : scanned, pageBytes, 
+                    consumed == null ? null : consumed.getCapacityUnits(), requestNanos);
+        }
+
+        pageCount++;
+        finished = lastEvaluatedKey == null || lastEvaluatedKey.isEmpty();
+        if(finished) {
+            LOG.debug(String.format("[%s] finished reading after %d pages", name, pageCount));
+        }
+        return new DynamoPage(segment, startKey, lastEvaluatedKey, converter.convertAll(items));
+    }
+
+    @Override
+    public Iterator<DynamoPage> iterator() {
+        return new Iterator<DynamoPage>() {
+            @Override
+            public boolean hasNext() {
+                return !finished;
+            }
+
+            @Override
+            public DynamoPage next() {
+                if(finished) {
+                    throw new NoSuchElementException();
+                }
+                return fetchPage();
+            }
+        };
+    }
+}
@@ -0,0 +1,225 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the pages of several paged sources into a single Iterator of pages, each source is 
+ * drained by a worker thread.
+ *
+ * Every source is an Iterable of pages, for dynamo this is typically a DynamoPageReader for a 
+ * Query, or for one Scan segment.  Workers place whole pages on a bounded queue, and the thread 
+ * calling hasNext() / next() (the DIH thread) takes them off.
+ * Pages from different sources are interleaved in the order they arrive, there is no ordering
+ * guarantee between sources, pages of the same source are always returned in order.
+ *
+ * The queue is bounded, so workers only ever read (queueCapacity) pages ahead of the consumer.
+ *
+ * If any source throws (an Error too, e.g. OutOfMemoryError), the error is re-thrown from 
+ * hasNext() on the consuming thread, and the remaining workers are stopped.  Always close() the
+ * iterator if it isn't fully consumed, otherwise worker threads will stay blocked on the queue.
+ *
+ * @author ben.demott
+ * @param <P> The page type
+ */
+public class DynamoParallelIterator<P> implements Iterator<P>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String THREAD_PREFIX = "DynamoDIH-";
+
+    protected final String name;
+    protected final int sourceCount;
+    protected final BlockingQueue<Batch<P>> queue;
+    protected final ExecutorService executor;
+
+    protected P nextPage = null;
+    protected int finishedSources = 0;
+    protected volatile boolean closed = false;
+
+    /**
+     * Start reading all sources immediately, sources are read by at most 'threads' workers.
+     *
+     * @param name Used to name worker threads, and in logs.
+     * @param sources Each source is an Iterable of pages.
+     * @param threads Maximum number of sources read concurrently.
+     * @param queueCapacity Maximum number of pages held in memory waiting for the consumer.
+     */
+    public DynamoParallelIterator(String name, List<? extends Iterable<? extends P>> sources, int threads, int queueCapacity) {
+        this.name = name;
+        this.sourceCount = sources.size();
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, sourceCount)), new WorkerThreadFactory(name));
+
+        LOG.debug(String.format("[%s] reading %d sources with %d threads, queue capacity: %d pages", name, sourceCount, threads, queueCapacity));
+
+        for (int i = 0; i < sourceCount; i++) {
+            final Iterable<? extends P> source = sources.get(i);
+            final int sourceNum = i;
+            executor.submit(() -> readSource(source, sourceNum));
+        }
+        executor.shutdown(); // no more tasks, threads exit after the last source finishes
+    }
+
+    /**
+     * Worker body, read every page from the source and place it on the queue.
+     * The last thing a worker places on the queue is always an end marker, whatever the source
+     * throws, otherwise the consumer would wait for this source forever.
+     */
+    protected void readSource(Iterable<? extends P> source, int sourceNum) {
+        Throwable error = null;
+        Iterator<? extends P> pages = null;
+        try {
+            pages = source.iterator();
+            while (pages.hasNext()) {
+                P page = pages.next();
+                if(closed) {
+                    return;
+                }
+                queue.put(new Batch<>(page, null, false));
+            }
+        } catch (InterruptedException e) {
+            // close() was called, nobody is waiting for the rest of this source.
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            LOG.warn(String.format("[%s] error reading source %d: %s", name, sourceNum, e));
+            error = e;
+        } finally {
+            // a source that holds a resource (a file) releases it, even when it isn't read to the end
+            if(pages instanceof Closeable) {
+                try {
+                    ((Closeable) pages).close();
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn(String.format("[%s] error closing source %d", name, sourceNum), e);
+                }
+            }
+            finishSource(error);
+        }
+    }
+    
+    /**
+     * Place the end marker of a source on the queue, unless the iterator is closed (nobody is 
+     * waiting for it, and the queue may be full).
+     */
+    protected void finishSource(Throwable error) {
+        if(closed) {
+            return;
+        }
+        try {
+            queue.put(new Batch<>(null, error, true));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextPage == null) {
+            if(closed || finishedSources >= sourceCount) {
+                return false;
+            }
+
+            Batch<P> batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException(String.format("[%s] interrupted waiting for dynamo results", name), e);
+            }
+
+            if(batch.last) {
+                finishedSources++;
+                if(batch.error != null) {
+                    close();
+                    if(batch.error instanceof Error) {
+                        throw (Error) batch.error;
+                    }
+                    if(batch.error instanceof RuntimeException) {
+                        throw (RuntimeException) batch.error;
+                    }
+                    throw new IllegalStateException(String.format("[%s] error reading dynamo results", name), batch.error);
+                }
+            } else {
+                nextPage = batch.page;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public P next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        P page = nextPage;
+        nextPage = null;
+        return page;
+    }
+
+    @Override
+    public void remove() {
+        // do nothing.
+    }
+
+    /**
+     * Stop all workers, any pages not yet consumed are discarded.
+     */
+    @Override
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        executor.shutdownNow();
+        queue.clear();
+        LOG.debug(String.format("[%s] closed, %d of %d sources finished", name, finishedSources, sourceCount));
+    }
+
+
+    /**
+     * A page of results, or the end marker of a source (with the error that ended it, if any)
+     */
+    protected static class Batch<P> {
+        final P page;
+        final Throwable error;
+        final boolean last;
+
+        Batch(P page, Throwable error, boolean last) {
+            this.page = page;
+            this.error = error;
+            this.last = last;
+        }
+    }
+
+    /**
+     * Names worker threads so they are identifiable in thread dumps, workers are daemons so an
+     * abandoned import never holds up a Solr shutdown.
+     */
+    protected static class WorkerThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String name) {
+            this.prefix = THREAD_PREFIX + name + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts a value nested in a map (M) or list (L) attribute, for a <field> whose column is a
+ * document path:
+ *
+ *   <field column="address.city" name="city" />
+ *   <field column="jobs[0].title" name="current_title" />
+ *   <field column="skills[*].name" name="skills" />
+ *
+ * A path is a top level attribute name, followed by map keys (.name) and list elements ([n]).
+ * [*] selects every element of a list (or set), the field value is then a List of the values
+ * found, for a multi-valued solr field.
+ *
+ * Dynamo allows . and [ in attribute names, a name quoted with backticks is taken literally:
+ *
+ *   <field column="`order.id`" name="order_id" />
+ *   <field column="`address.v2`.city" name="city" />
+ *
+ * An unquoted path may also be the name of a top level attribute, when the item has an
+ * attribute named like the whole column, that attribute is used instead (see DynamoItemConverter),
+ * and both are projected (see DynamoEntityProcessor.getProjectionPaths()).
+ *
+ * The path is parsed once per entity, then applied to every item while it is converted to a row
+ * (see DynamoItemConverter), so no transformer is needed to dig the value out of the map.
+ *
+ * The extracted value is converted like a top level attribute: to the column's type when it has
+ * one (convertType), otherwise numbers are Strings.
+ *
+ * @author ben.demott
+ */
+public class DynamoPathExtractor {
+    protected static final int KEY = -1; // the step is a map key
+    protected static final int ALL = -2; // the step is [*]
+    public static final char QUOTE = '`'; // quotes a name that contains . or [
+
+    protected final String column;
+    protected final String attributeName;
+    protected final String[] keys; // map key of each step (KEY steps)
+    protected final int[] indexes; // list index of each step, or KEY / ALL
+    protected final boolean multiValued;
+    protected final boolean quoted;
+    protected final DynamoColumnType type;
+
+    protected DynamoPathExtractor(String column, String attributeName, List<String> keys, List<Integer> indexes, DynamoColumnType type) {
+        this.column = column;
+        this.quoted = column.indexOf(QUOTE) >= 0;
+        this.attributeName = attributeName;
+        this.keys = keys.toArray(new String[keys.size()]);
+        this.indexes = new int[indexes.size()];
+        boolean all = false;
+        for(int i = 0; i < this.indexes.length; i++) {
+            this.indexes[i] = indexes.get(i);
+            all |= this.indexes[i] == ALL;
+        }
+        this.multiValued = all;
+        this.type = type;
+    }
+
+    /**
+     * @return true if the column looks like a document path (or a quoted name), rather than an 
+     *         attribute name.
+     */
+    public static boolean isPath(String column) {
+        return column != null && (column.indexOf('.') >= 0 || column.indexOf('[') >= 0 || column.indexOf(QUOTE) >= 0);
+    }
+
+    /**
+     * Parse a document path.
+     *
+     * @param column the path, as used in the column attribute of the <field>
+     * @param type the type to convert the value to, null to convert it like an untyped column
+     * @return the extractor
+     * @throws IllegalArgumentException if the path is malformed
+     */
+    public static DynamoPathExtractor compile(String column, DynamoColumnType type) {
+        List<String> keys = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        String attributeName = null;
+
+        int pos = 0;
+        int length = column.length();
+        while(pos <= length) {
+            String name;
+            int end;
+            if(pos < length && column.charAt(pos) == QUOTE) {
+                // a quoted name, up to the closing quote
+                end = column.indexOf(QUOTE, pos + 1);
+                if(end < 0) {
+                    throw new IllegalArgumentException(String.format("Malformed path [%s], missing closing %s", column, QUOTE));
+                }
+                name = column.substring(pos + 1, end);
+                end++;
+            } else {
+                // a name, up to the next . or [
+                end = pos;
+                while(end < length && column.charAt(end) != '.' && column.charAt(end) != '[') {
+                    if(column.charAt(end) == QUOTE) {
+                        throw new IllegalArgumentException(String.format("Malformed path [%s], %s inside a name at position %d", column, QUOTE, end));
+                    }
+                    end++;
+                }
+                name = column.substring(pos, end).trim();
+            }
+            if(name.isEmpty()) {
+                throw new IllegalArgumentException(String.format("Malformed path [%s], empty name at position %d", column, pos));
+            }
+            if(attributeName == null) {
+                attributeName = name;
+            } else {
+                keys.add(name);
+                indexes.add(KEY);
+            }
+            pos = end;
+
+            // any number of [n] or [*]
+            while(pos < length && column.charAt(pos) == '[') {
+                int close = column.indexOf(']', pos);
+                if(close < 0) {
+                    throw new IllegalArgumentException(String.format("Malformed path [%s], missing ]", column));
+                }
+                String index = column.substring(pos + 1, close).trim();
+                if(index.equals("*")) {
+                    indexes.add(ALL);
+                } else {
+                    try {
+                        indexes.add(Integer.parseInt(index));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(String.format("Malformed path [%s], [%s] isn't a list index or *", column, index));
+                    }
+                    if(indexes.get(indexes.size() - 1) < 0) {
+                        throw new IllegalArgumentException(String.format("Malformed path [%s], negative list index", column));
+                    }
+                }
+                keys.add(null);
+                pos = close + 1;
+            }
+
+            if(pos >= length) {
+                break;
+            }
+            if(column.charAt(pos) != '.') {
+                throw new IllegalArgumentException(String.format("Malformed path [%s], expected . at position %d", column, pos));
+            }
+            pos++;
+        }
+        return new DynamoPathExtractor(column, attributeName, keys, indexes, type);
+    }
+
+    /**
+     * @return the column (the whole path), the name of the value in the row.
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * @return true if the column quotes a name, it can't be the name of a top level attribute.
+     */
+    public boolean isQuoted() {
+        return quoted;
+    }
+
+    /**
+     * @return the top level attribute the path starts from
+     */
+    public String getAttributeName() {
+        return attributeName;
+    }
+
+    /**
+     * The part of the path that can be used in a projection expression: the attribute and the
+     * map keys up to the first list index.  A projected list only returns the projected
+     * elements (renumbered from 0), so lists are always projected whole.
+     *
+     * @return attribute name, then map keys
+     */
+    public List<String> getProjectionPath() {
+        List<String> path = new ArrayList<>();
+        path.add(attributeName);
+        for(int i = 0; i < indexes.length && indexes[i] == KEY; i++) {
+            path.add(keys[i]);
+        }
+        return path;
+    }
+
+    /**
+     * Extract the value of the path from an item.
+     *
+     * @param item
+     * @return the converted value, a List for a path with [*], null if the item has no value
+     *         at the path.
+     */
+    public Object extract(Map<String, AttributeValue> item) {
+        AttributeValue root = item.get(attributeName);
+        if(root == null) {
+            return null;
+        }
+        if(!multiValued) {
+            AttributeValue value = find(root, 0);
+            return value == null ? null : convert(value);
+        }
+        List<AttributeValue> found = new ArrayList<>();
+        collect(root, 0, found);
+        if(found.isEmpty()) {
+            return null;
+        }
+        List<Object> values = new ArrayList<>(found.size());
+        for(AttributeValue value : found) {
+            Object converted = convert(value);
+            if(converted instanceof Collection) {
+                values.addAll((Collection<?>) converted); // flatten, solr fields are a single list
+            } else if(converted != null) {
+                values.add(converted);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Follow the path from step, when there is no [*]
+     */
+    protected AttributeValue find(AttributeValue value, int step) {
+        for(int i = step; i < indexes.length && value != null; i++) {
+            value = indexes[i] == KEY ? child(value, keys[i]) : element(value, indexes[i]);
+        }
+        return value;
+    }
+
+    /**
+     * Follow the path from step, every element of a [*] is followed.
+     */
+    protected void collect(AttributeValue value, int step, List<AttributeValue> found) {
+        for(int i = step; i < indexes.length; i++) {
+            if(value == null) {
+                return;
+            }
+            if(indexes[i] == ALL) {
+                for(AttributeValue element : elements(value)) {
+                    collect(element, i + 1, found);
+                }
+                return;
+            }
+            value = indexes[i] == KEY ? child(value, keys[i]) : element(value, indexes[i]);
+        }
+        if(value != null) {
+            found.add(value);
+        }
+    }
+
+    protected static AttributeValue child(AttributeValue value, String key) {
+        return value.getM() == null ? null : value.getM().get(key);
+    }
+
+    protected static AttributeValue element(AttributeValue value, int index) {
+        List<AttributeValue> list = value.getL();
+        if(list != null) {
+            return index < list.size() ? list.get(index) : null;
+        }
+        if(value.getSS() != null) {
+            return index < value.getSS().size() ? new AttributeValue().withS(value.getSS().get(index)) : null;
+        }
+        if(value.getNS() != null) {
+            return index < value.getNS().size() ? new AttributeValue().withN(value.getNS().get(index)) : null;
+        }
+        return null;
+    }
+
+    protected static List<AttributeValue> elements(AttributeValue value) {
+        if(value.getL() != null) {
+            return value.getL();
+        }
+        if(value.getSS() != null) {
+            List<AttributeValue> elements = new ArrayList<>(value.getSS().size());
+            for(String element : value.getSS()) {
+                elements.add(new AttributeValue().withS(element));
+            }
+            return elements;
+        }
+        if(value.getNS() != null) {
+            List<AttributeValue> elements = new ArrayList<>(value.getNS().size());
+            for(String element : value.getNS()) {
+                elements.add(new AttributeValue().withN(element));
+            }
+            return elements;
+        }
+        return Collections.emptyList();
+    }
+
+    protected Object convert(AttributeValue value) {
+        if(type != null) {
+            return type.convert(value);
+        }
+        if(value.getN() != null) {
+            return value.getN();
+        }
+        return DynamoItemConverter.toValue(value);
+    }
+
+    @Override
+    public String toString() {
+        return column;
+    }
+}
@@ -2,6 +2,8 @@ package com.dhi.solr.dataimporthandler;
 
 import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
 import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Dynamo provides QueryExpressionSpec, but this, or ExpressionSpecBuilder does not provide
@@ -29,6 +31,25 @@ public class DynamoQueryParameters {
     protected String filterExpression;
     protected String projectionExpression;
     protected String keyConditionExpression;
+    protected int totalSegments = 1;
+    protected int scanThreads = 0;
+    protected int prefetchPages = 0;
+    protected double targetReadCapacityPercent = 0;
+    protected double maxRcuPerSecond = 0;
+    protected DynamoCheckpoint checkpoint;
+    protected DynamoImportMetrics metrics;
+    protected int pageRetries = DynamoPageReader.DEFAULT_RETRIES;
+    protected long pageRetryBackoffMs = DynamoPageReader.DEFAULT_RETRY_BACKOFF_MS;
+    protected List<Object> partitionKeyValues;
+    protected String partitionKeyValueName;
+    protected int queryThreads = 1;
+    protected String indexName;
+    protected boolean indexBackfill = false;
+    protected Collection<String> requiredAttributes;
+    protected boolean referenceCache = false;
+    protected int referenceCacheTtlSeconds = DynamoReferenceCache.DEFAULT_TTL_SECONDS;
+    protected int referenceCacheMaxItems = DynamoReferenceCache.DEFAULT_MAX_ITEMS;
+    protected String numberColumn;
     
     ///// SET /////////////////////////////////////////////
     public void setNameMap(NameMap nameMap) {
@@ -55,6 +76,82 @@ public class DynamoQueryParameters {
         this.keyConditionExpression = keyConditionExpression;
     }
     
+    public void setTotalSegments(int totalSegments) {
+        this.totalSegments = Math.max(1, totalSegments);
+    }
+    
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+    
+    public void setPrefetchPages(int prefetchPages) {
+        this.prefetchPages = Math.max(0, prefetchPages);
+    }
+    
+    public void setTargetReadCapacityPercent(double targetReadCapacityPercent) {
+        this.targetReadCapacityPercent = targetReadCapacityPercent;
+    }
+    
+    public void setMaxRcuPerSecond(double maxRcuPerSecond) {
+        this.maxRcuPerSecond = maxRcuPerSecond;
+    }
+    
+    public void setCheckpoint(DynamoCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+    
+    public void setMetrics(DynamoImportMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    public void setPageRetries(int pageRetries) {
+        this.pageRetries = pageRetries;
+    }
+    
+    public void setPageRetryBackoffMs(long pageRetryBackoffMs) {
+        this.pageRetryBackoffMs = pageRetryBackoffMs;
+    }
+    
+    public void setPartitionKeyValues(List<Object> partitionKeyValues) {
+        this.partitionKeyValues = partitionKeyValues;
+    }
+    
+    public void setPartitionKeyValueName(String partitionKeyValueName) {
+        this.partitionKeyValueName = partitionKeyValueName;
+    }
+    
+    public void setQueryThreads(int queryThreads) {
+        this.queryThreads = Math.max(1, queryThreads);
+    }
+    
+    public void setIndexName(String indexName) {
+        this.indexName = indexName;
+    }
+    
+    public void setIndexBackfill(boolean indexBackfill) {
+        this.indexBackfill = indexBackfill;
+    }
+    
+    public void setRequiredAttributes(Collection<String> requiredAttributes) {
+        this.requiredAttributes = requiredAttributes;
+    }
+    
+    public void setNumberColumn(String numberColumn) {
+        this.numberColumn = numberColumn;
+    }
+    
+    public void setReferenceCache(boolean referenceCache) {
+        this.referenceCache = referenceCache;
+    }
+    
+    public void setReferenceCacheTtlSeconds(int referenceCacheTtlSeconds) {
+        this.referenceCacheTtlSeconds = referenceCacheTtlSeconds;
+    }
+    
+    public void setReferenceCacheMaxItems(int referenceCacheMaxItems) {
+        this.referenceCacheMaxItems = referenceCacheMaxItems;
+    }
+    
     ///// GET ////////////////////////////////////////////
     public NameMap getNameMap() {
         return this.nameMap;
@@ -76,6 +173,138 @@ public class DynamoQueryParameters {
         return this.keyConditionExpression;
     }
     
+    public int getTotalSegments() {
+        return this.totalSegments;
+    }
+    
+    /**
+     * @return the number of threads to scan with, defaults to one thread per segment.
+     */
+    public int getScanThreads() {
+        if(scanThreads <= 0) {
+            return totalSegments;
+        }
+        return Math.min(scanThreads, totalSegments);
+    }
+    
+    /**
+     * @return the number of pages to read ahead of DIH on a background thread, 0 is disabled.
+     */
+    public int getPrefetchPages() {
+        return this.prefetchPages;
+    }
+    
+    /**
+     * @return percentage of the tables provisioned read capacity to use, 0 is unlimited.
+     */
+    public double getTargetReadCapacityPercent() {
+        return this.targetReadCapacityPercent;
+    }
+    
+    /**
+     * @return maximum read capacity units to consume per second, 0 is unlimited.
+     */
+    public double getMaxRcuPerSecond() {
+        return this.maxRcuPerSecond;
+    }
+    
+    /**
+     * @return the checkpoint that records the progress of the import, null if not checkpointing.
+     */
+    public DynamoCheckpoint getCheckpoint() {
+        return this.checkpoint;
+    }
+    
+    /**
+     * @return records the pages read for the entity, null if not recorded.
+     */
+    public DynamoImportMetrics getMetrics() {
+        return this.metrics;
+    }
+    
+    /**
+     * @return times a failed page is retried, after the dynamo client has given up.
+     */
+    public int getPageRetries() {
+        return this.pageRetries;
+    }
+    
+    public long getPageRetryBackoffMs() {
+        return this.pageRetryBackoffMs;
+    }
+    
+    /**
+     * @return values of the partition key to run the query for (one query per value), null if
+     *         the query isn't a fan-out query.
+     */
+    public List<Object> getPartitionKeyValues() {
+        return this.partitionKeyValues;
+    }
+    
+    /**
+     * @return the ValueMap placeholder each partition key value is bound to, such as ':pk'
+     */
+    public String getPartitionKeyValueName() {
+        return this.partitionKeyValueName;
+    }
+    
+    /**
+     * @return the number of fan-out queries to run at once.
+     */
+    public int getQueryThreads() {
+        return this.queryThreads;
+    }
+    
+    /**
+     * @return the secondary index to Query/Scan, null for the table itself.
+     */
+    public String getIndexName() {
+        return this.indexName;
+    }
+    
+    /**
+     * @return true to fetch attributes the index doesn't project from the table.
+     */
+    public boolean isIndexBackfill() {
+        return this.indexBackfill;
+    }
+    
+    /**
+     * @return a column whose N values are read as numbers (BigDecimal) even if it isn't typed, 
+     *         so they can be told apart from S values (the join key of a join scan), or null.
+     */
+    public String getNumberColumn() {
+        return this.numberColumn;
+    }
+    
+    /**
+     * @return the dynamo attributes the entity maps to solr fields.
+     */
+    public Collection<String> getRequiredAttributes() {
+        return this.requiredAttributes;
+    }
+    
+    /**
+     * @return true to read the rows from the JVM wide reference cache (see DynamoReferenceCache).
+     */
+    public boolean isReferenceCache() {
+        return this.referenceCache;
+    }
+    
+    /**
+     * @return how long cached rows are used before the table is read again.
+     */
+    public int getReferenceCacheTtlSeconds() {
+        return this.referenceCacheTtlSeconds;
+    }
+    
+    /**
+     * @return tables with more rows than this aren't cached.
+     */
+    public int getReferenceCacheMaxItems() {
+        return this.referenceCacheMaxItems;
+    }
+    
     @Override
     public String toString() {
         
@@ -88,16 +317,30 @@ public class DynamoQueryParameters {
             valueMapDebug = valueMap.toString();
         }
         
-        return String.format("Key Condition: %s"
+        return String.format("Index: %s"
+                           + "%nKey Condition: %s"
                            + "%nFilter: %s"
                            + "%nProjection: %s"
                            + "%nName Map: %s"
-                           + "%nValue Map: %s",
+                           + "%nValue Map: %s"
+                           + "%nSegments: %d (threads: %d)"
+                           + "%nPartition Keys: %s %s (threads: %d)"
+                           + "%nPrefetch Pages: %d"
+                           + "%nRead Limit: %.1f%% / %.1f RCU/sec",
+                            indexName,
                             keyConditionExpression,
                             filterExpression,
                             projectionExpression,
                             nameMapDebug,
-                            valueMapDebug);
+                            valueMapDebug,
+                            totalSegments,
+                            getScanThreads(),
+                            partitionKeyValueName,
+                            partitionKeyValues == null ? null : partitionKeyValues.size() + " values",
+                            queryThreads,
+                            prefetchPages,
+                            targetReadCapacityPercent,
+                            maxRcuPerSecond);
     }
       
 }
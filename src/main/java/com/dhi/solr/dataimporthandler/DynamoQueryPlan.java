@@ -0,0 +1,316 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The query configuration of an entity, parsed once per import.  DIH calls init() on a child
+ * entity for every parent row, without a plan every row would copy and filter the entity
+ * attributes, parse every nameMap / valueMap attribute and rebuild the field mappings again.
+ *
+ * A plan holds, for each attribute prefix (nameMap, valueMap, DELTAnameMap, DELTAvalueMap):
+ *  - a NameSlot per name map attribute, the placeholder and the attribute name
+ *  - a ValueSlot per value map attribute, the type, placeholder and value.  A slot without
+ *    variables has its typed value already, a slot with ${...} variables only has its variables
+ *    resolved (and its value converted) for each row.
+ * the <field> mappings of the entity, and the other attributes of the entity as configured
+ * (options such as filterExpression, totalSegments or pageRetries): an option without variables
+ * is used as it is, only an option with ${...} variables is resolved for each row.  Malformed
+ * attributes are reported (and left out) once, when the plan is compiled.
+ *
+ * A plan is immutable, binding it to a row is done by DynamoEntityProcessor, which resolves
+ * the variables of the row.
+ *
+ * @author ben.demott
+ */
+public class DynamoQueryPlan {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String VARIABLE_START = "${";
+
+    protected final Map<String, List<NameSlot>> nameSlots;
+    protected final Map<String, List<ValueSlot>> valueSlots;
+    protected final Map<String, String> dynamoSolrFields;
+    protected final Map<String, String> solrDynamoFields;
+    protected final Set<String> mappedAttributeNames;
+    protected final Map<String, String> options;
+
+    /**
+     * A name map attribute: "#placeholder,attributeName".  Parts without variables are trimmed.
+     */
+    public static class NameSlot {
+        public final String attribute;
+        public final String placeHolder;
+        public final String fieldName;
+
+        NameSlot(String attribute, String placeHolder, String fieldName) {
+            this.attribute = attribute;
+            this.placeHolder = placeHolder;
+            this.fieldName = fieldName;
+        }
+    }
+
+    /**
+     * A value map attribute: "Type :placeholder,value".  typedValue is set when no part has a
+     * variable, otherwise the raw parts are resolved for each row.
+     */
+    public static class ValueSlot {
+        public final String attribute;
+        public final String rawValue;
+        public final String typeName;
+        public final String fieldName;
+        public final String value;
+        public final Object typedValue;
+
+        ValueSlot(String attribute, String rawValue, String typeName, String fieldName, String value, Object typedValue) {
+            this.attribute = attribute;
+            this.rawValue = rawValue;
+            this.typeName = typeName;
+            this.fieldName = fieldName;
+            this.value = value;
+            this.typedValue = typedValue;
+        }
+    }
+
+    /**
+     * @param nameSlots the name map slots by attribute prefix
+     * @param valueSlots the value map slots by attribute prefix
+     * @param dynamoSolrFields the <field> mappings, column to name
+     * @param mappedAttributeNames the top level attributes of the columns
+     * @param options the attributes of the entity, not resolved
+     */
+    public DynamoQueryPlan(Map<String, List<NameSlot>> nameSlots, Map<String, List<ValueSlot>> valueSlots,
+            Map<String, String> dynamoSolrFields, Set<String> mappedAttributeNames, Map<String, String> options) {
+        this.nameSlots = Collections.unmodifiableMap(new HashMap<>(nameSlots));
+        this.valueSlots = Collections.unmodifiableMap(new HashMap<>(valueSlots));
+        this.dynamoSolrFields = Collections.unmodifiableMap(new HashMap<>(dynamoSolrFields));
+        Map<String, String> reversed = new HashMap<>();
+        for(Map.Entry<String, String> entry : dynamoSolrFields.entrySet()) {
+            reversed.put(entry.getValue(), entry.getKey());
+        }
+        this.solrDynamoFields = Collections.unmodifiableMap(reversed);
+        this.mappedAttributeNames = Collections.unmodifiableSet(mappedAttributeNames);
+        this.options = Collections.unmodifiableMap(new HashMap<>(options));
+    }
+
+    /**
+     * @param value an attribute value, or part of one
+     * @return true if the value has ${...} variables, resolved for each row
+     */
+    public static boolean isTemplate(String value) {
+        return value != null && value.contains(VARIABLE_START);
+    }
+
+    /**
+     * Parse the name map attributes of one prefix.
+     *
+     * @param attributes the attributes starting with the prefix, in order
+     * @param delimiter between the placeholder and the attribute name
+     * @return the slots, malformed attributes are logged and left out
+     */
+    public static List<NameSlot> compileNameSlots(Map<String, String> attributes, String delimiter) {
+        List<NameSlot> slots = new ArrayList<>();
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            String entryVal = entry.getValue().trim();
+            int idxDelimiter = entryVal.indexOf(delimiter);
+
+            if(idxDelimiter == -1 || entryVal.length() -1 == idxDelimiter) {
+                LOG.warn(String.format("NameMap attribute [%s] value [%s] is malformed, must contain 2 values delimited by: %s",
+                        entry.getKey(),
+                        entry.getValue(),
+                        delimiter));
+                continue;
+            }
+
+            String placeHolder = entryVal.substring(0, idxDelimiter);
+            String fieldName = entryVal.substring(idxDelimiter+1, entryVal.length());
+            slots.add(new NameSlot(entry.getKey(),
+                    isTemplate(placeHolder) ? placeHolder : placeHolder.trim(),
+                    isTemplate(fieldName) ? fieldName : fieldName.trim()));
+            LOG.debug(String.format("NameMap attribute [%s] = [%s]", entry.getKey(), entry.getValue()));
+        }
+        return slots;
+    }
+
+    /**
+     * Parse the value map attributes of one prefix.
+     *
+     * @param attributes the attributes starting with the prefix, in order
+     * @param typeDelimiter between the type and the placeholder
+     * @param valueDelimiter between the placeholder and the value
+     * @return the slots, malformed attributes are logged and left out
+     */
+    public static List<ValueSlot> compileValueSlots(Map<String, String> attributes, String typeDelimiter, String valueDelimiter) {
+        List<ValueSlot> slots = new ArrayList<>();
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            // Given the string "Int:field,value" return position of ':'
+            String entryVal = entry.getValue();
+            int typeDelimIdx = entryVal.indexOf(typeDelimiter);
+
+            if(typeDelimIdx == -1 || entryVal.length() -1 == typeDelimIdx) {
+                LOG.error(String.format("ValueMap attribute [%s] value [%s] is malformed, must contain delimitor between type and field/value: '%s'",
+                        entry.getKey(),
+                        entry.getValue(),
+                        typeDelimiter));
+                continue;
+            }
+
+            // Given the string "Int:field,value" return 'Int'
+            String typeName = entryVal.substring(0, typeDelimIdx);
+            // Given the string "Int:field,value" return ':field,value', the placeholder keeps its ':'
+            String fields = entryVal.substring(typeDelimIdx, entryVal.length()).trim();
+
+            // Given the string "field,value" return return index of ','
+            int fieldValueIdx = fields.indexOf(valueDelimiter);
+
+            if(fieldValueIdx == -1 || fields.length() -1 == fieldValueIdx) {
+                LOG.error(String.format("ValueMap attribute [%s] value [%s] is malformed, must contain delimiter: '%s' between field and value",
+                        entry.getKey(),
+                        entry.getValue(),
+                        valueDelimiter));
+                continue;
+            }
+
+            String fieldName = fields.substring(0, fieldValueIdx);
+            String fieldValue = fields.substring(fieldValueIdx+1, fields.length());
+
+            if(isTemplate(typeName) || isTemplate(fieldName) || isTemplate(fieldValue)) {
+                // resolved for each row
+                slots.add(new ValueSlot(entry.getKey(), entryVal, typeName, fieldName, fieldValue, null));
+                LOG.debug(String.format("ValueMap attribute [%s] = [%s], resolved for each row", entry.getKey(), entryVal));
+                continue;
+            }
+
+            Object typedValue = toTypedValue(entry.getKey(), entryVal, typeName.trim().toLowerCase(), fieldValue.trim());
+            if(typedValue != null) {
+                slots.add(new ValueSlot(entry.getKey(), entryVal, typeName.trim().toLowerCase(), fieldName.trim(), fieldValue.trim(), typedValue));
+                LOG.debug(String.format("ValueMap attribute [%s] type:%s field:%s value:%s", entry.getKey(), typeName.trim(), fieldName.trim(), fieldValue.trim()));
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Convert the value of a value map attribute to its type.
+     *
+     * @param attribute the attribute name, for errors
+     * @param rawValue the attribute value, for errors
+     * @param typeName the type, lower case
+     * @param value the value, resolved
+     * @return the typed value, null (with an error logged) if the value can't be converted
+     */
+    public static Object toTypedValue(String attribute, String rawValue, String typeName, String value) {
+        // Ensure the typeName isn't empty or invalid
+        if(typeName == null || typeName.isEmpty()) {
+            LOG.error(String.format("ValueMap attribute [%s] value [%s] does not contain a type",
+                    attribute,
+                    rawValue));
+            return null;
+        }
+        if(value == null || value.isEmpty()) {
+            LOG.error(String.format("ValueMap attribute [%s] value [%s] is empty",
+                    attribute,
+                    rawValue));
+            return null;
+        }
+
+        try {
+            // ValueMap expects strongly formed types to be added, based on what type-string the user
+            // specified we will parse the value and add it to the ValueMap
+            Object typedValue = DynamoEntityProcessor.parseTypedValue(typeName, value);
+            if(typedValue == null) {
+                LOG.error(String.format("ValueMap attribute [%s] with value [%s] contains invalid type string: '%s'",
+                        attribute,
+                        rawValue,
+                        typeName));
+            }
+            return typedValue;
+        } catch (Exception e) {
+            LOG.error(String.format("ValueMap attribute [%s] with value [%s], parsing value [%s] exception: %s",
+                    attribute,
+                    rawValue,
+                    value,
+                    e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * @param prefix the attribute prefix, e.g. nameMap or DELTAnameMap
+     * @return the name map slots, possibly empty
+     */
+    public List<NameSlot> getNameSlots(String prefix) {
+        return nameSlots.getOrDefault(prefix, Collections.emptyList());
+    }
+
+    /**
+     * @param prefix the attribute prefix, e.g. valueMap or DELTAvalueMap
+     * @return the value map slots, possibly empty
+     */
+    public List<ValueSlot> getValueSlots(String prefix) {
+        return valueSlots.getOrDefault(prefix, Collections.emptyList());
+    }
+
+    /**
+     * @return the <field> mappings of the entity, column to name
+     */
+    public Map<String, String> getDynamoSolrFields() {
+        return dynamoSolrFields;
+    }
+
+    /**
+     * @return the <field> mappings of the entity, name to column
+     */
+    public Map<String, String> getSolrDynamoFields() {
+        return solrDynamoFields;
+    }
+
+    /**
+     * @return the top level attributes the <field> columns of the entity are read from
+     */
+    public Set<String> getMappedAttributeNames() {
+        return mappedAttributeNames;
+    }
+
+    /**
+     * @param name an attribute of the entity
+     * @return the attribute as configured, its ${...} variables aren't resolved, null if it
+     *         isn't set.
+     */
+    public String getOption(String name) {
+        return options.get(name);
+    }
+
+    @Override
+    public String toString() {
+        int templates = 0;
+        int values = 0;
+        for(List<ValueSlot> slots : valueSlots.values()) {
+            for(ValueSlot slot : slots) {
+                values++;
+                if(slot.typedValue == null) {
+                    templates++;
+                }
+            }
+        }
+        int names = 0;
+        for(List<NameSlot> slots : nameSlots.values()) {
+            names += slots.size();
+        }
+        int templateOptions = 0;
+        for(String option : options.values()) {
+            if(isTemplate(option)) {
+                templateOptions++;
+            }
+        }
+        return String.format("%d fields, %d name map and %d value map attributes (%d resolved for each row), %d options (%d resolved for each row)",
+                dynamoSolrFields.size(), names, values, templates, options.size(), templateOptions);
+    }
+}
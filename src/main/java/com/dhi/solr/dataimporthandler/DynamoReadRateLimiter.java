@@ -0,0 +1,112 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the rate at which read capacity units (RCU) are consumed from a table.
+ *
+ * This is a token bucket measured in RCU.  Because the cost of a Query or Scan page isn't known
+ * until the response comes back, a page may always start while the bucket isn't empty, and the
+ * capacity it actually consumed (ReturnConsumedCapacity) is charged afterwards.  If that puts the
+ * bucket in debt the next page waits until the debt has been paid back at the current rate.
+ *
+ * The current rate is adjusted with AIMD (additive increase, multiplicative decrease):
+ *  - every page that succeeds raises the rate by a small step, up to maxRate.
+ *  - every throttling error (ProvisionedThroughputExceeded) cuts the rate in half.
+ * So an import backs off quickly when it competes with other readers of the same table, and
+ * slowly climbs back to the configured budget when they go away.
+ *
+ * One limiter is shared by all the workers reading a table (all segments of a parallel scan).
+ *
+ * @author ben.demott
+ */
+public class DynamoReadRateLimiter {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final double ADDITIVE_INCREASE = 0.02; // fraction of maxRate added per successful page
+    public static final double MULTIPLICATIVE_DECREASE = 0.5; // rate multiplier when throttled
+    public static final double MIN_RATE_FRACTION = 0.01; // never go below 1% of maxRate
+
+    protected final String name;
+    protected final double maxRate;
+    protected final double minRate;
+    protected double rate;
+    protected double tokens;
+    protected long lastRefill;
+
+    /**
+     * @param name used in logs (typically the table name)
+     * @param maxRate the maximum read capacity units to consume per second.
+     */
+    public DynamoReadRateLimiter(String name, double maxRate) {
+        this.name = name;
+        this.maxRate = maxRate;
+        this.minRate = Math.max(maxRate * MIN_RATE_FRACTION, 0.1);
+        this.rate = maxRate;
+        this.tokens = maxRate; // allow a burst of one second at the start
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Block until a request may be sent.
+     *
+     * @throws InterruptedException if the import is stopped while waiting.
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        while((waitNanos = reserve()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * @return nanoseconds to wait before the bucket is no longer in debt, 0 if a request may start.
+     */
+    protected synchronized long reserve() {
+        refill();
+        if(tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    protected void refill() {
+        long now = System.nanoTime();
+        double elapsedSec = (now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastRefill = now;
+        // the bucket holds at most one second worth of capacity
+        tokens = Math.min(rate, tokens + elapsedSec * rate);
+    }
+
+    /**
+     * Charge the capacity a request consumed, and increase the rate (the request succeeded).
+     *
+     * @param capacityUnits ConsumedCapacity.getCapacityUnits() from the response.
+     */
+    public synchronized void consumed(double capacityUnits) {
+        refill();
+        tokens -= capacityUnits;
+        rate = Math.min(maxRate, rate + maxRate * ADDITIVE_INCREASE);
+    }
+
+    /**
+     * A request was throttled by dynamo, cut the rate.
+     */
+    public synchronized void throttled() {
+        refill();
+        rate = Math.max(minRate, rate * MULTIPLICATIVE_DECREASE);
+        tokens = Math.min(tokens, 0);
+        LOG.info(String.format("[%s] read throttled, reducing read rate to %.1f RCU/sec (max: %.1f)", name, rate, maxRate));
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+}
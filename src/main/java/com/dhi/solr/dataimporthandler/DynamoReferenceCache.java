@@ -0,0 +1,399 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A JVM wide cache of the rows of small reference tables (countries, taxonomies...), shared by
+ * every core and every import, so a table joined by many cores is read once per JVM instead of
+ * once per core per import.
+ *
+ * Rows are cached by a key describing everything that changes them, or who may read them: the
+ * client configuration (endpoint, region and the identity of the credentials: role, profile or
+ * access key id, never secrets), the table, the query (index, expressions, name and value maps)
+ * and the entity's item conversion, see DynamoDataSource.getReferenceCacheKey().  A core whose
+ * credentials can't read a table never gets its rows from the cache of another core.
+ *
+ * A cached table is read again when:
+ *  - its version changed, the version is taken from DescribeTable (item count, size and
+ *    creation time), which getData() calls anyway, so checking it is free.
+ *  - its rows are older than the ttl of the entity.  Dynamo only updates the item count and
+ *    size about every 6 hours, the ttl bounds how stale the rows can be in between.
+ *
+ * The cache holds at most MAX_TABLES tables, and at most maxBytes of rows (estimated, see
+ * estimateBytes()), the least recently used tables are evicted.  Tables past their ttl are
+ * evicted on any access of the cache, not only when they are read again.  A table of more than
+ * maxItems rows, or maxBytes, is not cached at all (it is remembered as too large until its
+ * version changes or the ttl passes, so it isn't buffered on every import).
+ *
+ * maxBytes is DEFAULT_MAX_MB, or the system property MAX_MB_PROPERTY (-Ddynamodih.referenceCacheMaxMb=512).
+ *
+ * While a table is loading, other imports wanting the same table wait for it, rather than
+ * reading it as well.  Every row returned is a deep copy, transformers can change it freely.
+ *
+ * @author ben.demott
+ */
+public class DynamoReferenceCache {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int MAX_TABLES = 64;
+    public static final int DEFAULT_TTL_SECONDS = 3600;
+    public static final int DEFAULT_MAX_ITEMS = 100000;
+    public static final long DEFAULT_MAX_MB = 256;
+    public static final String MAX_MB_PROPERTY = "dynamodih.referenceCacheMaxMb"; // system property, overrides DEFAULT_MAX_MB
+    protected static final int ENTRY_OVERHEAD_BYTES = 48; // hash map entry and its slot, of a row value
+    protected static final int STRING_OVERHEAD_BYTES = 40; // String and its char[] header
+    protected static final int OBJECT_OVERHEAD_BYTES = 24; // Number, Boolean, Date
+    protected static final int CONTAINER_OVERHEAD_BYTES = 64; // HashMap or ArrayList of a row or value
+
+    protected static final DynamoReferenceCache INSTANCE = new DynamoReferenceCache(Long.getLong(MAX_MB_PROPERTY, DEFAULT_MAX_MB) * 1024 * 1024);
+
+    protected final long maxBytes;
+    protected final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if(size() > MAX_TABLES) {
+                LOG.info(String.format("Reference cache full, evicting %s", eldest.getKey()));
+                totalBytes -= eldest.getValue().bytes;
+                eldest.getValue().bytes = 0;
+                return true;
+            }
+            return false;
+        }
+    };
+    protected long totalBytes = 0;
+    protected long hits = 0;
+    protected long loads = 0;
+    protected long evictions = 0;
+
+    /**
+     * A cached table, loaded under its own lock.  What it was loaded with is set under the lock
+     * of 'entries' as well, so expired tables can be found without waiting for a load.
+     */
+    protected static class Entry {
+        List<Map<String, Object>> rows; // null if not loaded or too large
+        String version;
+        long loadedAt;
+        long ttlMs;
+        long bytes; // estimated bytes of the rows, counted in totalBytes
+        boolean tooLarge;
+    }
+
+    /**
+     * @param maxBytes estimated bytes of the rows of every cached table
+     */
+    protected DynamoReferenceCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cache of this JVM
+     */
+    public static DynamoReferenceCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the rows of a table, from the cache or read with the loader.
+     *
+     * @param key identifies the table and query, see the class comment
+     * @param version the current version of the table, null if unknown (only the ttl applies)
+     * @param ttlMs rows older than this are read again
+     * @param maxItems tables with more rows than this aren't cached
+     * @param loader reads the rows of the table, when they aren't cached.  The iterator is closed
+     *         if it's Closeable.
+     * @return copies of the rows
+     */
+    public Iterator<Map<String, Object>> get(String key, String version, long ttlMs, int maxItems,
+            Supplier<Iterator<Map<String, Object>>> loader) {
+        Entry entry;
+        synchronized(entries) {
+            evictExpired(System.currentTimeMillis());
+            entry = entries.get(key);
+            if(entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+        }
+
+        synchronized(entry) {
+            boolean current = entry.version == null ? version == null : entry.version.equals(version);
+            long now = System.currentTimeMillis();
+            if(current && entry.tooLarge && now - entry.loadedAt < ttlMs) {
+                return loader.get();
+            }
+            if(entry.rows != null && current && now - entry.loadedAt < ttlMs) {
+                synchronized(entries) {
+                    hits++;
+                }
+                LOG.info(String.format("Reference cache hit, %d rows of %s", entry.rows.size(), key));
+                return new CopyIterator(entry.rows.iterator());
+            }
+
+            Iterator<Map<String, Object>> rows = loader.get();
+            List<Map<String, Object>> loaded = new ArrayList<>();
+            long bytes = 0;
+            try {
+                while(rows.hasNext()) {
+                    Map<String, Object> row = rows.next();
+                    loaded.add(row);
+                    bytes += estimateBytes(row);
+                    if(loaded.size() > maxItems || bytes > maxBytes) {
+                        // the rows read so far are returned, followed by the rest of the table
+                        LOG.warn(String.format("Reference table has more than %d rows or %d MB, it is not cached: %s", 
+                                maxItems, maxBytes / (1024 * 1024), key));
+                        store(key, entry, null, version, now, ttlMs, 0);
+                        return new ConcatIterator(loaded.iterator(), rows);
+                    }
+                }
+            } catch (RuntimeException e) {
+                close(rows);
+                throw e;
+            }
+            close(rows);
+
+            store(key, entry, Collections.unmodifiableList(loaded), version, now, ttlMs, bytes);
+            LOG.info(String.format("Reference cache loaded %d rows (%d KB) of %s (version %s)", loaded.size(), bytes / 1024, key, version));
+            return new CopyIterator(loaded.iterator());
+        }
+    }
+
+    /**
+     * Keep what a table was loaded with, then evict the least recently used tables until the
+     * cache is within maxBytes again.
+     *
+     * @param rows the rows, null if the table is too large
+     */
+    protected void store(String key, Entry entry, List<Map<String, Object>> rows, String version, long loadedAt, long ttlMs, long bytes) {
+        synchronized(entries) {
+            entry.rows = rows;
+            entry.version = version;
+            entry.loadedAt = loadedAt;
+            entry.ttlMs = ttlMs;
+            entry.tooLarge = rows == null;
+            if(rows != null) {
+                loads++;
+            }
+            if(entries.get(key) != entry) {
+                // evicted while it loaded, the rows are only returned to this import
+                return;
+            }
+            totalBytes += bytes - entry.bytes;
+            entry.bytes = bytes;
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while(totalBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Entry> evicted = eldest.next();
+                if(evicted.getValue() != entry && evicted.getValue().bytes > 0) {
+                    LOG.info(String.format("Reference cache over %d MB, evicting %s", maxBytes / (1024 * 1024), evicted.getKey()));
+                    evict(eldest, evicted.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the tables whose rows are older than their ttl, they would be read again anyway.
+     * Called with the lock of 'entries' held.
+     */
+    protected void evictExpired(long now) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<String, Entry> cached = iterator.next();
+            Entry entry = cached.getValue();
+            boolean loaded = entry.rows != null || entry.tooLarge;
+            if(loaded && now - entry.loadedAt >= entry.ttlMs) {
+                LOG.debug(String.format("Reference cache expired %s", cached.getKey()));
+                evict(iterator, entry);
+            }
+        }
+    }
+
+    /**
+     * Remove the current entry of the iterator.  Called with the lock of 'entries' held.
+     */
+    protected void evict(Iterator<Map.Entry<String, Entry>> iterator, Entry entry) {
+        iterator.remove();
+        totalBytes -= entry.bytes;
+        entry.bytes = 0;
+        evictions++;
+    }
+
+    /**
+     * Estimate the heap used by a row, or a value of a row.  Rough, but proportional to what the
+     * row really holds, which is what bounding the cache needs.
+     *
+     * @param value a row (Map), or one of its values
+     * @return estimated bytes
+     */
+    protected static long estimateBytes(Object value) {
+        if(value == null) {
+            return 0;
+        }
+        if(value instanceof String) {
+            return STRING_OVERHEAD_BYTES + 2L * ((String) value).length();
+        }
+        if(value instanceof byte[]) {
+            return OBJECT_OVERHEAD_BYTES + ((byte[]) value).length;
+        }
+        if(value instanceof Map) {
+            long bytes = CONTAINER_OVERHEAD_BYTES;
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                bytes += ENTRY_OVERHEAD_BYTES + estimateBytes(entry.getKey()) + estimateBytes(entry.getValue());
+            }
+            return bytes;
+        }
+        if(value instanceof Collection) {
+            long bytes = CONTAINER_OVERHEAD_BYTES;
+            for(Object element : (Collection<?>) value) {
+                bytes += 8 + estimateBytes(element);
+            }
+            return bytes;
+        }
+        return OBJECT_OVERHEAD_BYTES;
+    }
+
+    /**
+     * Drop every cached table.
+     */
+    public void clear() {
+        synchronized(entries) {
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    /**
+     * @return the number of tables cached, their size, hits, loads and evictions, for logs.
+     */
+    @Override
+    public String toString() {
+        synchronized(entries) {
+            return String.format("%d tables (%d KB), %d hits, %d loads, %d evictions", entries.size(), totalBytes / 1024, hits, loads, evictions);
+        }
+    }
+
+    protected static void close(Iterator<?> rows) {
+        if(rows instanceof Closeable) {
+            try {
+                ((Closeable) rows).close();
+            } catch (IOException e) {
+                LOG.warn("Error closing dynamo result iterator", e);
+            }
+        }
+    }
+
+    /**
+     * Copy a value of a cached row.  Lists, sets, maps (an L, SS/NS/BS or M attribute) and byte
+     * arrays are copied all the way down, a transformer that changes them changes its own copy,
+     * not the cache.  Other values (strings, numbers, booleans) are immutable.
+     *
+     * @param value a value of a row
+     * @return the copy
+     */
+    protected static Object copyValue(Object value) {
+        if(value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        if(value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        if(value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<>();
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+            return copy;
+        }
+        if(value instanceof Set) {
+            Set<Object> copy = new LinkedHashSet<>();
+            for(Object element : (Set<?>) value) {
+                copy.add(copyValue(element));
+            }
+            return copy;
+        }
+        if(value instanceof Collection) {
+            List<Object> copy = new ArrayList<>(((Collection<?>) value).size());
+            for(Object element : (Collection<?>) value) {
+                copy.add(copyValue(element));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /**
+     * Returns a (deep) copy of each cached row.
+     */
+    protected static class CopyIterator implements Iterator<Map<String, Object>> {
+        protected final Iterator<Map<String, Object>> rows;
+
+        CopyIterator(Iterator<Map<String, Object>> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return rows.hasNext();
+        }
+
+        @Override
+        public Map<String, Object> next() {
+            Map<String, Object> row = rows.next();
+            Map<String, Object> copy = new HashMap<>();
+            for(Map.Entry<String, Object> column : row.entrySet()) {
+                copy.put(column.getKey(), copyValue(column.getValue()));
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * The rows buffered before a table turned out too large, then the rest of the table.
+     */
+    protected static class ConcatIterator implements Iterator<Map<String, Object>>, Closeable {
+        protected final Iterator<Map<String, Object>> buffered;
+        protected final Iterator<Map<String, Object>> rest;
+
+        ConcatIterator(Iterator<Map<String, Object>> buffered, Iterator<Map<String, Object>> rest) {
+            this.buffered = buffered;
+            this.rest = rest;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return buffered.hasNext() || rest.hasNext();
+        }
+
+        @Override
+        public Map<String, Object> next() {
+            if(buffered.hasNext()) {
+                return buffered.next();
+            }
+            if(!rest.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return rest.next();
+        }
+
+        @Override
+        public void close() {
+            DynamoReferenceCache.close(rest);
+        }
+    }
+}
@@ -2,24 +2,25 @@ package com.dhi.solr.dataimporthandler;
 
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperFieldModel.DynamoDBAttributeType;
-import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.ItemCollection;
-import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
-import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
-import com.amazonaws.services.dynamodbv2.document.Table;
-import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
-import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
 import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import java.io.Closeable;
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,70 +34,199 @@ import org.slf4j.LoggerFactory;
  * 
  * @author ben.demott
  */
-public class DynamoResultIterator<T> implements Iterator<T> {
+public class DynamoResultIterator<T> implements Iterator<T>, DynamoRowLookahead, Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
     
     public static final String VALIDATION_EXCEPTION = "ValidationException";
+    public static final int QUEUE_PAGES_PER_THREAD = 2; // pages buffered ahead of DIH, per worker
     
-    DynamoDB dynamoDB;
-    Table dynamoTable;
-    QuerySpec dynamoQuery;
-    ScanSpec dynamoScan;
-    Iterator<Item> dynamoIter;
-    Map<String, DynamoDBAttributeType> fieldToType;
+    TableDescription tableInfo;
+    Runnable tableInvalidation;
+    QueryRequest dynamoQuery;
+    ScanRequest dynamoScan;
+    Iterator<DynamoPage> pageIter;
+    List<Map<String, Object>> pageRows = Collections.emptyList();
+    int pageIndex = 0; // the next row of the page
+    DynamoCheckpoint checkpoint;
+    boolean complete = false;
+    DynamoItemConverter converter;
     DynamoQueryParameters queryParameters;
     
     
-    public DynamoResultIterator(AmazonDynamoDB dynamoClient, String tableName, DynamoQueryParameters queryParams, Map<String, DynamoDBAttributeType> dataTypeMap) {
+    /**
+     * @param dynamoClient
+     * @param tableName
+     * @param tableInfo the (cached) table description, for error messages, may be null.
+     * @param queryParams
+     * @param converter converts the items of each page to rows, typed columns when convertType is set.
+     * @param rateLimiter paces page requests by consumed read capacity, may be null (no limit).
+     * @param backfill fetches attributes the index of the query doesn't project, may be null.
+     */
+    public DynamoResultIterator(AmazonDynamoDB dynamoClient, String tableName, TableDescription tableInfo, DynamoQueryParameters queryParams, 
+            DynamoItemConverter converter, DynamoReadRateLimiter rateLimiter, DynamoBatchGetter backfill) {
         
 
-        fieldToType = dataTypeMap;
+        this.converter = converter;
         queryParameters = queryParams;
+        // records the progress of the import, and when resuming where each segment starts
+        checkpoint = queryParams.getCheckpoint();
         
-        dynamoDB = new DynamoDB(dynamoClient);
-        dynamoTable = dynamoDB.getTable(tableName);
+        this.tableInfo = tableInfo;
         
         // If there isn't a query condition we should do a scan
         boolean hasConditionExpression = queryParams.getKeyConditionExpression() != null;
 
-        if(hasConditionExpression) {
-            // Buildout a Query
-            LOG.debug("using QuerySpec for conditional query");
-            dynamoQuery = new QuerySpec()
-                    .withProjectionExpression(queryParams.getProjectionExpression())
-                    .withKeyConditionExpression(queryParams.getKeyConditionExpression())
-                    .withFilterExpression(queryParams.getFilterExpression());
+        if(hasConditionExpression && queryParams.getPartitionKeyValues() != null) {
+            // Fan-out Query, the same query for every partition key value.  Each query is a
+            // source of the parallel iterator, 'segment' is the index of the value.
+            List<Object> partitionKeyValues = queryParams.getPartitionKeyValues();
+            int threads = queryParams.getQueryThreads();
+            LOG.info(String.format("Fan-out query of table [%s] over %d partition key values, %d threads", 
+                    tableName, partitionKeyValues.size(), threads));
             
-            if(queryParams.getNameMap() != null) {
-                dynamoQuery.withNameMap(queryParams.getNameMap());
-            }
-            if(queryParams.getValueMap() != null) {
-                dynamoQuery.withValueMap(queryParams.getValueMap());
+            List<DynamoPageReader> queries = new ArrayList<>(partitionKeyValues.size());
+            for(int i = 0; i < partitionKeyValues.size(); i++) {
+                if(isDone(i)) {
+                    continue;
+                }
+                ValueMap valueMap = new ValueMap();
+                if(queryParams.getValueMap() != null) {
+                    valueMap.putAll(queryParams.getValueMap());
+                }
+                valueMap.put(queryParams.getPartitionKeyValueName(), partitionKeyValues.get(i));
+                
+                QueryRequest query = DynamoPageReader.newQueryRequest(tableName, queryParams)
+                        .withExpressionAttributeValues(ItemUtils.fromSimpleMap(valueMap));
+                queries.add(DynamoPageReader.forQuery(dynamoClient, query, rateLimiter)
+                        .withSegment(i)
+                        .withRetries(queryParams.getPageRetries(), queryParams.getPageRetryBackoffMs())
+                        .withBackfill(backfill)
+                        .withConverter(converter)
+                        .withMetrics(queryParams.getMetrics())
+                        .startFrom(getStartKey(i)));
             }
-
-            ItemCollection<QueryOutcome> items = dynamoTable.query(dynamoQuery);
-            dynamoIter = items.iterator();
+            int queuePages = Math.max(queryParams.getPrefetchPages(), threads * QUEUE_PAGES_PER_THREAD);
+            pageIter = new DynamoParallelIterator<>(tableName, queries, threads, queuePages);
+            
+        } else if(hasConditionExpression) {
+            // Buildout a Query
+            LOG.debug("using QueryRequest for conditional query");
+            dynamoQuery = DynamoPageReader.newQueryRequest(tableName, queryParams);
+            
+            DynamoPageReader reader = DynamoPageReader.forQuery(dynamoClient, dynamoQuery, rateLimiter)
+                    .withRetries(queryParams.getPageRetries(), queryParams.getPageRetryBackoffMs())
+                    .withBackfill(backfill)
+                    .withConverter(converter)
+                    .withMetrics(queryParams.getMetrics())
+                    .startFrom(getStartKey(0));
+            pageIter = isDone(0) ? Collections.emptyIterator() : readAhead(tableName, reader, queryParams.getPrefetchPages());
             
         } else {
             // Buildout a Scan
-            LOG.debug("using ScanSpec for full table scan");
-            dynamoScan = new ScanSpec()
-                    .withProjectionExpression(queryParams.getProjectionExpression())
-                    .withFilterExpression(queryParams.getFilterExpression());
+            LOG.debug("using ScanRequest for full table scan");
+            dynamoScan = DynamoPageReader.newScanRequest(tableName, queryParams);
             
-            if(queryParams.getNameMap() != null) {
-                dynamoScan.withNameMap(queryParams.getNameMap());
-            }
-            if(queryParams.getValueMap() != null) {
-                dynamoScan.withValueMap(queryParams.getValueMap());
+            int totalSegments = queryParams.getTotalSegments();
+            if(totalSegments > 1) {
+                // Parallel Scan, each segment is scanned by its own worker and the pages of
+                // every segment are merged into this iterator.
+                int threads = queryParams.getScanThreads();
+                LOG.info(String.format("Parallel scan of table [%s] with %d segments, %d threads", tableName, totalSegments, threads));
+                
+                List<DynamoPageReader> segments = new ArrayList<>(totalSegments);
+                for(int segment = 0; segment < totalSegments; segment++) {
+                    if(isDone(segment)) {
+                        continue;
+                    }
+                    ScanRequest segmentScan = DynamoPageReader.newScanRequest(tableName, queryParams)
+                            .withSegment(segment)
+                            .withTotalSegments(totalSegments);
+                    segments.add(DynamoPageReader.forScan(dynamoClient, segmentScan, rateLimiter)
+                            .withSegment(segment)
+                            .withRetries(queryParams.getPageRetries(), queryParams.getPageRetryBackoffMs())
+                            .withBackfill(backfill)
+                            .withConverter(converter)
+                            .withMetrics(queryParams.getMetrics())
+                            .startFrom(getStartKey(segment)));
+                }
+                int queuePages = Math.max(queryParams.getPrefetchPages(), threads * QUEUE_PAGES_PER_THREAD);
+                pageIter = new DynamoParallelIterator<>(tableName, segments, threads, queuePages);
+            } else {
+                DynamoPageReader reader = DynamoPageReader.forScan(dynamoClient, dynamoScan, rateLimiter)
+                        .withRetries(queryParams.getPageRetries(), queryParams.getPageRetryBackoffMs())
+                        .withBackfill(backfill)
+                        .withConverter(converter)
+                        .withMetrics(queryParams.getMetrics())
+                        .startFrom(getStartKey(0));
+                pageIter = isDone(0) ? Collections.emptyIterator() : readAhead(tableName, reader, queryParams.getPrefetchPages());
             }
-            
-            ItemCollection<ScanOutcome> items = dynamoTable.scan(dynamoScan);
-            dynamoIter = items.iterator();
-            
         }
     }
     
+    /**
+     * @return true if the segment was read to the end by the import being resumed, it isn't 
+     *         read again.
+     */
+    protected boolean isDone(int segment) {
+        if(checkpoint != null && checkpoint.isDone(segment)) {
+            LOG.info(String.format("Segment %d was read to the end before the checkpoint, skipping it", segment));
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Iterate pages that are read elsewhere, already converted to rows (e.g. the data files of
+     * a table export, see DynamoExportReader).  There is no checkpoint.
+     * 
+     * @param pages the pages, closed with this iterator if they are Closeable
+     * @param queryParams the entity's query, for error messages
+     */
+    public DynamoResultIterator(Iterator<DynamoPage> pages, DynamoQueryParameters queryParams) {
+        pageIter = pages;
+        queryParameters = queryParams;
+    }
+    
+    /**
+     * @param tableInvalidation called when reading fails in a way that means the table
+     *         description is stale (the table or an index was deleted or re-created).
+     */
+    public void setTableInvalidation(Runnable tableInvalidation) {
+        this.tableInvalidation = tableInvalidation;
+    }
+    
+    /**
+     * @return the key to resume a segment from, null to start at the beginning.
+     */
+    protected Map<String, AttributeValue> getStartKey(int segment) {
+        if(checkpoint == null) {
+            return null;
+        }
+        return checkpoint.getStartKey(segment);
+    }
+    
+    /**
+     * Returns an iterator over the pages of a single Query or Scan.
+     * 
+     * When prefetchPages is greater than 0 pages are fetched by a background thread, up to
+     * prefetchPages ahead of the consumer.  So while DIH transforms and writes page N, page N+1
+     * is already being fetched, the first page is requested immediately.
+     * Otherwise the reader is read on the calling thread (each page fetched when the
+     * previous one runs out).
+     * 
+     * @param name name used for the background thread
+     * @param reader the (unread) dynamo pages
+     * @param prefetchPages the number of pages to buffer, 0 to disable prefetching
+     * @return 
+     */
+    protected Iterator<DynamoPage> readAhead(String name, DynamoPageReader reader, int prefetchPages) {
+        if(prefetchPages <= 0) {
+            return reader.iterator();
+        }
+        LOG.debug(String.format("Prefetching up to %d pages from table [%s]", prefetchPages, name));
+        return new DynamoParallelIterator<>(name, Collections.singletonList(reader), 1, prefetchPages);
+    }
+    
     
     /**
      * Get debugging string for the table description, Note: only dynamo attributes (fields) that are
@@ -106,35 +236,46 @@ public class DynamoResultIterator<T> implements Iterator<T> {
      * @return Table Description Debug String
      */
     public String getTableDebug() {
-        try {
-            
-            TableDescription desc = dynamoTable.describe();
-            // Create a compact version of the Tables fields type map
-            Map<String, String> tableFields = new TreeMap<>();
-            List<AttributeDefinition> fields = desc.getAttributeDefinitions();
-            for(AttributeDefinition attr: fields) {
-                tableFields.put(attr.getAttributeName(), attr.getAttributeType());
-            }
-            
-            // Create a compact version of the Tables Key Map
-            Map<String, String> tableKeys = new TreeMap<>();
-            List<KeySchemaElement> schema = desc.getKeySchema();
-            for(KeySchemaElement ele: schema) {
-                tableKeys.put(ele.getAttributeName(), ele.getKeyType());
-            }
-            
-            return String.format("DynamoDB Table [%s] DEBUG... %nFIELDS: %s %nKEY-FIELDS:%s", desc.getTableName(), tableFields.toString(), tableKeys.toString());
-            
-        } catch (AmazonDynamoDBException e) {
-            return String.format("TABLE DESC UNAVAILABLE: %s", e.getMessage());
+        // the description the iterator was created with (possibly cached), not described again
+        TableDescription desc = tableInfo;
+        if(desc == null) {
+            return "TABLE DESC UNAVAILABLE";
+        }
+        
+        // Create a compact version of the Tables fields type map
+        Map<String, String> tableFields = new TreeMap<>();
+        List<AttributeDefinition> fields = desc.getAttributeDefinitions();
+        for(AttributeDefinition attr: fields) {
+            tableFields.put(attr.getAttributeName(), attr.getAttributeType());
+        }
+        
+        // Create a compact version of the Tables Key Map
+        Map<String, String> tableKeys = new TreeMap<>();
+        List<KeySchemaElement> schema = desc.getKeySchema();
+        for(KeySchemaElement ele: schema) {
+            tableKeys.put(ele.getAttributeName(), ele.getKeyType());
         }
+        
+        return String.format("DynamoDB Table [%s] DEBUG... %nFIELDS: %s %nKEY-FIELDS:%s", desc.getTableName(), tableFields.toString(), tableKeys.toString());
     }
 
     
     @Override
     public boolean hasNext() {
         try {
-            return dynamoIter.hasNext();
+            while(pageIndex >= pageRows.size()) {
+                if(!pageIter.hasNext()) {
+                    finished();
+                    return false;
+                }
+                DynamoPage page = pageIter.next();
+                if(checkpoint != null) {
+                    checkpoint.pageStarted(page);
+                }
+                pageRows = page.getRows();
+                pageIndex = 0;
+            }
+            return true;
         } catch (AmazonDynamoDBException e) {
             AmazonServiceException.ErrorType eType = e.getErrorType();
             if(e.getErrorCode().equals(VALIDATION_EXCEPTION)) {
@@ -142,7 +283,11 @@ public class DynamoResultIterator<T> implements Iterator<T> {
                 // a rather cryptic error will be given, for this reason show the person the query
                 // and the remote table description when a validation error occurs, this greatly
                 // helps in debugging any problems.
-                LOG.warn(String.format("DynamoDB Error %s %nQUERY DEBUG: %s %n%s", VALIDATION_EXCEPTION, queryParameters.toString(), getTableDebug()));
+                LOG.warn(String.format("DynamoDB Error %s - %s %nQUERY DEBUG: %s %n%s", VALIDATION_EXCEPTION, e.getMessage(), queryParameters.toString(), getTableDebug()));
+            }
+            if((e.getErrorCode().equals(VALIDATION_EXCEPTION) || e instanceof ResourceNotFoundException) && tableInvalidation != null) {
+                // the table or an index may have changed since it was described
+                tableInvalidation.run();
             }
             throw e;
         }
@@ -151,44 +296,58 @@ public class DynamoResultIterator<T> implements Iterator<T> {
     @Override
     public T next() {
         //get the next value
-        // TODO need to make use of dataTypeMap
-        Item itemData = null;
-        try {
-            itemData = dynamoIter.next();
-        } catch (AmazonDynamoDBException e) {
-            AmazonServiceException.ErrorType eType = e.getErrorType();
-            if(e.getErrorCode().equals(VALIDATION_EXCEPTION)) {
-                LOG.warn(String.format("DynamoDB Error %s - %s %nQUERY DEBUG: %s %n%s", VALIDATION_EXCEPTION, e.getMessage(), queryParameters.toString(), getTableDebug()));
-            }
-            throw e;
+        if(!hasNext()) {
+            throw new NoSuchElementException();
         }
-        
-        // The number type in dynamo causes a conversion to BigDecimal, which causes serialization issues in the transaction log
-        // Look for number types, and use the string value for the map returned from this function
-        
-        //TODO: use the field map in the dynamo configuration build the dynamo query and the type to cast to if not a string
-        Map<String, Object> itemMap = new HashMap<>();
-           for(String fieldName: itemData.asMap().keySet()) {
-                Object attributeObject = itemData.get(fieldName);
-                if(itemData.isNull(fieldName))
-                {
-                    continue;
-                }
-                if(attributeObject instanceof Number)
-                {
-                    itemMap.put(fieldName, String.valueOf(attributeObject));
-                }
-                else
-                {
-                    itemMap.put(fieldName, attributeObject);
-                }
-           }
-        return (T) itemMap;
+        // rows are converted from the low level items when the page is read
+        return (T) pageRows.get(pageIndex++);
     }
-
+    
+    /**
+     * Look at the rows that come next, without reading them.  Only the rows of the current 
+     * page are returned, no page is requested.
+     * 
+     * Used by child entity lookups to fetch the child items of several parent rows at once.
+     * 
+     * @param max the maximum number of rows
+     * @return the next rows, possibly empty
+     */
+    @Override
+    public List<Map<String, Object>> peek(int max) {
+        return pageRows.subList(Math.min(pageIndex, pageRows.size()), Math.min(pageRows.size(), pageIndex + Math.max(0, max)));
+    }
+    
     @Override
     public void remove() {
         // do nothing.
     }
+    
+    /**
+     * Every page has been read, the checkpoint (if any) is no longer needed.
+     */
+    protected void finished() {
+        if(!complete) {
+            complete = true;
+            if(checkpoint != null) {
+                checkpoint.clear();
+            }
+        }
+    }
+    
+    /**
+     * Stop any background workers (parallel scan), safe to call more than once.
+     * If the results were not read to the end the last checkpoint saved is kept, the pages read
+     * since then are rolled back with the import.
+     */
+    @Override
+    public void close() {
+        if(pageIter instanceof Closeable) {
+            try {
+                ((Closeable) pageIter).close();
+            } catch (IOException e) {
+                LOG.warn("Error closing dynamo iterator", e);
+            }
+        }
+    }
 }
 
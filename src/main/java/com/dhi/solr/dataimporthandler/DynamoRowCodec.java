@@ -0,0 +1,218 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact binary encoding of DIH rows, for rows kept outside the heap (or outside the
+ * process): the join index (DynamoJoinIndex) and the local table mirror (DynamoTableMirror).
+ *
+ * The values of a converted item (see DynamoItemConverter and DynamoColumnType) each get a one
+ * byte tag followed by their value, anything else is java serialized.  A row decodes to an equal
+ * row: a HashMap of the same columns, Sets and Maps keep their order.
+ *
+ * @author ben.demott
+ */
+public class DynamoRowCodec {
+
+    // value tags of the row encoding
+    public static final byte NULL = 0;
+    public static final byte STRING = 1;
+    public static final byte BOOLEAN = 2;
+    public static final byte LONG = 3;
+    public static final byte INTEGER = 4;
+    public static final byte DOUBLE = 5;
+    public static final byte BIG_DECIMAL = 6;
+    public static final byte BYTES = 7;
+    public static final byte DATE = 8;
+    public static final byte LIST = 9;
+    public static final byte SET = 10;
+    public static final byte MAP = 11;
+    public static final byte SERIALIZED = 12;
+
+    /**
+     * Encode a row: the number of columns, then the name and value of each column.
+     */
+    public static byte[] encode(Map<String, Object> row) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * row.size() + 16);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(row.size());
+            for(Map.Entry<String, Object> column : row.entrySet()) {
+                writeString(out, column.getKey());
+                write(out, column.getValue());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode row", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Map<String, Object> decode(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        int size = in.readInt();
+        Map<String, Object> row = new HashMap<>(DynamoItemConverter.capacity(size));
+        for(int i = 0; i < size; i++) {
+            row.put(readString(in), read(in));
+        }
+        return row;
+    }
+
+    /**
+     * Write a value, the types of a converted item (see DynamoItemConverter and
+     * DynamoColumnType) get a compact tag, anything else is java serialized.
+     */
+    public static void write(DataOutput out, Object value) throws IOException {
+        if(value == null) {
+            out.writeByte(NULL);
+        } else if(value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if(value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if(value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if(value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if(value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if(value instanceof BigDecimal) {
+            out.writeByte(BIG_DECIMAL);
+            writeString(out, value.toString());
+        } else if(value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if(value instanceof Date) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if(value instanceof List || value instanceof Set) {
+            Collection<?> collection = (Collection<?>) value;
+            out.writeByte(value instanceof List ? LIST : SET);
+            out.writeInt(collection.size());
+            for(Object element : collection) {
+                write(out, element);
+            }
+        } else if(value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for(Map.Entry<?, ?> entry : map.entrySet()) {
+                write(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        } else if(value instanceof Serializable) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+                objects.writeObject(value);
+            }
+            out.writeByte(SERIALIZED);
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        } else {
+            // not expected from a converted item, keep what can be kept
+            out.writeByte(STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    public static Object read(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch(tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case BOOLEAN:
+                return in.readBoolean();
+            case LONG:
+                return in.readLong();
+            case INTEGER:
+                return in.readInt();
+            case DOUBLE:
+                return in.readDouble();
+            case BIG_DECIMAL:
+                return new BigDecimal(readString(in));
+            case BYTES: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case DATE:
+                return new Date(in.readLong());
+            case LIST: {
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(size);
+                for(int i = 0; i < size; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            }
+            case SET: {
+                int size = in.readInt();
+                Set<Object> set = new LinkedHashSet<>(DynamoItemConverter.capacity(size));
+                for(int i = 0; i < size; i++) {
+                    set.add(read(in));
+                }
+                return set;
+            }
+            case MAP: {
+                int size = in.readInt();
+                Map<Object, Object> map = new LinkedHashMap<>(DynamoItemConverter.capacity(size));
+                for(int i = 0; i < size; i++) {
+                    map.put(read(in), read(in));
+                }
+                return map;
+            }
+            case SERIALIZED: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return objects.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            }
+            default:
+                throw new IOException(String.format("Unknown value tag %d", tag));
+        }
+    }
+
+    /**
+     * UTF-8, length prefixed (writeUTF is limited to 64KB)
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,26 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows of an entity that can be looked at before they are read.
+ *
+ * The rows of a dynamo entity are published in the session (see DynamoEntityProcessor), a child
+ * entity lookup peeks at the parent rows that come next to fetch their child items along with
+ * the current one (see DynamoEntityProcessor.getUpcomingLookupValues()).  Any row source of a
+ * parent entity (the result iterator, a spool, a mirror) implements this to be looked ahead.
+ *
+ * @author ben.demott
+ */
+public interface DynamoRowLookahead {
+
+    /**
+     * Look at the rows that come next, without consuming them.  Only rows already in memory (or
+     * on local disk) are returned, this never waits on dynamo.
+     *
+     * @param max the maximum number of rows
+     * @return the next rows, possibly empty
+     */
+    List<Map<String, Object>> peek(int max);
+}
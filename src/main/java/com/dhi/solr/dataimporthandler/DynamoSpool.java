@@ -0,0 +1,408 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decouples reading a table from indexing it: a fetcher thread drains the rows of the table
+ * (typically a parallel scan, so several workers read at once) into compressed segment files
+ * on local disk, and the DIH thread reads the rows back from the segments.  Reading the table
+ * then finishes as fast as the read capacity (and rate limit) allows, no matter how slow the
+ * analysis chain of the core is, and the scan isn't held open for the whole import.
+ *
+ * Segments are append-only gzip files of rows (see DynamoRowCodec):
+ *
+ *   [int length][row]...
+ *
+ * A segment is handed to the reader once it holds SEGMENT_BYTES of rows, or earlier when the
+ * reader is waiting for rows (so a fast indexer isn't held up by the spool), and it's deleted
+ * once it's read.  The spool is bounded: when the segments waiting to be read reach maxBytes on
+ * disk, the fetcher waits for the reader (and so does the scan).
+ *
+ * If the table can't be read, the rows spooled before the error are still returned, then the
+ * error is re-thrown from hasNext() on the DIH thread.
+ * Always close() the spool, it stops the fetcher, waits for it to finish and deletes the spool
+ * directory.
+ *
+ * @author ben.demott
+ */
+public class DynamoSpool implements Iterator<Map<String, Object>>, DynamoRowLookahead, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+    public static final long SEGMENT_BYTES = 16L * 1024 * 1024; // rows (before compression) per segment
+    public static final long MIN_SEGMENT_MS = 1000; // a waiting reader gets a segment at most every second
+    public static final long CLOSE_WAIT_MS = 10000; // close() logs while the fetcher is still running
+    public static final int BUFFER_BYTES = 64 * 1024;
+    public static final String DIRECTORY_PREFIX = "dynamo-spool-";
+    public static final String SEGMENT_FORMAT = "segment-%06d.gz";
+
+    protected final String name;
+    protected final Iterator<Map<String, Object>> source;
+    protected final File directory;
+    protected final long maxBytes;
+    protected final Thread fetcher;
+
+    // guarded by lock
+    protected final Object lock = new Object();
+    protected final Deque<File> segments = new ArrayDeque<>(); // written, not read yet
+    protected long diskBytes = 0; // segments written and not deleted yet
+    protected boolean fetched = false;
+    protected RuntimeException error = null;
+
+    protected volatile boolean closed = false;
+    protected volatile boolean readerWaiting = false;
+
+    // fetcher thread
+    protected DataOutputStream out;
+    protected File outFile;
+    protected long outBytes = 0;
+    protected long outStarted = 0;
+    protected int segmentCount = 0;
+    protected long fetchedRows = 0;
+
+    // DIH thread
+    protected DataInputStream in;
+    protected File inFile;
+    protected final Deque<Map<String, Object>> buffered = new ArrayDeque<>();
+    protected long readRows = 0;
+
+    /**
+     * Start draining the source immediately.
+     *
+     * @param name used to name the fetcher thread, and in logs (typically the entity name)
+     * @param source the rows of the table, closed once it's drained if it's Closeable
+     * @param parentDirectory where the spool directory is created, null for java.io.tmpdir
+     * @param maxBytes compressed segments waiting to be read before the fetcher waits
+     * @throws IOException if the spool directory can't be created
+     */
+    public DynamoSpool(String name, Iterator<Map<String, Object>> source, File parentDirectory, long maxBytes) throws IOException {
+        this.name = name;
+        this.source = source;
+        this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+        if(parentDirectory == null) {
+            this.directory = Files.createTempDirectory(DIRECTORY_PREFIX).toFile();
+        } else {
+            Files.createDirectories(parentDirectory.toPath());
+            this.directory = Files.createTempDirectory(parentDirectory.toPath(), DIRECTORY_PREFIX).toFile();
+        }
+        this.fetcher = new DynamoParallelIterator.WorkerThreadFactory("spool-" + name).newThread(this::fetch);
+        LOG.info(String.format("[%s] spooling rows to %s, at most %d MB", name, directory, this.maxBytes / (1024 * 1024)));
+        fetcher.start();
+    }
+
+    /**
+     * Fetcher body, write every row of the source to segments.
+     */
+    protected void fetch() {
+        long started = System.currentTimeMillis();
+        RuntimeException failure = null;
+        boolean writeFailed = false;
+        try {
+            while(!closed && source.hasNext()) {
+                Map<String, Object> row = source.next();
+                if(out == null) {
+                    outFile = new File(directory, String.format(SEGMENT_FORMAT, segmentCount++));
+                    out = new DataOutputStream(new BufferedOutputStream(new FastGZIPOutputStream(new FileOutputStream(outFile)), BUFFER_BYTES));
+                    outBytes = 0;
+                    outStarted = System.currentTimeMillis();
+                }
+                byte[] encoded = DynamoRowCodec.encode(row);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+                outBytes += 4 + encoded.length;
+                fetchedRows++;
+                if(outBytes >= SEGMENT_BYTES || (readerWaiting && System.currentTimeMillis() - outStarted >= MIN_SEGMENT_MS)) {
+                    finishSegment();
+                }
+            }
+            if(out != null) {
+                finishSegment();
+            }
+        } catch (InterruptedException e) {
+            // close() was called, nobody is waiting for the rest of the table
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            writeFailed = true;
+            failure = new IllegalStateException(String.format("[%s] unable to write rows to %s", name, outFile), e);
+        } catch (RuntimeException e) {
+            failure = e;
+        } catch (Throwable e) {
+            // an Error ends the fetcher too, the reader must not take it for the end of the table
+            failure = new IllegalStateException(String.format("[%s] unable to read rows", name), e);
+        } finally {
+            // the scan workers stop, even when the table isn't read to the end
+            if(source instanceof Closeable) {
+                try {
+                    ((Closeable) source).close();
+                } catch (IOException e) {
+                    LOG.warn(String.format("[%s] error closing the rows of the table", name), e);
+                }
+            }
+            File partial = null;
+            if(out != null) {
+                try {
+                    out.close();
+                    if(!writeFailed) {
+                        partial = outFile; // rows read before the error are still indexed
+                    }
+                } catch (IOException e) {
+                    LOG.warn(String.format("[%s] error closing %s", name, outFile), e);
+                }
+                out = null;
+            }
+            synchronized(lock) {
+                if(partial != null && !closed) {
+                    segments.add(partial);
+                    diskBytes += partial.length();
+                }
+                fetched = true;
+                error = failure;
+                lock.notifyAll();
+            }
+        }
+
+        if(closed) {
+            return;
+        }
+        if(failure != null) {
+            LOG.warn(String.format("[%s] error reading rows to spool: %s", name, failure.getMessage()));
+        } else {
+            synchronized(lock) {
+                LOG.info(String.format("[%s] spooled %d rows in %d s, %d segments (%d MB) left to index",
+                        name, fetchedRows, (System.currentTimeMillis() - started) / 1000, segments.size(), diskBytes / (1024 * 1024)));
+            }
+        }
+    }
+
+    /**
+     * Hand the current segment to the reader, then wait while the spool is full.
+     */
+    protected void finishSegment() throws IOException, InterruptedException {
+        out.close();
+        out = null;
+        long length = outFile.length();
+        synchronized(lock) {
+            segments.add(outFile);
+            diskBytes += length;
+            lock.notifyAll();
+            while(diskBytes >= maxBytes && !closed) {
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * Read the next row of the segments.
+     *
+     * @param wait wait for the fetcher when every segment written so far has been read
+     * @return the row, null at the end of the table (or if not waiting, when no row is spooled)
+     * @throws RuntimeException the error of the fetcher, once every segment spooled before it
+     *         has been read (only when waiting)
+     */
+    protected Map<String, Object> readRow(boolean wait) {
+        while(!closed) {
+            if(in != null) {
+                try {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        deleteSegment();
+                        continue;
+                    }
+                    byte[] encoded = new byte[length];
+                    in.readFully(encoded);
+                    readRows++;
+                    return DynamoRowCodec.decode(encoded);
+                } catch (IOException e) {
+                    throw new IllegalStateException(String.format("[%s] unable to read rows from %s", name, inFile), e);
+                }
+            }
+
+            File next;
+            synchronized(lock) {
+                while(segments.isEmpty() && error == null && !fetched && !closed && wait) {
+                    readerWaiting = true;
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException(String.format("[%s] interrupted waiting for spooled rows", name), e);
+                    } finally {
+                        readerWaiting = false;
+                    }
+                }
+                next = segments.poll();
+                if(next == null && error != null && wait) {
+                    throw error;
+                }
+            }
+            if(next == null) {
+                return null;
+            }
+            try {
+                inFile = next;
+                in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(next), BUFFER_BYTES), BUFFER_BYTES));
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format("[%s] unable to read rows from %s", name, next), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The current segment has been read, free its space for the fetcher.
+     */
+    protected void deleteSegment() throws IOException {
+        in.close();
+        in = null;
+        long length = inFile.length();
+        if(!inFile.delete()) {
+            LOG.warn(String.format("[%s] unable to delete %s", name, inFile));
+        }
+        synchronized(lock) {
+            diskBytes -= length;
+            lock.notifyAll();
+        }
+        inFile = null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(buffered.isEmpty()) {
+            Map<String, Object> row = readRow(true);
+            if(row == null) {
+                return false;
+            }
+            buffered.add(row);
+        }
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return buffered.poll();
+    }
+
+    /**
+     * Get up to 'max' of the next rows without consuming them.  Only rows already spooled are
+     * returned, this never waits for the fetcher.
+     *
+     * Used by child entity lookups to fetch the child items of several parent rows at once.
+     *
+     * @param max the maximum number of rows
+     * @return the next rows, possibly empty
+     */
+    @Override
+    public List<Map<String, Object>> peek(int max) {
+        while(buffered.size() < max) {
+            Map<String, Object> row = readRow(false);
+            if(row == null) {
+                break;
+            }
+            buffered.add(row);
+        }
+        List<Map<String, Object>> rows = new ArrayList<>(Math.min(buffered.size(), Math.max(0, max)));
+        for(Map<String, Object> row : buffered) {
+            if(rows.size() >= max) {
+                break;
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    @Override
+    public void remove() {
+        // do nothing.
+    }
+
+    /**
+     * Stop the fetcher and delete every segment, rows not yet read are discarded.  The segments
+     * are only deleted once the fetcher has finished, so it can't write to a deleted directory.
+     */
+    @Override
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        synchronized(lock) {
+            lock.notifyAll();
+        }
+        while(fetcher.isAlive()) {
+            fetcher.interrupt();
+            try {
+                fetcher.join(CLOSE_WAIT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if(fetcher.isAlive()) {
+                LOG.warn(String.format("[%s] waiting for the fetcher to stop before deleting %s", name, directory));
+            }
+        }
+        if(in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOG.warn(String.format("[%s] error closing %s", name, inFile), e);
+            }
+            in = null;
+        }
+        buffered.clear();
+        if(fetcher.isAlive()) {
+            LOG.warn(String.format("[%s] interrupted while the fetcher is still running, %s is not deleted", name, directory));
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                if(!file.delete()) {
+                    LOG.warn(String.format("[%s] unable to delete %s", name, file));
+                }
+            }
+        }
+        if(!directory.delete()) {
+            LOG.warn(String.format("[%s] unable to delete %s", name, directory));
+        }
+        LOG.info(String.format("[%s] spool closed, %d of %d rows read", name, readRows, fetchedRows));
+    }
+
+    /**
+     * Spooled rows are read back once, compression speed matters more than size.
+     */
+    protected static class FastGZIPOutputStream extends GZIPOutputStream {
+        FastGZIPOutputStream(FileOutputStream out) throws IOException {
+            super(out, BUFFER_BYTES);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.File;
+import java.lang.invoke.MethodHandles;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the position a stream delta import read each shard of the table's stream up to.
+ *
+ * Positions are saved in the checkpoint file (see DynamoCheckpoint) under their own prefix:
+ *
+ *   stream.[entity].signature=[stream arn]
+ *   stream.[entity].committed.[shardId]=[sequence number]
+ *   stream.[entity].pending.[shardId]=[sequence number]
+ *   stream.[entity].pendingStart=[start time of the import that read the pending positions]
+ *
+ * The positions read by an import are only 'pending' until the import is known to have
+ * succeeded, an entity processor isn't told when an import finishes.  DIH only updates
+ * last_index_time when an import succeeds, so when the next import starts with a last_index_time
+ * at or after pendingStart, the pending positions become the committed ones.  Otherwise the
+ * import failed, and the changes are read again from the committed positions.
+ *
+ * @author ben.demott
+ */
+public class DynamoStreamCheckpoint extends DynamoCheckpoint {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String ENTITY_PREFIX = "stream.";
+    public static final String COMMITTED = "committed.";
+    public static final String PENDING = "pending.";
+    public static final String PENDING_START = "pendingStart";
+
+    /**
+     * @param directory the directory of the checkpoint file
+     * @param entityName the DIH entity name
+     * @param streamArn the stream the positions belong to, positions of another stream (the
+     *         stream was disabled and enabled again) are ignored.
+     */
+    public DynamoStreamCheckpoint(File directory, String entityName, String streamArn) {
+        super(directory, ENTITY_PREFIX + entityName, streamArn, 0);
+    }
+
+    /**
+     * Load the shard positions to start reading from.
+     *
+     * @param lastIndexTime last_index_time of the last successful import, null if unknown.
+     * @return last sequence number read of each shard, empty to read the whole stream.
+     */
+    public synchronized Map<String, String> loadPositions(Date lastIndexTime) {
+        Properties props = readFile();
+        String prefix = entityName + ".";
+
+        String savedSignature = props.getProperty(prefix + SIGNATURE);
+        if(savedSignature == null || !savedSignature.equals(signature)) {
+            LOG.info(String.format("No stream positions for entity [%s] and stream %s, reading the whole stream", entityName, signature));
+            return new HashMap<>();
+        }
+
+        Map<String, String> committed = getPrefixed(props, prefix + COMMITTED);
+        Map<String, String> pending = getPrefixed(props, prefix + PENDING);
+        Date pendingStart = parseDate(props.getProperty(prefix + PENDING_START));
+
+        if(pendingStart != null && lastIndexTime != null && !lastIndexTime.before(pendingStart)) {
+            LOG.info(String.format("Import of %s succeeded, committing stream positions of entity [%s]", pendingStart, entityName));
+            committed.putAll(pending);
+            write(committed, null, null);
+        } else if(!pending.isEmpty()) {
+            LOG.warn(String.format("Import of %s didn't finish, entity [%s] reads the stream from the last committed positions",
+                    props.getProperty(prefix + PENDING_START), entityName));
+        }
+        return committed;
+    }
+
+    /**
+     * Save the positions read by this import, they are committed by the next import if this
+     * one succeeds.
+     *
+     * @param committed the positions this import started from
+     * @param pending the positions this import read up to
+     * @param importStart the start time of this import (index_start_time)
+     */
+    public synchronized void savePending(Map<String, String> committed, Map<String, String> pending, Date importStart) {
+        write(committed, pending, importStart);
+    }
+
+    protected void write(Map<String, String> committed, Map<String, String> pending, Date importStart) {
+        Properties props = new Properties();
+        props.setProperty(SIGNATURE, signature);
+        for(Map.Entry<String, String> position : committed.entrySet()) {
+            props.setProperty(COMMITTED + position.getKey(), position.getValue());
+        }
+        if(pending != null) {
+            for(Map.Entry<String, String> position : pending.entrySet()) {
+                props.setProperty(PENDING + position.getKey(), position.getValue());
+            }
+            props.setProperty(PENDING_START, formatDate(importStart));
+        }
+        writeEntity(props);
+    }
+
+    protected static Map<String, String> getPrefixed(Properties props, String prefix) {
+        Map<String, String> values = new HashMap<>();
+        for(String name : props.stringPropertyNames()) {
+            if(name.startsWith(prefix)) {
+                values.put(name.substring(prefix.length()), props.getProperty(name));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Dates are saved in the format of last_index_time, at the same (second) precision.
+     */
+    protected static String formatDate(Date date) {
+        return new SimpleDateFormat(DynamoEntityProcessor.DEFAULT_DATE_FORMAT, Locale.ROOT).format(date);
+    }
+
+    protected static Date parseDate(String date) {
+        if(date == null) {
+            return null;
+        }
+        try {
+            return new SimpleDateFormat(DynamoEntityProcessor.DEFAULT_DATE_FORMAT, Locale.ROOT).parse(date);
+        } catch (ParseException e) {
+            LOG.warn(String.format("Ignoring malformed stream checkpoint date: %s", date));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DescribeStreamRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
+import com.amazonaws.services.dynamodbv2.model.GetShardIteratorRequest;
+import com.amazonaws.services.dynamodbv2.model.OperationType;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.Shard;
+import com.amazonaws.services.dynamodbv2.model.ShardIteratorType;
+import com.amazonaws.services.dynamodbv2.model.StreamDescription;
+import com.amazonaws.services.dynamodbv2.model.TrimmedDataAccessException;
+import java.lang.invoke.MethodHandles;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the changes made to a table from its DynamoDB stream, since the last position read
+ * from each shard.
+ *
+ * Every shard of the stream is read (up to 'threads' at once, using DynamoParallelIterator),
+ * starting after the sequence number saved for the shard, or from the oldest record still in
+ * the stream (TRIM_HORIZON) for a shard that hasn't been read before.
+ *
+ * A closed shard is read to its end (until GetRecords returns no NextShardIterator), an empty
+ * response in the middle of a closed shard doesn't end it.  An open shard has no end, it's read
+ * until it has caught up with the time the read started: a record created after that time was
+ * read, or GetRecords returned nothing maxEmptyReads times in a row (an empty response alone
+ * doesn't mean the shard is caught up, dynamo may return one while there are more records).
+ *
+ * Only the latest change of each item is kept:
+ *  - INSERT / MODIFY keep the NEW_IMAGE of the item (the stream view type must include new images)
+ *  - REMOVE keeps the key of the item
+ * A later record of the same item replaces an earlier one.  Records of the same item are always
+ * in the same shard, or in a descendant of it, so records are ordered by the depth of their shard
+ * in the shard lineage first, and by sequence number within it.
+ *
+ * The reader can be used once, read() returns once every shard has been read.
+ *
+ * @author ben.demott
+ */
+public class DynamoStreamReader {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int RECORDS_PER_REQUEST = 1000; // GetRecords maximum
+    public static final long EMPTY_READ_WAIT_MS = 250;
+    public static final int QUEUE_BATCHES_PER_THREAD = 2;
+
+    protected final AmazonDynamoDBStreams streamsClient;
+    protected final String streamArn;
+    protected final String streamViewType;
+    protected final String name;
+
+    // key -> latest record of the item
+    protected final Map<Map<String, AttributeValue>, Change> changes = new LinkedHashMap<>();
+    // shardId -> last sequence number read
+    protected final Map<String, String> positions = new HashMap<>();
+    protected long recordCount = 0;
+    protected Date readStart; // an open shard is caught up once it has a record created after this
+    protected int maxEmptyReads; // an open shard is caught up after this many empty responses in a row
+
+    /**
+     * @param streamsClient
+     * @param streamArn the stream of the table (TableDescription.getLatestStreamArn())
+     * @param streamViewType the stream view type of the table
+     * @param name used in logs and to name threads (typically the table name)
+     */
+    public DynamoStreamReader(AmazonDynamoDBStreams streamsClient, String streamArn, String streamViewType, String name) {
+        this.streamsClient = streamsClient;
+        this.streamArn = streamArn;
+        this.streamViewType = streamViewType;
+        this.name = name;
+    }
+
+    public String getStreamArn() {
+        return streamArn;
+    }
+
+    public String getStreamViewType() {
+        return streamViewType;
+    }
+
+    /**
+     * Read every shard of the stream, blocks until all shards are read.
+     *
+     * @param startPositions the last sequence number read of each shard, from the previous import.
+     * @param threads number of shards to read at once
+     * @param maxEmptyReads an open shard is caught up after this many empty responses in a row
+     * @return this reader
+     */
+    public DynamoStreamReader read(Map<String, String> startPositions, int threads, int maxEmptyReads) {
+        this.readStart = new Date();
+        this.maxEmptyReads = Math.max(1, maxEmptyReads);
+        List<Shard> shards = getShards();
+        Map<String, Shard> shardsById = new HashMap<>();
+        for(Shard shard : shards) {
+            shardsById.put(shard.getShardId(), shard);
+        }
+
+        List<ShardReader> readers = new ArrayList<>();
+        for(Shard shard : shards) {
+            String startAfter = startPositions.get(shard.getShardId());
+            String endingSequence = shard.getSequenceNumberRange() == null ? null : shard.getSequenceNumberRange().getEndingSequenceNumber();
+            if(startAfter != null) {
+                positions.put(shard.getShardId(), startAfter);
+                if(startAfter.equals(endingSequence)) {
+                    continue; // closed, and already read to the end
+                }
+            }
+            readers.add(new ShardReader(shard, getDepth(shard, shardsById), startAfter));
+        }
+        LOG.info(String.format("[%s] reading %d of %d stream shards with %d threads", name, readers.size(), shards.size(), threads));
+
+        try (DynamoParallelIterator<ShardRecords> iter = new DynamoParallelIterator<>(name + "-stream", readers, threads,
+                Math.max(1, threads) * QUEUE_BATCHES_PER_THREAD)) {
+            while(iter.hasNext()) {
+                addRecords(iter.next());
+            }
+        }
+        LOG.info(String.format("[%s] read %d stream records, %d items changed", name, recordCount, changes.size()));
+        return this;
+    }
+
+    /**
+     * Merge a batch of records into the latest change of each item, called on the reading thread.
+     */
+    protected void addRecords(ShardRecords batch) {
+        for(Record record : batch.records) {
+            recordCount++;
+            Change change = new Change(record, batch.depth);
+            Map<String, AttributeValue> key = record.getDynamodb().getKeys();
+            Change previous = changes.get(key);
+            if(previous == null || previous.compareTo(change) < 0) {
+                // re-insert, so the order of changes is the order of the latest change
+                changes.remove(key);
+                changes.put(key, change);
+            }
+        }
+        if(batch.lastSequenceNumber != null) {
+            positions.put(batch.shardId, batch.lastSequenceNumber);
+        }
+    }
+
+    /**
+     * @return the new image of every item inserted or modified, in the order of their latest change.
+     */
+    public List<Map<String, AttributeValue>> getNewImages() {
+        List<Map<String, AttributeValue>> images = new ArrayList<>();
+        for(Change change : changes.values()) {
+            if(!change.isRemove() && change.record.getDynamodb().getNewImage() != null) {
+                images.add(change.record.getDynamodb().getNewImage());
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Every item whose latest change removed it (deleted, or expired by TTL).
+     * 
+     * @return the old image of each item when the stream includes old images, otherwise the 
+     *         key of the item.
+     */
+    public List<Map<String, AttributeValue>> getRemovedItems() {
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for(Map.Entry<Map<String, AttributeValue>, Change> change : changes.entrySet()) {
+            if(change.getValue().isRemove()) {
+                Map<String, AttributeValue> oldImage = change.getValue().record.getDynamodb().getOldImage();
+                items.add(oldImage != null ? oldImage : change.getKey());
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @return the last sequence number read from each shard, where the next import starts.
+     */
+    public Map<String, String> getPositions() {
+        return positions;
+    }
+
+    /**
+     * List every shard of the stream, DescribeStream returns the shards a page at a time.
+     */
+    protected List<Shard> getShards() {
+        List<Shard> shards = new ArrayList<>();
+        String lastShardId = null;
+        do {
+            StreamDescription desc = streamsClient.describeStream(new DescribeStreamRequest()
+                    .withStreamArn(streamArn)
+                    .withExclusiveStartShardId(lastShardId))
+                    .getStreamDescription();
+            shards.addAll(desc.getShards());
+            lastShardId = desc.getLastEvaluatedShardId();
+        } while(lastShardId != null);
+        return shards;
+    }
+
+    /**
+     * @return the number of ancestors of the shard still in the stream.
+     */
+    protected static int getDepth(Shard shard, Map<String, Shard> shardsById) {
+        int depth = 0;
+        Shard parent = shardsById.get(shard.getParentShardId());
+        while(parent != null && depth < shardsById.size()) {
+            depth++;
+            parent = shardsById.get(parent.getParentShardId());
+        }
+        return depth;
+    }
+
+
+    /**
+     * @return true if the record was written after the read started, the shard has caught up.
+     */
+    protected boolean isAfterReadStart(Record record) {
+        Date created = record.getDynamodb().getApproximateCreationDateTime();
+        return created != null && readStart != null && !created.before(readStart);
+    }
+
+    /**
+     * The latest record of an item, ordered by shard depth then sequence number.
+     */
+    protected static class Change implements Comparable<Change> {
+        final Record record;
+        final int depth;
+        final BigInteger sequenceNumber;
+
+        Change(Record record, int depth) {
+            this.record = record;
+            this.depth = depth;
+            this.sequenceNumber = new BigInteger(record.getDynamodb().getSequenceNumber());
+        }
+
+        boolean isRemove() {
+            return OperationType.REMOVE.toString().equals(record.getEventName());
+        }
+
+        @Override
+        public int compareTo(Change other) {
+            if(depth != other.depth) {
+                return Integer.compare(depth, other.depth);
+            }
+            return sequenceNumber.compareTo(other.sequenceNumber);
+        }
+    }
+
+    /**
+     * The records of one GetRecords response.
+     */
+    protected static class ShardRecords {
+        final String shardId;
+        final int depth;
+        final List<Record> records;
+        final String lastSequenceNumber;
+
+        ShardRecords(String shardId, int depth, List<Record> records) {
+            this.shardId = shardId;
+            this.depth = depth;
+            this.records = records;
+            this.lastSequenceNumber = records.isEmpty() ? null : records.get(records.size() - 1).getDynamodb().getSequenceNumber();
+        }
+    }
+
+    /**
+     * Reads one shard a GetRecords response at a time, a source of DynamoParallelIterator.
+     */
+    protected class ShardReader implements Iterable<ShardRecords> {
+        final Shard shard;
+        final int depth;
+        final String startAfter;
+
+        ShardReader(Shard shard, int depth, String startAfter) {
+            this.shard = shard;
+            this.depth = depth;
+            this.startAfter = startAfter;
+        }
+
+        protected String getShardIterator() {
+            GetShardIteratorRequest request = new GetShardIteratorRequest()
+                    .withStreamArn(streamArn)
+                    .withShardId(shard.getShardId());
+            if(startAfter == null) {
+                return streamsClient.getShardIterator(request.withShardIteratorType(ShardIteratorType.TRIM_HORIZON)).getShardIterator();
+            }
+            try {
+                return streamsClient.getShardIterator(request
+                        .withShardIteratorType(ShardIteratorType.AFTER_SEQUENCE_NUMBER)
+                        .withSequenceNumber(startAfter)).getShardIterator();
+            } catch (TrimmedDataAccessException e) {
+                LOG.warn(String.format("[%s] shard %s position %s is no longer in the stream, reading from the oldest record, "
+                        + "changes made in between were missed", name, shard.getShardId(), startAfter));
+                return streamsClient.getShardIterator(new GetShardIteratorRequest()
+                        .withStreamArn(streamArn)
+                        .withShardId(shard.getShardId())
+                        .withShardIteratorType(ShardIteratorType.TRIM_HORIZON)).getShardIterator();
+            }
+        }
+
+        /**
+         * @return true if the shard has an ending sequence number, it gets no new records.
+         */
+        protected boolean isClosed() {
+            return shard.getSequenceNumberRange() != null && shard.getSequenceNumberRange().getEndingSequenceNumber() != null;
+        }
+
+        @Override
+        public Iterator<ShardRecords> iterator() {
+            return new Iterator<ShardRecords>() {
+                final boolean closed = isClosed();
+                String shardIterator = getShardIterator();
+                boolean caughtUp = false;
+                int emptyReads = 0;
+                ShardRecords next = null;
+
+                @Override
+                public boolean hasNext() {
+                    while(next == null && shardIterator != null && !caughtUp) {
+                        GetRecordsResult result = streamsClient.getRecords(new GetRecordsRequest()
+                                .withShardIterator(shardIterator)
+                                .withLimit(RECORDS_PER_REQUEST));
+                        // null when the shard is closed and has been read to the end
+                        shardIterator = result.getNextShardIterator();
+                        List<Record> records = result.getRecords() == null ? Collections.<Record>emptyList() : result.getRecords();
+                        if(records.isEmpty()) {
+                            if(!closed && ++emptyReads >= maxEmptyReads) {
+                                LOG.debug(String.format("[%s] open shard %s caught up after %d empty reads", name, shard.getShardId(), emptyReads));
+                                caughtUp = true;
+                            } else if(!closed) {
+                                sleep();
+                            }
+                        } else {
+                            emptyReads = 0;
+                            next = new ShardRecords(shard.getShardId(), depth, records);
+                            caughtUp = !closed && isAfterReadStart(records.get(records.size() - 1));
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public ShardRecords next() {
+                    if(!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    ShardRecords batch = next;
+                    next = null;
+                    return batch;
+                }
+
+                void sleep() {
+                    if(shardIterator == null) {
+                        return;
+                    }
+                    try {
+                        Thread.sleep(EMPTY_READ_WAIT_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException(String.format("[%s] interrupted reading shard %s", name, shard.getShardId()), e);
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of table descriptions (key schema, attribute definitions, indexes, provisioned
+ * throughput, stream, item count and size), so DescribeTable isn't called for every parent row
+ * of a child entity, or on every import.  DescribeTable has a low request rate limit, many
+ * cores describing the same tables get throttled.
+ *
+ * The cache belongs to the clients of a configuration (see DynamoClientRegistry), so it's
+ * shared by every data source reading the same account and region.
+ *
+ * A description is described again when:
+ *  - it's older than the ttl of the data source, item count and size are only updated by
+ *    dynamo about every 6 hours anyway, provisioned throughput can change at any time.
+ *  - it's invalidated, when reading the table fails in a way that means the description is
+ *    wrong (the table or index was deleted or re-created, see invalidate()).
+ * Failed describes are never cached.
+ *
+ * @author ben.demott
+ */
+public class DynamoTableCache {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int DEFAULT_TTL_SECONDS = 300;
+
+    protected final Map<String, Entry> entries = new HashMap<>();
+    protected long hits = 0;
+    protected long describes = 0;
+
+    /**
+     * The description of a table, described under its own lock.
+     */
+    protected static class Entry {
+        TableDescription table;
+        long describedAt;
+    }
+
+    /**
+     * Get the description of a table, from the cache or described.
+     *
+     * @param tableName
+     * @param ttlMs descriptions older than this are described again
+     * @param describe describes the table, exceptions are thrown to the caller
+     * @return the description
+     */
+    public TableDescription get(String tableName, long ttlMs, Function<String, TableDescription> describe) {
+        Entry entry;
+        synchronized(entries) {
+            entry = entries.get(tableName);
+            if(entry == null) {
+                entry = new Entry();
+                entries.put(tableName, entry);
+            }
+        }
+
+        synchronized(entry) {
+            long now = currentTimeMillis();
+            if(entry.table != null && now - entry.describedAt < ttlMs) {
+                synchronized(entries) {
+                    hits++;
+                }
+                return entry.table;
+            }
+            TableDescription table = describe.apply(tableName);
+            entry.table = table;
+            entry.describedAt = now;
+            synchronized(entries) {
+                describes++;
+            }
+            LOG.debug(String.format("Described table [%s]", tableName));
+            return table;
+        }
+    }
+
+    /**
+     * @return the time descriptions are aged by, overridden by tests.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Forget the description of a table, the next get() describes it again.
+     *
+     * @param tableName
+     */
+    public void invalidate(String tableName) {
+        Entry entry;
+        synchronized(entries) {
+            entry = entries.get(tableName);
+        }
+        if(entry != null) {
+            synchronized(entry) {
+                if(entry.table != null) {
+                    LOG.info(String.format("Table [%s] description invalidated", tableName));
+                }
+                entry.table = null;
+            }
+        }
+    }
+
+    /**
+     * @return the number of tables cached, hits and describes, for logs.
+     */
+    @Override
+    public String toString() {
+        synchronized(entries) {
+            return String.format("%d tables, %d hits, %d describes", entries.size(), hits, describes);
+        }
+    }
+}
@@ -0,0 +1,642 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A copy of a table's rows on local disk, so a full import can rebuild a core without reading
+ * the table again.
+ *
+ * The mirror is a set of append-only segment files of records:
+ *
+ *   [int length][byte PUT|DELETE][int key length][key UTF-8][row, see DynamoRowCodec]
+ *
+ * A full import that scans the table writes every row it reads (before any transformer sees
+ * it) to the base segments, and when the scan reaches the end the mirror is marked complete.
+ * Delta imports then append the changed rows (PUT) and the deleted keys (DELETE) to delta
+ * segments, after the base.  A later full import reads the mirror instead of the table:
+ *  - the delta segments are read first, for the position of the latest record of each key
+ *    they hold (only the keys changed since the base was written are held in memory)
+ *  - then the base segments and delta segments are streamed in order, base rows changed by a
+ *    delta are skipped, and only the latest delta record of each key is returned (if it's a
+ *    PUT).
+ * Segments are memory mapped and read sequentially, a row is only decoded when it's returned.
+ * A segment is unmapped as soon as it has been read (see unmap()), so it can be deleted right
+ * away, Windows refuses to delete a mapped file, and the disk isn't held until a GC.
+ * When the deltas reach COMPACT_RATIO of the base, the rows returned by a full read are written
+ * to a new base (record bytes are copied as they are), replacing every segment.
+ *
+ * The state of the mirror (complete, the signature of the table and query it was written
+ * for, the last base segment) is kept in mirror.properties, written atomically.  A mirror that
+ * isn't complete, or was written for another signature, is never read.
+ *
+ * Both the rows being written and the rows read can be looked ahead (DynamoRowLookahead), for
+ * the lookups of child entities.
+ *
+ * @author ben.demott
+ */
+public class DynamoTableMirror implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String STATE_FILE = "mirror.properties";
+    public static final String COMPACT_DIRECTORY = "compacting";
+    public static final String SEGMENT_PREFIX = "segment-";
+    public static final String SEGMENT_SUFFIX = ".rows";
+    public static final long MAX_SEGMENT_BYTES = 1L << 30; // segments are memory mapped, less than 2GB
+    public static final int WRITE_BUFFER_BYTES = 256 * 1024;
+    public static final double COMPACT_RATIO = 0.1; // delta bytes / base bytes
+
+    protected static final byte PUT = 1;
+    protected static final byte DELETE = 2;
+
+    // mirror.properties
+    protected static final String STATE_COMPLETE = "complete";
+    protected static final String STATE_SIGNATURE = "signature";
+    protected static final String STATE_BASE_SEGMENT = "baseSegment";
+    protected static final String STATE_BASE_ROWS = "baseRows";
+    protected static final String STATE_UPDATED = "updated";
+
+    protected final File directory;
+    protected final String keyColumn;
+    protected final String signature;
+    protected final Properties state = new Properties();
+    protected SegmentWriter writer;
+    protected long putCount = 0;
+    protected long deleteCount = 0;
+
+    /**
+     * Open (or create) the mirror in a directory.
+     *
+     * @param directory the mirror's own directory
+     * @param keyColumn the column of the rows that is the key of the table
+     * @param signature identifies the table and query, the mirror is only read for the same
+     *         signature.
+     * @throws IOException if the directory can't be created or the state can't be read
+     */
+    public DynamoTableMirror(File directory, String keyColumn, String signature) throws IOException {
+        this.directory = directory;
+        this.keyColumn = keyColumn;
+        this.signature = signature;
+        Files.createDirectories(directory.toPath());
+        File stateFile = new File(directory, STATE_FILE);
+        if(stateFile.isFile()) {
+            try (InputStream in = Files.newInputStream(stateFile.toPath())) {
+                state.load(in);
+            }
+        }
+    }
+
+    /**
+     * @return true if the mirror holds every row of the table, for the same signature.
+     */
+    public boolean isComplete() {
+        return Boolean.parseBoolean(state.getProperty(STATE_COMPLETE)) && signature.equals(state.getProperty(STATE_SIGNATURE));
+    }
+
+    /**
+     * @return when the mirror was last written to, null if never
+     */
+    public String getUpdated() {
+        return state.getProperty(STATE_UPDATED);
+    }
+
+    /**
+     * Delete every row, before the mirror is written again by a full scan.
+     */
+    public void reset() throws IOException {
+        closeWriter();
+        for(File segment : getSegments(directory)) {
+            Files.delete(segment.toPath());
+        }
+        state.clear();
+        state.setProperty(STATE_SIGNATURE, signature);
+        state.setProperty(STATE_COMPLETE, "false");
+        state.setProperty(STATE_BASE_SEGMENT, "0");
+        saveState();
+        putCount = 0;
+        deleteCount = 0;
+    }
+
+    /**
+     * Write a row, it replaces any previous row with the same key.
+     *
+     * @param row
+     */
+    public void put(Map<String, Object> row) throws IOException {
+        Object key = row.get(keyColumn);
+        if(key == null) {
+            return;
+        }
+        getWriter().write(PUT, key.toString(), DynamoRowCodec.encode(row));
+        putCount++;
+    }
+
+    /**
+     * Delete the row of a key.
+     *
+     * @param key
+     */
+    public void delete(Object key) throws IOException {
+        if(key == null) {
+            return;
+        }
+        getWriter().write(DELETE, key.toString(), null);
+        deleteCount++;
+    }
+
+    /**
+     * The full scan wrote every row, the rows written so far are the base of the mirror.
+     */
+    public void markComplete() throws IOException {
+        int lastSegment = writer == null ? 0 : writer.number;
+        closeWriter();
+        state.setProperty(STATE_BASE_SEGMENT, Integer.toString(lastSegment));
+        state.setProperty(STATE_BASE_ROWS, Long.toString(putCount));
+        state.setProperty(STATE_COMPLETE, "true");
+        state.setProperty(STATE_UPDATED, Instant.now().toString());
+        saveState();
+        LOG.info(String.format("Mirror %s complete, %d rows", directory, putCount));
+        putCount = 0;
+    }
+
+    /**
+     * Wrap the rows of a full scan, every row returned is written to the mirror, and the
+     * mirror is complete when the last row has been returned.  The mirror must be reset().
+     *
+     * @param rows the rows of the scan
+     * @return the same rows
+     */
+    public Iterator<Map<String, Object>> writing(Iterator<Map<String, Object>> rows) {
+        return new MirrorWriter(rows);
+    }
+
+    /**
+     * Read every row of a complete mirror.
+     *
+     * @return the rows, close() it if it isn't read to the end
+     */
+    public Iterator<Map<String, Object>> read() throws IOException {
+        closeWriter();
+        return new MirrorReader();
+    }
+
+    protected int getBaseSegment() {
+        return Integer.parseInt(state.getProperty(STATE_BASE_SEGMENT, "0"));
+    }
+
+    /**
+     * @return the writer of the next record: the base while a full scan is written, a delta
+     *         segment after that (the last delta segment is continued).
+     */
+    protected SegmentWriter getWriter() throws IOException {
+        if(writer == null) {
+            List<File> segments = getSegments(directory);
+            int last = segments.isEmpty() ? 0 : getSegmentNumber(segments.get(segments.size() - 1));
+            File lastFile = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if(isComplete() && last > getBaseSegment() && lastFile.length() < MAX_SEGMENT_BYTES) {
+                writer = new SegmentWriter(directory, last, lastFile.length());
+            } else {
+                writer = new SegmentWriter(directory, last + 1, 0);
+            }
+        }
+        return writer;
+    }
+
+    protected void closeWriter() throws IOException {
+        if(writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * Write mirror.properties, through a temporary file so a crash never leaves half a state.
+     */
+    protected void saveState() throws IOException {
+        File tmpFile = new File(directory, STATE_FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmpFile.toPath())) {
+            state.store(out, "DynamoDB DataImportHandler table mirror");
+        }
+        Files.move(tmpFile.toPath(), new File(directory, STATE_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Flush the rows written, and record the deltas applied.
+     */
+    @Override
+    public void close() {
+        try {
+            closeWriter();
+            if((putCount > 0 || deleteCount > 0) && isComplete()) {
+                state.setProperty(STATE_UPDATED, Instant.now().toString());
+                saveState();
+                LOG.info(String.format("Mirror %s updated, %d rows changed, %d rows deleted", directory, putCount, deleteCount));
+            }
+        } catch (IOException e) {
+            LOG.warn(String.format("Error closing mirror %s", directory), e);
+        }
+        putCount = 0;
+        deleteCount = 0;
+    }
+
+    /**
+     * @return the segment files of the directory, in order
+     */
+    protected static List<File> getSegments(File directory) {
+        List<File> segments = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if(files != null) {
+            for(File file : files) {
+                segments.add(file);
+            }
+        }
+        segments.sort((a, b) -> Integer.compare(getSegmentNumber(a), getSegmentNumber(b)));
+        return segments;
+    }
+
+    protected static int getSegmentNumber(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    protected static File getSegmentFile(File directory, int number) {
+        return new File(directory, String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    protected static MappedByteBuffer map(File segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Release a mapped segment now, instead of when the buffer is garbage collected.  The
+     * buffer must not be used after this.
+     *
+     * There is no public API for it: Java 9+ has Unsafe.invokeCleaner(), Java 8 the cleaner()
+     * of the buffer.  When neither is available the buffer is left to the GC.
+     *
+     * @param buffer may be null
+     */
+    protected static void unmap(MappedByteBuffer buffer) {
+        if(buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if(cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug(String.format("Unable to unmap a mirror segment, it's released by the GC: %s", e));
+        }
+    }
+
+    /**
+     * Appends records to numbered segments, a new segment is started when one is full.
+     */
+    protected static class SegmentWriter implements Closeable {
+        protected final File directory;
+        protected int number;
+        protected long length;
+        protected DataOutputStream out;
+
+        SegmentWriter(File directory, int number, long length) throws IOException {
+            this.directory = directory;
+            this.number = number;
+            this.length = length;
+            open();
+        }
+
+        protected void open() throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(getSegmentFile(directory, number), length > 0), WRITE_BUFFER_BYTES));
+        }
+
+        void write(byte op, String key, byte[] row) throws IOException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            write(op, keyBytes, row, 0, row == null ? 0 : row.length);
+        }
+
+        void write(byte op, byte[] key, byte[] row, int offset, int rowLength) throws IOException {
+            int recordLength = 1 + 4 + key.length + rowLength;
+            if(length > 0 && length + 4 + recordLength > MAX_SEGMENT_BYTES) {
+                out.close();
+                number++;
+                length = 0;
+                open();
+            }
+            out.writeInt(recordLength);
+            out.writeByte(op);
+            out.writeInt(key.length);
+            out.write(key);
+            if(rowLength > 0) {
+                out.write(row, offset, rowLength);
+            }
+            length += 4 + recordLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the rows of a full scan as they are returned.  Looking ahead looks at the rows of
+     * the scan, they are written when they're returned.
+     */
+    protected class MirrorWriter implements Iterator<Map<String, Object>>, DynamoRowLookahead, Closeable {
+        protected final Iterator<Map<String, Object>> rows;
+        protected boolean complete = false;
+
+        MirrorWriter(Iterator<Map<String, Object>> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(rows.hasNext()) {
+                return true;
+            }
+            if(!complete) {
+                complete = true;
+                try {
+                    markComplete();
+                } catch (IOException e) {
+                    throw new IllegalStateException(String.format("Unable to complete mirror %s", directory), e);
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Map<String, Object> next() {
+            Map<String, Object> row = rows.next();
+            try {
+                put(row);
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format("Unable to write to mirror %s", directory), e);
+            }
+            return row;
+        }
+
+        @Override
+        public List<Map<String, Object>> peek(int max) {
+            return rows instanceof DynamoRowLookahead ? ((DynamoRowLookahead) rows).peek(max) : new ArrayList<>();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(!complete) {
+                LOG.info(String.format("The scan didn't finish, mirror %s is not complete", directory));
+                closeWriter();
+            }
+            if(rows instanceof Closeable) {
+                ((Closeable) rows).close();
+            }
+        }
+    }
+
+    /**
+     * Streams the rows of the mirror, the latest record of each key wins.  Rows looked ahead are
+     * read from the segments (and compacted) like any other, then held until they're returned.
+     */
+    protected class MirrorReader implements Iterator<Map<String, Object>>, DynamoRowLookahead, Closeable {
+        protected final List<File> segments;
+        protected final int baseCount; // the first baseCount segments are the base
+        protected final Map<String, Long> latestDelta = new HashMap<>(); // key -> segment << 32 | offset
+        protected int segmentIndex = -1;
+        protected MappedByteBuffer buffer;
+        protected final Deque<Map<String, Object>> buffered = new ArrayDeque<>(); // read, not yet returned
+        protected long rowCount = 0;
+        protected long skippedCount = 0;
+        protected SegmentWriter compactWriter;
+        protected boolean finished = false;
+
+        MirrorReader() throws IOException {
+            segments = getSegments(directory);
+            int base = 0;
+            long baseBytes = 0;
+            long deltaBytes = 0;
+            for(File segment : segments) {
+                if(getSegmentNumber(segment) <= getBaseSegment()) {
+                    base++;
+                    baseBytes += segment.length();
+                } else {
+                    deltaBytes += segment.length();
+                }
+            }
+            baseCount = base;
+
+            // the latest delta record of each key
+            for(int i = baseCount; i < segments.size(); i++) {
+                MappedByteBuffer delta = map(segments.get(i));
+                try {
+                    while(delta.remaining() >= 4) {
+                        int position = delta.position();
+                        int recordLength = delta.getInt();
+                        delta.get(); // op
+                        latestDelta.put(readKey(delta), ((long) i << 32) | position);
+                        delta.position(position + 4 + recordLength);
+                    }
+                } finally {
+                    unmap(delta);
+                }
+            }
+
+            if(deltaBytes > 0 && deltaBytes >= baseBytes * COMPACT_RATIO) {
+                File compactDirectory = new File(directory, COMPACT_DIRECTORY);
+                Files.createDirectories(compactDirectory.toPath());
+                for(File stale : getSegments(compactDirectory)) {
+                    Files.delete(stale.toPath());
+                }
+                compactWriter = new SegmentWriter(compactDirectory, 1, 0);
+                LOG.info(String.format("Mirror %s has %d KB of changes to %d KB of rows, compacting while it's read",
+                        directory, deltaBytes / 1024, baseBytes / 1024));
+            }
+            LOG.info(String.format("Reading mirror %s, %d segments, %d keys changed since %s",
+                    directory, segments.size(), latestDelta.size(), state.getProperty(STATE_BASE_ROWS) == null ? "the scan" : "the scan of " + state.getProperty(STATE_BASE_ROWS) + " rows"));
+        }
+
+        protected String readKey(MappedByteBuffer from) {
+            byte[] key = new byte[from.getInt()];
+            from.get(key);
+            return new String(key, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !buffered.isEmpty() || readRow();
+        }
+
+        @Override
+        public List<Map<String, Object>> peek(int max) {
+            while(buffered.size() < max && readRow()) {
+                // read ahead
+            }
+            List<Map<String, Object>> rows = new ArrayList<>(Math.min(buffered.size(), Math.max(0, max)));
+            for(Map<String, Object> row : buffered) {
+                if(rows.size() >= max) {
+                    break;
+                }
+                rows.add(row);
+            }
+            return rows;
+        }
+
+        /**
+         * Read the next current row of the segments into 'buffered'.
+         *
+         * @return false at the end of the mirror
+         */
+        protected boolean readRow() {
+            if(finished) {
+                return false;
+            }
+            try {
+                while(true) {
+                    if(buffer == null || buffer.remaining() < 4) {
+                        unmap(buffer);
+                        buffer = null;
+                        if(++segmentIndex >= segments.size()) {
+                            finish();
+                            return false;
+                        }
+                        buffer = map(segments.get(segmentIndex));
+                        continue;
+                    }
+                    int position = buffer.position();
+                    int recordLength = buffer.getInt();
+                    byte op = buffer.get();
+                    int keyLength = buffer.getInt();
+                    byte[] key = new byte[keyLength];
+                    buffer.get(key);
+                    int rowLength = recordLength - 1 - 4 - keyLength;
+
+                    Long latest = latestDelta.get(new String(key, StandardCharsets.UTF_8));
+                    boolean current = segmentIndex < baseCount
+                            ? latest == null
+                            : latest != null && latest == (((long) segmentIndex << 32) | position);
+                    if(!current || op != PUT) {
+                        skippedCount++;
+                        buffer.position(position + 4 + recordLength);
+                        continue;
+                    }
+                    byte[] row = new byte[rowLength];
+                    buffer.get(row);
+                    if(compactWriter != null) {
+                        compactWriter.write(PUT, key, row, 0, rowLength);
+                    }
+                    buffered.add(DynamoRowCodec.decode(row));
+                    rowCount++;
+                    return true;
+                }
+            } catch (IOException e) {
+                close();
+                throw new IllegalStateException(String.format("Unable to read mirror %s", directory), e);
+            }
+        }
+
+        @Override
+        public Map<String, Object> next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return buffered.poll();
+        }
+
+        /**
+         * Every row has been read, replace the segments with the compacted ones.
+         */
+        protected void finish() throws IOException {
+            if(finished) {
+                return;
+            }
+            finished = true;
+            unmap(buffer);
+            buffer = null;
+            LOG.info(String.format("Read %d rows from mirror %s (%d records replaced or deleted)", rowCount, directory, skippedCount));
+            if(compactWriter == null) {
+                return;
+            }
+            compactWriter.close();
+            int lastSegment = rowCount == 0 ? 0 : compactWriter.number;
+            compactWriter = null;
+
+            // not complete while segments are swapped, a crash leaves a mirror that is rewritten
+            state.setProperty(STATE_COMPLETE, "false");
+            saveState();
+            for(File segment : segments) {
+                Files.delete(segment.toPath());
+            }
+            for(File compacted : getSegments(new File(directory, COMPACT_DIRECTORY))) {
+                Files.move(compacted.toPath(), new File(directory, compacted.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            state.setProperty(STATE_BASE_SEGMENT, Integer.toString(lastSegment));
+            state.setProperty(STATE_BASE_ROWS, Long.toString(rowCount));
+            state.setProperty(STATE_COMPLETE, "true");
+            saveState();
+            LOG.info(String.format("Mirror %s compacted, %d rows", directory, rowCount));
+        }
+
+        @Override
+        public void close() {
+            finished = true;
+            unmap(buffer);
+            buffer = null;
+            buffered.clear();
+            if(compactWriter != null) {
+                // not read to the end, the compaction is abandoned
+                try {
+                    compactWriter.close();
+                } catch (IOException e) {
+                    LOG.warn(String.format("Error closing compaction of mirror %s", directory), e);
+                }
+                compactWriter = null;
+            }
+        }
+    }
+}
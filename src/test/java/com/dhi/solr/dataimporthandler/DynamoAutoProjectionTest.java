@@ -0,0 +1,106 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.LocalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * autoProjection projects the columns of the entity, and the key attributes of the table and
+ * index it reads, even when they aren't mapped to a field.
+ *
+ * @author ben.demott
+ */
+public class DynamoAutoProjectionTest {
+
+    /**
+     * orders: hash customerId, range orderDate.  GSI byStatus: hash status, range total.
+     * LSI byTotal: hash customerId, range total.
+     */
+    private static TableDescription compositeKeyTable() {
+        return new TableDescription()
+                .withTableName("orders")
+                .withKeySchema(new KeySchemaElement("customerId", KeyType.HASH), new KeySchemaElement("orderDate", KeyType.RANGE))
+                .withGlobalSecondaryIndexes(new GlobalSecondaryIndexDescription()
+                        .withIndexName("byStatus")
+                        .withKeySchema(new KeySchemaElement("status", KeyType.HASH), new KeySchemaElement("total", KeyType.RANGE)))
+                .withLocalSecondaryIndexes(new LocalSecondaryIndexDescription()
+                        .withIndexName("byTotal")
+                        .withKeySchema(new KeySchemaElement("customerId", KeyType.HASH), new KeySchemaElement("total", KeyType.RANGE)));
+    }
+
+    @Test
+    public void testTableKeyAttributes() {
+        assertEquals(new LinkedHashSet<>(Arrays.asList("customerId", "orderDate")),
+                DynamoDataSource.getKeyAttributeNames(compositeKeyTable(), null));
+    }
+
+    @Test
+    public void testIndexKeyAttributes() {
+        assertEquals(new LinkedHashSet<>(Arrays.asList("customerId", "orderDate", "status", "total")),
+                DynamoDataSource.getKeyAttributeNames(compositeKeyTable(), "byStatus"));
+        assertEquals(new LinkedHashSet<>(Arrays.asList("customerId", "orderDate", "total")),
+                DynamoDataSource.getKeyAttributeNames(compositeKeyTable(), "byTotal"));
+        // an unknown index still has the table keys
+        assertEquals(new LinkedHashSet<>(Arrays.asList("customerId", "orderDate")),
+                DynamoDataSource.getKeyAttributeNames(compositeKeyTable(), "nope"));
+    }
+
+    @Test
+    public void testUnknownTable() {
+        assertTrue(DynamoDataSource.getKeyAttributeNames(null, "byStatus").isEmpty());
+    }
+
+    @Test
+    public void testProjectionOfCompositeKeyTable() {
+        // the pk is a composite of the keys, only name and the range key of the index are mapped
+        List<String> columns = new ArrayList<>();
+        columns.add("orderId");
+        columns.addAll(DynamoDataSource.getKeyAttributeNames(compositeKeyTable(), "byStatus"));
+        columns.addAll(Arrays.asList("name", "total"));
+
+        NameMap nameMap = new NameMap();
+        nameMap.with("#s", "status");
+        String projection = DynamoEntityProcessor.getProjectionExpression(columns, nameMap);
+
+        assertEquals("#dihp0, #dihp1, #dihp2, #dihp3, #dihp4, #dihp5", projection);
+        assertEquals(Arrays.asList("#s", "#dihp0", "#dihp1", "#dihp2", "#dihp3", "#dihp4", "#dihp5"), new ArrayList<>(nameMap.keySet()));
+        assertEquals(Arrays.asList("status", "orderId", "customerId", "orderDate", "status", "total", "name"),
+                new ArrayList<>(nameMap.values()));
+    }
+
+    @Test
+    public void testPathsInsideProjectedAttributes() {
+        NameMap nameMap = new NameMap();
+        String projection = DynamoEntityProcessor.getProjectionExpression(
+                Arrays.asList("id", "address.city", "address", "skills[*].name", "id"), nameMap);
+
+        // an unquoted path may also be a top level attribute named like the column
+        assertEquals("#dihp0, #dihp1, #dihp2, #dihp3, #dihp4", projection);
+        assertEquals(Arrays.asList("id", "address.city", "address", "skills", "skills[*].name"), new ArrayList<>(nameMap.values()));
+    }
+
+    @Test
+    public void testQuotedNames() {
+        NameMap nameMap = new NameMap();
+        String projection = DynamoEntityProcessor.getProjectionExpression(
+                Arrays.asList("`order.id`", "`address.v2`.city"), nameMap);
+
+        assertEquals("#dihp0, #dihp1.#dihp2", projection);
+        assertEquals(Arrays.asList("order.id", "address.v2", "city"), new ArrayList<>(nameMap.values()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedPath() {
+        DynamoEntityProcessor.getProjectionExpression(Arrays.asList("id", "address..city"), new NameMap());
+    }
+}
@@ -0,0 +1,186 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * DynamoBatchGetter fills in index items from the base table: the key attributes are projected
+ * once, each key is requested once, and unprocessed keys are requested again.
+ *
+ * @author ben.demott
+ */
+public class DynamoBatchGetterTest {
+
+    /**
+     * Answers BatchGetItem from a map of table items, and remembers every request.
+     */
+    private static class FakeDynamo extends AbstractAmazonDynamoDB {
+        final Map<AttributeValue, Map<String, AttributeValue>> items = new HashMap<>();
+        final List<KeysAndAttributes> requests = new ArrayList<>();
+        int unprocessedResponses = 0; // responses that leave every other key unprocessed
+        boolean throttled = false; // every key is left unprocessed
+
+        void put(String id, String body) {
+            Map<String, AttributeValue> item = new HashMap<>();
+            item.put("id", new AttributeValue().withS(id));
+            item.put("body", new AttributeValue().withS(body));
+            items.put(item.get("id"), item);
+        }
+
+        @Override
+        public BatchGetItemResult batchGetItem(BatchGetItemRequest request) {
+            KeysAndAttributes keys = request.getRequestItems().get("table");
+            requests.add(keys);
+            List<Map<String, AttributeValue>> found = new ArrayList<>();
+            List<Map<String, AttributeValue>> unprocessed = new ArrayList<>();
+            for(int i = 0; i < keys.getKeys().size(); i++) {
+                Map<String, AttributeValue> key = keys.getKeys().get(i);
+                if(throttled || (unprocessedResponses > 0 && i % 2 == 1)) {
+                    unprocessed.add(key);
+                } else if(items.containsKey(key.get("id"))) {
+                    found.add(items.get(key.get("id")));
+                }
+            }
+            if(unprocessedResponses > 0) {
+                unprocessedResponses--;
+            }
+            BatchGetItemResult result = new BatchGetItemResult().withResponses(Collections.singletonMap("table", found));
+            if(!unprocessed.isEmpty()) {
+                result.withUnprocessedKeys(Collections.singletonMap("table", new KeysAndAttributes()
+                        .withKeys(unprocessed)
+                        .withProjectionExpression(keys.getProjectionExpression())
+                        .withExpressionAttributeNames(keys.getExpressionAttributeNames())));
+            }
+            return result;
+        }
+    }
+
+    private static Map<String, AttributeValue> indexItem(String id) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("id", new AttributeValue().withS(id));
+        item.put("title", new AttributeValue().withS("title " + id));
+        return item;
+    }
+
+    private static Map<String, String> names(String... placeholderNames) {
+        Map<String, String> names = new HashMap<>();
+        for(int i = 0; i < placeholderNames.length; i += 2) {
+            names.put(placeholderNames[i], placeholderNames[i + 1]);
+        }
+        return names;
+    }
+
+    @Test
+    public void testMissingKeyAttributesAreProjected() {
+        DynamoBatchGetter getter = new DynamoBatchGetter(new FakeDynamo(), "table", Arrays.asList("id", "version"),
+                "#b, title", names("#b", "body", "#unused", "other"), null);
+        assertEquals("#b, title, #dihkey0, #dihkey1", getter.projectionExpression);
+        assertEquals(names("#b", "body", "#dihkey0", "id", "#dihkey1", "version"), getter.nameMap);
+    }
+
+    @Test
+    public void testProjectedKeyAttributesAreNotRepeated() {
+        // id directly, version through a #name, dynamo rejects a path that is projected twice
+        DynamoBatchGetter getter = new DynamoBatchGetter(new FakeDynamo(), "table", Arrays.asList("id", "version"),
+                "id, #v, body, #v", names("#v", "version"), null);
+        assertEquals("id, #v, body", getter.projectionExpression);
+        assertEquals(names("#v", "version"), getter.nameMap);
+    }
+
+    @Test
+    public void testNestedPathOfKeyAttributeIsReplaced() {
+        // id.part overlaps id, only the key attribute itself is projected
+        DynamoBatchGetter getter = new DynamoBatchGetter(new FakeDynamo(), "table", Collections.singletonList("id"),
+                "#i.part, tags[0]", names("#i", "id"), null);
+        assertEquals("#i, tags[0]", getter.projectionExpression);
+        assertEquals(names("#i", "id"), getter.nameMap);
+    }
+
+    @Test
+    public void testNoProjectionFetchesEverything() {
+        DynamoBatchGetter getter = new DynamoBatchGetter(new FakeDynamo(), "table", Collections.singletonList("id"), null, null, null);
+        assertNull(getter.projectionExpression);
+        assertNull(getter.nameMap);
+    }
+
+    @Test
+    public void testDuplicateKeysRequestedOnce() {
+        FakeDynamo dynamo = new FakeDynamo();
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for(int i = 0; i < 150; i++) {
+            dynamo.put("id" + i, "body " + i);
+            items.add(indexItem("id" + i));
+            items.add(indexItem("id" + i));
+        }
+        DynamoBatchGetter getter = new DynamoBatchGetter(dynamo, "table", Collections.singletonList("id"), "body", null, null);
+        List<Map<String, AttributeValue>> filled = getter.fill(items);
+
+        assertEquals(2, dynamo.requests.size());
+        assertEquals(DynamoBatchGetter.MAX_BATCH_KEYS, dynamo.requests.get(0).getKeys().size());
+        assertEquals(50, dynamo.requests.get(1).getKeys().size());
+        for(KeysAndAttributes request : dynamo.requests) {
+            assertEquals(request.getKeys().size(), new HashSet<>(request.getKeys()).size());
+        }
+        assertEquals(300, filled.size());
+        assertEquals("body 7", filled.get(14).get("body").getS());
+        assertEquals("body 7", filled.get(15).get("body").getS());
+        assertEquals("title id7", filled.get(15).get("title").getS());
+    }
+
+    @Test
+    public void testUnprocessedKeysRequestedAgain() {
+        FakeDynamo dynamo = new FakeDynamo();
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        for(int i = 0; i < 6; i++) {
+            dynamo.put("id" + i, "body " + i);
+            items.add(indexItem("id" + i));
+        }
+        items.add(indexItem("deleted"));
+        dynamo.unprocessedResponses = 2;
+        DynamoBatchGetter getter = new DynamoBatchGetter(dynamo, "table", Collections.singletonList("id"), "body", null, null)
+                .withRetries(3, 1);
+        List<Map<String, AttributeValue>> filled = getter.fill(items);
+
+        // 7 keys, then the 3 left unprocessed, then the 1 left of those
+        assertEquals(3, dynamo.requests.size());
+        assertEquals(7, dynamo.requests.get(0).getKeys().size());
+        assertEquals(3, dynamo.requests.get(1).getKeys().size());
+        assertEquals(1, dynamo.requests.get(2).getKeys().size());
+        assertEquals("body, #dihkey0", dynamo.requests.get(2).getProjectionExpression());
+        for(int i = 0; i < 6; i++) {
+            assertEquals("body " + i, filled.get(i).get("body").getS());
+        }
+        // an item that is no longer in the table is returned as it was read from the index
+        assertEquals(indexItem("deleted"), filled.get(6));
+    }
+
+    @Test
+    public void testUnprocessedKeysGiveUpAfterRetries() {
+        FakeDynamo dynamo = new FakeDynamo();
+        dynamo.put("a", "A");
+        dynamo.put("b", "B");
+        dynamo.throttled = true;
+        DynamoBatchGetter getter = new DynamoBatchGetter(dynamo, "table", Collections.singletonList("id"), "body", null, null)
+                .withRetries(2, 1);
+        try {
+            getter.fill(Arrays.asList(indexItem("a"), indexItem("b")));
+            fail("keys that are never processed should fail the page");
+        } catch (IllegalStateException e) {
+            assertEquals(3, dynamo.requests.size());
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * DynamoCheckpoint saves the start key of the page DIH is consuming for every segment, and which
+ * segments were read to the end, so a resumed import starts from the last commit of the failed one.
+ *
+ * @author ben.demott
+ */
+public class DynamoCheckpointTest {
+    protected File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("dynamo-checkpoint-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testEncodeDecodeKeyValues() {
+        AttributeValue string = new AttributeValue().withS("user:42, with a : delimiter");
+        AttributeValue number = new AttributeValue().withN("-12.5");
+        AttributeValue binary = new AttributeValue().withB(ByteBuffer.wrap(new byte[] {0, 1, (byte) 0xff}));
+
+        assertEquals("S:user:42, with a : delimiter", DynamoCheckpoint.encodeValue(string));
+        assertEquals("N:-12.5", DynamoCheckpoint.encodeValue(number));
+        assertEquals(string, DynamoCheckpoint.decodeValue(DynamoCheckpoint.encodeValue(string)));
+        assertEquals(number, DynamoCheckpoint.decodeValue(DynamoCheckpoint.encodeValue(number)));
+        assertEquals(binary, DynamoCheckpoint.decodeValue(DynamoCheckpoint.encodeValue(binary)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedKeyType() {
+        DynamoCheckpoint.encodeValue(new AttributeValue().withBOOL(true));
+    }
+
+    @Test
+    public void testResumeFromSavedKeys() {
+        DynamoCheckpoint checkpoint = new DynamoCheckpoint(directory, "items", "signature", 0);
+        checkpoint.pageStarted(page(0, null, key("a", "1")));
+        checkpoint.pageStarted(page(1, key("b", "5"), key("b", "9")));
+        checkpoint.save();
+
+        DynamoCheckpoint resumed = new DynamoCheckpoint(directory, "items", "signature", 0);
+        resumed.load();
+        // segment 0 is on its first page, it's read from the beginning again
+        assertNull(resumed.getStartKey(0));
+        assertFalse(resumed.isDone(0));
+        assertEquals(key("b", "5"), resumed.getStartKey(1));
+        assertFalse(resumed.isDone(1));
+    }
+
+    @Test
+    public void testFinishedSegmentIsDone() {
+        DynamoCheckpoint checkpoint = new DynamoCheckpoint(directory, "items", "signature", 0);
+        checkpoint.pageStarted(page(0, null, key("a", "1")));
+        checkpoint.pageStarted(page(0, key("a", "1"), null)); // last page of segment 0
+        checkpoint.pageStarted(page(1, key("b", "5"), key("b", "9"))); // segment 0 was consumed
+        checkpoint.save();
+
+        DynamoCheckpoint resumed = new DynamoCheckpoint(directory, "items", "signature", 0);
+        resumed.load();
+        assertTrue(resumed.isDone(0));
+        assertNull(resumed.getStartKey(0));
+        assertFalse(resumed.isDone(1));
+        assertFalse(resumed.isDone(2));
+        assertEquals(key("b", "5"), resumed.getStartKey(1));
+    }
+
+    @Test
+    public void testLastPageInProgressIsNotDone() {
+        DynamoCheckpoint checkpoint = new DynamoCheckpoint(directory, "items", "signature", 0);
+        checkpoint.pageStarted(page(0, key("a", "1"), null)); // DIH is still consuming the last page
+        checkpoint.save();
+
+        DynamoCheckpoint resumed = new DynamoCheckpoint(directory, "items", "signature", 0);
+        resumed.load();
+        assertFalse(resumed.isDone(0));
+        assertEquals(key("a", "1"), resumed.getStartKey(0));
+    }
+
+    @Test
+    public void testDoneSegmentsAreKeptAcrossResumes() {
+        DynamoCheckpoint checkpoint = new DynamoCheckpoint(directory, "items", "signature", 0);
+        checkpoint.pageStarted(page(3, key("a", "1"), null));
+        checkpoint.pageStarted(page(1, null, key("b", "2")));
+        checkpoint.save();
+
+        // the resumed import skips segment 3, it's still done when the checkpoint is saved again
+        DynamoCheckpoint resumed = new DynamoCheckpoint(directory, "items", "signature", 0);
+        resumed.load();
+        resumed.pageStarted(page(1, key("b", "2"), key("b", "3")));
+        resumed.save();
+
+        DynamoCheckpoint again = new DynamoCheckpoint(directory, "items", "signature", 0);
+        again.load();
+        assertTrue(again.isDone(3));
+        assertEquals(key("b", "2"), again.getStartKey(1));
+    }
+
+    @Test
+    public void testSignatureMismatchStartsOver() {
+        DynamoCheckpoint checkpoint = new DynamoCheckpoint(directory, "items", "old query", 0);
+        checkpoint.pageStarted(page(0, key("a", "1"), null));
+        checkpoint.pageStarted(page(1, key("b", "5"), key("b", "9")));
+        checkpoint.save();
+
+        DynamoCheckpoint resumed = new DynamoCheckpoint(directory, "items", "new query", 0);
+        assertTrue(resumed.load().isEmpty());
+        assertFalse(resumed.isDone(0));
+        assertNull(resumed.getStartKey(1));
+    }
+
+    @Test
+    public void testSaveEveryNPages() {
+        DynamoCheckpoint checkpoint = new DynamoCheckpoint(directory, "items", "signature", 2);
+        checkpoint.pageStarted(page(0, key("a", "1"), key("a", "2")));
+        assertFalse(new File(directory, DynamoCheckpoint.FILE_NAME).exists());
+        checkpoint.pageStarted(page(0, key("a", "2"), key("a", "3")));
+
+        DynamoCheckpoint resumed = new DynamoCheckpoint(directory, "items", "signature", 0);
+        resumed.load();
+        assertEquals(key("a", "2"), resumed.getStartKey(0));
+    }
+
+    @Test
+    public void testCommitBeforeSave() {
+        List<String> events = new ArrayList<>();
+        DynamoCheckpoint checkpoint = new DynamoCheckpoint(directory, "items", "signature", 1);
+        checkpoint.setCommitter(() -> events.add("commit " + new File(directory, DynamoCheckpoint.FILE_NAME).exists()));
+        checkpoint.pageStarted(page(0, key("a", "1"), key("a", "2")));
+        assertEquals(Collections.singletonList("commit false"), events);
+        assertTrue(new File(directory, DynamoCheckpoint.FILE_NAME).exists());
+    }
+
+    @Test
+    public void testFailedCommitKeepsTheLastCheckpoint() {
+        DynamoCheckpoint checkpoint = new DynamoCheckpoint(directory, "items", "signature", 1);
+        checkpoint.pageStarted(page(0, key("a", "1"), key("a", "2")));
+        checkpoint.setCommitter(() -> {
+            throw new IOException("commit failed");
+        });
+        checkpoint.pageStarted(page(0, key("a", "2"), key("a", "3")));
+
+        DynamoCheckpoint resumed = new DynamoCheckpoint(directory, "items", "signature", 0);
+        resumed.load();
+        assertEquals(key("a", "1"), resumed.getStartKey(0));
+    }
+
+    @Test
+    public void testResumeAfterRollbackReadsRolledBackPages() {
+        // 5 pages of 2 documents
+        List<DynamoPage> pages = new ArrayList<>();
+        for(int i = 0; i < 5; i++) {
+            List<Map<String, Object>> rows = new ArrayList<>();
+            rows.add(Collections.singletonMap("id", i + "-0"));
+            rows.add(Collections.singletonMap("id", i + "-1"));
+            pages.add(new DynamoPage(0, i == 0 ? null : key("a", String.valueOf(i)), 
+                    i == 4 ? null : key("a", String.valueOf(i + 1)), rows));
+        }
+        // a fake index: written documents are only kept across a failure once committed
+        List<Object> written = new ArrayList<>();
+        List<Object> committed = new ArrayList<>();
+
+        DynamoCheckpoint checkpoint = new DynamoCheckpoint(directory, "items", "signature", 2);
+        checkpoint.setCommitter(() -> {
+            committed.addAll(written);
+            written.clear();
+        });
+        try (DynamoResultIterator<Map<String, Object>> rows = new DynamoResultIterator<>(pages.iterator(), null)) {
+            rows.checkpoint = checkpoint;
+            while(rows.hasNext()) {
+                Object id = rows.next().get("id");
+                if("4-0".equals(id)) {
+                    break; // the import fails, DIH rolls back to the last commit
+                }
+                written.add(id);
+            }
+        }
+        written.clear();
+        assertEquals(Arrays.asList("0-0", "0-1", "1-0", "1-1", "2-0", "2-1"), committed);
+
+        // the checkpoint was saved when page 3 started, after pages 0 to 2 were committed.
+        // closing the failed import doesn't save page 4, pages 3 and 4 are read again.
+        DynamoCheckpoint resumed = new DynamoCheckpoint(directory, "items", "signature", 0);
+        resumed.load();
+        assertEquals(key("a", "3"), resumed.getStartKey(0));
+        assertFalse(resumed.isDone(0));
+    }
+
+    @Test
+    public void testClearOnlyRemovesTheEntity() {
+        DynamoCheckpoint items = new DynamoCheckpoint(directory, "items", "signature", 0);
+        DynamoCheckpoint users = new DynamoCheckpoint(directory, "users", "signature", 0);
+        items.pageStarted(page(0, key("a", "1"), key("a", "2")));
+        items.save();
+        users.pageStarted(page(0, key("u", "7"), key("u", "8")));
+        users.save();
+        items.clear();
+
+        DynamoCheckpoint resumedItems = new DynamoCheckpoint(directory, "items", "signature", 0);
+        assertTrue(resumedItems.load().isEmpty());
+        DynamoCheckpoint resumedUsers = new DynamoCheckpoint(directory, "users", "signature", 0);
+        resumedUsers.load();
+        assertEquals(key("u", "7"), resumedUsers.getStartKey(0));
+    }
+
+    protected static DynamoPage page(int segment, Map<String, AttributeValue> startKey, Map<String, AttributeValue> lastEvaluatedKey) {
+        return new DynamoPage(segment, startKey, lastEvaluatedKey, Collections.emptyList());
+    }
+
+    protected static Map<String, AttributeValue> key(String hash, String range) {
+        Map<String, AttributeValue> key = new LinkedHashMap<>();
+        key.put("id", new AttributeValue().withS(hash));
+        key.put("version", new AttributeValue().withN(range));
+        return key;
+    }
+}
@@ -0,0 +1,85 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * DynamoClientRegistry builds the clients of a configuration once, without holding up the data
+ * sources of other configurations.
+ *
+ * @author ben.demott
+ */
+public class DynamoClientRegistryTest {
+
+    private static DynamoClientRegistry.Clients newClients() {
+        return new DynamoClientRegistry.Clients(null, null, null);
+    }
+
+    @Test
+    public void testSharedByKey() throws Exception {
+        DynamoClientRegistry registry = new DynamoClientRegistry();
+        AtomicInteger built = new AtomicInteger();
+        DynamoClientRegistry.Clients first = registry.get("a", "a", () -> {
+            built.incrementAndGet();
+            return newClients();
+        });
+        assertSame(first, registry.get("a", "a", () -> {
+            built.incrementAndGet();
+            return newClients();
+        }));
+        assertEquals(1, built.get());
+        assertEquals("1 clients, 1 hits", registry.toString());
+    }
+
+    @Test
+    public void testFailedFactoryIsCalledAgain() throws Exception {
+        DynamoClientRegistry registry = new DynamoClientRegistry();
+        try {
+            registry.get("a", "a", () -> {
+                throw new IllegalArgumentException("no role");
+            });
+            fail("Expected the error of the factory");
+        } catch (IllegalArgumentException e) {
+            assertEquals("no role", e.getMessage());
+        }
+        assertNotNull(registry.get("a", "a", DynamoClientRegistryTest::newClients));
+        assertEquals("1 clients, 0 hits", registry.toString());
+    }
+
+    @Test
+    public void testSlowFactoryDoesNotBlockOtherKeys() throws Exception {
+        DynamoClientRegistry registry = new DynamoClientRegistry();
+        CountDownLatch building = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<DynamoClientRegistry.Clients> slow = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                slow.set(registry.get("slow", "slow", () -> {
+                    building.countDown();
+                    release.await();
+                    return newClients();
+                }));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+        assertTrue(building.await(10, TimeUnit.SECONDS));
+
+        // the slow configuration is still being built
+        assertNotNull(registry.get("fast", "fast", DynamoClientRegistryTest::newClients));
+
+        release.countDown();
+        thread.join(10000);
+        assertNotNull(slow.get());
+        assertSame(slow.get(), registry.get("slow", "slow", DynamoClientRegistryTest::newClients));
+    }
+}
@@ -0,0 +1,94 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.util.Arrays;
+import java.util.Date;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * DynamoColumnType converts attribute values to the type of their field.
+ *
+ * @author ben.demott
+ */
+public class DynamoColumnTypeTest {
+
+    private static AttributeValue s(String value) {
+        return new AttributeValue().withS(value);
+    }
+
+    private static AttributeValue n(String value) {
+        return new AttributeValue().withN(value);
+    }
+
+    @Test
+    public void testNames() {
+        assertSame(DynamoColumnType.LONG, DynamoColumnType.forName(" Long "));
+        assertSame(DynamoColumnType.NUMBER, DynamoColumnType.forName("N"));
+        assertSame(DynamoColumnType.BOOLEAN, DynamoColumnType.forName("BOOL"));
+        assertSame(DynamoColumnType.EPOCH_SECONDS, DynamoColumnType.forName("epochSeconds"));
+        assertNull(DynamoColumnType.forName("nope"));
+        assertNull(DynamoColumnType.forName(null));
+    }
+
+    @Test
+    public void testOldDynamoTypeNames() {
+        for(String name : Arrays.asList("B", "BS", "M", "NULL")) {
+            assertSame(name, DynamoColumnType.VALUE, DynamoColumnType.forName(name));
+        }
+        assertEquals("10.50", DynamoColumnType.VALUE.convert(n("10.50")));
+        assertEquals("x", DynamoColumnType.VALUE.convert(s("x")));
+        assertNull(DynamoColumnType.VALUE.convert(new AttributeValue().withNULL(true)));
+    }
+
+    @Test
+    public void testDateWithOffset() {
+        Date utc = (Date) DynamoColumnType.DATE.convert(s("2017-05-01T12:00:00Z"));
+        assertEquals(1493640000000L, utc.getTime());
+        assertEquals(utc, DynamoColumnType.DATE.convert(s("2017-05-01T07:00:00-05:00")));
+        assertEquals(utc, DynamoColumnType.DATE.convert(s("2017-05-01T14:00:00.000+02:00")));
+        assertEquals(utc, DynamoColumnType.DATE.convert(n("1493640000000")));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testDateWithoutOffset() {
+        DynamoColumnType.DATE.convert(s("2017-05-01T12:00:00"));
+    }
+
+    @Test
+    public void testEpoch() {
+        assertEquals(new Date(1493640000500L), DynamoColumnType.EPOCH_SECONDS.convert(n("1493640000.5")));
+        assertEquals(new Date(1493640000000L), DynamoColumnType.EPOCH_MILLIS.convert(s("1493640000000")));
+    }
+
+    @Test
+    public void testBoolean() {
+        assertEquals(Boolean.TRUE, DynamoColumnType.BOOLEAN.convert(s("TRUE")));
+        assertEquals(Boolean.FALSE, DynamoColumnType.BOOLEAN.convert(s(" false ")));
+        assertEquals(Boolean.TRUE, DynamoColumnType.BOOLEAN.convert(n("2")));
+        assertEquals(Boolean.FALSE, DynamoColumnType.BOOLEAN.convert(s("0")));
+        assertEquals(Boolean.TRUE, DynamoColumnType.BOOLEAN.convert(new AttributeValue().withBOOL(true)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownBoolean() {
+        DynamoColumnType.BOOLEAN.convert(s("yes"));
+    }
+
+    @Test
+    public void testNumbers() {
+        assertEquals(1000L, DynamoColumnType.LONG.convert(n("1.0E+3")));
+        assertEquals(12L, DynamoColumnType.NUMBER.convert(n("12")));
+        assertEquals(1.5d, DynamoColumnType.NUMBER.convert(n("1.5")));
+        assertEquals(2.0d, DynamoColumnType.DOUBLE.convert(s(" 2 ")));
+    }
+
+    @Test
+    public void testLists() {
+        assertEquals(Arrays.<Object>asList(1L, 2L), DynamoColumnType.LONG.convert(new AttributeValue().withNS("1", "2")));
+        assertEquals(Arrays.<Object>asList("a"), DynamoColumnType.LIST.convert(s("a")));
+        assertEquals(Arrays.<Object>asList(1L, "b"), DynamoColumnType.LIST.convert(new AttributeValue().withL(n("1"), s("b"))));
+    }
+}
@@ -0,0 +1,188 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.OperationType;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.dataimport.Context;
+import org.apache.solr.handler.dataimport.DataSource;
+import org.apache.solr.handler.dataimport.EntityProcessor;
+import org.apache.solr.handler.dataimport.VariableResolver;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * nextDeletedRowKey returns the solr key of every item whose latest stream record removed it,
+ * an item removed then written again isn't deleted.
+ *
+ * @author ben.demott
+ */
+public class DynamoDeletedRowsTest {
+
+    /**
+     * The context of the root entity while DIH finds the delta, only entity attributes are set.
+     */
+    static class FakeContext extends Context {
+        final Map<String, String> attributes = new HashMap<>();
+        String process = Context.FIND_DELTA;
+
+        @Override
+        public String getEntityAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public String getResolvedEntityAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public List<Map<String, String>> getAllEntityFields() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public VariableResolver getVariableResolver() {
+            return null;
+        }
+
+        @Override
+        public DataSource getDataSource() {
+            return null;
+        }
+
+        @Override
+        public DataSource getDataSource(String name) {
+            return null;
+        }
+
+        @Override
+        public EntityProcessor getEntityProcessor() {
+            return null;
+        }
+
+        @Override
+        public void setSessionAttribute(String name, Object val, String scope) {
+        }
+
+        @Override
+        public Object getSessionAttribute(String name, String scope) {
+            return null;
+        }
+
+        @Override
+        public Context getParentContext() {
+            return null;
+        }
+
+        @Override
+        public Map<String, Object> getRequestParameters() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public boolean isRootEntity() {
+            return true;
+        }
+
+        @Override
+        public String currentProcess() {
+            return process;
+        }
+
+        @Override
+        public SolrCore getSolrCore() {
+            return null;
+        }
+
+        @Override
+        public Map<String, Object> getStats() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void deleteDoc(String id) {
+        }
+
+        @Override
+        public void deleteDocByQuery(String q) {
+        }
+
+        @Override
+        public String replaceTokens(String template) {
+            return template;
+        }
+
+        @Override
+        public String getScript() {
+            return null;
+        }
+
+        @Override
+        public String getScriptLanguage() {
+            return null;
+        }
+
+        @Override
+        public Object resolve(String var) {
+            return null;
+        }
+    }
+
+    /**
+     * An entity processor of a stream delta, the stream was already read by the import.
+     */
+    private static class StreamProcessor extends DynamoEntityProcessor {
+        StreamProcessor(FakeContext context, DynamoStreamReader streamReader) {
+            context.attributes.put(TABLE_NAME, "items");
+            context.attributes.put(DELTA_SOURCE, DELTA_SOURCE_STREAM);
+            this.context = context;
+            this.entityName = "items";
+            this.primaryKeyDynamo = "id";
+            this.primaryKeySolr = "solr_id";
+            this.streamReader = streamReader;
+        }
+    }
+
+    @SafeVarargs
+    private static StreamProcessor processor(FakeContext context, List<Record>... shardResponses) {
+        DynamoStreamReaderTest.FakeStreams streams = new DynamoStreamReaderTest.FakeStreams();
+        streams.addShard("shard", null, true, shardResponses);
+        DynamoStreamReader reader = new DynamoStreamReader(streams, "arn", "KEYS_ONLY", "items").read(new HashMap<>(), 1, 1);
+        return new StreamProcessor(context, reader);
+    }
+
+    @Test
+    public void testInsertThenRemoveIsDeleted() {
+        StreamProcessor processor = processor(new FakeContext(), DynamoStreamReaderTest.records(
+                DynamoStreamReaderTest.record(OperationType.INSERT, "a", "1", 1),
+                DynamoStreamReaderTest.record(OperationType.REMOVE, "a", null, 2),
+                DynamoStreamReaderTest.record(OperationType.INSERT, "b", "1", 3)));
+
+        assertEquals(Collections.singletonMap("solr_id", "a"), processor.nextDeletedRowKey());
+        assertNull(processor.nextDeletedRowKey());
+    }
+
+    @Test
+    public void testRemoveThenInsertIsNotDeleted() {
+        StreamProcessor processor = processor(new FakeContext(), DynamoStreamReaderTest.records(
+                DynamoStreamReaderTest.record(OperationType.REMOVE, "a", null, 1),
+                DynamoStreamReaderTest.record(OperationType.INSERT, "a", "2", 2)));
+
+        assertNull(processor.nextDeletedRowKey());
+    }
+
+    @Test
+    public void testNoDeletesWithoutDeletionSource() {
+        FakeContext context = new FakeContext();
+        StreamProcessor processor = processor(context, DynamoStreamReaderTest.records(
+                DynamoStreamReaderTest.record(OperationType.REMOVE, "a", null, 1)));
+        context.attributes.put(DynamoEntityProcessor.DELETION_SOURCE, DynamoEntityProcessor.DELETION_SOURCE_NONE);
+
+        assertNull(processor.nextDeletedRowKey());
+    }
+}
@@ -0,0 +1,121 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import software.amazon.ion.IonReader;
+import software.amazon.ion.system.IonSystemBuilder;
+
+/**
+ * DynamoExportReader reads the items of an ION export into the same items a Scan returns.
+ *
+ * @author ben.demott
+ */
+public class DynamoExportReaderTest {
+    protected File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("dynamo-export-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static Map<String, AttributeValue> parse(String ion) throws IOException {
+        IonReader reader = IonSystemBuilder.standard().build().newReader(ion);
+        reader.next();
+        return DynamoExportReader.parseItem(reader);
+    }
+
+    private void writeDataFile(String name, String content) throws IOException {
+        try(OutputStream out = new GZIPOutputStream(new FileOutputStream(new File(directory, name)))) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testIonScalars() throws IOException {
+        Map<String, AttributeValue> item = parse("$ion_1_0 {Item:{id:\"103\",Price:2d1,PageCount:600.,Ratio:1.50,Count:7,"
+                + "InPublication:false,Missing:null,Cover:{{AQID}}}}");
+
+        assertEquals("103", item.get("id").getS());
+        assertEquals("20", item.get("Price").getN());
+        assertEquals("600", item.get("PageCount").getN());
+        assertEquals("1.5", item.get("Ratio").getN());
+        assertEquals("7", item.get("Count").getN());
+        assertEquals(Boolean.FALSE, item.get("InPublication").getBOOL());
+        assertEquals(Boolean.TRUE, item.get("Missing").getNULL());
+        assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), item.get("Cover").getB());
+    }
+
+    @Test
+    public void testIonSetsListsAndMaps() throws IOException {
+        Map<String, AttributeValue> item = parse("{Item:{Authors:$dynamodb_SS::[\"Author1\",\"Author2\"],Scores:$dynamodb_NS::[1.,25d-1],"
+                + "Hashes:$dynamodb_BS::[{{AQ==}}],Jobs:[{title:\"Engineer\",years:3.},\"text\"]}}");
+
+        assertEquals(Arrays.asList("Author1", "Author2"), item.get("Authors").getSS());
+        assertEquals(Arrays.asList("1", "2.5"), item.get("Scores").getNS());
+        assertEquals(Arrays.asList(ByteBuffer.wrap(new byte[] {1})), item.get("Hashes").getBS());
+        List<AttributeValue> jobs = item.get("Jobs").getL();
+        assertEquals("Engineer", jobs.get(0).getM().get("title").getS());
+        assertEquals("3", jobs.get(0).getM().get("years").getN());
+        assertEquals("text", jobs.get(1).getS());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAnItem() throws IOException {
+        parse("{Other:{id:\"1\"}}");
+    }
+
+    @Test
+    public void testReadIonDataFiles() throws IOException {
+        writeDataFile("a.ion.gz", "$ion_1_0 {Item:{id:\"1\",n:1.}}\n$ion_1_0 {Item:{id:\"2\",n:2.}}\n");
+        writeDataFile("b.ion.gz", "$ion_1_0 {Item:{id:\"3\",n:3.}}\n");
+        DynamoExportReader export = new DynamoExportReader(directory, "table");
+        assertEquals(2, export.getDataFiles().size());
+
+        List<Object> ids = new ArrayList<>();
+        Iterator<DynamoPage> pages = export.read(DynamoItemConverter.DEFAULT, 2);
+        while(pages.hasNext()) {
+            for(Map<String, Object> row : pages.next()) {
+                ids.add(row.get("id"));
+                assertEquals(row.get("id"), row.get("n"));
+            }
+        }
+        assertEquals(3, ids.size());
+        assertTrue(ids.containsAll(Arrays.asList("1", "2", "3")));
+    }
+
+    @Test
+    public void testIonFileNames() {
+        assertTrue(DynamoExportReader.isIon("abc.ion.gz"));
+        assertTrue(DynamoExportReader.isIon("abc.ion"));
+        assertFalse(DynamoExportReader.isIon("abc.json.gz"));
+    }
+}
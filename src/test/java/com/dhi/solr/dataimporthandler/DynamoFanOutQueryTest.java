@@ -0,0 +1,136 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.solr.handler.dataimport.Context;
+import org.apache.solr.handler.dataimport.DataImportHandlerException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * A fan-out query runs the same query for every partition key value, the values are parsed to
+ * the partitionKeyValueType of the entity.
+ *
+ * @author ben.demott
+ */
+public class DynamoFanOutQueryTest {
+
+    /**
+     * An entity of a full import, its plan is compiled from the attributes of the context.
+     */
+    private static class FanOutProcessor extends DynamoEntityProcessor {
+        final DynamoDeletedRowsTest.FakeContext fakeContext = new DynamoDeletedRowsTest.FakeContext();
+
+        FanOutProcessor(String... attributeValues) {
+            fakeContext.process = Context.FULL_DUMP;
+            for(int i = 0; i < attributeValues.length; i += 2) {
+                fakeContext.attributes.put(attributeValues[i], attributeValues[i + 1]);
+            }
+            this.context = fakeContext;
+            this.entityName = "orders";
+            this.queryPlan = new DynamoQueryPlan(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap(),
+                    Collections.emptySet(), fakeContext.attributes);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testEveryPartitionIsQueried() {
+        DynamoResultIteratorTest.PagedDynamo dynamo = new DynamoResultIteratorTest.PagedDynamo(3, 2);
+        DynamoQueryParameters query = new DynamoQueryParameters();
+        query.setKeyConditionExpression("pk = :pk");
+        query.setPartitionKeyValues(Arrays.<Object>asList("a", "b", "c", "d"));
+        query.setPartitionKeyValueName(":pk");
+        query.setQueryThreads(2);
+
+        List<String> ids = new ArrayList<>();
+        try (DynamoResultIterator<Map<String, Object>> rows = DynamoResultIteratorTest.scan(dynamo, query)) {
+            while(rows.hasNext()) {
+                ids.add((String) rows.next().get("id"));
+            }
+        }
+        assertEquals(4 * 3 * 2, ids.size());
+        // partitions are read at the same time, the pages of each one are in order
+        for(String partition : Arrays.asList("a", "b", "c", "d")) {
+            List<String> partitionIds = new ArrayList<>();
+            for(String id : ids) {
+                if(id.startsWith(partition + "-")) {
+                    partitionIds.add(id);
+                }
+            }
+            assertEquals(DynamoResultIteratorTest.expectedIds(partition, 3, 2), partitionIds);
+        }
+    }
+
+    @Test
+    public void testTypedValues() {
+        FanOutProcessor processor = new FanOutProcessor(
+                DynamoEntityProcessor.PARTITION_KEY_VALUES, " 1, 2,,3 ",
+                DynamoEntityProcessor.PARTITION_KEY_VALUE_TYPE, "Long");
+        assertEquals(Arrays.<Object>asList(1L, 2L, 3L), processor.getPartitionKeyValues(""));
+
+        processor = new FanOutProcessor(
+                DynamoEntityProcessor.PARTITION_KEY_VALUES, "1.5,2",
+                DynamoEntityProcessor.PARTITION_KEY_VALUE_TYPE, "N");
+        assertEquals(Arrays.<Object>asList(1.5d, 2d), processor.getPartitionKeyValues(""));
+
+        // strings by default
+        processor = new FanOutProcessor(DynamoEntityProcessor.PARTITION_KEY_VALUES, "us-east,eu-west");
+        assertEquals(Arrays.<Object>asList("us-east", "eu-west"), processor.getPartitionKeyValues(""));
+    }
+
+    @Test
+    public void testValuesFile() throws IOException {
+        File file = File.createTempFile("partition-values", ".txt");
+        try {
+            Files.write(file.toPath(), Arrays.asList("# tenants", "7", "", "  8  "), StandardCharsets.UTF_8);
+            FanOutProcessor processor = new FanOutProcessor(
+                    DynamoEntityProcessor.PARTITION_KEY_VALUES, "6",
+                    DynamoEntityProcessor.PARTITION_KEY_VALUES_FILE, file.getAbsolutePath(),
+                    DynamoEntityProcessor.PARTITION_KEY_VALUE_TYPE, "int");
+            assertEquals(Arrays.<Object>asList(6, 7, 8), processor.getPartitionKeyValues(""));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testValueOfTheWrongType() {
+        FanOutProcessor processor = new FanOutProcessor(
+                DynamoEntityProcessor.PARTITION_KEY_VALUES, "1,two",
+                DynamoEntityProcessor.PARTITION_KEY_VALUE_TYPE, "int");
+        try {
+            processor.getPartitionKeyValues("");
+            fail("a value that isn't an int should fail the import");
+        } catch (DataImportHandlerException e) {
+            assertTrue(e.getMessage().contains("two"));
+        }
+    }
+
+    @Test
+    public void testUnknownType() {
+        FanOutProcessor processor = new FanOutProcessor(
+                DynamoEntityProcessor.PARTITION_KEY_VALUES, "1",
+                DynamoEntityProcessor.PARTITION_KEY_VALUE_TYPE, "date");
+        try {
+            processor.getPartitionKeyValues("");
+            fail("an unknown type should fail the import");
+        } catch (DataImportHandlerException e) {
+            assertTrue(e.getMessage().contains("date"));
+        }
+    }
+
+    @Test
+    public void testNotAFanOutQuery() {
+        assertNull(new FanOutProcessor(DynamoEntityProcessor.TABLE_NAME, "orders").getPartitionKeyValues(""));
+    }
+}
@@ -0,0 +1,70 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.util.ArrayList;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * DynamoImportMetrics counts the pages read by an entity, and estimates the progress of a full
+ * scan of a root entity.
+ *
+ * @author ben.demott
+ */
+public class DynamoImportMetricsTest {
+
+    @Test
+    public void testGauges() {
+        DynamoImportMetrics metrics = new DynamoImportMetrics("test", true);
+        metrics.pageRead(10, 20, 1000, 5.0, 30000000L);
+        metrics.pageRead(5, 5, 500, null, 2000000L);
+        metrics.throttled();
+
+        Map<String, Object> snapshot = metrics.getSnapshot();
+        // one gauge per metric, registered under the same names
+        assertEquals(new ArrayList<>(metrics.gauges.keySet()), new ArrayList<>(snapshot.keySet()));
+        assertEquals(2L, snapshot.get("pages"));
+        assertEquals(15L, snapshot.get("items"));
+        assertEquals(25L, snapshot.get("scannedItems"));
+        assertEquals(1500L, snapshot.get("bytes"));
+        assertEquals(5.0, snapshot.get("consumedRcu"));
+        assertEquals(1L, snapshot.get("throttles"));
+        assertEquals(16.0, snapshot.get("pageLatencyMeanMs"));
+        assertEquals(1L, snapshot.get("pageLatency.lt_10ms"));
+        assertEquals(1L, snapshot.get("pageLatency.lt_50ms"));
+        assertEquals(25L, metrics.gauges.get("scannedItems").getValue());
+    }
+
+    @Test
+    public void testProgress() {
+        DynamoImportMetrics metrics = new DynamoImportMetrics("test", true);
+        metrics.setExpectedItems(100);
+        metrics.pageRead(25, 25, 0, null, 0);
+        assertEquals(100L, metrics.getSnapshot().get("expectedItems"));
+        assertEquals(25.0, metrics.getSnapshot().get("percentComplete"));
+
+        metrics.finish();
+        assertEquals(100.0, metrics.getSnapshot().get("percentComplete"));
+        assertEquals(0L, metrics.getSnapshot().get("etaSeconds"));
+    }
+
+    @Test
+    public void testNoProgress() {
+        // a child entity scanning once per parent row
+        DynamoImportMetrics metrics = new DynamoImportMetrics("test", false);
+        for(int parent = 0; parent < 3; parent++) {
+            metrics.setExpectedItems(100);
+            metrics.pageRead(100, 100, 0, null, 0);
+        }
+        Map<String, Object> snapshot = metrics.getSnapshot();
+        assertEquals(300L, snapshot.get("scannedItems"));
+        assertEquals(-1L, snapshot.get("expectedItems"));
+        assertEquals(-1.0, snapshot.get("percentComplete"));
+        assertEquals(-1L, snapshot.get("etaSeconds"));
+
+        metrics.finish();
+        assertEquals(-1.0, metrics.getSnapshot().get("percentComplete"));
+        assertTrue(metrics.toString().startsWith("[test]"));
+    }
+}
@@ -0,0 +1,175 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * DynamoItemConverter converts items to DIH rows the way the Document API did, except top level
+ * numbers are kept as Strings, and typed columns are converted to their type.
+ *
+ * @author ben.demott
+ */
+public class DynamoItemConverterTest {
+
+    private static Map<String, AttributeValue> item(Object... nameValues) {
+        Map<String, AttributeValue> item = new LinkedHashMap<>();
+        for(int i = 0; i < nameValues.length; i += 2) {
+            item.put((String) nameValues[i], (AttributeValue) nameValues[i + 1]);
+        }
+        return item;
+    }
+
+    private static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testScalarAttributes() {
+        Map<String, Object> row = DynamoItemConverter.toRow(item(
+                "id", new AttributeValue().withS("a1"),
+                "price", new AttributeValue().withN("10.50"),
+                "active", new AttributeValue().withBOOL(true),
+                "data", new AttributeValue().withB(bytes("xyz")),
+                "missing", new AttributeValue().withNULL(true)));
+
+        assertEquals("a1", row.get("id"));
+        assertEquals("10.50", row.get("price"));
+        assertEquals(Boolean.TRUE, row.get("active"));
+        assertArrayEquals("xyz".getBytes(StandardCharsets.UTF_8), (byte[]) row.get("data"));
+        assertFalse(row.containsKey("missing"));
+        assertEquals(4, row.size());
+    }
+
+    @Test
+    public void testSetAndDocumentAttributes() {
+        Map<String, AttributeValue> address = new LinkedHashMap<>();
+        address.put("city", new AttributeValue().withS("Chicago"));
+        address.put("zip", new AttributeValue().withN("60601"));
+
+        Map<String, Object> row = DynamoItemConverter.toRow(item(
+                "tags", new AttributeValue().withSS("b", "a"),
+                "sizes", new AttributeValue().withNS("1", "2.5"),
+                "values", new AttributeValue().withL(new AttributeValue().withS("x"), new AttributeValue().withN("3")),
+                "address", new AttributeValue().withM(address)));
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList("b", "a")), row.get("tags"));
+        assertEquals(new LinkedHashSet<>(Arrays.asList(new BigDecimal("1"), new BigDecimal("2.5"))), row.get("sizes"));
+        // nested numbers are BigDecimal
+        assertEquals(Arrays.asList("x", new BigDecimal("3")), row.get("values"));
+        Map<String, Object> expectedAddress = new HashMap<>();
+        expectedAddress.put("city", "Chicago");
+        expectedAddress.put("zip", new BigDecimal("60601"));
+        assertEquals(expectedAddress, row.get("address"));
+    }
+
+    @Test
+    public void testBinarySet() {
+        Map<String, Object> row = DynamoItemConverter.toRow(item("bs", new AttributeValue().withBS(bytes("a"), bytes("bc"))));
+        Set<?> set = (Set<?>) row.get("bs");
+        assertEquals(2, set.size());
+        Object[] values = set.toArray();
+        assertArrayEquals("a".getBytes(StandardCharsets.UTF_8), (byte[]) values[0]);
+        assertArrayEquals("bc".getBytes(StandardCharsets.UTF_8), (byte[]) values[1]);
+    }
+
+    @Test
+    public void testBinaryBufferNotConsumed() {
+        ByteBuffer buffer = bytes("xyz");
+        DynamoItemConverter.toRow(item("data", new AttributeValue().withB(buffer)));
+        assertEquals(3, buffer.remaining());
+    }
+
+    @Test
+    public void testTypedColumns() {
+        Map<String, DynamoColumnType> types = new LinkedHashMap<>();
+        types.put("count", DynamoColumnType.LONG);
+        types.put("price", DynamoColumnType.DOUBLE);
+        types.put("scores", DynamoColumnType.NUMBER);
+        types.put("absent", DynamoColumnType.LONG);
+        DynamoItemConverter converter = new DynamoItemConverter(types);
+
+        Map<String, Object> row = converter.convert(item(
+                "count", new AttributeValue().withN("1.0E+3"),
+                "price", new AttributeValue().withS("2.5"),
+                "scores", new AttributeValue().withNS("1", "1.5"),
+                "untyped", new AttributeValue().withN("7")));
+
+        assertEquals(1000L, row.get("count"));
+        assertEquals(2.5d, row.get("price"));
+        assertEquals(Arrays.<Object>asList(1L, 1.5d), row.get("scores"));
+        assertEquals("7", row.get("untyped"));
+        assertFalse(row.containsKey("absent"));
+        assertEquals(4, row.size());
+    }
+
+    @Test
+    public void testNumberColumn() {
+        Map<String, DynamoColumnType> types = new LinkedHashMap<>();
+        types.put("count", DynamoColumnType.LONG);
+        DynamoItemConverter converter = new DynamoItemConverter(types).withNumberColumn("company_id");
+
+        Map<String, Object> row = converter.convert(item(
+                "count", new AttributeValue().withN("3"),
+                "company_id", new AttributeValue().withN("10.0"),
+                "untyped", new AttributeValue().withN("7")));
+        assertEquals(3L, row.get("count"));
+        assertEquals(new BigDecimal("10.0"), row.get("company_id"));
+        assertEquals("7", row.get("untyped"));
+
+        // an S value of the column is still a String
+        row = converter.convert(item("company_id", new AttributeValue().withS("007")));
+        assertEquals("007", row.get("company_id"));
+        assertEquals("{company_id=number, count=LONG}", converter.toString());
+    }
+
+    @Test
+    public void testValueThatCantBeConvertedIsKept() {
+        Map<String, DynamoColumnType> types = new HashMap<>();
+        types.put("count", DynamoColumnType.LONG);
+        DynamoItemConverter converter = new DynamoItemConverter(types);
+
+        Map<String, Object> row = converter.convert(item("count", new AttributeValue().withS("many")));
+        assertEquals("many", row.get("count"));
+
+        row = converter.convert(item("count", new AttributeValue().withN("1.5")));
+        assertEquals(new BigDecimal("1.5"), row.get("count"));
+    }
+
+    @Test
+    public void testConvertAll() {
+        assertTrue(DynamoItemConverter.toRows(null).isEmpty());
+        assertTrue(DynamoItemConverter.toRows(Collections.<Map<String, AttributeValue>>emptyList()).isEmpty());
+
+        List<Map<String, Object>> rows = DynamoItemConverter.toRows(Arrays.asList(
+                item("id", new AttributeValue().withS("1")),
+                item("id", new AttributeValue().withS("2"))));
+        assertEquals(2, rows.size());
+        assertEquals("1", rows.get(0).get("id"));
+        assertEquals("2", rows.get(1).get("id"));
+        assertTrue(DynamoItemConverter.toRow(null).isEmpty());
+    }
+
+    @Test
+    public void testToString() {
+        Map<String, DynamoColumnType> types = new LinkedHashMap<>();
+        types.put("price", DynamoColumnType.DOUBLE);
+        types.put("count", DynamoColumnType.LONG);
+        assertEquals("{count=LONG, price=DOUBLE}", new DynamoItemConverter(types).toString());
+        assertEquals("{}", DynamoItemConverter.DEFAULT.toString());
+    }
+}
@@ -0,0 +1,102 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * DynamoJoinIndex indexes the rows of a child table by a join attribute, in memory or spilled to
+ * a file.
+ *
+ * @author ben.demott
+ */
+public class DynamoJoinIndexTest {
+
+    private static Map<String, Object> row(String id, Object companyId) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", id);
+        row.put("company_id", companyId);
+        return row;
+    }
+
+    @Test
+    public void testNumbersJoinByValue() {
+        try(DynamoJoinIndex index = new DynamoJoinIndex("test", "company_id", null, 0)) {
+            // the N join attribute is read as a BigDecimal, see DynamoItemConverter.withNumberColumn()
+            index.add(row("a", new BigDecimal("10")));
+            index.add(row("b", new BigDecimal("1.5")));
+            index.add(row("c", 20L));
+            index.finish();
+
+            assertEquals("a", index.get(10L).get(0).get("id"));
+            assertEquals("a", index.get(new BigDecimal("1E+1")).get(0).get("id"));
+            assertEquals("a", index.get("10").get(0).get("id"));
+            assertEquals("b", index.get(1.50d).get(0).get("id"));
+            assertEquals("c", index.get("20").get(0).get("id"));
+            assertTrue(index.get(11).isEmpty());
+            // the row keeps the N as a String, like any other untyped N column
+            assertEquals("10", index.get(10).get(0).get("company_id"));
+        }
+    }
+
+    @Test
+    public void testStringsCompareExactly() {
+        try(DynamoJoinIndex index = new DynamoJoinIndex("test", "company_id", null, 0)) {
+            index.add(row("a", "007"));
+            index.add(row("b", new BigDecimal("7")));
+            index.add(row("c", "code"));
+            index.finish();
+
+            assertEquals("a", index.get("007").get(0).get("id"));
+            assertEquals(1, index.get("007").size());
+            assertEquals("b", index.get(7).get(0).get("id"));
+            assertEquals("b", index.get("7").get(0).get("id"));
+            assertEquals(1, index.get(7).size());
+            assertTrue(index.get("07").isEmpty());
+            assertTrue(index.get(" 7").isEmpty());
+            assertEquals("c", index.get("code").get(0).get("id"));
+        }
+    }
+
+    @Test
+    public void testSetsAndMissingValues() {
+        try(DynamoJoinIndex index = new DynamoJoinIndex("test", "company_id", null, 0)) {
+            index.add(row("a", Arrays.asList("x", "y", "x")));
+            index.add(row("b", null));
+            index.finish();
+
+            assertEquals(1, index.get("x").size());
+            assertEquals(1, index.get("y").size());
+            assertEquals(1, index.skippedCount);
+        }
+    }
+
+    @Test
+    public void testSpilledRows() {
+        File spillFile;
+        try(DynamoJoinIndex index = new DynamoJoinIndex("test", "company_id", null, 1)) {
+            char[] padding = new char[64 * 1024];
+            Arrays.fill(padding, 'p');
+            for(int i = 0; i < 40; i++) {
+                Map<String, Object> row = row("row" + i, new BigDecimal(i % 4));
+                row.put("padding", new String(padding));
+                index.add(row);
+            }
+            index.finish();
+            spillFile = index.spillFile;
+            assertNotNull(spillFile);
+
+            assertEquals(10, index.get("3").size());
+            assertEquals("row3", index.get(3).get(0).get("id"));
+            assertEquals(10, index.get(0.0d).size());
+        }
+        assertFalse(spillFile.exists());
+    }
+}
@@ -0,0 +1,159 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.solr.schema.StrField;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * DynamoKeySetDiff returns the solr keys that aren't in the dynamo table, the keys are sorted in
+ * memory or spilled to sorted runs and merged.
+ *
+ * @author ben.demott
+ */
+public class DynamoKeySetDiffTest {
+    private static final String KEY_FIELD = "id";
+
+    private RAMDirectory directory;
+    private File tempDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new RAMDirectory();
+        tempDirectory = Files.createTempDirectory("dynamo-keys-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        directory.close();
+        for(File file : tempDirectory.listFiles()) {
+            file.delete();
+        }
+        tempDirectory.delete();
+    }
+
+    private void index(List<String> keys, List<String> deleted) throws IOException {
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+            for(String key : keys) {
+                Document doc = new Document();
+                doc.add(new StringField(KEY_FIELD, key, Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.commit();
+            for(String key : deleted) {
+                writer.deleteDocuments(new Term(KEY_FIELD, key));
+            }
+            writer.commit();
+        }
+    }
+
+    private List<String> diff(DynamoKeySetDiff diff) throws IOException {
+        DirectoryReader reader = DirectoryReader.open(directory);
+        diff.diff(reader, reader);
+        List<String> deleted = new ArrayList<>();
+        while(diff.hasNext()) {
+            Map<String, Object> row = diff.next();
+            assertEquals(1, row.size());
+            deleted.add((String) row.get(KEY_FIELD));
+        }
+        return deleted;
+    }
+
+    @Test
+    public void testSolrKeysMissingFromDynamo() throws IOException {
+        index(Arrays.asList("a", "b", "c", "d", "f"), Collections.<String>emptyList());
+        DynamoKeySetDiff diff = new DynamoKeySetDiff("test", KEY_FIELD, new StrField(), tempDirectory, 0);
+        for(String key : Arrays.asList("f", "c", "e", "a")) {
+            diff.addKey(key);
+        }
+
+        assertEquals(Arrays.asList("b", "d"), diff(diff));
+        assertEquals(4, diff.getDynamoKeyCount());
+        assertEquals(2, diff.getDeletedCount());
+    }
+
+    @Test
+    public void testDeletedDocumentsAreSkipped() throws IOException {
+        index(Arrays.asList("a", "b", "c"), Arrays.asList("b"));
+        DynamoKeySetDiff diff = new DynamoKeySetDiff("test", KEY_FIELD, new StrField(), tempDirectory, 0);
+        diff.addKey("a");
+
+        assertEquals(Arrays.asList("c"), diff(diff));
+    }
+
+    @Test
+    public void testRepeatedKeys() throws IOException {
+        index(Arrays.asList("a", "b", "c"), Collections.<String>emptyList());
+        DynamoKeySetDiff diff = new DynamoKeySetDiff("test", KEY_FIELD, new StrField(), tempDirectory, 0);
+        for(String key : Arrays.asList("b", "a", "b", "a", "a")) {
+            diff.addKey(key);
+        }
+        diff.addKey(null);
+
+        assertEquals(Arrays.asList("c"), diff(diff));
+    }
+
+    @Test
+    public void testSpilledRunsAreMerged() throws IOException {
+        List<String> solrKeys = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            solrKeys.add(String.format("key-%03d", i));
+        }
+        index(solrKeys, Collections.<String>emptyList());
+
+        // every key fills the memory, each one is spilled to its own run
+        DynamoKeySetDiff diff = new DynamoKeySetDiff("test", KEY_FIELD, new StrField(), tempDirectory, 1);
+        List<String> expected = new ArrayList<>();
+        for(int i = 99; i >= 0; i--) {
+            if(i % 10 == 0) {
+                expected.add(0, solrKeys.get(i));
+            } else {
+                diff.addKey(solrKeys.get(i));
+                diff.addKey(solrKeys.get(i));
+            }
+        }
+        assertEquals(180, tempDirectory.listFiles().length);
+
+        assertEquals(expected, diff(diff));
+        // the runs are deleted once the diff is read
+        assertEquals(0, tempDirectory.listFiles().length);
+    }
+
+    @Test
+    public void testEmptyTableDeletesEverything() throws IOException {
+        index(Arrays.asList("a", "b"), Collections.<String>emptyList());
+        DynamoKeySetDiff diff = new DynamoKeySetDiff("test", KEY_FIELD, new StrField(), tempDirectory, 0);
+
+        assertEquals(Arrays.asList("a", "b"), diff(diff));
+    }
+
+    @Test
+    public void testEmptyIndex() throws IOException {
+        index(Collections.<String>emptyList(), Collections.<String>emptyList());
+        DynamoKeySetDiff diff = new DynamoKeySetDiff("test", KEY_FIELD, new StrField(), tempDirectory, 1);
+        diff.addKey("a");
+        diff.addKey("b");
+
+        assertEquals(Collections.<String>emptyList(), diff(diff));
+        assertFalse(diff.hasNext());
+        assertEquals(0, tempDirectory.listFiles().length);
+    }
+}
@@ -0,0 +1,107 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * DynamoLookup fetches the keys of upcoming parent rows along with the current one, by S, N and
+ * B keys.
+ *
+ * @author ben.demott
+ */
+public class DynamoLookupTest {
+
+    /**
+     * Answers BatchGetItem from a map of items, and remembers the keys requested.
+     */
+    private static class MapGetter extends DynamoBatchGetter {
+        final Map<AttributeValue, Map<String, AttributeValue>> items = new HashMap<>();
+        final List<List<Map<String, AttributeValue>>> requests = new ArrayList<>();
+
+        MapGetter() {
+            super(null, "table", Collections.singletonList("id"), null, null, null);
+        }
+
+        void put(AttributeValue key, String name) {
+            Map<String, AttributeValue> item = new HashMap<>();
+            item.put("id", key);
+            item.put("name", new AttributeValue().withS(name));
+            items.put(key, item);
+        }
+
+        @Override
+        protected List<Map<String, AttributeValue>> batchGet(List<Map<String, AttributeValue>> keys) {
+            requests.add(keys);
+            List<Map<String, AttributeValue>> found = new ArrayList<>();
+            for(Map<String, AttributeValue> key : keys) {
+                if(items.containsKey(key.get("id"))) {
+                    found.add(items.get(key.get("id")));
+                }
+            }
+            return found;
+        }
+    }
+
+    private static DynamoLookup lookup(MapGetter getter, String keyType) {
+        return new DynamoLookup("test", getter, "id", keyType, new DynamoItemConverter(null), 1, 10);
+    }
+
+    @Test
+    public void testUpcomingKeysFetchedOnce() {
+        MapGetter getter = new MapGetter();
+        getter.put(new AttributeValue().withS("a"), "A");
+        getter.put(new AttributeValue().withS("b"), "B");
+        DynamoLookup lookup = lookup(getter, "S");
+
+        assertEquals("A", lookup.get("a", Arrays.asList("b", "c", "")).get("name"));
+        assertEquals("B", lookup.get("b", Collections.emptyList()).get("name"));
+        assertNull(lookup.get("c", Collections.emptyList()));
+        assertEquals(1, getter.requests.size());
+        assertEquals(3, getter.requests.get(0).size());
+    }
+
+    @Test
+    public void testNumericKeys() {
+        MapGetter getter = new MapGetter();
+        getter.put(new AttributeValue().withN("1.5"), "one and a half");
+        DynamoLookup lookup = lookup(getter, "N");
+
+        assertEquals("one and a half", lookup.get("1.50", Collections.emptyList()).get("name"));
+        assertEquals("1.5", getter.requests.get(0).get(0).get("id").getN());
+    }
+
+    @Test
+    public void testBinaryKeys() {
+        byte[] first = {1, 2, 3};
+        byte[] second = {(byte) 0xff, 0};
+        MapGetter getter = new MapGetter();
+        getter.put(new AttributeValue().withB(ByteBuffer.wrap(first)), "first");
+        getter.put(new AttributeValue().withB(ByteBuffer.wrap(second)), "second");
+        DynamoLookup lookup = lookup(getter, "B");
+
+        // byte[] column values of the parent, or base64
+        assertEquals("first", lookup.get(first, Arrays.asList(ByteBuffer.wrap(second))).get("name"));
+        assertEquals("second", lookup.get(Base64.getEncoder().encodeToString(second), Collections.emptyList()).get("name"));
+        assertEquals(1, getter.requests.size());
+        ByteBuffer requested = getter.requests.get(0).get(0).get("id").getB();
+        byte[] bytes = new byte[requested.remaining()];
+        requested.get(bytes);
+        assertArrayEquals(first, bytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBinaryKeyNotBase64() {
+        lookup(new MapGetter(), "B").get("not base64!", Collections.emptyList());
+    }
+}
@@ -0,0 +1,171 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * DynamoPageReader only sends the ExpressionAttributeNames an expression uses, dynamo rejects
+ * a request with unused names.  Throttled pages cut the read rate of the limiter, a failed page
+ * is requested again from the last page read, up to its retries.
+ *
+ * @author ben.demott
+ */
+public class DynamoPageReaderTest {
+
+    /**
+     * Throttles the first scans, then returns a page of one item.
+     */
+    private static class ThrottlingDynamo extends AbstractAmazonDynamoDB {
+        int throttles;
+        int scans = 0;
+
+        ThrottlingDynamo(int throttles) {
+            this.throttles = throttles;
+        }
+
+        @Override
+        public ScanResult scan(ScanRequest request) {
+            scans++;
+            if(throttles-- > 0) {
+                throw new ProvisionedThroughputExceededException("throttled");
+            }
+            return new ScanResult()
+                    .withItems(Collections.singletonMap("id", new AttributeValue().withS("a")))
+                    .withConsumedCapacity(new ConsumedCapacity().withCapacityUnits(0.5));
+        }
+    }
+
+    @Test
+    public void testThrottlesCutTheReadRate() {
+        DynamoReadRateLimiter limiter = new DynamoReadRateLimiter("table", 100);
+        ThrottlingDynamo dynamo = new ThrottlingDynamo(3);
+        Iterator<DynamoPage> pages = DynamoPageReader.forScan(dynamo, new ScanRequest("table"), limiter)
+                .withRetries(5, 1)
+                .iterator();
+
+        assertEquals(1, pages.next().getRows().size());
+        assertFalse(pages.hasNext());
+        assertEquals(4, dynamo.scans);
+        // halved by each of the 3 throttles, then raised by the page that was read
+        assertEquals(100 * 0.125 + 100 * DynamoReadRateLimiter.ADDITIVE_INCREASE, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testPacedClientDoesNotRetryThrottles() {
+        RetryPolicy.RetryCondition condition = new DynamoDataSource.NoThrottleRetryCondition();
+        assertFalse(condition.shouldRetry(null, new ProvisionedThroughputExceededException("throttled"), 0));
+
+        AmazonServiceException throttling = new AmazonServiceException("throttled");
+        throttling.setErrorCode(DynamoPageReader.ERROR_THROTTLING);
+        assertFalse(condition.shouldRetry(null, throttling, 0));
+    }
+
+    private static AmazonServiceException serverError() {
+        AmazonServiceException error = new AmazonServiceException("internal server error");
+        error.setStatusCode(500);
+        return error;
+    }
+
+    private static List<Object> readIds(DynamoPageReader reader) {
+        List<Object> ids = new ArrayList<>();
+        for(DynamoPage page : reader) {
+            for(Map<String, Object> row : page.getRows()) {
+                ids.add(row.get("id"));
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void testFailedPageIsRetriedFromTheLastGoodPage() {
+        DynamoResultIteratorTest.PagedDynamo dynamo = new DynamoResultIteratorTest.PagedDynamo(4, 2).failing(2, 2, serverError());
+        DynamoPageReader reader = DynamoPageReader.forScan(dynamo, new ScanRequest("table"), null).withRetries(3, 1);
+
+        // every row once, page 2 was requested again from its own start key
+        assertEquals(DynamoResultIteratorTest.expectedIds(null, 4, 2), readIds(reader));
+        assertEquals(Arrays.asList(0, 1, 2, 2, 2, 3), dynamo.startPages);
+    }
+
+    @Test
+    public void testFailedPageGivesUpAfterRetries() {
+        DynamoResultIteratorTest.PagedDynamo dynamo = new DynamoResultIteratorTest.PagedDynamo(4, 2).failing(1, Integer.MAX_VALUE, serverError());
+        Iterator<DynamoPage> pages = DynamoPageReader.forScan(dynamo, new ScanRequest("table"), null).withRetries(2, 1).iterator();
+
+        assertEquals(2, pages.next().getRows().size());
+        try {
+            pages.next();
+            fail("the page should fail after its retries");
+        } catch (AmazonServiceException e) {
+            assertEquals(500, e.getStatusCode());
+        }
+        // the first attempt and 2 retries
+        assertEquals(Arrays.asList(0, 1, 1, 1), dynamo.startPages);
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() {
+        AmazonServiceException invalid = new AmazonServiceException("bad filter");
+        invalid.setStatusCode(400);
+        invalid.setErrorCode("ValidationException");
+        DynamoResultIteratorTest.PagedDynamo dynamo = new DynamoResultIteratorTest.PagedDynamo(2, 2).failing(0, 1, invalid);
+        try {
+            readIds(DynamoPageReader.forScan(dynamo, new ScanRequest("table"), null).withRetries(5, 1));
+            fail("a client error should fail the page");
+        } catch (AmazonServiceException e) {
+            assertEquals(1, dynamo.requests());
+        }
+    }
+
+    @Test
+    public void testPlaceholderIsAWholeToken() {
+        assertTrue(DynamoPageReader.usesPlaceholder("#a = :v", "#a"));
+        assertTrue(DynamoPageReader.usesPlaceholder("begins_with(#a, :v)", "#a"));
+        assertTrue(DynamoPageReader.usesPlaceholder("#a.#b[0]", "#b"));
+        assertTrue(DynamoPageReader.usesPlaceholder("#ab = :v AND #a = :w", "#a"));
+        assertFalse(DynamoPageReader.usesPlaceholder("#ab = :v", "#a"));
+        assertFalse(DynamoPageReader.usesPlaceholder("#a_1 = :v", "#a"));
+        assertFalse(DynamoPageReader.usesPlaceholder("#a9 = :v", "#a"));
+        assertFalse(DynamoPageReader.usesPlaceholder(null, "#a"));
+    }
+
+    @Test
+    public void testUsedNames() {
+        Map<String, String> names = new HashMap<>();
+        names.put("#a", "status");
+        names.put("#ab", "address");
+        names.put("#yr", "year");
+
+        Map<String, String> used = DynamoPageReader.usedNames(names, "#ab = :v", null, "#yr > :y");
+        Map<String, String> expected = new HashMap<>();
+        expected.put("#ab", "address");
+        expected.put("#yr", "year");
+        assertEquals(expected, used);
+    }
+
+    @Test
+    public void testNoUsedNames() {
+        Map<String, String> names = new HashMap<>();
+        names.put("#a", "status");
+        assertNull(DynamoPageReader.usedNames(names, "#ab = :v"));
+        assertNull(DynamoPageReader.usedNames(null, "#a = :v"));
+    }
+}
@@ -0,0 +1,100 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * DynamoParallelIterator merges the pages of every source, and never leaves the consumer
+ * waiting when a source fails.
+ *
+ * @author ben.demott
+ */
+public class DynamoParallelIteratorTest {
+
+    @Test(timeout = 10000)
+    public void testReadsEverySource() {
+        List<List<Integer>> sources = Arrays.asList(
+                Arrays.asList(1, 2, 3),
+                Collections.<Integer>emptyList(),
+                Arrays.asList(4, 5));
+        List<Integer> pages = new ArrayList<>();
+        try (DynamoParallelIterator<Integer> iter = new DynamoParallelIterator<>("test", sources, 2, 1)) {
+            while(iter.hasNext()) {
+                pages.add(iter.next());
+            }
+        }
+        Collections.sort(pages);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), pages);
+    }
+
+    @Test(timeout = 10000)
+    public void testRuntimeExceptionIsRethrown() {
+        List<Iterable<Integer>> sources = Arrays.asList(Arrays.asList(1, 2), failing(new IllegalArgumentException("bad segment")));
+        try (DynamoParallelIterator<Integer> iter = new DynamoParallelIterator<>("test", sources, 2, 4)) {
+            drain(iter);
+            fail("the error of the source should be thrown");
+        } catch (IllegalArgumentException e) {
+            assertEquals("bad segment", e.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testErrorIsRethrown() {
+        // an Error used to end the worker without an end marker, hasNext() waited forever
+        List<Iterable<Integer>> sources = Collections.singletonList(failing(new StackOverflowError("deep item")));
+        try (DynamoParallelIterator<Integer> iter = new DynamoParallelIterator<>("test", sources, 1, 1)) {
+            drain(iter);
+            fail("the error of the source should be thrown");
+        } catch (StackOverflowError e) {
+            assertEquals("deep item", e.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseStopsWorkers() {
+        List<List<Integer>> sources = Collections.singletonList(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8));
+        DynamoParallelIterator<Integer> iter = new DynamoParallelIterator<>("test", sources, 1, 1);
+        assertEquals(Integer.valueOf(1), iter.next());
+        iter.close();
+        assertFalse(iter.hasNext());
+    }
+
+    protected static void drain(Iterator<Integer> iter) {
+        while(iter.hasNext()) {
+            iter.next();
+        }
+    }
+
+    /**
+     * @return a source that returns one page, then throws
+     */
+    protected static Iterable<Integer> failing(Throwable error) {
+        return () -> new Iterator<Integer>() {
+            boolean first = true;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Integer next() {
+                if(first) {
+                    first = false;
+                    return 0;
+                }
+                if(error instanceof Error) {
+                    throw (Error) error;
+                }
+                throw (RuntimeException) error;
+            }
+        };
+    }
+}
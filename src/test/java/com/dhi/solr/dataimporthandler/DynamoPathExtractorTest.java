@@ -0,0 +1,144 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * DynamoPathExtractor compiles the document path of a column once, then extracts its value from
+ * every item.
+ *
+ * @author ben.demott
+ */
+public class DynamoPathExtractorTest {
+
+    private static AttributeValue s(String value) {
+        return new AttributeValue().withS(value);
+    }
+
+    private static AttributeValue n(String value) {
+        return new AttributeValue().withN(value);
+    }
+
+    private static AttributeValue m(Object... nameValues) {
+        Map<String, AttributeValue> map = new LinkedHashMap<>();
+        for(int i = 0; i < nameValues.length; i += 2) {
+            map.put((String) nameValues[i], (AttributeValue) nameValues[i + 1]);
+        }
+        return new AttributeValue().withM(map);
+    }
+
+    private static Map<String, AttributeValue> item() {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("id", s("1"));
+        item.put("address", m("city", s("Chicago"), "zip", n("60601")));
+        item.put("jobs", new AttributeValue().withL(
+                m("title", s("Engineer"), "years", n("3")),
+                m("title", s("Manager"))));
+        item.put("skills", new AttributeValue().withL(
+                m("name", s("java"), "tags", new AttributeValue().withSS("jvm", "backend")),
+                m("name", s("sql"), "tags", new AttributeValue().withSS("data"))));
+        item.put("scores", new AttributeValue().withNS("10", "20"));
+        item.put("order.id", s("o-1"));
+        item.put("address.v2", m("city", s("Boston")));
+        return item;
+    }
+
+    @Test
+    public void testIsPath() {
+        assertTrue(DynamoPathExtractor.isPath("address.city"));
+        assertTrue(DynamoPathExtractor.isPath("jobs[0]"));
+        assertTrue(DynamoPathExtractor.isPath("`order.id`"));
+        assertFalse(DynamoPathExtractor.isPath("address"));
+        assertFalse(DynamoPathExtractor.isPath(null));
+    }
+
+    @Test
+    public void testMapKeys() {
+        DynamoPathExtractor path = DynamoPathExtractor.compile("address.city", null);
+        assertEquals("address", path.getAttributeName());
+        assertEquals(Arrays.asList("address", "city"), path.getProjectionPath());
+        assertEquals("Chicago", path.extract(item()));
+        // numbers are Strings, like top level attributes
+        assertEquals("60601", DynamoPathExtractor.compile("address.zip", null).extract(item()));
+        assertNull(DynamoPathExtractor.compile("address.country", null).extract(item()));
+        assertNull(DynamoPathExtractor.compile("missing.city", null).extract(item()));
+    }
+
+    @Test
+    public void testListElements() {
+        DynamoPathExtractor path = DynamoPathExtractor.compile("jobs[1].title", null);
+        // lists are projected whole
+        assertEquals(Arrays.asList("jobs"), path.getProjectionPath());
+        assertEquals("Manager", path.extract(item()));
+        assertNull(DynamoPathExtractor.compile("jobs[5].title", null).extract(item()));
+        assertEquals("20", DynamoPathExtractor.compile("scores[1]", null).extract(item()));
+    }
+
+    @Test
+    public void testEveryElement() {
+        assertEquals(Arrays.asList("java", "sql"), DynamoPathExtractor.compile("skills[*].name", null).extract(item()));
+        // sets found are flattened into one list
+        assertEquals(Arrays.asList("jvm", "backend", "data"), DynamoPathExtractor.compile("skills[*].tags", null).extract(item()));
+        assertEquals(Arrays.asList("3"), DynamoPathExtractor.compile("jobs[*].years", null).extract(item()));
+        assertNull(DynamoPathExtractor.compile("jobs[*].salary", null).extract(item()));
+    }
+
+    @Test
+    public void testTypedPath() {
+        assertEquals(60601L, DynamoPathExtractor.compile("address.zip", DynamoColumnType.LONG).extract(item()));
+        assertEquals(Arrays.asList(10L, 20L), DynamoPathExtractor.compile("scores[*]", DynamoColumnType.LONG).extract(item()));
+    }
+
+    @Test
+    public void testQuotedNames() {
+        DynamoPathExtractor path = DynamoPathExtractor.compile("`order.id`", null);
+        assertTrue(path.isQuoted());
+        assertEquals("order.id", path.getAttributeName());
+        assertEquals(Arrays.asList("order.id"), path.getProjectionPath());
+        assertEquals("o-1", path.extract(item()));
+
+        path = DynamoPathExtractor.compile("`address.v2`.city", null);
+        assertEquals(Arrays.asList("address.v2", "city"), path.getProjectionPath());
+        assertEquals("Boston", path.extract(item()));
+
+        path = DynamoPathExtractor.compile("address.`c.i.t.y`", null);
+        assertEquals(Arrays.asList("address", "c.i.t.y"), path.getProjectionPath());
+        assertFalse(DynamoPathExtractor.compile("address.city", null).isQuoted());
+    }
+
+    @Test
+    public void testMalformedPaths() {
+        for(String column : Arrays.asList("address..city", "address.", ".city", "jobs[0", "jobs[x]", "jobs[-1]",
+                "jobs[0]title", "`order.id", "ord`er.id", "``.city")) {
+            try {
+                DynamoPathExtractor.compile(column, null);
+                fail("Expected a malformed path: " + column);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testTopLevelAttributeNamedLikeThePath() {
+        // an unquoted path is also the name of a top level attribute, the attribute is used
+        Map<String, AttributeValue> item = item();
+        item.put("address.city", s("Top level"));
+        DynamoItemConverter converter = new DynamoItemConverter(null, Arrays.asList(
+                DynamoPathExtractor.compile("address.city", null),
+                DynamoPathExtractor.compile("`address.v2`.city", null)));
+
+        Map<String, Object> row = converter.convert(item);
+        assertEquals("Top level", row.get("address.city"));
+        assertEquals("Boston", row.get("`address.v2`.city"));
+    }
+}
@@ -0,0 +1,212 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * DynamoQueryPlan parses the name map and value map attributes of an entity once, slots with
+ * ${...} variables are left to be resolved for each row.
+ *
+ * @author ben.demott
+ */
+public class DynamoQueryPlanTest {
+
+    /**
+     * Resolves ${parent.id} to the id of the current parent row, and counts what it resolves.
+     */
+    private static class ParentContext extends DynamoDeletedRowsTest.FakeContext {
+        String parentId;
+        int resolved = 0;
+
+        @Override
+        public String replaceTokens(String template) {
+            resolved++;
+            return template.replace("${parent.id}", parentId);
+        }
+
+        @Override
+        public String getResolvedEntityAttribute(String name) {
+            String value = getEntityAttribute(name);
+            return value == null ? null : replaceTokens(value);
+        }
+    }
+
+    /**
+     * A child entity whose plan is compiled from the attributes of the context.
+     */
+    private static class ChildProcessor extends DynamoEntityProcessor {
+        ChildProcessor(ParentContext context) {
+            this.context = context;
+            this.entityName = "child";
+            this.queryPlan = new DynamoQueryPlan(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap(), 
+                    Collections.emptySet(), context.attributes);
+        }
+    }
+
+    private static Map<String, String> attributes(String... nameValues) {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        for(int i = 0; i < nameValues.length; i += 2) {
+            attributes.put(nameValues[i], nameValues[i + 1]);
+        }
+        return attributes;
+    }
+
+    private static List<DynamoQueryPlan.ValueSlot> valueSlots(String... nameValues) {
+        return DynamoQueryPlan.compileValueSlots(attributes(nameValues),
+                DynamoEntityProcessor.VALUE_TYPE_DELIMITER, DynamoEntityProcessor.VALUE_ATTR_DELIMITER);
+    }
+
+    @Test
+    public void testIsTemplate() {
+        assertTrue(DynamoQueryPlan.isTemplate("${parent.id}"));
+        assertTrue(DynamoQueryPlan.isTemplate("id-${parent.id}"));
+        assertFalse(DynamoQueryPlan.isTemplate("id"));
+        assertFalse(DynamoQueryPlan.isTemplate(null));
+    }
+
+    @Test
+    public void testValueSlot() {
+        List<DynamoQueryPlan.ValueSlot> slots = valueSlots(
+                "valueMap1", " Int :price, 10 ",
+                "valueMap2", "s:status,active",
+                "valueMap3", "bool:deleted,false");
+        assertEquals(3, slots.size());
+
+        DynamoQueryPlan.ValueSlot price = slots.get(0);
+        assertEquals("valueMap1", price.attribute);
+        assertEquals("int", price.typeName);
+        // the placeholder keeps its :
+        assertEquals(":price", price.fieldName);
+        assertEquals("10", price.value);
+        assertEquals(10, price.typedValue);
+
+        assertEquals("active", slots.get(1).typedValue);
+        assertEquals(Boolean.FALSE, slots.get(2).typedValue);
+    }
+
+    @Test
+    public void testTemplatedValueSlot() {
+        List<DynamoQueryPlan.ValueSlot> slots = valueSlots(
+                "valueMap1", "S:id,${parent.id}",
+                "valueMap2", "${dataimporter.request.type}:count,1",
+                "valueMap3", "N:${dataimporter.request.placeholder},1");
+        assertEquals(3, slots.size());
+        for(DynamoQueryPlan.ValueSlot slot : slots) {
+            // resolved (and converted) for each row
+            assertNull(slot.typedValue);
+        }
+        assertEquals("S", slots.get(0).typeName);
+        assertEquals(":id", slots.get(0).fieldName);
+        assertEquals("${parent.id}", slots.get(0).value);
+        assertEquals("S:id,${parent.id}", slots.get(0).rawValue);
+        assertEquals("${dataimporter.request.type}", slots.get(1).typeName);
+    }
+
+    @Test
+    public void testMalformedValueSlots() {
+        List<DynamoQueryPlan.ValueSlot> slots = valueSlots(
+                "valueMap1", "Int",
+                "valueMap2", "Int:",
+                "valueMap3", "Int:price",
+                "valueMap4", "Int:price,",
+                "valueMap5", "Bogus:price,1",
+                "valueMap6", "Int:price,ten",
+                "valueMap7", ":price,1",
+                "valueMap8", "Long:price,1");
+        // only the well formed attribute is left
+        assertEquals(1, slots.size());
+        assertEquals("valueMap8", slots.get(0).attribute);
+        assertEquals(1L, slots.get(0).typedValue);
+    }
+
+    @Test
+    public void testNameSlots() {
+        List<DynamoQueryPlan.NameSlot> slots = DynamoQueryPlan.compileNameSlots(attributes(
+                "nameMap1", " #s , status ",
+                "nameMap2", "#k, ${parent.attribute}",
+                "nameMap3", "#missing",
+                "nameMap4", "#empty,"), DynamoEntityProcessor.NAME_ATTR_DELIMITER);
+        assertEquals(2, slots.size());
+        assertEquals("nameMap1", slots.get(0).attribute);
+        assertEquals("#s", slots.get(0).placeHolder);
+        assertEquals("status", slots.get(0).fieldName);
+        // a part with variables is trimmed once it's resolved
+        assertEquals("#k", slots.get(1).placeHolder);
+        assertEquals(" ${parent.attribute}", slots.get(1).fieldName);
+    }
+
+    @Test
+    public void testOnlyTemplatedOptionsResolvedForEachRow() {
+        ParentContext context = new ParentContext();
+        context.process = "FULL_DUMP";
+        context.attributes.put(DynamoEntityProcessor.TABLE_NAME, "orders");
+        context.attributes.put(DynamoEntityProcessor.CONDITIONAL_EXPRESSION, "customerId = :id");
+        context.attributes.put(DynamoEntityProcessor.FILTER_EXPRESSION, "parentId = ${parent.id}");
+        context.attributes.put(DynamoEntityProcessor.TOTAL_SEGMENTS, "4");
+        context.attributes.put(DynamoEntityProcessor.PAGE_RETRIES, "${parent.id}");
+        context.attributes.put(DynamoEntityProcessor.MAX_RCU_PER_SECOND, "12.5");
+        ChildProcessor processor = new ChildProcessor(context);
+
+        for(int parent = 1; parent <= 3; parent++) {
+            context.parentId = String.valueOf(parent);
+            context.resolved = 0;
+            DynamoQueryParameters query = processor.getQueryExpression();
+            assertEquals("customerId = :id", query.getKeyConditionExpression());
+            assertEquals("parentId = " + parent, query.getFilterExpression());
+            assertEquals(parent, query.getPageRetries());
+            assertEquals(4, query.getTotalSegments());
+            assertEquals(12.5, query.getMaxRcuPerSecond(), 0);
+            // the filter and the page retries, nothing else is resolved again
+            assertEquals(2, context.resolved);
+        }
+    }
+
+    @Test
+    public void testPlan() {
+        Map<String, List<DynamoQueryPlan.NameSlot>> nameSlots = new HashMap<>();
+        nameSlots.put("nameMap", DynamoQueryPlan.compileNameSlots(attributes("nameMap1", "#s,status"), ","));
+        Map<String, List<DynamoQueryPlan.ValueSlot>> valueSlots = new HashMap<>();
+        valueSlots.put("valueMap", valueSlots("valueMap1", "S:s,active", "valueMap2", "S:id,${parent.id}"));
+        Map<String, String> fields = new HashMap<>();
+        fields.put("address.city", "city");
+        fields.put("id", "id");
+
+        Map<String, String> options = attributes("tableName", "items", "filterExpression", "id = ${parent.id}");
+
+        DynamoQueryPlan plan = new DynamoQueryPlan(nameSlots, valueSlots, fields, new HashSet<>(Arrays.asList("address", "id")), options);
+        assertEquals(1, plan.getNameSlots("nameMap").size());
+        assertEquals(2, plan.getValueSlots("valueMap").size());
+        assertEquals(Collections.emptyList(), plan.getValueSlots("DELTAvalueMap"));
+        assertEquals("address.city", plan.getSolrDynamoFields().get("city"));
+        assertEquals("city", plan.getDynamoSolrFields().get("address.city"));
+        assertTrue(plan.getMappedAttributeNames().contains("address"));
+        assertEquals("items", plan.getOption("tableName"));
+        assertEquals("id = ${parent.id}", plan.getOption("filterExpression"));
+        assertNull(plan.getOption("totalSegments"));
+        assertEquals("2 fields, 1 name map and 2 value map attributes (1 resolved for each row), 2 options (1 resolved for each row)", 
+                plan.toString());
+
+        // the plan is kept across parent rows, it can't be changed
+        fields.put("name", "name");
+        options.put("totalSegments", "4");
+        assertEquals(2, plan.getDynamoSolrFields().size());
+        assertNull(plan.getOption("totalSegments"));
+        try {
+            plan.getDynamoSolrFields().put("name", "name");
+            fail("Expected an immutable plan");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * The token bucket of DynamoReadRateLimiter: a burst of one second, capacity charged after the
+ * request, debt paid back at the current rate, and the AIMD rate.
+ *
+ * @author ben.demott
+ */
+public class DynamoReadRateLimiterTest {
+
+    @Test
+    public void testFirstRequestDoesNotWait() {
+        DynamoReadRateLimiter limiter = new DynamoReadRateLimiter("test", 100);
+        assertEquals(0, limiter.reserve());
+    }
+
+    @Test
+    public void testBurstOfOneSecond() {
+        DynamoReadRateLimiter limiter = new DynamoReadRateLimiter("test", 100);
+        limiter.consumed(100);
+        // the bucket is empty, not in debt, the next request may still start
+        assertEquals(0, limiter.reserve());
+    }
+
+    @Test
+    public void testDebtIsPaidBackAtTheRate() {
+        DynamoReadRateLimiter limiter = new DynamoReadRateLimiter("test", 100);
+        limiter.consumed(150); // 50 RCU in debt at 100 RCU/sec
+        long waitMs = TimeUnit.NANOSECONDS.toMillis(limiter.reserve());
+        assertTrue("waited " + waitMs + " ms", waitMs > 400 && waitMs <= 500);
+    }
+
+    @Test
+    public void testAcquireWaitsForTheDebt() throws InterruptedException {
+        DynamoReadRateLimiter limiter = new DynamoReadRateLimiter("test", 100);
+        limiter.consumed(120); // 20 RCU in debt, 200 ms
+        long started = System.nanoTime();
+        limiter.acquire();
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        assertTrue("waited " + waitedMs + " ms", waitedMs >= 150 && waitedMs < 1000);
+        assertEquals(0, limiter.reserve());
+    }
+
+    @Test
+    public void testThrottleHalvesTheRate() {
+        DynamoReadRateLimiter limiter = new DynamoReadRateLimiter("test", 100);
+        limiter.throttled();
+        assertEquals(50, limiter.getRate(), 0.001);
+        limiter.throttled();
+        assertEquals(25, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testThrottleEmptiesTheBucket() {
+        DynamoReadRateLimiter limiter = new DynamoReadRateLimiter("test", 100);
+        limiter.throttled();
+        limiter.consumed(10); // a full bucket would still have 40 RCU left
+        assertTrue(limiter.reserve() > 0);
+    }
+
+    @Test
+    public void testRateNeverFallsBelowTheMinimum() {
+        DynamoReadRateLimiter limiter = new DynamoReadRateLimiter("test", 100);
+        for(int i = 0; i < 50; i++) {
+            limiter.throttled();
+        }
+        assertEquals(100 * DynamoReadRateLimiter.MIN_RATE_FRACTION, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testRateClimbsBackToTheMaximum() {
+        DynamoReadRateLimiter limiter = new DynamoReadRateLimiter("test", 100);
+        limiter.throttled();
+        limiter.consumed(0);
+        assertEquals(50 + 100 * DynamoReadRateLimiter.ADDITIVE_INCREASE, limiter.getRate(), 0.001);
+        for(int i = 0; i < 100; i++) {
+            limiter.consumed(0);
+        }
+        assertEquals(100, limiter.getRate(), 0.001);
+    }
+}
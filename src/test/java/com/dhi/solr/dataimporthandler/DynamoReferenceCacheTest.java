@@ -0,0 +1,162 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * DynamoReferenceCache keeps the rows of small tables, bounded by tables, rows, bytes and ttl.
+ *
+ * @author ben.demott
+ */
+public class DynamoReferenceCacheTest {
+
+    private static List<Map<String, Object>> rows(int count) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", "row" + i);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Counts the reads of the table.
+     */
+    private static Supplier<Iterator<Map<String, Object>>> loader(List<Map<String, Object>> rows, AtomicInteger reads) {
+        return () -> {
+            reads.incrementAndGet();
+            return rows.iterator();
+        };
+    }
+
+    private static int count(Iterator<?> rows) {
+        int count = 0;
+        while(rows.hasNext()) {
+            rows.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testHitsAndVersions() {
+        DynamoReferenceCache cache = new DynamoReferenceCache(1024 * 1024);
+        AtomicInteger reads = new AtomicInteger();
+        List<Map<String, Object>> rows = rows(10);
+
+        assertEquals(10, count(cache.get("countries", "v1", 60000, 100, loader(rows, reads))));
+        assertEquals(10, count(cache.get("countries", "v1", 60000, 100, loader(rows, reads))));
+        assertEquals(1, reads.get());
+        // a copy of each row
+        cache.get("countries", "v1", 60000, 100, loader(rows, reads)).next().put("id", "changed");
+        assertEquals("row0", cache.get("countries", "v1", 60000, 100, loader(rows, reads)).next().get("id"));
+
+        cache.get("countries", "v2", 60000, 100, loader(rows, reads));
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNestedValuesAreCopied() {
+        Map<String, Object> address = new HashMap<>();
+        address.put("city", "Chicago");
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", "row0");
+        row.put("addresses", new ArrayList<>(Collections.singletonList(address)));
+        row.put("tags", new LinkedHashSet<>(Arrays.asList("a", "b")));
+        row.put("data", new byte[] {1, 2, 3});
+        DynamoReferenceCache cache = new DynamoReferenceCache(1024 * 1024);
+        AtomicInteger reads = new AtomicInteger();
+
+        Map<String, Object> first = cache.get("users", "v1", 60000, 100, loader(Collections.singletonList(row), reads)).next();
+        ((Map<String, Object>) ((List<Object>) first.get("addresses")).get(0)).put("city", "Boston");
+        ((List<Object>) first.get("addresses")).add("another");
+        ((Set<Object>) first.get("tags")).remove("a");
+        ((byte[]) first.get("data"))[0] = 9;
+
+        Map<String, Object> second = cache.get("users", "v1", 60000, 100, loader(Collections.singletonList(row), reads)).next();
+        assertEquals(1, reads.get());
+        assertEquals(Collections.singletonList(address), second.get("addresses"));
+        assertEquals("Chicago", address.get("city"));
+        assertEquals(new LinkedHashSet<>(Arrays.asList("a", "b")), second.get("tags"));
+        assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) second.get("data"));
+    }
+
+    @Test
+    public void testKeysAreSeparate() {
+        // e.g. the same table read with other credentials
+        DynamoReferenceCache cache = new DynamoReferenceCache(1024 * 1024);
+        AtomicInteger reads = new AtomicInteger();
+        cache.get("[access key: [A]] table [countries]", "v1", 60000, 100, loader(rows(1), reads));
+        cache.get("[access key: [B]] table [countries]", "v1", 60000, 100, loader(rows(1), reads));
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    public void testExpiredTablesEvictedOnAnyAccess() throws InterruptedException {
+        DynamoReferenceCache cache = new DynamoReferenceCache(1024 * 1024);
+        AtomicInteger reads = new AtomicInteger();
+        cache.get("short", "v1", 1, 100, loader(rows(10), reads));
+        Thread.sleep(5);
+        cache.get("other", "v1", 60000, 100, loader(rows(1), reads));
+
+        synchronized(cache.entries) {
+            assertFalse(cache.entries.containsKey("short"));
+            assertEquals(DynamoReferenceCache.estimateBytes(rows(1).get(0)), cache.totalBytes);
+        }
+    }
+
+    @Test
+    public void testBoundedByBytes() {
+        List<Map<String, Object>> rows = rows(10);
+        long tableBytes = 0;
+        for(Map<String, Object> row : rows) {
+            tableBytes += DynamoReferenceCache.estimateBytes(row);
+        }
+        DynamoReferenceCache cache = new DynamoReferenceCache(tableBytes * 2);
+        AtomicInteger reads = new AtomicInteger();
+        cache.get("a", "v1", 60000, 100, loader(rows, reads));
+        cache.get("b", "v1", 60000, 100, loader(rows, reads));
+        cache.get("a", "v1", 60000, 100, loader(rows, reads)); // b is now the least recently used
+        cache.get("c", "v1", 60000, 100, loader(rows, reads));
+
+        synchronized(cache.entries) {
+            assertEquals(2 * tableBytes, cache.totalBytes);
+            assertTrue(cache.entries.containsKey("a"));
+            assertFalse(cache.entries.containsKey("b"));
+            assertTrue(cache.entries.containsKey("c"));
+        }
+    }
+
+    @Test
+    public void testTooLarge() {
+        List<Map<String, Object>> rows = rows(10);
+        DynamoReferenceCache cache = new DynamoReferenceCache(DynamoReferenceCache.estimateBytes(rows.get(0)) * 5);
+        AtomicInteger reads = new AtomicInteger();
+
+        // every row is still returned, but the table is read again
+        assertEquals(10, count(cache.get("big", "v1", 60000, 100, loader(rows, reads))));
+        assertEquals(10, count(cache.get("big", "v1", 60000, 100, loader(rows, reads))));
+        assertEquals(10, count(cache.get("many", "v1", 60000, 5, loader(rows, reads))));
+        assertEquals(3, reads.get());
+        synchronized(cache.entries) {
+            assertEquals(0, cache.totalBytes);
+        }
+        assertEquals(0, count(cache.get("empty", "v1", 60000, 5, loader(Collections.emptyList(), reads))));
+    }
+}
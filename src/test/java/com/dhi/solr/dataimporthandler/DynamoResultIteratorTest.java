@@ -0,0 +1,171 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * DynamoResultIterator reads the pages of a scan or query, prefetched on a background thread
+ * when prefetchPages is set, in the order dynamo returns them.
+ *
+ * @author ben.demott
+ */
+public class DynamoResultIteratorTest {
+
+    /**
+     * A table of 'pages' pages of 'pageSize' items for a Scan, and for a Query of every value of
+     * the :pk placeholder.  The item ids are [partition-]page-item, the LastEvaluatedKey of a
+     * page is the number of the next page.
+     */
+    static class PagedDynamo extends AbstractAmazonDynamoDB {
+        final int pages;
+        final int pageSize;
+        final List<Integer> startPages = Collections.synchronizedList(new ArrayList<>()); // the page of every request
+        final List<String> threads = Collections.synchronizedList(new ArrayList<>()); // the thread of every request
+        int failPage = -1; // this page fails
+        int failures = Integer.MAX_VALUE; // times the page fails
+        AmazonServiceException failure;
+
+        PagedDynamo(int pages, int pageSize) {
+            this.pages = pages;
+            this.pageSize = pageSize;
+        }
+
+        PagedDynamo failing(int page, int times, AmazonServiceException failure) {
+            this.failPage = page;
+            this.failures = times;
+            this.failure = failure;
+            return this;
+        }
+
+        int requests() {
+            return startPages.size();
+        }
+
+        synchronized List<Map<String, AttributeValue>> read(String partition, Map<String, AttributeValue> startKey) {
+            int page = startKey == null ? 0 : Integer.parseInt(startKey.get("page").getN());
+            startPages.add(page);
+            threads.add(Thread.currentThread().getName());
+            if(page == failPage && failures > 0) {
+                failures--;
+                throw failure;
+            }
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            for(int i = 0; i < pageSize; i++) {
+                Map<String, AttributeValue> item = new HashMap<>();
+                item.put("id", new AttributeValue().withS((partition == null ? "" : partition + "-") + page + "-" + i));
+                item.put("page", new AttributeValue().withN(String.valueOf(page)));
+                items.add(item);
+            }
+            return items;
+        }
+
+        Map<String, AttributeValue> nextKey(List<Map<String, AttributeValue>> items) {
+            int next = Integer.parseInt(items.get(0).get("page").getN()) + 1;
+            return next < pages ? Collections.singletonMap("page", new AttributeValue().withN(String.valueOf(next))) : null;
+        }
+
+        @Override
+        public ScanResult scan(ScanRequest request) {
+            List<Map<String, AttributeValue>> items = read(null, request.getExclusiveStartKey());
+            return new ScanResult().withItems(items).withLastEvaluatedKey(nextKey(items));
+        }
+
+        @Override
+        public QueryResult query(QueryRequest request) {
+            String partition = request.getExpressionAttributeValues().get(":pk").getS();
+            List<Map<String, AttributeValue>> items = read(partition, request.getExclusiveStartKey());
+            return new QueryResult().withItems(items).withLastEvaluatedKey(nextKey(items));
+        }
+    }
+
+    static List<String> expectedIds(String partition, int pages, int pageSize) {
+        List<String> ids = new ArrayList<>();
+        for(int page = 0; page < pages; page++) {
+            for(int i = 0; i < pageSize; i++) {
+                ids.add((partition == null ? "" : partition + "-") + page + "-" + i);
+            }
+        }
+        return ids;
+    }
+
+    static DynamoResultIterator<Map<String, Object>> scan(PagedDynamo dynamo, DynamoQueryParameters query) {
+        return new DynamoResultIterator<>(dynamo, "table", null, query, DynamoItemConverter.DEFAULT, null, null);
+    }
+
+    @Test(timeout = 10000)
+    public void testPrefetchKeepsPageOrder() throws InterruptedException {
+        PagedDynamo dynamo = new PagedDynamo(6, 3);
+        DynamoQueryParameters query = new DynamoQueryParameters();
+        query.setPrefetchPages(2);
+
+        List<Object> ids = new ArrayList<>();
+        try (DynamoResultIterator<Map<String, Object>> rows = scan(dynamo, query)) {
+            // the first page is requested before DIH asks for a row
+            while(dynamo.requests() == 0) {
+                Thread.sleep(5);
+            }
+            while(rows.hasNext()) {
+                ids.add(rows.next().get("id"));
+            }
+        }
+        assertEquals(expectedIds(null, 6, 3), ids);
+        assertEquals(6, dynamo.requests());
+        assertFalse(dynamo.threads.contains(Thread.currentThread().getName()));
+    }
+
+    @Test(timeout = 10000)
+    public void testWithoutPrefetchPagesAreReadByTheConsumer() {
+        PagedDynamo dynamo = new PagedDynamo(2, 2);
+        List<Object> ids = new ArrayList<>();
+        try (DynamoResultIterator<Map<String, Object>> rows = scan(dynamo, new DynamoQueryParameters())) {
+            assertEquals(0, dynamo.requests());
+            while(rows.hasNext()) {
+                ids.add(rows.next().get("id"));
+            }
+        }
+        assertEquals(expectedIds(null, 2, 2), ids);
+        assertEquals(Collections.nCopies(2, Thread.currentThread().getName()), dynamo.threads);
+    }
+
+    @Test(timeout = 10000)
+    public void testPrefetchErrorIsThrownToTheConsumer() {
+        AmazonDynamoDBException invalid = new AmazonDynamoDBException("bad filter");
+        invalid.setErrorCode(DynamoResultIterator.VALIDATION_EXCEPTION);
+        invalid.setStatusCode(400);
+        PagedDynamo dynamo = new PagedDynamo(5, 2).failing(2, 1, invalid);
+        DynamoQueryParameters query = new DynamoQueryParameters();
+        query.setPrefetchPages(3);
+
+        List<Object> ids = new ArrayList<>();
+        boolean[] invalidated = {false};
+        try (DynamoResultIterator<Map<String, Object>> rows = scan(dynamo, query)) {
+            rows.setTableInvalidation(() -> invalidated[0] = true);
+            while(rows.hasNext()) {
+                ids.add(rows.next().get("id"));
+            }
+            fail("the error of the prefetch thread should be thrown");
+        } catch (AmazonDynamoDBException e) {
+            assertEquals("bad filter", e.getErrorMessage());
+        }
+        // the pages read before the error, and nothing after it
+        assertEquals(expectedIds(null, 2, 2), ids);
+        assertEquals(3, dynamo.requests());
+        assertTrue(invalidated[0]);
+    }
+}
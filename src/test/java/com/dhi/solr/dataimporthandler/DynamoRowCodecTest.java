@@ -0,0 +1,84 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.UUID;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * DynamoRowCodec encodes rows so they decode to equal rows.
+ *
+ * @author ben.demott
+ */
+public class DynamoRowCodecTest {
+
+    private static Map<String, Object> roundTrip(Map<String, Object> row) throws IOException {
+        return DynamoRowCodec.decode(DynamoRowCodec.encode(row));
+    }
+
+    @Test
+    public void testScalars() throws IOException {
+        Map<String, Object> row = new HashMap<>();
+        row.put("string", "h\u00e9llo, w\u00f6rld \ud83d\ude00");
+        row.put("empty", "");
+        row.put("boolean", true);
+        row.put("long", Long.MIN_VALUE);
+        row.put("integer", 42);
+        row.put("double", 1.5d);
+        row.put("decimal", new BigDecimal("123456789012345678901234567890.000001"));
+        row.put("date", new Date(1493640000000L));
+        row.put("null", null);
+
+        Map<String, Object> decoded = roundTrip(row);
+        assertEquals(row, decoded);
+        assertTrue(decoded.containsKey("null"));
+    }
+
+    @Test
+    public void testBytes() throws IOException {
+        Map<String, Object> row = new HashMap<>();
+        row.put("bytes", new byte[] {0, 1, (byte) 0xff});
+        assertArrayEquals(new byte[] {0, 1, (byte) 0xff}, (byte[]) roundTrip(row).get("bytes"));
+    }
+
+    @Test
+    public void testCollections() throws IOException {
+        Map<String, Object> address = new LinkedHashMap<>();
+        address.put("zip", "60601");
+        address.put("city", "Chicago");
+        Map<String, Object> row = new HashMap<>();
+        row.put("list", new ArrayList<>(Arrays.asList("a", 1L, null, Arrays.asList("nested"))));
+        row.put("set", new LinkedHashSet<>(Arrays.asList("z", "a", "m")));
+        row.put("map", address);
+
+        Map<String, Object> decoded = roundTrip(row);
+        assertEquals(row, decoded);
+        // sets and maps keep their order
+        assertEquals(Arrays.asList("z", "a", "m"), new ArrayList<>((LinkedHashSet<?>) decoded.get("set")));
+        assertEquals(Arrays.asList("zip", "city"), new ArrayList<>(((Map<?, ?>) decoded.get("map")).keySet()));
+    }
+
+    @Test
+    public void testSerializable() throws IOException {
+        // anything else is java serialized
+        UUID id = UUID.randomUUID();
+        Map<String, Object> row = new HashMap<>();
+        row.put("uuid", id);
+        assertEquals(id, roundTrip(row).get("uuid"));
+    }
+
+    @Test
+    public void testEmptyRow() throws IOException {
+        assertTrue(roundTrip(new HashMap<>()).isEmpty());
+    }
+}
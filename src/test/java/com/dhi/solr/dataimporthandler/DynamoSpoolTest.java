@@ -0,0 +1,168 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * DynamoSpool drains the rows of a table to local disk on a fetcher thread, and returns them
+ * in order.
+ *
+ * @author ben.demott
+ */
+public class DynamoSpoolTest {
+    protected File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("dynamo-spool-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static Map<String, Object> row(int id) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", "id" + id);
+        row.put("count", (long) id);
+        return row;
+    }
+
+    /**
+     * count rows, then the failure (if any).
+     */
+    private static Iterator<Map<String, Object>> rows(int count, Throwable failure) {
+        return new Iterator<Map<String, Object>>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                if(next == count && failure != null) {
+                    if(failure instanceof Error) {
+                        throw (Error) failure;
+                    }
+                    throw (RuntimeException) failure;
+                }
+                return next < count;
+            }
+
+            @Override
+            public Map<String, Object> next() {
+                return row(next++);
+            }
+        };
+    }
+
+    @Test
+    public void testRowsInOrder() throws IOException {
+        DynamoSpool spool = new DynamoSpool("test", rows(1000, null), directory, 0);
+        List<Map<String, Object>> read = new ArrayList<>();
+        while(spool.hasNext()) {
+            read.add(spool.next());
+        }
+        assertEquals(1000, read.size());
+        for(int i = 0; i < read.size(); i++) {
+            assertEquals(row(i), read.get(i));
+        }
+        spool.close();
+        assertFalse(spool.directory.exists());
+    }
+
+    @Test
+    public void testPeek() throws IOException {
+        DynamoSpool spool = new DynamoSpool("test", rows(10, null), directory, 0);
+        assertTrue(spool.hasNext());
+        assertEquals(row(0), spool.next());
+        List<Map<String, Object>> upcoming = spool.peek(3);
+        // only rows already spooled, then the peeked rows are still returned
+        assertTrue(upcoming.size() <= 3);
+        for(int i = 0; i < upcoming.size(); i++) {
+            assertEquals(row(i + 1), upcoming.get(i));
+        }
+        assertEquals(row(1), spool.next());
+        spool.close();
+    }
+
+    @Test
+    public void testRowsBeforeTheErrorAreReturned() throws IOException {
+        IllegalStateException failure = new IllegalStateException("throttled");
+        DynamoSpool spool = new DynamoSpool("test", rows(50, failure), directory, 0);
+        int read = 0;
+        try {
+            while(spool.hasNext()) {
+                assertEquals(row(read++), spool.next());
+            }
+            fail("Expected the error of the fetcher");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(50, read);
+        spool.close();
+    }
+
+    @Test
+    public void testErrorIsNotTheEndOfTheTable() throws IOException {
+        DynamoSpool spool = new DynamoSpool("test", rows(5, new AssertionError("broken")), directory, 0);
+        int read = 0;
+        try {
+            while(spool.hasNext()) {
+                spool.next();
+                read++;
+            }
+            fail("Expected the error of the fetcher");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+        assertEquals(5, read);
+        spool.close();
+    }
+
+    @Test
+    public void testCloseWaitsForTheFetcher() throws IOException {
+        // a source that ignores interrupts for a while, like a request in flight
+        Iterator<Map<String, Object>> slow = new Iterator<Map<String, Object>>() {
+            @Override
+            public boolean hasNext() {
+                long until = System.currentTimeMillis() + 500;
+                while(System.currentTimeMillis() < until) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        // ignored
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Map<String, Object> next() {
+                return row(0);
+            }
+        };
+        DynamoSpool spool = new DynamoSpool("test", slow, directory, 0);
+        spool.close();
+        assertFalse(spool.fetcher.isAlive());
+        assertFalse(spool.directory.exists());
+    }
+}
@@ -0,0 +1,109 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * DynamoStreamCheckpoint only commits the positions an import read once the next import shows
+ * it succeeded, a last_index_time at or after the start of the import.
+ *
+ * @author ben.demott
+ */
+public class DynamoStreamCheckpointTest {
+    protected File directory;
+
+    // last_index_time is saved to the second
+    protected static final Date IMPORT_START = new Date(1500000000000L);
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("dynamo-stream-checkpoint-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static Map<String, String> positions(String... shardSequences) {
+        Map<String, String> positions = new HashMap<>();
+        for(int i = 0; i < shardSequences.length; i += 2) {
+            positions.put(shardSequences[i], shardSequences[i + 1]);
+        }
+        return positions;
+    }
+
+    private DynamoStreamCheckpoint checkpoint(String streamArn) {
+        return new DynamoStreamCheckpoint(directory, "items", streamArn);
+    }
+
+    @Test
+    public void testFirstImportReadsTheWholeStream() {
+        assertTrue(checkpoint("arn").loadPositions(IMPORT_START).isEmpty());
+    }
+
+    @Test
+    public void testPendingCommittedAfterSuccessfulImport() {
+        checkpoint("arn").savePending(positions("a", "1"), positions("a", "5", "b", "7"), IMPORT_START);
+
+        // the import succeeded, DIH saved its start time as last_index_time
+        assertEquals(positions("a", "5", "b", "7"), checkpoint("arn").loadPositions(IMPORT_START));
+        // and they stay committed, whatever the next last_index_time
+        assertEquals(positions("a", "5", "b", "7"), checkpoint("arn").loadPositions(null));
+    }
+
+    @Test
+    public void testPendingCommittedAfterLaterImport() {
+        checkpoint("arn").savePending(positions("a", "1"), positions("a", "5"), IMPORT_START);
+        assertEquals(positions("a", "5"), checkpoint("arn").loadPositions(new Date(IMPORT_START.getTime() + 60000)));
+    }
+
+    @Test
+    public void testPendingIgnoredAfterFailedImport() {
+        checkpoint("arn").savePending(positions("a", "1"), positions("a", "5"), IMPORT_START);
+
+        // last_index_time is still the one of the import before the failed one
+        assertEquals(positions("a", "1"), checkpoint("arn").loadPositions(new Date(IMPORT_START.getTime() - 1000)));
+        assertEquals(positions("a", "1"), checkpoint("arn").loadPositions(null));
+
+        // the next import reads from the committed positions, its own are pending
+        Date retryStart = new Date(IMPORT_START.getTime() + 60000);
+        checkpoint("arn").savePending(positions("a", "1"), positions("a", "9"), retryStart);
+        assertEquals(positions("a", "1"), checkpoint("arn").loadPositions(IMPORT_START));
+        assertEquals(positions("a", "9"), checkpoint("arn").loadPositions(retryStart));
+    }
+
+    @Test
+    public void testOtherStreamStartsOver() {
+        checkpoint("old arn").savePending(positions("a", "1"), positions("a", "5"), IMPORT_START);
+        assertTrue(checkpoint("new arn").loadPositions(IMPORT_START).isEmpty());
+    }
+
+    @Test
+    public void testScanCheckpointOfTheEntityIsKept() {
+        DynamoCheckpoint scan = new DynamoCheckpoint(directory, "items", "signature", 0);
+        scan.pageStarted(DynamoCheckpointTest.page(0, DynamoCheckpointTest.key("a", "1"), DynamoCheckpointTest.key("a", "2")));
+        scan.save();
+        checkpoint("arn").savePending(Collections.emptyMap(), positions("a", "5"), IMPORT_START);
+
+        DynamoCheckpoint resumed = new DynamoCheckpoint(directory, "items", "signature", 0);
+        resumed.load();
+        assertEquals(DynamoCheckpointTest.key("a", "1"), resumed.getStartKey(0));
+    }
+}
@@ -0,0 +1,314 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DescribeStreamRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeStreamResult;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
+import com.amazonaws.services.dynamodbv2.model.GetShardIteratorRequest;
+import com.amazonaws.services.dynamodbv2.model.GetShardIteratorResult;
+import com.amazonaws.services.dynamodbv2.model.OperationType;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.SequenceNumberRange;
+import com.amazonaws.services.dynamodbv2.model.Shard;
+import com.amazonaws.services.dynamodbv2.model.ShardIteratorType;
+import com.amazonaws.services.dynamodbv2.model.StreamDescription;
+import com.amazonaws.services.dynamodbv2.model.StreamRecord;
+import com.amazonaws.services.dynamodbv2.model.TrimmedDataAccessException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * DynamoStreamReader reads every shard of a stream, parents before children, and keeps the
+ * latest change of each item.  Closed shards are read to their end, open shards until they
+ * have caught up.
+ *
+ * @author ben.demott
+ */
+public class DynamoStreamReaderTest {
+
+    /**
+     * A stream of shards, each a list of GetRecords responses.  The shard iterator of a shard is
+     * "[shardId]/[response]".  A closed shard has no next iterator after its last response, an
+     * open shard returns empty responses after it.
+     */
+    static class FakeStreams extends AbstractAmazonDynamoDBStreams {
+        final List<Shard> shards = new ArrayList<>();
+        final Map<String, List<List<Record>>> responses = new HashMap<>();
+        final Set<String> trimmed = new HashSet<>(); // shards whose saved positions are trimmed
+        final List<String> iteratorRequests = Collections.synchronizedList(new ArrayList<>());
+        final Map<String, Integer> recordRequests = Collections.synchronizedMap(new HashMap<>());
+        int shardsPerPage = 2;
+
+        @SafeVarargs
+        final void addShard(String shardId, String parentShardId, boolean closed, List<Record>... shardResponses) {
+            List<List<Record>> pages = Arrays.asList(shardResponses);
+            List<Record> last = pages.isEmpty() ? Collections.emptyList() : pages.get(pages.size() - 1);
+            SequenceNumberRange range = new SequenceNumberRange().withStartingSequenceNumber("0");
+            if(closed) {
+                range.withEndingSequenceNumber(last.isEmpty() ? "0" : last.get(last.size() - 1).getDynamodb().getSequenceNumber());
+            }
+            shards.add(new Shard().withShardId(shardId).withParentShardId(parentShardId).withSequenceNumberRange(range));
+            responses.put(shardId, pages);
+        }
+
+        boolean isClosed(String shardId) {
+            for(Shard shard : shards) {
+                if(shard.getShardId().equals(shardId)) {
+                    return shard.getSequenceNumberRange().getEndingSequenceNumber() != null;
+                }
+            }
+            throw new IllegalArgumentException(shardId);
+        }
+
+        @Override
+        public DescribeStreamResult describeStream(DescribeStreamRequest request) {
+            int start = 0;
+            while(request.getExclusiveStartShardId() != null && !shards.get(start++).getShardId().equals(request.getExclusiveStartShardId())) {
+                // skip to the shard after the last one returned
+            }
+            int end = Math.min(shards.size(), start + shardsPerPage);
+            StreamDescription desc = new StreamDescription().withShards(shards.subList(start, end));
+            if(end < shards.size()) {
+                desc.withLastEvaluatedShardId(shards.get(end - 1).getShardId());
+            }
+            return new DescribeStreamResult().withStreamDescription(desc);
+        }
+
+        @Override
+        public GetShardIteratorResult getShardIterator(GetShardIteratorRequest request) {
+            iteratorRequests.add(request.getShardId() + " " + request.getShardIteratorType());
+            if(ShardIteratorType.TRIM_HORIZON.toString().equals(request.getShardIteratorType())) {
+                return new GetShardIteratorResult().withShardIterator(request.getShardId() + "/0");
+            }
+            if(trimmed.contains(request.getShardId())) {
+                throw new TrimmedDataAccessException("trimmed");
+            }
+            // positions are the last record of a response
+            List<List<Record>> pages = responses.get(request.getShardId());
+            for(int i = 0; i < pages.size(); i++) {
+                List<Record> page = pages.get(i);
+                if(!page.isEmpty() && page.get(page.size() - 1).getDynamodb().getSequenceNumber().equals(request.getSequenceNumber())) {
+                    return new GetShardIteratorResult().withShardIterator(request.getShardId() + "/" + (i + 1));
+                }
+            }
+            throw new IllegalArgumentException("unknown position " + request.getSequenceNumber());
+        }
+
+        @Override
+        public GetRecordsResult getRecords(GetRecordsRequest request) {
+            String[] iterator = request.getShardIterator().split("/");
+            String shardId = iterator[0];
+            int index = Integer.parseInt(iterator[1]);
+            recordRequests.merge(shardId, 1, Integer::sum);
+            List<List<Record>> pages = responses.get(shardId);
+            boolean closed = isClosed(shardId);
+            if(index >= pages.size()) {
+                // an open shard that has no new records
+                return new GetRecordsResult().withRecords(Collections.emptyList()).withNextShardIterator(shardId + "/" + index);
+            }
+            String next = closed && index == pages.size() - 1 ? null : shardId + "/" + (index + 1);
+            return new GetRecordsResult().withRecords(pages.get(index)).withNextShardIterator(next);
+        }
+    }
+
+    static Map<String, AttributeValue> key(String id) {
+        return Collections.singletonMap("id", new AttributeValue().withS(id));
+    }
+
+    static Record record(OperationType type, String id, String value, long sequenceNumber) {
+        StreamRecord change = new StreamRecord()
+                .withKeys(key(id))
+                .withSequenceNumber(String.valueOf(sequenceNumber))
+                .withApproximateCreationDateTime(new Date(0));
+        if(type != OperationType.REMOVE) {
+            Map<String, AttributeValue> image = new LinkedHashMap<>(key(id));
+            image.put("value", new AttributeValue().withS(value));
+            change.withNewImage(image);
+        }
+        return new Record().withEventName(type).withDynamodb(change);
+    }
+
+    static List<Record> records(Record... records) {
+        return Arrays.asList(records);
+    }
+
+    private static List<String> values(List<Map<String, AttributeValue>> images) {
+        List<String> values = new ArrayList<>();
+        for(Map<String, AttributeValue> image : images) {
+            values.add(image.get("id").getS() + "=" + image.get("value").getS());
+        }
+        return values;
+    }
+
+    private static DynamoStreamReader read(FakeStreams streams, Map<String, String> startPositions, int threads) {
+        return new DynamoStreamReader(streams, "arn", "NEW_IMAGE", "test").read(startPositions, threads, 2);
+    }
+
+    @Test
+    public void testParentShardsBeforeChildren() {
+        FakeStreams streams = new FakeStreams();
+        // the item moved to the child shards after a split, the sequence numbers of a child
+        // aren't ordered after its parent, only its depth in the lineage is.
+        streams.addShard("parent", null, true, records(record(OperationType.MODIFY, "a", "parent", 900)));
+        streams.addShard("child", "parent", true, records(record(OperationType.MODIFY, "a", "child", 100)));
+        streams.addShard("grandchild", "child", true, records(record(OperationType.MODIFY, "a", "grandchild", 50)));
+        streams.addShard("other", null, true, records(record(OperationType.INSERT, "b", "other", 10)));
+
+        DynamoStreamReader reader = read(streams, new HashMap<>(), 4);
+        assertEquals(new HashSet<>(Arrays.asList("a=grandchild", "b=other")), new HashSet<>(values(reader.getNewImages())));
+        assertEquals(4, reader.recordCount);
+    }
+
+    @Test
+    public void testLatestChangeOfEachItem() {
+        FakeStreams streams = new FakeStreams();
+        streams.addShard("shard", null, true,
+                records(record(OperationType.INSERT, "a", "1", 1), record(OperationType.INSERT, "b", "1", 2)),
+                records(record(OperationType.MODIFY, "a", "2", 3), record(OperationType.REMOVE, "b", null, 4)),
+                records(record(OperationType.INSERT, "c", "1", 5), record(OperationType.MODIFY, "a", "3", 6)));
+
+        DynamoStreamReader reader = read(streams, new HashMap<>(), 1);
+        // in the order of the latest change of each item
+        assertEquals(Arrays.asList("c=1", "a=3"), values(reader.getNewImages()));
+        assertEquals(Collections.singletonList(key("b")), reader.getRemovedItems());
+        assertEquals(Collections.singletonMap("shard", "6"), reader.getPositions());
+    }
+
+    @Test
+    public void testInsertThenRemoveIsADelete() {
+        FakeStreams streams = new FakeStreams();
+        streams.addShard("shard", null, true,
+                records(record(OperationType.INSERT, "a", "1", 1)),
+                records(record(OperationType.MODIFY, "a", "2", 2), record(OperationType.REMOVE, "a", null, 3)));
+
+        DynamoStreamReader reader = read(streams, new HashMap<>(), 1);
+        assertTrue(reader.getNewImages().isEmpty());
+        assertEquals(Collections.singletonList(key("a")), reader.getRemovedItems());
+    }
+
+    @Test
+    public void testRemoveThenInsertIsAModify() {
+        FakeStreams streams = new FakeStreams();
+        streams.addShard("parent", null, true,
+                records(record(OperationType.INSERT, "a", "1", 1), record(OperationType.REMOVE, "a", null, 2)));
+        // the item is written again after the shard split
+        streams.addShard("child", "parent", false, records(record(OperationType.INSERT, "a", "2", 1)));
+
+        DynamoStreamReader reader = read(streams, new HashMap<>(), 2);
+        assertEquals(Collections.singletonList("a=2"), values(reader.getNewImages()));
+        assertTrue(reader.getRemovedItems().isEmpty());
+    }
+
+    @Test
+    public void testRemovedItemWithOldImage() {
+        FakeStreams streams = new FakeStreams();
+        Record remove = record(OperationType.REMOVE, "a", null, 2);
+        Map<String, AttributeValue> oldImage = new LinkedHashMap<>(key("a"));
+        oldImage.put("value", new AttributeValue().withS("1"));
+        remove.getDynamodb().withOldImage(oldImage);
+        streams.addShard("shard", null, true, records(remove));
+
+        assertEquals(Collections.singletonList(oldImage), read(streams, new HashMap<>(), 1).getRemovedItems());
+    }
+
+    @Test
+    public void testClosedShardIsReadToTheEnd() {
+        FakeStreams streams = new FakeStreams();
+        // an empty response in the middle of a closed shard doesn't end it
+        streams.addShard("closed", null, true,
+                records(record(OperationType.INSERT, "a", "1", 1)),
+                records(),
+                records(),
+                records(record(OperationType.INSERT, "b", "1", 2)));
+
+        DynamoStreamReader reader = read(streams, new HashMap<>(), 1);
+        assertEquals(Arrays.asList("a=1", "b=1"), values(reader.getNewImages()));
+        assertEquals(4, (int) streams.recordRequests.get("closed"));
+        assertEquals("2", reader.getPositions().get("closed"));
+    }
+
+    @Test
+    public void testOpenShardStopsAfterEmptyReads() {
+        FakeStreams streams = new FakeStreams();
+        streams.addShard("open", null, false, records(record(OperationType.INSERT, "a", "1", 1)));
+
+        DynamoStreamReader reader = read(streams, new HashMap<>(), 1);
+        assertEquals(Collections.singletonList("a=1"), values(reader.getNewImages()));
+        // the records, then maxEmptyReads empty responses
+        assertEquals(3, (int) streams.recordRequests.get("open"));
+        assertEquals("1", reader.getPositions().get("open"));
+    }
+
+    @Test
+    public void testOpenShardStopsAtRecordsAfterReadStart() {
+        FakeStreams streams = new FakeStreams();
+        Record recent = record(OperationType.INSERT, "b", "1", 2);
+        recent.getDynamodb().withApproximateCreationDateTime(new Date(System.currentTimeMillis() + 60000));
+        streams.addShard("open", null, false,
+                records(record(OperationType.INSERT, "a", "1", 1)),
+                records(recent),
+                records(record(OperationType.INSERT, "c", "1", 3)));
+
+        DynamoStreamReader reader = read(streams, new HashMap<>(), 1);
+        assertEquals(Arrays.asList("a=1", "b=1"), values(reader.getNewImages()));
+        assertEquals(2, (int) streams.recordRequests.get("open"));
+    }
+
+    @Test
+    public void testResumeAfterSavedPositions() {
+        FakeStreams streams = new FakeStreams();
+        streams.addShard("done", null, true, records(record(OperationType.INSERT, "a", "1", 1)));
+        streams.addShard("shard", null, true,
+                records(record(OperationType.INSERT, "b", "1", 2)),
+                records(record(OperationType.INSERT, "c", "1", 3)));
+        Map<String, String> startPositions = new HashMap<>();
+        startPositions.put("done", "1");
+        startPositions.put("shard", "2");
+
+        DynamoStreamReader reader = read(streams, startPositions, 2);
+        // a closed shard read to its end isn't read again, but keeps its position
+        assertEquals(Collections.singletonList("shard AFTER_SEQUENCE_NUMBER"), streams.iteratorRequests);
+        assertEquals(Collections.singletonList("c=1"), values(reader.getNewImages()));
+        assertEquals("1", reader.getPositions().get("done"));
+        assertEquals("3", reader.getPositions().get("shard"));
+    }
+
+    @Test
+    public void testTrimmedPositionReadsFromTrimHorizon() {
+        FakeStreams streams = new FakeStreams();
+        streams.addShard("shard", null, true,
+                records(record(OperationType.INSERT, "a", "1", 1)),
+                records(record(OperationType.INSERT, "b", "1", 2)));
+        streams.trimmed.add("shard");
+
+        DynamoStreamReader reader = read(streams, Collections.singletonMap("shard", "1"), 1);
+        assertEquals(Arrays.asList("shard AFTER_SEQUENCE_NUMBER", "shard TRIM_HORIZON"), streams.iteratorRequests);
+        assertEquals(Arrays.asList("a=1", "b=1"), values(reader.getNewImages()));
+        assertEquals("2", reader.getPositions().get("shard"));
+    }
+
+    @Test
+    public void testShardsAreListedAPageAtATime() {
+        FakeStreams streams = new FakeStreams();
+        for(int i = 0; i < 5; i++) {
+            streams.addShard("shard" + i, null, true, records(record(OperationType.INSERT, "item" + i, "1", i + 1)));
+        }
+        DynamoStreamReader reader = new DynamoStreamReader(streams, "arn", "NEW_IMAGE", "test");
+        assertEquals(5, reader.getShards().size());
+        assertEquals(5, read(streams, new HashMap<>(), 3).getNewImages().size());
+        assertTrue(streams.iteratorRequests.contains("shard4 TRIM_HORIZON"));
+    }
+}
@@ -0,0 +1,143 @@
+package com.dhi.solr.dataimporthandler;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * DynamoTableCache describes a table again once its description is older than the ttl, or after
+ * it was invalidated, failed describes aren't cached.
+ *
+ * @author ben.demott
+ */
+public class DynamoTableCacheTest {
+
+    private static final long TTL_MS = 60000;
+
+    /**
+     * Describes every table with an item count of the number of describes so far, or fails.
+     */
+    private static class DescribingDynamo extends AbstractAmazonDynamoDB {
+        final List<String> described = new ArrayList<>();
+        boolean missing = false;
+
+        @Override
+        public DescribeTableResult describeTable(String tableName) {
+            return describeTable(new DescribeTableRequest().withTableName(tableName));
+        }
+
+        @Override
+        public DescribeTableResult describeTable(DescribeTableRequest request) {
+            described.add(request.getTableName());
+            if(missing) {
+                throw new ResourceNotFoundException("Requested resource not found");
+            }
+            return new DescribeTableResult().withTable(new TableDescription()
+                    .withTableName(request.getTableName())
+                    .withItemCount((long) described.size()));
+        }
+    }
+
+    /**
+     * A cache whose clock is set by the test.
+     */
+    private static class ClockedCache extends DynamoTableCache {
+        long now = 1000000;
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private static TableDescription get(DynamoTableCache cache, DescribingDynamo dynamo, String tableName) {
+        return cache.get(tableName, TTL_MS, name -> dynamo.describeTable(name).getTable());
+    }
+
+    @Test
+    public void testCachedUntilExpired() {
+        DescribingDynamo dynamo = new DescribingDynamo();
+        ClockedCache cache = new ClockedCache();
+
+        TableDescription orders = get(cache, dynamo, "orders");
+        cache.now += TTL_MS - 1;
+        assertSame(orders, get(cache, dynamo, "orders"));
+        assertEquals(1, dynamo.described.size());
+
+        // the ttl is counted from the describe, not from the last hit
+        cache.now += 1;
+        TableDescription described = get(cache, dynamo, "orders");
+        assertEquals(Long.valueOf(2), described.getItemCount());
+        assertSame(described, get(cache, dynamo, "orders"));
+        assertEquals("1 tables, 2 hits, 2 describes", cache.toString());
+    }
+
+    @Test
+    public void testTablesAreCachedSeparately() {
+        DescribingDynamo dynamo = new DescribingDynamo();
+        ClockedCache cache = new ClockedCache();
+
+        get(cache, dynamo, "orders");
+        get(cache, dynamo, "customers");
+        get(cache, dynamo, "orders");
+        assertEquals("orders", get(cache, dynamo, "orders").getTableName());
+        assertEquals("customers", get(cache, dynamo, "customers").getTableName());
+        cache.invalidate("customers");
+        get(cache, dynamo, "orders");
+        get(cache, dynamo, "customers");
+        assertEquals(3, dynamo.described.size());
+    }
+
+    @Test
+    public void testInvalidatedIsDescribedAgain() {
+        DescribingDynamo dynamo = new DescribingDynamo();
+        ClockedCache cache = new ClockedCache();
+
+        TableDescription orders = get(cache, dynamo, "orders");
+        cache.invalidate("orders");
+        TableDescription described = get(cache, dynamo, "orders");
+        assertEquals(Long.valueOf(2), described.getItemCount());
+        assertSame(described, get(cache, dynamo, "orders"));
+        assertEquals(Long.valueOf(1), orders.getItemCount());
+
+        // a table never described is ignored
+        cache.invalidate("customers");
+        assertEquals("1 tables, 1 hits, 2 describes", cache.toString());
+    }
+
+    @Test
+    public void testZeroTtlAlwaysDescribes() {
+        DescribingDynamo dynamo = new DescribingDynamo();
+        ClockedCache cache = new ClockedCache();
+
+        cache.get("orders", 0, name -> dynamo.describeTable(name).getTable());
+        cache.get("orders", 0, name -> dynamo.describeTable(name).getTable());
+        assertEquals(2, dynamo.described.size());
+    }
+
+    @Test
+    public void testFailedDescribeIsNotCached() {
+        DescribingDynamo dynamo = new DescribingDynamo();
+        ClockedCache cache = new ClockedCache();
+        dynamo.missing = true;
+        try {
+            get(cache, dynamo, "orders");
+            fail("the describe error should be thrown to the caller");
+        } catch (ResourceNotFoundException e) {
+            assertEquals(1, dynamo.described.size());
+        }
+
+        dynamo.missing = false;
+        assertEquals("orders", get(cache, dynamo, "orders").getTableName());
+        get(cache, dynamo, "orders");
+        assertEquals(2, dynamo.described.size());
+    }
+}
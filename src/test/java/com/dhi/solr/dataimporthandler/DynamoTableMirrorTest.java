@@ -0,0 +1,203 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * DynamoTableMirror keeps the rows of a full scan and the changes of delta imports on disk.
+ *
+ * @author ben.demott
+ */
+public class DynamoTableMirrorTest {
+    protected File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("dynamo-mirror-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if(files != null) {
+            for(File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static Map<String, Object> row(String id, Object value) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", id);
+        row.put("value", value);
+        return row;
+    }
+
+    private static List<Map<String, Object>> rows(int count) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            rows.add(row("id" + i, (long) i));
+        }
+        return rows;
+    }
+
+    private static List<Map<String, Object>> readAll(Iterator<Map<String, Object>> rows) {
+        List<Map<String, Object>> all = new ArrayList<>();
+        while(rows.hasNext()) {
+            all.add(rows.next());
+        }
+        return all;
+    }
+
+    /**
+     * Write the rows as a full scan would.
+     */
+    private DynamoTableMirror writeScan(String signature, List<Map<String, Object>> rows) throws IOException {
+        DynamoTableMirror mirror = new DynamoTableMirror(directory, "id", signature);
+        mirror.reset();
+        assertEquals(rows, readAll(mirror.writing(rows.iterator())));
+        return mirror;
+    }
+
+    @Test
+    public void testScanThenRead() throws IOException {
+        DynamoTableMirror mirror = writeScan("table|query", rows(100));
+        assertTrue(mirror.isComplete());
+        assertEquals(rows(100), readAll(mirror.read()));
+        mirror.close();
+
+        // reopened, for the same signature only
+        assertTrue(new DynamoTableMirror(directory, "id", "table|query").isComplete());
+        assertFalse(new DynamoTableMirror(directory, "id", "table|other query").isComplete());
+    }
+
+    @Test
+    public void testUnfinishedScan() throws IOException {
+        DynamoTableMirror mirror = new DynamoTableMirror(directory, "id", "sig");
+        mirror.reset();
+        Iterator<Map<String, Object>> writing = mirror.writing(rows(10).iterator());
+        writing.next();
+        ((java.io.Closeable) writing).close();
+        assertFalse(mirror.isComplete());
+    }
+
+    @Test
+    public void testDeltasReplaceAndDelete() throws IOException {
+        DynamoTableMirror mirror = writeScan("sig", rows(5));
+        mirror.put(row("id1", "changed"));
+        mirror.put(row("id1", "changed again"));
+        mirror.delete("id3");
+        mirror.put(row("id9", "added"));
+        mirror.close();
+
+        mirror = new DynamoTableMirror(directory, "id", "sig");
+        Map<Object, Object> values = new HashMap<>();
+        for(Map<String, Object> row : readAll(mirror.read())) {
+            values.put(row.get("id"), row.get("value"));
+        }
+        assertEquals(5, values.size());
+        assertEquals(0L, values.get("id0"));
+        assertEquals("changed again", values.get("id1"));
+        assertFalse(values.containsKey("id3"));
+        assertEquals("added", values.get("id9"));
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        DynamoTableMirror mirror = writeScan("sig", rows(20));
+        for(int i = 0; i < 10; i++) {
+            mirror.put(row("id" + i, "v2"));
+        }
+        mirror.close();
+        assertTrue(DynamoTableMirror.getSegments(directory).size() > 1);
+
+        // the deltas are more than COMPACT_RATIO of the base, reading the mirror compacts it
+        mirror = new DynamoTableMirror(directory, "id", "sig");
+        assertEquals(20, readAll(mirror.read()).size());
+        assertEquals(1, DynamoTableMirror.getSegments(directory).size());
+        assertTrue(mirror.isComplete());
+
+        Map<Object, Object> values = new HashMap<>();
+        for(Map<String, Object> row : readAll(new DynamoTableMirror(directory, "id", "sig").read())) {
+            values.put(row.get("id"), row.get("value"));
+        }
+        assertEquals(20, values.size());
+        assertEquals("v2", values.get("id0"));
+        assertEquals(10L, values.get("id10"));
+    }
+
+    @Test
+    public void testLookahead() throws IOException {
+        DynamoTableMirror mirror = writeScan("sig", rows(10));
+        Iterator<Map<String, Object>> rows = mirror.read();
+        assertTrue(rows instanceof DynamoRowLookahead);
+
+        assertEquals("id0", rows.next().get("id"));
+        List<Map<String, Object>> upcoming = ((DynamoRowLookahead) rows).peek(3);
+        assertEquals(Arrays.asList("id1", "id2", "id3"), Arrays.asList(upcoming.get(0).get("id"), upcoming.get(1).get("id"), upcoming.get(2).get("id")));
+        // peeked rows are still returned
+        assertEquals(9, readAll(rows).size());
+        assertTrue(((DynamoRowLookahead) rows).peek(3).isEmpty());
+
+        // the rows being written look ahead at the rows they wrap
+        mirror.reset();
+        DynamoRowLookahead source = max -> rows(max);
+        Iterator<Map<String, Object>> writing = mirror.writing(new LookaheadIterator(rows(2).iterator(), source));
+        assertEquals(2, ((DynamoRowLookahead) writing).peek(2).size());
+    }
+
+    @Test
+    public void testSegmentsDeletedAfterRead() throws IOException {
+        DynamoTableMirror mirror = writeScan("sig", rows(10));
+        readAll(mirror.read());
+        // unmapped, the mirror can be rewritten (on Windows a mapped file can't be deleted)
+        mirror.reset();
+        assertTrue(DynamoTableMirror.getSegments(directory).isEmpty());
+    }
+
+    /**
+     * An iterator that can be looked ahead.
+     */
+    private static class LookaheadIterator implements Iterator<Map<String, Object>>, DynamoRowLookahead {
+        final Iterator<Map<String, Object>> rows;
+        final DynamoRowLookahead lookahead;
+
+        LookaheadIterator(Iterator<Map<String, Object>> rows, DynamoRowLookahead lookahead) {
+            this.rows = rows;
+            this.lookahead = lookahead;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return rows.hasNext();
+        }
+
+        @Override
+        public Map<String, Object> next() {
+            return rows.next();
+        }
+
+        @Override
+        public List<Map<String, Object>> peek(int max) {
+            return lookahead.peek(max);
+        }
+    }
+}
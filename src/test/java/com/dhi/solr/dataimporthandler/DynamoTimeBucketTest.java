@@ -0,0 +1,149 @@
+package com.dhi.solr.dataimporthandler;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import org.apache.solr.handler.dataimport.DataImportHandlerException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * A time bucketed delta fan-out query reads every bucket from the one the last import ran in to
+ * the current one, times the write shards of a bucket.
+ *
+ * @author ben.demott
+ */
+public class DynamoTimeBucketTest {
+
+    /**
+     * A delta entity whose clock is set by the test.
+     */
+    private static class BucketProcessor extends DynamoEntityProcessor {
+        final DynamoDeletedRowsTest.FakeContext fakeContext = new DynamoDeletedRowsTest.FakeContext();
+        long now;
+
+        BucketProcessor(String lastImport, String now) {
+            this.context = fakeContext;
+            this.entityName = "items";
+            this.lastImportTime = lastImport == null ? null : utc(lastImport);
+            this.now = utc(now).getTime();
+        }
+
+        BucketProcessor with(String attribute, String value) {
+            fakeContext.attributes.put(DELTA_NAME_ATTRIBUTE + attribute, value);
+            return this;
+        }
+
+        List<String> buckets(String bucketFormat) {
+            return getTimeBucketValues(DELTA_NAME_ATTRIBUTE, bucketFormat);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private static Date utc(String time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return format.parse(time);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(time, e);
+        }
+    }
+
+    @Test
+    public void testDayBuckets() {
+        // the bucket the last import ran in is included, up to the bucket of now
+        BucketProcessor processor = new BucketProcessor("2017-05-01 22:00", "2017-05-03 00:00");
+        assertEquals(Arrays.asList("2017-05-01", "2017-05-02", "2017-05-03"), processor.buckets("yyyy-MM-dd"));
+
+        processor.now = utc("2017-05-02 23:59").getTime();
+        assertEquals(Arrays.asList("2017-05-01", "2017-05-02"), processor.buckets("yyyy-MM-dd"));
+    }
+
+    @Test
+    public void testHourBuckets() {
+        BucketProcessor processor = new BucketProcessor("2017-05-01 22:30", "2017-05-02 00:10")
+                .with(DynamoEntityProcessor.TIME_BUCKET_UNIT, "hour");
+        assertEquals(Arrays.asList("2017-05-01T22", "2017-05-01T23", "2017-05-02T00"), processor.buckets("yyyy-MM-dd'T'HH"));
+    }
+
+    @Test
+    public void testMinuteBuckets() {
+        BucketProcessor processor = new BucketProcessor("2017-05-01 23:58", "2017-05-02 00:00")
+                .with(DynamoEntityProcessor.TIME_BUCKET_UNIT, "Minute");
+        assertEquals(Arrays.asList("23:58", "23:59", "00:00"), processor.buckets("HH:mm"));
+    }
+
+    @Test
+    public void testTimeZoneOfBuckets() {
+        // 22:00 UTC is already May 2nd in Tokyo (UTC+9), 2017-05-02 16:00 UTC is May 3rd
+        BucketProcessor processor = new BucketProcessor("2017-05-01 22:00", "2017-05-02 16:00")
+                .with(DynamoEntityProcessor.TIME_BUCKET_TIME_ZONE, "Asia/Tokyo");
+        assertEquals(Arrays.asList("2017-05-02", "2017-05-03"), processor.buckets("yyyy-MM-dd"));
+
+        processor.with(DynamoEntityProcessor.TIME_BUCKET_TIME_ZONE, "UTC");
+        assertEquals(Arrays.asList("2017-05-01", "2017-05-02"), processor.buckets("yyyy-MM-dd"));
+    }
+
+    @Test
+    public void testShardsOfEachBucket() {
+        BucketProcessor processor = new BucketProcessor("2017-05-01 22:00", "2017-05-02 09:00")
+                .with(DynamoEntityProcessor.SHARD_COUNT, "0");
+        assertEquals(Arrays.asList("2017-05-01", "2017-05-02"), processor.buckets("yyyy-MM-dd"));
+
+        processor.with(DynamoEntityProcessor.SHARD_COUNT, "2");
+        assertEquals(Arrays.asList("2017-05-01#0", "2017-05-01#1", "2017-05-02#0", "2017-05-02#1"), processor.buckets("yyyy-MM-dd"));
+
+        processor.with(DynamoEntityProcessor.SHARD_FORMAT, "%s_%02d");
+        assertEquals(Arrays.asList("2017-05-01_00", "2017-05-01_01", "2017-05-02_00", "2017-05-02_01"), processor.buckets("yyyy-MM-dd"));
+    }
+
+    @Test
+    public void testTooManyBuckets() {
+        // a minute bucket for every minute of 10 days
+        BucketProcessor processor = new BucketProcessor("2017-05-01 00:00", "2017-05-11 00:00")
+                .with(DynamoEntityProcessor.TIME_BUCKET_UNIT, "minute");
+        try {
+            processor.buckets("yyyy-MM-dd HH:mm");
+            fail("more than MAX_TIME_BUCKETS buckets should fail the import");
+        } catch (DataImportHandlerException e) {
+            assertTrue(e.getMessage().contains(String.valueOf(DynamoEntityProcessor.MAX_TIME_BUCKETS)));
+        }
+        // the last bucket allowed
+        processor.now = utc("2017-05-01 00:00").getTime() + (DynamoEntityProcessor.MAX_TIME_BUCKETS - 1) * 60000L;
+        assertEquals(DynamoEntityProcessor.MAX_TIME_BUCKETS, processor.buckets("yyyy-MM-dd HH:mm").size());
+    }
+
+    @Test
+    public void testUnknownLastImportTime() {
+        BucketProcessor processor = new BucketProcessor(null, "2017-05-02 09:00");
+        try {
+            processor.buckets("yyyy-MM-dd");
+            fail("time buckets need the time of the last import");
+        } catch (DataImportHandlerException e) {
+            assertTrue(e.getMessage().contains(DynamoEntityProcessor.TIME_BUCKET_FORMAT));
+        }
+    }
+
+    @Test
+    public void testUnknownUnit() {
+        BucketProcessor processor = new BucketProcessor("2017-05-01 22:00", "2017-05-02 09:00")
+                .with(DynamoEntityProcessor.TIME_BUCKET_UNIT, "week");
+        try {
+            processor.buckets("yyyy-MM-dd");
+            fail("a week isn't a bucket unit");
+        } catch (DataImportHandlerException e) {
+            assertTrue(e.getMessage().contains("week"));
+        }
+    }
+}